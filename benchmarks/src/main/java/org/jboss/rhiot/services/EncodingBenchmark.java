@@ -0,0 +1,66 @@
+package org.jboss.rhiot.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting a BLE address and the json encoding of the /tags REST response
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+   /** The number of named tags in the registry */
+   @Param({"9", "100"})
+   public int tags;
+
+   private short[] address;
+   private RHIoTTagScanner scanner;
+   private RHIoTServlet servlet;
+
+   @Setup
+   public void setup() {
+      address = new short[] {0xA0, 0xE6, 0xF8, 0xAD, 0x2E, 0x82};
+      Map<String, Object> properties = new HashMap<>();
+      properties.put("skipJniInitialization", Boolean.TRUE);
+      properties.put("game.engine", "table");
+      scanner = new RHIoTTagScanner();
+      scanner.activate(null, properties);
+      for (int n = 0; n < tags; n++) {
+         scanner.updateTagInfo(Utils.formatAddress(0xA0E6F8000000L + n), "tag" + n);
+      }
+      servlet = new RHIoTServlet(scanner);
+   }
+
+   @TearDown
+   public void tearDown() {
+      scanner.deactivate(null);
+   }
+
+   @Benchmark
+   public String utilsToString() {
+      return Utils.toString(address);
+   }
+
+   @Benchmark
+   public String tagInfoJson() {
+      return servlet.tagInfoJson();
+   }
+}
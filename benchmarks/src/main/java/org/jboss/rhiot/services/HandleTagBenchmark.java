@@ -0,0 +1,127 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IPublishSink;
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+import org.jboss.rhiot.services.fsm.IGameStateMachine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scanner's advert handling end to end: the game rules, the state machine and building and publishing the
+ * payload to a sink that discards it. The scanner runs without the HCIDump JNI scanner and publishes from the
+ * calling thread, so the benchmark measures the per advert work rather than the hand off between threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandleTagBenchmark {
+   /** Stands in for the cloud client, counting the publishes */
+   static final class DiscardingSink implements IPublishSink {
+      long published;
+
+      @Override
+      public boolean isConnected() {
+         return true;
+      }
+
+      @Override
+      public void publish(String topic, KuraPayload payload, int qos, boolean retain) {
+         published ++;
+      }
+   }
+
+   @Param({"squirrel", "table"})
+   public String engine;
+
+   @Param({"metrics", "compact"})
+   public String format;
+
+   private RHIoTTagScanner scanner;
+   private DiscardingSink sink;
+   private TagEntry entry;
+   /** A game's worth of adverts: start, telemetry, hits and resets, and a reload */
+   private TagReading[] script;
+   private TagReading idle;
+   private IGameStateMachine gsm;
+   private int next;
+
+   @Setup
+   public void setup() {
+      Map<String, Object> properties = new HashMap<>();
+      properties.put("skipJniInitialization", Boolean.TRUE);
+      properties.put("game.engine", engine);
+      properties.put("publish.format", format);
+      // Publish every advert from the calling thread
+      properties.put("publish.queue.capacity", 0);
+      properties.put("publish.spool.maxBytes", 0);
+      properties.put("publish.heartbeatMillis", 0);
+      properties.put("publish.batch.intervalMillis", 0);
+      properties.put("publish.scoreboard.rateHz", 0);
+      properties.put("dispatch.lanes", 1);
+      // Games long enough to not time out during an iteration
+      properties.put("game.duration", 3600);
+      properties.put("game.shootingWindow", 3600);
+      sink = new DiscardingSink();
+      scanner = new RHIoTTagScanner();
+      scanner.setPublishSink(sink);
+      scanner.activate(null, properties);
+
+      long address = Utils.parseAddress("A0:E6:F8:AD:2E:82");
+      entry = scanner.getTagRegistry().getOrCreate(TagAddress.of(address));
+      entry.setName("bench");
+      script = new TagReading[] {
+         reading(address, 3, 300), reading(address, 0, 310), reading(address, 0, 305), reading(address, 0, 25000),
+         reading(address, 0, 300), reading(address, 0, 312), reading(address, 0, 24000), reading(address, 0, 290),
+         reading(address, 2, 300), reading(address, 0, 300)
+      };
+      idle = reading(address, 0, 300);
+      gsm = scanner.getGameSM(entry.getAddress().toString());
+   }
+
+   @TearDown
+   public void tearDown() {
+      scanner.deactivate(null);
+   }
+
+   private static TagReading reading(long address, int keys, int lux) {
+      TagReading reading = new TagReading();
+      reading.set(address, (byte) keys, lux, 21.5);
+      return reading;
+   }
+
+   /**
+    * Handle the next advert of the game script
+    */
+   @Benchmark
+   public GameStateMachine.GameState handleTag() {
+      TagReading reading = script[next];
+      next = next + 1 == script.length ? 0 : next + 1;
+      return scanner.handleTag(entry, reading);
+   }
+
+   /**
+    * Only the game rules of an advert that does not change the game
+    */
+   @Benchmark
+   public GameStateMachine.GameEvent determineEvent() {
+      return scanner.determineEvent(entry, gsm, idle);
+   }
+}
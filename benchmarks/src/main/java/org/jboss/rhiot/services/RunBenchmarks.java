@@ -0,0 +1,22 @@
+package org.jboss.rhiot.services;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options, always adding the GC profiler so each benchmark
+ * reports its allocation rate and bytes per operation next to its throughput.
+ */
+public class RunBenchmarks {
+   public static void main(String[] args) throws Exception {
+      CommandLineOptions cli = new CommandLineOptions(args);
+      Options options = new OptionsBuilder()
+         .parent(cli)
+         .addProfiler(GCProfiler.class)
+         .build();
+      new Runner(options).run();
+   }
+}
@@ -0,0 +1,96 @@
+package org.jboss.rhiot.services.fsm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.squirrelframework.foundation.fsm.StateMachineBuilder;
+import org.squirrelframework.foundation.fsm.StateMachineBuilderFactory;
+import org.squirrelframework.foundation.fsm.StateMachineConfiguration;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.CLIP_EMPTY;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.GAME_TIMEOUT;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.HIT_DETECTED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.LEFT_PRESSED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.LEFT_RIGHT_PRESSED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.LS_RESET;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.RIGHT_PRESSED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.WINDOW_TIMEOUT;
+
+/**
+ * The game model scoring, creating a game state machine and firing a transition, for the squirrel-foundation and
+ * table driven engines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameBenchmark {
+   /** A cycle of events that starts and ends in SHOOTING and takes every transition out of it */
+   private static final GameStateMachine.GameEvent[] CYCLE = {
+      HIT_DETECTED, LS_RESET, WINDOW_TIMEOUT, LEFT_PRESSED, CLIP_EMPTY, RIGHT_PRESSED, GAME_TIMEOUT, LEFT_RIGHT_PRESSED
+   };
+   private static final int[] LUX = {25400, 23000, 21500, 27000, 20100};
+
+   @Param({"squirrel", "table"})
+   public String engine;
+
+   private StateMachineBuilder<GameStateMachine, GameStateMachine.GameState, GameStateMachine.GameEvent, GameModel> builder;
+   private IGameStateMachine gsm;
+   private GameModel model;
+   private int nextLux;
+   private int nextEvent;
+
+   @Setup
+   public void setup() {
+      if(engine.equals("squirrel")) {
+         builder = StateMachineBuilderFactory.create(GameStateMachine.class, GameStateMachine.GameState.class, GameStateMachine.GameEvent.class, GameModel.class);
+         builder.setStateMachineConfiguration(StateMachineConfiguration.create().enableRemoteMonitor(false).enableDebugMode(false));
+      }
+      gsm = newStateMachine();
+      gsm.setGameModel(new GameModel());
+      gsm.start();
+      gsm.fire(LEFT_RIGHT_PRESSED);
+      model = new GameModel();
+   }
+
+   /**
+    * Score a hit
+    */
+   @Benchmark
+   public int recordHit() {
+      int lux = LUX[nextLux];
+      nextLux = nextLux + 1 == LUX.length ? 0 : nextLux + 1;
+      return model.recordHit(lux);
+   }
+
+   /**
+    * Create a new machine, as for a tag's first advert when the pool has no idle machine
+    */
+   @Benchmark
+   public IGameStateMachine newStateMachine() {
+      return builder != null ? builder.newStateMachine(GameStateMachine.GameState.IDLE) : new TableGameStateMachine();
+   }
+
+   /**
+    * Fire the next transition of the cycle
+    */
+   @Benchmark
+   public GameStateMachine.GameState fire() {
+      GameStateMachine.GameEvent event = CYCLE[nextEvent];
+      nextEvent = nextEvent + 1 == CYCLE.length ? 0 : nextEvent + 1;
+      gsm.fire(event);
+      return gsm.getCurrentState();
+   }
+}
@@ -0,0 +1,520 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.ble.bluez.AdEventInfo;
+import org.jboss.rhiot.ble.bluez.AdStructure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A compact binary capture of the raw HCIDump advert stream, staged by a {@link Recorder} as the adverts arrive at
+ * the scanner's advertEvent callback and written by its background thread, and read back by a {@link Reader} to
+ * replay them.
+ *
+ * The file starts with the header [int magic "RHTC"][byte version][long capture start ms], followed by one record
+ * per advert:
+ * <pre>
+ *    varint         us since the previous advert arrived
+ *    zigzag varint  adapter capture time change from the previous advert in ms
+ *    6 bytes        BLE address in display order
+ *    byte           address type
+ *    byte           event type
+ *    varint         event
+ *    byte           rssi
+ *    varint         count
+ *    byte           number of AD structures, then for each: [byte type][varint length][data]
+ * </pre>
+ */
+public class AdvertCapture {
+   private static final Logger log = LoggerFactory.getLogger(AdvertCapture.class);
+   /** "RHTC" */
+   static final int MAGIC = 0x52485443;
+   static final int VERSION = 1;
+
+   /**
+    * An advert read back from a capture, standing in for the AdEventInfo the JNI scanner creates
+    */
+   public static final class CapturedAdvert extends AdEventInfo {
+      private final long arrivalMicros;
+      private final short[] address;
+      private final byte addressType;
+      private final byte eventType;
+      private final int event;
+      private final int rssi;
+      private final int count;
+      private final List<AdStructure> data;
+      /** The capture time, which the replayer rebases to the replay time */
+      private long time;
+
+      CapturedAdvert(long arrivalMicros, short[] address, byte addressType, byte eventType, int event, int rssi, int count,
+                     long time, List<AdStructure> data) {
+         this.arrivalMicros = arrivalMicros;
+         this.address = address;
+         this.addressType = addressType;
+         this.eventType = eventType;
+         this.event = event;
+         this.rssi = rssi;
+         this.count = count;
+         this.time = time;
+         this.data = data;
+      }
+
+      /**
+       * @return the arrival time of the advert in us since the capture started
+       */
+      public long getArrivalMicros() {
+         return arrivalMicros;
+      }
+
+      @Override
+      public short[] getBDaddr() {
+         return address;
+      }
+
+      @Override
+      public String getBDaddrAsString() {
+         return Utils.toString(address);
+      }
+
+      @Override
+      public byte getBDaddrType() {
+         return addressType;
+      }
+
+      @Override
+      public byte getEvtType() {
+         return eventType;
+      }
+
+      @Override
+      public int getEvent() {
+         return event;
+      }
+
+      @Override
+      public int getRssi() {
+         return rssi;
+      }
+
+      @Override
+      public int getCount() {
+         return count;
+      }
+
+      @Override
+      public long getTime() {
+         return time;
+      }
+
+      void setTime(long time) {
+         this.time = time;
+      }
+
+      @Override
+      public List<AdStructure> getData() {
+         return data;
+      }
+   }
+
+   /**
+    * An AD structure read back from a capture
+    */
+   static final class CapturedAdStructure extends AdStructure {
+      private final int type;
+      private final byte[] data;
+
+      CapturedAdStructure(int type, byte[] data) {
+         this.type = type;
+         this.data = data;
+      }
+
+      @Override
+      public int getType() {
+         return type;
+      }
+
+      @Override
+      public byte[] getData() {
+         return data;
+      }
+   }
+
+   /**
+    * Writes the adverts to a capture file. The adverts are recorded on the HCIDump callback thread, so a record only
+    * copies the advert into a preallocated staging slot, never blocking and dropping the advert if the staging ring
+    * is full. A background thread encodes the staged adverts into the file. Recording stops once the file reaches
+    * its size limit or a write fails.
+    */
+   public static class Recorder implements Closeable {
+      /** The number of staging slots between the callback thread and the writer thread */
+      private static final int STAGE_CAPACITY = 4096;
+      /** Upper bound on how long the writer parks waiting for an advert */
+      private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+      /** The most AD structures a legacy advert's 31 data bytes can hold, a slot grows for larger adverts */
+      private static final int MAX_AD_STRUCTURES = 15;
+      /** The AD structure data bytes of a legacy advert, a slot grows for larger adverts */
+      private static final int MAX_AD_BYTES = 31;
+
+      /** A preallocated staging entry holding the raw fields of one advert */
+      private static final class Slot {
+         /** The staging sequence of the advert in the slot, set last to release the fields to the writer */
+         volatile long sequence = -1;
+         long micros;
+         long time;
+         final short[] address = new short[6];
+         byte addressType;
+         byte eventType;
+         int event;
+         int rssi;
+         int count;
+         int adCount;
+         int[] adTypes = new int[MAX_AD_STRUCTURES];
+         int[] adLengths = new int[MAX_AD_STRUCTURES];
+         /** The AD structure data, back to back */
+         byte[] adData = new byte[MAX_AD_BYTES];
+
+         void copy(AdEventInfo info) {
+            short[] bdaddr = info.getBDaddr();
+            for (int n = 0; n < address.length; n++) {
+               address[n] = bdaddr != null && n < bdaddr.length ? bdaddr[n] : 0;
+            }
+            time = info.getTime();
+            addressType = info.getBDaddrType();
+            eventType = info.getEvtType();
+            event = info.getEvent();
+            rssi = info.getRssi();
+            count = info.getCount();
+            List<AdStructure> data = info.getData();
+            int ads = data != null ? Math.min(data.size(), 255) : 0;
+            if(ads > adTypes.length) {
+               adTypes = new int[ads];
+               adLengths = new int[ads];
+            }
+            int offset = 0;
+            for (int n = 0; n < ads; n++) {
+               AdStructure structure = data.get(n);
+               byte[] bytes = structure.getData();
+               int length = bytes != null ? bytes.length : 0;
+               if(offset + length > adData.length)
+                  adData = Arrays.copyOf(adData, Math.max(offset + length, 2 * adData.length));
+               if(length > 0)
+                  System.arraycopy(bytes, 0, adData, offset, length);
+               adTypes[n] = structure.getType();
+               adLengths[n] = length;
+               offset += length;
+            }
+            adCount = ads;
+         }
+      }
+
+      private final File file;
+      private final long maxBytes;
+      private final DataOutputStream out;
+      private final long startNanos;
+      private final Slot[] slots;
+      private final int mask;
+      /** Staging sequence of the next slot to write to the file */
+      private final AtomicLong head = new AtomicLong();
+      /** Staging sequence of the next slot to claim */
+      private final AtomicLong tail = new AtomicLong();
+      private final LongAdder recorded;
+      private final LongAdder dropped;
+      /** The previous advert's arrival and capture times, only used by the writer thread */
+      private long lastMicros;
+      private long lastTime;
+      /** Has the file been closed because it is full or a write failed */
+      private volatile boolean stopped;
+      private volatile boolean running;
+      private volatile boolean writerWaiting;
+      private Thread writer;
+
+      /**
+       * Create the capture file, replacing any existing one, and start the writer thread
+       * @param file - the capture file
+       * @param maxBytes - the size the capture stops growing at
+       * @param metrics - registry for the recorded and dropped counters
+       * @throws IOException on failure to create the file
+       */
+      public Recorder(File file, long maxBytes, ScannerMetrics metrics) throws IOException {
+         this.file = file;
+         this.maxBytes = maxBytes;
+         this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+         this.recorded = metrics.counter("capture.recorded");
+         this.dropped = metrics.counter("capture.dropped");
+         out.writeInt(MAGIC);
+         out.writeByte(VERSION);
+         out.writeLong(System.currentTimeMillis());
+         slots = new Slot[STAGE_CAPACITY];
+         for (int n = 0; n < slots.length; n++) {
+            slots[n] = new Slot();
+         }
+         mask = slots.length - 1;
+         startNanos = System.nanoTime();
+         running = true;
+         writer = new Thread(this::write, "RHIoTTagCapture");
+         writer.setDaemon(true);
+         writer.start();
+         log.info(String.format("Recording adverts to: %s, maxBytes=%d", file, maxBytes));
+      }
+
+      public File getFile() {
+         return file;
+      }
+
+      /**
+       * Stage an advert for the capture. This never blocks, the advert is dropped if the writer has fallen behind.
+       * @param info - the advertising event information as it arrived from the scanner
+       * @return true if the advert was staged
+       */
+      public boolean record(AdEventInfo info) {
+         if(stopped || !running) {
+            dropped.increment();
+            return false;
+         }
+         long t;
+         do {
+            t = tail.get();
+            if(t - head.get() >= slots.length) {
+               dropped.increment();
+               return false;
+            }
+         } while (!tail.compareAndSet(t, t + 1));
+         Slot slot = slots[(int) (t & mask)];
+         slot.micros = (System.nanoTime() - startNanos) / 1000;
+         slot.copy(info);
+         slot.sequence = t;
+         if(writerWaiting)
+            LockSupport.unpark(writer);
+         return true;
+      }
+
+      private void write() {
+         boolean unflushed = false;
+         while (true) {
+            long h = head.get();
+            Slot slot = slots[(int) (h & mask)];
+            if(slot.sequence != h) {
+               // Nothing staged, or the callback that claimed the slot has not finished filling it
+               if(unflushed && !stopped)
+                  flush();
+               unflushed = false;
+               if(!running)
+                  break;
+               idle(slot, h);
+               continue;
+            }
+            if(stopped) {
+               dropped.increment();
+            } else {
+               encode(slot);
+               unflushed = true;
+            }
+            // Release the slot to the callback thread
+            head.lazySet(h + 1);
+         }
+         if(!stopped)
+            stop();
+      }
+
+      private void encode(Slot slot) {
+         try {
+            // Concurrent callbacks may stage adverts slightly out of arrival order
+            long micros = Math.max(slot.micros, lastMicros);
+            writeVarint(out, micros - lastMicros);
+            writeVarint(out, zigzag(slot.time - lastTime));
+            lastMicros = micros;
+            lastTime = slot.time;
+            for (int n = 0; n < 6; n++) {
+               out.writeByte(slot.address[n]);
+            }
+            out.writeByte(slot.addressType);
+            out.writeByte(slot.eventType);
+            writeVarint(out, slot.event);
+            out.writeByte(slot.rssi);
+            writeVarint(out, slot.count);
+            out.writeByte(slot.adCount);
+            int offset = 0;
+            for (int n = 0; n < slot.adCount; n++) {
+               int length = slot.adLengths[n];
+               out.writeByte(slot.adTypes[n]);
+               writeVarint(out, length);
+               out.write(slot.adData, offset, length);
+               offset += length;
+            }
+            recorded.increment();
+            if(out.size() >= maxBytes) {
+               log.info(String.format("Capture: %s reached maxBytes=%d, recording stopped", file, maxBytes));
+               stop();
+            }
+         } catch (IOException e) {
+            log.warn(String.format("Failed to write capture: %s, recording stopped", file), e);
+            stop();
+         }
+      }
+
+      private void flush() {
+         try {
+            out.flush();
+         } catch (IOException e) {
+            log.warn(String.format("Failed to write capture: %s, recording stopped", file), e);
+            stop();
+         }
+      }
+
+      private void idle(Slot slot, long h) {
+         writerWaiting = true;
+         // Recheck after publishing the waiting flag so a concurrent record is not missed
+         if(slot.sequence != h && running)
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+         writerWaiting = false;
+      }
+
+      private void stop() {
+         stopped = true;
+         try {
+            out.close();
+         } catch (IOException e) {
+            log.warn(String.format("Failed to close capture: %s", file), e);
+         }
+      }
+
+      /**
+       * Write the staged adverts, then close the capture and stop the writer thread
+       */
+      @Override
+      public synchronized void close() {
+         running = false;
+         if(writer != null) {
+            LockSupport.unpark(writer);
+            try {
+               writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            writer = null;
+         }
+      }
+   }
+
+   /**
+    * Reads the adverts back from a capture file
+    */
+   public static class Reader implements Closeable {
+      private final DataInputStream in;
+      private final long startMillis;
+      private long micros;
+      private long time;
+
+      /**
+       * Open a capture file
+       * @param file - the capture file
+       * @throws IOException on failure to read the header, or if this is not a capture file
+       */
+      public Reader(File file) throws IOException {
+         this(new FileInputStream(file));
+      }
+
+      public Reader(InputStream stream) throws IOException {
+         in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+         if(in.readInt() != MAGIC)
+            throw new IOException("Not an advert capture");
+         int version = in.readUnsignedByte();
+         if(version != VERSION)
+            throw new IOException("Unsupported advert capture version: " + version);
+         startMillis = in.readLong();
+      }
+
+      /**
+       * @return the wall clock time the capture started at
+       */
+      public long getStartMillis() {
+         return startMillis;
+      }
+
+      /**
+       * Read the next advert
+       * @return the advert, null at the end of the capture
+       * @throws IOException on failure to read, or a truncated record
+       */
+      public CapturedAdvert next() throws IOException {
+         long delta;
+         try {
+            delta = readVarint(in);
+         } catch (EOFException e) {
+            return null;
+         }
+         micros += delta;
+         time += unzigzag(readVarint(in));
+         short[] address = new short[6];
+         for (int n = 0; n < 6; n++) {
+            address[n] = (short) in.readUnsignedByte();
+         }
+         byte addressType = in.readByte();
+         byte eventType = in.readByte();
+         int event = (int) readVarint(in);
+         int rssi = in.readByte();
+         int count = (int) readVarint(in);
+         int adCount = in.readUnsignedByte();
+         List<AdStructure> data = adCount > 0 ? new ArrayList<>(adCount) : Collections.emptyList();
+         for (int n = 0; n < adCount; n++) {
+            int type = in.readUnsignedByte();
+            byte[] bytes = new byte[(int) readVarint(in)];
+            in.readFully(bytes);
+            data.add(new CapturedAdStructure(type, bytes));
+         }
+         return new CapturedAdvert(micros, address, addressType, eventType, event, rssi, count, time, data);
+      }
+
+      @Override
+      public void close() throws IOException {
+         in.close();
+      }
+   }
+
+   static long zigzag(long value) {
+      return (value << 1) ^ (value >> 63);
+   }
+
+   static long unzigzag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   static void writeVarint(OutputStream out, long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+         out.write((int) ((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      out.write((int) value);
+   }
+
+   static long readVarint(DataInputStream in) throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+         int b = in.readUnsignedByte();
+         value |= (long) (b & 0x7F) << shift;
+         if((b & 0x80) == 0)
+            return value;
+      }
+      throw new IOException("Malformed varint");
+   }
+}
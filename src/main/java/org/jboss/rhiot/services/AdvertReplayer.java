@@ -0,0 +1,253 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.services.api.IPublishSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a capture written by {@link AdvertCapture.Recorder} back into the scanner's advertEvent callback, without
+ * the HCIDump JNI library, and reports the processing throughput and the latency of each pipeline stage.
+ *
+ * The adverts are replayed at their captured pace, N times faster, or as fast as the scanner takes them. Each
+ * advert's capture time is rebased to the time it is replayed, and every tag in the capture is given a name so its
+ * adverts are played through the games. The publishes go to a recording sink, or a slow fake broker.
+ *
+ * java -cp rhiot-services.jar:... org.jboss.rhiot.services.AdvertReplayer capture.bin [1|N|max] [key=value ...]
+ *
+ * The key=value arguments are scanner configuration properties, e.g. game.engine=table publish.format=compact. The
+ * extra sink.latencyMicros=n property sends the publishes through a LatencyPublishSink with that base latency.
+ */
+public class AdvertReplayer {
+   /** How long to wait for the pipeline to drain after the last advert */
+   private static final long DRAIN_TIMEOUT_MILLIS = 60000;
+   /** The queue depth metrics of the pipeline stages between the advertEvent callback and the publish sink */
+   static final String[] PIPELINE_QUEUES = {"ring.depth", "mailbox.pending", "dispatch.queueDepth", "publish.results.depth",
+      "publish.events.depth", "publish.telemetry.depth"};
+
+   /**
+    * The outcome of a replay
+    */
+   public static final class Result {
+      private long adverts;
+      private long elapsedNanos;
+      private long drainedNanos;
+      private long publishes;
+      /** The advertEvent call times in ns, as a log2 histogram */
+      private final long[] injectHistogram = new long[64];
+      private long injectTotalNanos;
+      private long injectMaxNanos;
+      private Map<String, Long> metrics;
+
+      public long getAdverts() {
+         return adverts;
+      }
+
+      public long getPublishes() {
+         return publishes;
+      }
+
+      public Map<String, Long> getMetrics() {
+         return metrics;
+      }
+
+      /**
+       * @return the adverts per second from the first advert until the pipeline drained
+       */
+      public double getThroughput() {
+         return drainedNanos > 0 ? adverts * 1e9 / drainedNanos : 0;
+      }
+
+      private void recordInject(long nanos) {
+         injectTotalNanos += nanos;
+         injectMaxNanos = Math.max(injectMaxNanos, nanos);
+         injectHistogram[63 - Long.numberOfLeadingZeros(Math.max(1, nanos))] ++;
+      }
+
+      /**
+       * @return the upper bound in ns of the log2 bucket holding the given fraction of the advertEvent calls
+       */
+      private long injectPercentile(double p) {
+         long target = (long) Math.ceil(adverts * p);
+         long seen = 0;
+         for (int n = 0; n < injectHistogram.length; n++) {
+            seen += injectHistogram[n];
+            if(seen >= target && seen > 0)
+               return 1L << (n + 1);
+         }
+         return injectMaxNanos;
+      }
+
+      private long metric(String name) {
+         Long value = metrics.get(name);
+         return value != null ? value : 0;
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder report = new StringBuilder();
+         report.append(String.format("adverts=%d, publishes=%d, replay=%.1fs, drained=%.1fs, throughput=%.0f adverts/s\n",
+            adverts, publishes, elapsedNanos / 1e9, drainedNanos / 1e9, getThroughput()));
+         report.append(String.format("  advertEvent: avg=%dns, p50<%dns, p99<%dns, max=%dns\n",
+            adverts > 0 ? injectTotalNanos / adverts : 0, injectPercentile(0.5), injectPercentile(0.99), injectMaxNanos));
+         report.append(String.format("  ring: published=%d, filtered=%d, droppedOldest=%d, droppedNewest=%d, blocked=%d\n",
+            metric("ring.published"), metric("ring.filtered"), metric("ring.droppedOldest"), metric("ring.droppedNewest"),
+            metric("ring.blocked")));
+         report.append(String.format("  mailbox: offered=%d, coalesced=%d, overflowed=%d\n",
+            metric("mailbox.offered"), metric("mailbox.coalesced"), metric("mailbox.overflowed")));
+         long handled = metric("queueDelay.count");
+         report.append(String.format("  capture to game rules: handled=%d, avg=%dms\n",
+            handled, handled > 0 ? metric("queueDelay.totalMillis") / handled : 0));
+         for (String lane : new String[]{"results", "events", "telemetry"}) {
+            String prefix = "publish." + lane + ".";
+            report.append(String.format("  publish %s lane: published=%d, shed=%d, avg=%dms, max=%dms\n", lane,
+               metric(prefix + "published"), metric(prefix + "shed"), metric(prefix + "avgLatencyMillis"),
+               metric(prefix + "latencyMaxMillis")));
+         }
+         return report.toString();
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      if(args.length == 0) {
+         System.err.println("Usage: AdvertReplayer capture.bin [1|N|max] [key=value ...]");
+         System.exit(1);
+      }
+      double speed = 1;
+      if(args.length > 1)
+         speed = args[1].equalsIgnoreCase("max") ? 0 : Double.parseDouble(args[1]);
+      Map<String, Object> properties = new HashMap<>();
+      for (int n = 2; n < args.length; n++) {
+         String[] kv = args[n].split("=", 2);
+         if(kv.length != 2)
+            throw new IllegalArgumentException("Expected key=value, not: " + args[n]);
+         properties.put(kv[0], parseValue(kv[1]));
+      }
+      IPublishSink sink = new RecordingPublishSink(false);
+      Object latency = properties.remove("sink.latencyMicros");
+      if(latency != null)
+         sink = new LatencyPublishSink(sink, ((Number) latency).longValue(), 0, 0, 0, 1);
+
+      Result result = replay(new File(args[0]), speed, properties, sink);
+      System.out.print(result);
+   }
+
+   /**
+    * Replay a capture through a new scanner
+    * @param capture - the capture file
+    * @param speed - the replay speed relative to the capture, 0 to replay as fast as possible
+    * @param properties - scanner configuration properties, skipJniInitialization is always set
+    * @param sink - the publish sink
+    * @return the replay result
+    * @throws IOException on failure to read the capture
+    */
+   public static Result replay(File capture, double speed, Map<String, Object> properties, IPublishSink sink) throws IOException {
+      Map<String, Object> config = new HashMap<>(properties);
+      config.put(ScannerConfig.SKIP_JNI_PROP_NAME, Boolean.TRUE);
+      RHIoTTagScanner scanner = new RHIoTTagScanner();
+      scanner.setPublishSink(sink);
+      scanner.activate(null, config);
+      try {
+         return replay(scanner, capture, speed, sink);
+      } finally {
+         scanner.deactivate(null);
+      }
+   }
+
+   /**
+    * Replay a capture through an activated scanner
+    * @param scanner - the scanner, activated with skipJniInitialization
+    * @param capture - the capture file
+    * @param speed - the replay speed relative to the capture, 0 to replay as fast as possible
+    * @param sink - the scanner's publish sink, if it is a RecordingPublishSink the publishes are counted
+    * @return the replay result
+    * @throws IOException on failure to read the capture
+    */
+   static Result replay(RHIoTTagScanner scanner, File capture, double speed, IPublishSink sink) throws IOException {
+      Result result = new Result();
+      Set<String> named = new HashSet<>();
+      long start = System.nanoTime();
+      try(AdvertCapture.Reader reader = new AdvertCapture.Reader(capture)) {
+         AdvertCapture.CapturedAdvert advert;
+         while ((advert = reader.next()) != null) {
+            if(speed > 0) {
+               long due = start + (long) (advert.getArrivalMicros() * 1000 / speed);
+               long wait;
+               while ((wait = due - System.nanoTime()) > 0) {
+                  LockSupport.parkNanos(wait);
+               }
+            }
+            String address = advert.getBDaddrAsString();
+            if(named.add(address) && scanner.getTagInfo(address) == null)
+               scanner.updateTagInfo(address, "replay" + named.size());
+            advert.setTime(System.currentTimeMillis());
+            long before = System.nanoTime();
+            scanner.advertEvent(advert);
+            result.recordInject(System.nanoTime() - before);
+            result.adverts ++;
+         }
+      }
+      result.elapsedNanos = System.nanoTime() - start;
+      result.drainedNanos = awaitDrained(scanner) - start;
+      result.metrics = scanner.getMetrics().snapshot();
+      if(sink instanceof RecordingPublishSink)
+         result.publishes = ((RecordingPublishSink) sink).size();
+      else if(sink instanceof LatencyPublishSink)
+         result.publishes = result.metric("publish.results.published") + result.metric("publish.events.published")
+            + result.metric("publish.telemetry.published");
+      return result;
+   }
+
+   /**
+    * Wait until the adverts have made it through the ring, the mailboxes, the dispatch lanes and the publish lanes
+    * @return the nanoTime the pipeline was first seen empty
+    */
+   static long awaitDrained(RHIoTTagScanner scanner) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+      int quiet = 0;
+      long drained = 0;
+      while (quiet < 3 && System.nanoTime() < deadline) {
+         Map<String, Long> metrics = scanner.getMetrics().snapshot();
+         long pending = 0;
+         for (String queue : PIPELINE_QUEUES) {
+            pending += value(metrics, queue);
+         }
+         if(pending > 0) {
+            quiet = 0;
+         } else if(quiet ++ == 0) {
+            drained = System.nanoTime();
+         }
+         LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+      }
+      return quiet > 0 ? drained : System.nanoTime();
+   }
+
+   static long value(Map<String, Long> metrics, String name) {
+      Long value = metrics.get(name);
+      return value != null ? value : 0;
+   }
+
+   /**
+    * Parse a property value into the type the metatype declares, Boolean, Integer, Double or String
+    */
+   static Object parseValue(String value) {
+      if(value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false"))
+         return Boolean.valueOf(value);
+      try {
+         return Integer.valueOf(value);
+      } catch (NumberFormatException e) {
+         // not an int
+      }
+      try {
+         return Double.valueOf(value);
+      } catch (NumberFormatException e) {
+         return value;
+      }
+   }
+}
@@ -0,0 +1,306 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.ble.bluez.AdEventInfo;
+import org.jboss.rhiot.ble.bluez.AdStructure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, preallocated single producer ring buffer between the native HCIDump callback thread and the advert
+ * processing. The producer only copies the raw advert fields into a slot, the name lookup and dispatch happen on the
+ * consumer thread. With flyweight decoding the producer filters out non-RHIoTTag adverts and decodes the sensor
+ * values straight into the slot's preallocated {@link TagReading}. Otherwise the address and AD structures are copied
+ * into the slot's preallocated arrays and the consumer parses its own copy of the advert, so no reference to the
+ * AdEventInfo of the native callback is kept once publish returns. What happens when the ring is full is determined by the {@link OverflowPolicy}.
+ *
+ * The consumer claims a slot by advancing the head with a CAS after reading it. With the DROP_OLDEST policy the
+ * producer advances the head itself to make room, in which case the consumer's CAS fails and it discards what it
+ * read since the slot may have been overwritten underneath it.
+ */
+public class AdvertRingBuffer {
+   private static final Logger log = LoggerFactory.getLogger(AdvertRingBuffer.class);
+   /** How long the producer parks while waiting for space under the BLOCK policy */
+   private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+   /** Upper bound on how long the consumer parks waiting for an advert */
+   private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+   /** The most AD structures a legacy advert's 31 data bytes can hold, a slot grows for larger adverts */
+   private static final int MAX_AD_STRUCTURES = 15;
+   /** The AD structure data bytes of a legacy advert less the length and type bytes, a slot grows for larger adverts */
+   private static final int MAX_AD_BYTES = 31;
+
+   public enum OverflowPolicy {
+      /** Overwrite the oldest unconsumed advert */
+      DROP_OLDEST,
+      /** Discard the advert being published */
+      DROP_NEWEST,
+      /** Wait for the consumer to free a slot */
+      BLOCK
+   }
+
+   /**
+    * The consumer stage callback
+    */
+   public interface AdvertHandler {
+      /**
+       * Process an advert
+       * @param info - the consumer's copy of the advert to parse, null if the reading was already decoded by the
+       *             producer
+       * @param reading - the decoded reading, or only the rssi and time if info needs parsing. This is reused for
+       *                the next advert once the call returns.
+       */
+      void onAdvert(AdEventInfo info, TagReading reading);
+   }
+
+   /** A preallocated ring entry holding the raw advert fields */
+   static final class Slot {
+      final short[] address = new short[6];
+      byte addressType;
+      byte eventType;
+      int event;
+      int count;
+      /** The number of AD structures */
+      int adCount;
+      int[] adTypes = new int[MAX_AD_STRUCTURES];
+      int[] adLengths = new int[MAX_AD_STRUCTURES];
+      /** The AD structure data, back to back */
+      byte[] adData = new byte[MAX_AD_BYTES];
+      final TagReading reading = new TagReading();
+
+      /**
+       * Copy the raw advert fields. This runs on the producer thread.
+       * @param info - the advertising event information
+       */
+      void copy(AdEventInfo info) {
+         short[] bdaddr = info.getBDaddr();
+         for (int n = 0; n < address.length; n++) {
+            address[n] = bdaddr != null && n < bdaddr.length ? bdaddr[n] : 0;
+         }
+         addressType = info.getBDaddrType();
+         eventType = info.getEvtType();
+         event = info.getEvent();
+         count = info.getCount();
+         List<AdStructure> data = info.getData();
+         int ads = data != null ? data.size() : 0;
+         if(ads > adTypes.length) {
+            adTypes = new int[ads];
+            adLengths = new int[ads];
+         }
+         int offset = 0;
+         for (int n = 0; n < ads; n++) {
+            AdStructure structure = data.get(n);
+            byte[] bytes = structure.getData();
+            int length = bytes != null ? bytes.length : 0;
+            if(offset + length > adData.length)
+               adData = Arrays.copyOf(adData, Math.max(offset + length, 2 * adData.length));
+            if(length > 0)
+               System.arraycopy(bytes, 0, adData, offset, length);
+            adTypes[n] = structure.getType();
+            adLengths[n] = length;
+            offset += length;
+         }
+         adCount = ads;
+      }
+
+      /**
+       * Build the consumer's copy of the advert from the raw fields. The producer may be overwriting the slot under
+       * the DROP_OLDEST policy, so this only guards against inconsistent fields, the caller discards a torn copy.
+       * @return the advert, null if the fields were torn
+       */
+      AdvertCapture.CapturedAdvert toAdvert() {
+         int[] types = adTypes;
+         int[] lengths = adLengths;
+         byte[] bytes = adData;
+         int ads = adCount;
+         if(ads > types.length || ads > lengths.length)
+            return null;
+         List<AdStructure> data = new ArrayList<>(ads);
+         int offset = 0;
+         for (int n = 0; n < ads; n++) {
+            int length = lengths[n];
+            if(length < 0 || offset + length > bytes.length)
+               return null;
+            data.add(new AdvertCapture.CapturedAdStructure(types[n], Arrays.copyOfRange(bytes, offset, offset + length)));
+            offset += length;
+         }
+         return new AdvertCapture.CapturedAdvert(0, address.clone(), addressType, eventType, event, reading.getRssi(),
+            count, reading.getTime(), data);
+      }
+   }
+
+   private final Slot[] slots;
+   private final int mask;
+   private final OverflowPolicy policy;
+   private final AdvertHandler handler;
+   /** Decode RHIoTTag adverts on the producer thread */
+   private final boolean flyweightDecode;
+   /** The consumer's copy of the slot being processed */
+   private final TagReading consumerReading = new TagReading();
+   /** Sequence of the next slot to consume */
+   private final AtomicLong head = new AtomicLong();
+   /** Sequence of the next slot to publish */
+   private final AtomicLong tail = new AtomicLong();
+   private final LongAdder published;
+   private final LongAdder droppedOldest;
+   private final LongAdder droppedNewest;
+   private final LongAdder blocked;
+   private final LongAdder filtered;
+   private volatile boolean running;
+   private volatile boolean consumerWaiting;
+   private Thread consumer;
+
+   /**
+    * @param capacity - number of slots, rounded up to a power of 2
+    * @param policy - what to do when the ring is full
+    * @param flyweightDecode - filter and decode RHIoTTag adverts on the producer thread
+    * @param handler - the consumer stage
+    * @param metrics - registry for the ring counters
+    */
+   public AdvertRingBuffer(int capacity, OverflowPolicy policy, boolean flyweightDecode, AdvertHandler handler, ScannerMetrics metrics) {
+      int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+      slots = new Slot[size];
+      for (int n = 0; n < size; n++) {
+         slots[n] = new Slot();
+      }
+      mask = size - 1;
+      this.policy = policy;
+      this.handler = handler;
+      this.flyweightDecode = flyweightDecode;
+      published = metrics.counter("ring.published");
+      droppedOldest = metrics.counter("ring.droppedOldest");
+      droppedNewest = metrics.counter("ring.droppedNewest");
+      blocked = metrics.counter("ring.blocked");
+      filtered = metrics.counter("ring.filtered");
+      metrics.gauge("ring.depth", this::size);
+      metrics.gauge("ring.capacity", () -> slots.length);
+   }
+
+   /**
+    * Start the consumer thread
+    */
+   public synchronized void start() {
+      if(running)
+         return;
+      running = true;
+      consumer = new Thread(this::consume, "RHIoTTagAdvertConsumer");
+      consumer.setDaemon(true);
+      consumer.start();
+      log.info(String.format("Started advert ring, capacity=%d, policy=%s", slots.length, policy));
+   }
+
+   /**
+    * Stop the consumer thread. Any adverts still in the ring are discarded.
+    */
+   public synchronized void stop() {
+      running = false;
+      if(consumer != null) {
+         LockSupport.unpark(consumer);
+         try {
+            consumer.join(TimeUnit.SECONDS.toMillis(1));
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         consumer = null;
+      }
+   }
+
+   /**
+    * Copy the advert into the next slot. This must only be called from the single producer thread.
+    * @param info - the advertising event information
+    * @return true if the advert was queued, false if it was dropped or filtered
+    */
+   public boolean publish(AdEventInfo info) {
+      int adIndex = -1;
+      if(flyweightDecode) {
+         // Reject other devices before taking a slot
+         adIndex = RHIoTTagDecoder.indexOf(info);
+         if(adIndex < 0) {
+            filtered.increment();
+            return false;
+         }
+      }
+      long t = tail.get();
+      boolean waited = false;
+      while (t - head.get() >= slots.length) {
+         switch (policy) {
+            case DROP_NEWEST:
+               droppedNewest.increment();
+               return false;
+            case DROP_OLDEST:
+               long h = head.get();
+               if(t - h >= slots.length && head.compareAndSet(h, h + 1))
+                  droppedOldest.increment();
+               break;
+            case BLOCK:
+               if(!running)
+                  return false;
+               if(!waited) {
+                  blocked.increment();
+                  waited = true;
+               }
+               LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+               break;
+         }
+      }
+      Slot slot = slots[(int) (t & mask)];
+      TagReading reading = slot.reading;
+      if(flyweightDecode) {
+         RHIoTTagDecoder.decode(info, adIndex, reading);
+      } else {
+         reading.clear();
+         slot.copy(info);
+      }
+      reading.setRssi(info.getRssi());
+      reading.setTime(info.getTime());
+      // Release the slot writes to the consumer
+      tail.lazySet(t + 1);
+      published.increment();
+      if(consumerWaiting)
+         LockSupport.unpark(consumer);
+      return true;
+   }
+
+   /**
+    * @return the number of adverts waiting to be consumed
+    */
+   public long size() {
+      long size = tail.get() - head.get();
+      return size < 0 ? 0 : size;
+   }
+
+   private void consume() {
+      while (running) {
+         long h = head.get();
+         if(h >= tail.get()) {
+            idle();
+            continue;
+         }
+         Slot slot = slots[(int) (h & mask)];
+         consumerReading.copyFrom(slot.reading);
+         AdEventInfo info = flyweightDecode ? null : slot.toAdvert();
+         // If the producer dropped this slot while it was being read, the copy may be torn
+         if(!head.compareAndSet(h, h + 1) || (!flyweightDecode && info == null))
+            continue;
+         try {
+            handler.onAdvert(info, consumerReading);
+         } catch (Exception e) {
+            log.error("Failed to process advert", e);
+         }
+      }
+   }
+
+   private void idle() {
+      consumerWaiting = true;
+      // Recheck after publishing the waiting flag so a concurrent publish is not missed
+      if(head.get() >= tail.get() && running)
+         LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      consumerWaiting = false;
+   }
+}
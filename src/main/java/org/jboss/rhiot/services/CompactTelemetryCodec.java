@@ -0,0 +1,449 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IRHIoTTagScanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The opt-in compact encoding of the tag telemetry payloads. Rather than one named metric per value, the payload
+ * carries the {@link IRHIoTTagScanner#TAG_FORMAT} schema version metric and a binary body:
+ *
+ * [byte version][byte flags][body], where the body is deflated if the {@link #FLAG_DEFLATE} flag is set and holds
+ * [varint sample count] followed by one column per field of [varint field id][varint column length][values].
+ *
+ * The field ids are fixed by the schema version. Every column value is a varint, the numeric columns hold the
+ * zigzag encoded difference from the previous sample so slowly changing telemetry takes one byte per value, and
+ * temperatures are carried in hundredths of a degree. The game states and events are carried as their index in
+ * the version 1 name tables. Decoders skip columns with field ids they do not know.
+ */
+public class CompactTelemetryCodec {
+   /** The schema version written by this codec */
+   public static final int VERSION = 1;
+   /** The body after the header is deflated */
+   public static final int FLAG_DEFLATE = 1;
+
+   // The version 1 field ids
+   static final int FIELD_TIME = 1;
+   static final int FIELD_TEMP = 2;
+   static final int FIELD_KEYS = 3;
+   static final int FIELD_LUX = 4;
+   static final int FIELD_GAME_TIME_LEFT = 5;
+   static final int FIELD_GAME_SCORE = 6;
+   static final int FIELD_SHOOTING_TIME_LEFT = 7;
+   static final int FIELD_SHOTS_LEFT = 8;
+   static final int FIELD_PREV_STATE = 9;
+   static final int FIELD_NEW_STATE = 10;
+   static final int FIELD_EVENT = 11;
+   static final int FIELD_HIT_SCORE = 12;
+   static final int FIELD_HIT_RINGS_OFF_CENTER = 13;
+
+   /** The version 1 game state and event name tables */
+   private static final String[] STATES = {
+      "IDLE", "SHOOTING", "RESETTING", "GUN_EMPTY", "REPLACE_TARGET", "GAMEOVER"
+   };
+   private static final String[] EVENTS = {
+      "LEFT_RIGHT_PRESSED", "CHECK_SHOT", "HIT_DETECTED", "LS_RESET", "CLIP_EMPTY", "RIGHT_PRESSED", "LEFT_PRESSED",
+      "WINDOW_TIMEOUT", "GAME_TIMEOUT", "NOOP"
+   };
+   private static final Map<String, Integer> STATE_IDS = index(STATES);
+   private static final Map<String, Integer> EVENT_IDS = index(EVENTS);
+
+   /**
+    * The game state change carried by a single sample payload
+    */
+   public static final class Transition {
+      private final String prevState;
+      private final String newState;
+      private final String event;
+      /** The hit score and rings off center, only carried for hits */
+      private final boolean hit;
+      private final int hitScore;
+      private final int hitRingsOffCenter;
+
+      public Transition(String prevState, String newState, String event, boolean hit, int hitScore, int hitRingsOffCenter) {
+         this.prevState = prevState;
+         this.newState = newState;
+         this.event = event;
+         this.hit = hit;
+         this.hitScore = hitScore;
+         this.hitRingsOffCenter = hitRingsOffCenter;
+      }
+   }
+
+   private final boolean deflate;
+
+   /**
+    * Create a codec
+    * @param deflate - should the body be deflated
+    */
+   public CompactTelemetryCodec(boolean deflate) {
+      this.deflate = deflate;
+   }
+
+   public boolean isDeflate() {
+      return deflate;
+   }
+
+   /**
+    * Build the payload of a batch of telemetry samples
+    * @param count - the number of samples in the columns
+    * @return the compact payload
+    */
+   public KuraPayload batch(int count, long[] time, double[] tempC, byte[] keys, int[] lux, int[] gameTimeLeft, int[] score,
+                            int[] shootingTimeLeft, int[] shotsLeft) {
+      Writer out = new Writer(32 + count * 12);
+      out.varint(count);
+      out.column(FIELD_TIME, time, count);
+      long[] temps = new long[count];
+      for (int n = 0; n < count; n++) {
+         temps[n] = Math.round(tempC[n] * 100);
+      }
+      out.column(FIELD_TEMP, temps, count);
+      out.startColumn(FIELD_KEYS);
+      for (int n = 0; n < count; n++) {
+         out.varint(keys[n] & 0xff);
+      }
+      out.endColumn();
+      out.column(FIELD_LUX, lux, count);
+      out.column(FIELD_GAME_TIME_LEFT, gameTimeLeft, count);
+      out.column(FIELD_GAME_SCORE, score, count);
+      out.column(FIELD_SHOOTING_TIME_LEFT, shootingTimeLeft, count);
+      out.column(FIELD_SHOTS_LEFT, shotsLeft, count);
+      return payload(time[count - 1], out);
+   }
+
+   /**
+    * Build the payload of a single advert or game state change
+    * @param transition - the game state change, null for telemetry only
+    * @return the compact payload
+    */
+   public KuraPayload sample(long time, double tempC, byte keys, int lux, int gameTimeLeft, int score, int shootingTimeLeft,
+                             int shotsLeft, Transition transition) {
+      Writer out = new Writer(64);
+      out.varint(1);
+      out.value(FIELD_TIME, time);
+      out.value(FIELD_TEMP, Math.round(tempC * 100));
+      out.startColumn(FIELD_KEYS);
+      out.varint(keys & 0xff);
+      out.endColumn();
+      out.value(FIELD_LUX, lux);
+      out.value(FIELD_GAME_TIME_LEFT, gameTimeLeft);
+      out.value(FIELD_GAME_SCORE, score);
+      out.value(FIELD_SHOOTING_TIME_LEFT, shootingTimeLeft);
+      out.value(FIELD_SHOTS_LEFT, shotsLeft);
+      if(transition != null) {
+         out.name(FIELD_PREV_STATE, STATE_IDS, transition.prevState);
+         out.name(FIELD_NEW_STATE, STATE_IDS, transition.newState);
+         out.name(FIELD_EVENT, EVENT_IDS, transition.event);
+         if(transition.hit) {
+            out.value(FIELD_HIT_SCORE, transition.hitScore);
+            out.value(FIELD_HIT_RINGS_OFF_CENTER, transition.hitRingsOffCenter);
+         }
+      }
+      return payload(time, out);
+   }
+
+   private KuraPayload payload(long timestamp, Writer out) {
+      byte[] body = out.toByteArray();
+      int flags = 0;
+      if(deflate) {
+         body = deflate(body);
+         flags |= FLAG_DEFLATE;
+      }
+      byte[] bytes = new byte[body.length + 2];
+      bytes[0] = (byte) VERSION;
+      bytes[1] = (byte) flags;
+      System.arraycopy(body, 0, bytes, 2, body.length);
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(timestamp));
+      payload.addMetric(IRHIoTTagScanner.TAG_FORMAT, VERSION);
+      payload.setBody(bytes);
+      return payload;
+   }
+
+   /**
+    * Decode a compact payload body into its samples. Each sample holds the values under the usual metric names,
+    * with the sample time under {@link IRHIoTTagScanner#TAG_SAMPLE_TIME}.
+    * @param bytes - the payload body
+    * @return the samples in order
+    * @throws IOException if the body is not a supported compact encoding
+    */
+   public static List<Map<String, Object>> decode(byte[] bytes) throws IOException {
+      if(bytes == null || bytes.length < 2)
+         throw new IOException("Missing compact telemetry header");
+      int version = bytes[0] & 0xff;
+      if(version != VERSION)
+         throw new IOException("Unsupported compact telemetry version: " + version);
+      byte[] body = Arrays.copyOfRange(bytes, 2, bytes.length);
+      if((bytes[1] & FLAG_DEFLATE) != 0)
+         body = inflate(body);
+      Reader in = new Reader(body, 0, body.length);
+      long count = in.varint();
+      // Every sample takes at least a byte of its time column, so a larger count is corrupt, not a big batch
+      if(count < 0 || count > body.length)
+         throw new IOException("Bad compact telemetry sample count: " + count);
+      List<Map<String, Object>> samples = new ArrayList<>((int) count);
+      for (int n = 0; n < count; n++) {
+         samples.add(new LinkedHashMap<>());
+      }
+      while (in.pos < in.end) {
+         int field = (int) in.varint();
+         long length = in.varint();
+         if(length < 0 || length > in.end - in.pos)
+            throw new EOFException("Truncated compact telemetry column");
+         Reader column = new Reader(body, in.pos, in.pos + (int) length);
+         in.pos += (int) length;
+         switch (field) {
+            case FIELD_TIME:
+               column.deltas(samples, IRHIoTTagScanner.TAG_SAMPLE_TIME, false);
+               break;
+            case FIELD_TEMP:
+               long temp = 0;
+               for (Map<String, Object> sample : samples) {
+                  temp += zigzag(column.varint());
+                  sample.put(IRHIoTTagScanner.TAG_TEMP, temp / 100.0);
+               }
+               break;
+            case FIELD_KEYS:
+               for (Map<String, Object> sample : samples) {
+                  sample.put(IRHIoTTagScanner.TAG_KEYS, (int) column.varint());
+               }
+               break;
+            case FIELD_LUX:
+               column.deltas(samples, IRHIoTTagScanner.TAG_LUX, true);
+               break;
+            case FIELD_GAME_TIME_LEFT:
+               column.deltas(samples, IRHIoTTagScanner.TAG_GAME_TIME_LEFT, true);
+               break;
+            case FIELD_GAME_SCORE:
+               column.deltas(samples, IRHIoTTagScanner.TAG_GAME_SCORE, true);
+               break;
+            case FIELD_SHOOTING_TIME_LEFT:
+               column.deltas(samples, IRHIoTTagScanner.TAG_SHOOTING_TIME_LEFT, true);
+               break;
+            case FIELD_SHOTS_LEFT:
+               column.deltas(samples, IRHIoTTagScanner.TAG_SHOTS_LEFT, true);
+               break;
+            case FIELD_PREV_STATE:
+               column.names(samples, IRHIoTTagScanner.TAG_PREV_STATE, STATES);
+               break;
+            case FIELD_NEW_STATE:
+               column.names(samples, IRHIoTTagScanner.TAG_NEW_STATE, STATES);
+               break;
+            case FIELD_EVENT:
+               column.names(samples, IRHIoTTagScanner.TAG_EVENT, EVENTS);
+               break;
+            case FIELD_HIT_SCORE:
+               column.deltas(samples, IRHIoTTagScanner.TAG_HIT_SCORE, true);
+               break;
+            case FIELD_HIT_RINGS_OFF_CENTER:
+               column.deltas(samples, IRHIoTTagScanner.TAG_HIT_RINGS_OFF_CENTER, true);
+               break;
+            default:
+               // A field added by a later schema revision
+               break;
+         }
+      }
+      return samples;
+   }
+
+   private static long zigzag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   private static Map<String, Integer> index(String[] names) {
+      Map<String, Integer> ids = new HashMap<>();
+      for (int n = 0; n < names.length; n++) {
+         ids.put(names[n], n);
+      }
+      return ids;
+   }
+
+   private static byte[] deflate(byte[] body) {
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+         deflater.setInput(body);
+         deflater.finish();
+         ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+         byte[] chunk = new byte[256];
+         while (!deflater.finished()) {
+            int length = deflater.deflate(chunk);
+            out.write(chunk, 0, length);
+         }
+         return out.toByteArray();
+      } finally {
+         deflater.end();
+      }
+   }
+
+   private static byte[] inflate(byte[] body) throws IOException {
+      Inflater inflater = new Inflater();
+      try {
+         inflater.setInput(body);
+         ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+         byte[] chunk = new byte[256];
+         while (!inflater.finished()) {
+            int length = inflater.inflate(chunk);
+            if(length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+               throw new EOFException("Truncated compact telemetry body");
+            out.write(chunk, 0, length);
+         }
+         return out.toByteArray();
+      } catch (DataFormatException e) {
+         throw new IOException("Bad compact telemetry body", e);
+      } finally {
+         inflater.end();
+      }
+   }
+
+   /**
+    * Writes the varint columns
+    */
+   private static final class Writer {
+      private byte[] buf;
+      private int pos;
+      /** The start of the current column's values */
+      private int columnStart;
+
+      Writer(int size) {
+         buf = new byte[size];
+      }
+
+      void varint(long value) {
+         ensure(10);
+         while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+         }
+         buf[pos++] = (byte) value;
+      }
+
+      void zigzag(long value) {
+         varint((value << 1) ^ (value >> 63));
+      }
+
+      void startColumn(int field) {
+         varint(field);
+         columnStart = pos;
+      }
+
+      /**
+       * Prefix the column values with their length
+       */
+      void endColumn() {
+         int length = pos - columnStart;
+         int lengthBytes = 1;
+         for (int n = length >>> 7; n != 0; n >>>= 7) {
+            lengthBytes ++;
+         }
+         ensure(lengthBytes);
+         System.arraycopy(buf, columnStart, buf, columnStart + lengthBytes, length);
+         int end = pos + lengthBytes;
+         pos = columnStart;
+         varint(length);
+         pos = end;
+      }
+
+      void column(int field, long[] values, int count) {
+         startColumn(field);
+         long prev = 0;
+         for (int n = 0; n < count; n++) {
+            zigzag(values[n] - prev);
+            prev = values[n];
+         }
+         endColumn();
+      }
+
+      void column(int field, int[] values, int count) {
+         startColumn(field);
+         long prev = 0;
+         for (int n = 0; n < count; n++) {
+            zigzag(values[n] - prev);
+            prev = values[n];
+         }
+         endColumn();
+      }
+
+      void value(int field, long value) {
+         startColumn(field);
+         zigzag(value);
+         endColumn();
+      }
+
+      void name(int field, Map<String, Integer> ids, String name) {
+         Integer id = ids.get(name);
+         if(id == null)
+            throw new IllegalArgumentException("No compact telemetry id for: " + name);
+         startColumn(field);
+         varint(id);
+         endColumn();
+      }
+
+      private void ensure(int extra) {
+         if(pos + extra > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+      }
+
+      byte[] toByteArray() {
+         return Arrays.copyOf(buf, pos);
+      }
+   }
+
+   /**
+    * Reads the varints of a column
+    */
+   private static final class Reader {
+      private final byte[] buf;
+      private int pos;
+      private final int end;
+
+      Reader(byte[] buf, int pos, int end) throws IOException {
+         if(end > buf.length)
+            throw new EOFException("Truncated compact telemetry column");
+         this.buf = buf;
+         this.pos = pos;
+         this.end = end;
+      }
+
+      long varint() throws IOException {
+         long value = 0;
+         for (int shift = 0; shift < 64; shift += 7) {
+            if(pos >= end)
+               throw new EOFException("Truncated compact telemetry varint");
+            byte b = buf[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+               return value;
+         }
+         throw new IOException("Malformed compact telemetry varint");
+      }
+
+      void deltas(List<Map<String, Object>> samples, String name, boolean asInt) throws IOException {
+         long value = 0;
+         for (Map<String, Object> sample : samples) {
+            value += zigzag(varint());
+            sample.put(name, asInt ? (Object) (int) value : (Object) value);
+         }
+      }
+
+      void names(List<Map<String, Object>> samples, String name, String[] names) throws IOException {
+         for (Map<String, Object> sample : samples) {
+            long id = varint();
+            sample.put(name, id >= 0 && id < names.length ? names[(int) id] : Long.toString(id));
+         }
+      }
+   }
+}
@@ -0,0 +1,40 @@
+package org.jboss.rhiot.services;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line decoder for compact telemetry payload bodies, printing each sample with the usual metric names.
+ * Each argument is either a file holding a payload body or a hex string of one.
+ *
+ * java -cp rhiot-services.jar org.jboss.rhiot.services.CompactTelemetryDecoder body.bin 0100...
+ */
+public class CompactTelemetryDecoder {
+   public static void main(String[] args) throws IOException {
+      if(args.length == 0) {
+         System.err.println("Usage: CompactTelemetryDecoder file|hex ...");
+         System.exit(1);
+      }
+      for (String arg : args) {
+         byte[] body = Files.isRegularFile(Paths.get(arg)) ? Files.readAllBytes(Paths.get(arg)) : fromHex(arg);
+         List<Map<String, Object>> samples = CompactTelemetryCodec.decode(body);
+         System.out.printf("%s: %d bytes, %d samples\n", arg.length() > 40 ? arg.substring(0, 40) + "..." : arg, body.length, samples.size());
+         for (int n = 0; n < samples.size(); n++) {
+            System.out.printf("  %d: %s\n", n, samples.get(n));
+         }
+      }
+   }
+
+   private static byte[] fromHex(String hex) {
+      if(hex.length() % 2 != 0)
+         throw new IllegalArgumentException("Odd length hex string: " + hex);
+      byte[] bytes = new byte[hex.length() / 2];
+      for (int n = 0; n < bytes.length; n++) {
+         bytes[n] = (byte) Integer.parseInt(hex.substring(2 * n, 2 * n + 2), 16);
+      }
+      return bytes;
+   }
+}
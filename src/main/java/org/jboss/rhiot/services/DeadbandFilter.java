@@ -0,0 +1,89 @@
+package org.jboss.rhiot.services;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a tag's telemetry is worth publishing by comparing it against the last values published for the
+ * tag. A sample goes out when the key state changes, the temperature or lux moves past its deadband, or the
+ * heartbeat interval has passed since the last publish, otherwise it is suppressed. Only telemetry that was
+ * actually published, after any later rate limit, and game events update the last published values.
+ */
+public class DeadbandFilter {
+   /**
+    * The last published values of a tag, only touched from the tag's lane
+    */
+   static final class Snapshot {
+      private boolean valid;
+      private double tempC;
+      private byte keys;
+      private int lux;
+      private long time;
+   }
+
+   private final double tempDeadband;
+   private final int luxDeadband;
+   private final long heartbeatMillis;
+   private final LongAdder sent;
+   private final LongAdder suppressed;
+
+   /**
+    * @param tempDeadband - the temperature change in C that is published
+    * @param luxDeadband - the lux change that is published
+    * @param heartbeatMillis - the longest time in ms between publishes of a tag's telemetry
+    * @param metrics - registry for the sent and suppressed counters
+    */
+   public DeadbandFilter(double tempDeadband, int luxDeadband, long heartbeatMillis, ScannerMetrics metrics) {
+      this.tempDeadband = tempDeadband;
+      this.luxDeadband = luxDeadband;
+      this.heartbeatMillis = heartbeatMillis;
+      this.sent = metrics.counter("deadband.sent");
+      this.suppressed = metrics.counter("deadband.suppressed");
+   }
+
+   /**
+    * Check the telemetry of an advert without a game event against the tag's last published values. This does not
+    * change the last published values, call {@link #published(TagEntry, TagReading, long)} once it is sent.
+    * @param entry - the tag's registry entry
+    * @param tag - the advert
+    * @param now - the advert time
+    * @return true if the telemetry should be published
+    */
+   public boolean accept(TagEntry entry, TagReading tag, long now) {
+      Snapshot last = entry.getPublished();
+      boolean changed = last == null || !last.valid
+         || tag.getKeys() != last.keys
+         || Math.abs(tag.getTempC() - last.tempC) >= tempDeadband
+         || Math.abs(tag.getLux() - last.lux) >= luxDeadband
+         || now - last.time >= heartbeatMillis;
+      if(!changed) {
+         suppressed.increment();
+         return false;
+      }
+      return true;
+   }
+
+   /**
+    * Record the telemetry published with a game event, or accepted telemetry once it is sent, as the tag's last
+    * published values
+    * @param entry - the tag's registry entry
+    * @param tag - the advert
+    * @param now - the advert time
+    */
+   public void published(TagEntry entry, TagReading tag, long now) {
+      Snapshot last = entry.getPublished();
+      if(last == null) {
+         last = new Snapshot();
+         entry.setPublished(last);
+      }
+      record(last, tag, now);
+      sent.increment();
+   }
+
+   private static void record(Snapshot last, TagReading tag, long now) {
+      last.valid = true;
+      last.tempC = tag.getTempC();
+      last.keys = tag.getKeys();
+      last.lux = tag.getLux();
+      last.time = now;
+   }
+}
@@ -0,0 +1,92 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.services.fsm.GameClock;
+import org.jboss.rhiot.services.fsm.GameModel;
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+import org.jboss.rhiot.services.fsm.IGameStateMachine;
+import org.jboss.rhiot.services.fsm.TableGameStateMachine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.squirrelframework.foundation.fsm.StateMachineBuilder;
+import org.squirrelframework.foundation.fsm.StateMachineBuilderFactory;
+import org.squirrelframework.foundation.fsm.StateMachineConfiguration;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Creates started game state machines and their {@link GameModel}s for one game engine. The squirrel-foundation
+ * builder, which scans the GameStateMachine annotations and generates the machine definition, is created once with
+ * the factory rather than for every tag, so the first advert of a new tag only pays for creating its machine. A tag
+ * keeps its machine for the life of the factory and restarts finished games in place.
+ */
+public class GameMachineFactory {
+   private static final Logger log = LoggerFactory.getLogger(GameMachineFactory.class);
+
+   /** The game engine of the created machines */
+   private final RHIoTTagScanner.GameEngine engine;
+   /** Is the squirrel-foundation JMX remote monitor enabled */
+   private final boolean remoteMonitor;
+   /** The cached squirrel-foundation builder, null for the table engine */
+   private final StateMachineBuilder<GameStateMachine, GameStateMachine.GameState, GameStateMachine.GameEvent, GameModel> builder;
+   /** The time source given to the game models */
+   private final GameClock clock;
+   /** The game duration in seconds applied to created machines */
+   private volatile int gameDurationSecs;
+   /** The shooting window duration in seconds applied to created machines */
+   private volatile int shootingWindowSecs;
+   private final LongAdder created;
+
+   /**
+    * Create a factory
+    * @param engine - the game engine of the created machines
+    * @param remoteMonitor - should the squirrel-foundation JMX remote monitor be enabled for each machine
+    * @param clock - the time source given to the game models
+    * @param metrics - registry for the factory counters
+    */
+   public GameMachineFactory(RHIoTTagScanner.GameEngine engine, boolean remoteMonitor, GameClock clock, ScannerMetrics metrics) {
+      this.engine = engine;
+      this.remoteMonitor = remoteMonitor;
+      this.clock = clock;
+      if(engine == RHIoTTagScanner.GameEngine.SQUIRREL) {
+         builder = StateMachineBuilderFactory.create(GameStateMachine.class, GameStateMachine.GameState.class, GameStateMachine.GameEvent.class, GameModel.class);
+         builder.setStateMachineConfiguration(StateMachineConfiguration.create().enableRemoteMonitor(remoteMonitor).enableDebugMode(false));
+      } else {
+         builder = null;
+      }
+      this.created = metrics.counter("fsm.created");
+      log.info(String.format("Created GameMachineFactory(engine=%s, remoteMonitor=%s)", engine, remoteMonitor));
+   }
+
+   public RHIoTTagScanner.GameEngine getEngine() {
+      return engine;
+   }
+
+   public boolean isRemoteMonitor() {
+      return remoteMonitor;
+   }
+
+   /**
+    * Set the durations applied to the game model of every machine created from now on
+    * @param gameDurationSecs - the game duration in seconds
+    * @param shootingWindowSecs - the shooting window duration in seconds
+    */
+   public void setDurations(int gameDurationSecs, int shootingWindowSecs) {
+      this.gameDurationSecs = gameDurationSecs;
+      this.shootingWindowSecs = shootingWindowSecs;
+   }
+
+   /**
+    * Create a machine from the cached definition
+    * @return a started machine in its initial state
+    */
+   public IGameStateMachine create() {
+      IGameStateMachine gsm = engine == RHIoTTagScanner.GameEngine.TABLE ? new TableGameStateMachine() : builder.newStateMachine(GameStateMachine.GameState.IDLE);
+      gsm.setGameModel(new GameModel(clock));
+      gsm.start();
+      created.increment();
+      GameModel gameModel = gsm.getGameModel();
+      gameModel.setGameDuration(gameDurationSecs);
+      gameModel.setShootingWindowDuration(shootingWindowSecs);
+      return gsm;
+   }
+}
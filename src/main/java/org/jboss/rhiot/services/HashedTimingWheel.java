@@ -0,0 +1,292 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.services.fsm.GameClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A hashed timing wheel for the game deadlines. Timeouts are hashed by their deadline tick onto a fixed ring of
+ * buckets that a single ticker thread advances once per tick, so scheduling and cancelling are O(1) and the cost of
+ * the ticker does not depend on how many games are running. A timeout never fires before its deadline and fires
+ * at most one tick after it.
+ *
+ * The timeout tasks run on the ticker thread and should only hand the work off, e.g. onto a tag's dispatch lane.
+ */
+public class HashedTimingWheel {
+   private static final Logger log = LoggerFactory.getLogger(HashedTimingWheel.class);
+
+   /** The maximum number of new timeouts moved into the wheel per tick */
+   private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+   /**
+    * A scheduled task in the wheel
+    */
+   public static final class Timeout {
+      private static final int INIT = 0;
+      private static final int CANCELLED = 1;
+      private static final int EXPIRED = 2;
+      private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+         AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+      private final HashedTimingWheel wheel;
+      private final long deadline;
+      private final Runnable task;
+      private volatile int state = INIT;
+      /** The number of full wheel revolutions left before the timeout is due, only used by the ticker */
+      private long remainingRounds;
+      private Timeout next;
+      private Timeout prev;
+      private Bucket bucket;
+
+      Timeout(HashedTimingWheel wheel, long deadline, Runnable task) {
+         this.wheel = wheel;
+         this.deadline = deadline;
+         this.task = task;
+      }
+
+      /**
+       * @return the clock time in ms the timeout is due
+       */
+      public long getDeadline() {
+         return deadline;
+      }
+
+      /**
+       * Cancel the timeout. The ticker unlinks it from its bucket on the next tick.
+       * @return true if the timeout was cancelled, false if it had already fired or been cancelled
+       */
+      public boolean cancel() {
+         if(!STATE.compareAndSet(this, INIT, CANCELLED))
+            return false;
+         wheel.cancelledTimeouts.add(this);
+         return true;
+      }
+
+      public boolean isCancelled() {
+         return state == CANCELLED;
+      }
+
+      public boolean isExpired() {
+         return state == EXPIRED;
+      }
+
+      private void expire() {
+         if(!STATE.compareAndSet(this, INIT, EXPIRED))
+            return;
+         try {
+            task.run();
+         } catch (Throwable e) {
+            log.error("Timeout task failed", e);
+         }
+      }
+   }
+
+   /**
+    * The doubly linked list of timeouts hashed onto one slot of the wheel. Only used by the ticker.
+    */
+   private static final class Bucket {
+      private Timeout head;
+      private Timeout tail;
+
+      void add(Timeout timeout) {
+         timeout.bucket = this;
+         if(head == null) {
+            head = tail = timeout;
+         } else {
+            tail.next = timeout;
+            timeout.prev = tail;
+            tail = timeout;
+         }
+      }
+
+      Timeout remove(Timeout timeout) {
+         Timeout next = timeout.next;
+         if(timeout.prev != null)
+            timeout.prev.next = next;
+         if(timeout.next != null)
+            timeout.next.prev = timeout.prev;
+         if(timeout == head)
+            head = next;
+         if(timeout == tail)
+            tail = timeout.prev;
+         timeout.prev = null;
+         timeout.next = null;
+         timeout.bucket = null;
+         return next;
+      }
+
+      /**
+       * Fire the timeouts in the bucket that are due in this revolution of the wheel
+       * @param deadline - the clock time of the end of the current tick
+       * @return the number of timeouts fired
+       */
+      int expire(long deadline) {
+         int fired = 0;
+         Timeout timeout = head;
+         while (timeout != null) {
+            if(timeout.isCancelled()) {
+               timeout = remove(timeout);
+            } else if(timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+               Timeout next = remove(timeout);
+               timeout.expire();
+               fired ++;
+               timeout = next;
+            } else {
+               timeout.remainingRounds --;
+               timeout = timeout.next;
+            }
+         }
+         return fired;
+      }
+   }
+
+   private final long tickMillis;
+   /** The time source for the deadlines, read once per tick */
+   private final GameClock clock;
+   private final Bucket[] wheel;
+   private final int mask;
+   /** Timeouts scheduled since the last tick */
+   private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+   /** Timeouts cancelled since the last tick */
+   private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+   private final AtomicLong pending = new AtomicLong();
+   private final LongAdder scheduled;
+   private final LongAdder fired;
+   private final LongAdder cancelled;
+   /** The clock time the ticker started at */
+   private volatile long startTime;
+   private volatile boolean running;
+   private Thread ticker;
+
+   /**
+    * Create a timing wheel
+    * @param tickMillis - the duration of one tick in ms, the resolution of the timeouts
+    * @param ticksPerWheel - the number of buckets, rounded up to a power of 2
+    * @param clock - the time source the deadlines are on, it must be a live reading of the time
+    * @param metrics - registry for the timer counters
+    */
+   public HashedTimingWheel(long tickMillis, int ticksPerWheel, GameClock clock, ScannerMetrics metrics) {
+      if(tickMillis <= 0)
+         throw new IllegalArgumentException("tickMillis must be > 0: "+tickMillis);
+      int size = 1;
+      while (size < ticksPerWheel) {
+         size <<= 1;
+      }
+      this.tickMillis = tickMillis;
+      this.clock = clock;
+      this.wheel = new Bucket[size];
+      for (int n = 0; n < size; n++) {
+         wheel[n] = new Bucket();
+      }
+      this.mask = size - 1;
+      this.scheduled = metrics.counter("timer.scheduled");
+      this.fired = metrics.counter("timer.fired");
+      this.cancelled = metrics.counter("timer.cancelled");
+      metrics.gauge("timer.pending", pending::get);
+   }
+
+   public long getTickMillis() {
+      return tickMillis;
+   }
+
+   /**
+    * Start the ticker thread
+    */
+   public synchronized void start() {
+      if(running)
+         return;
+      startTime = clock.millis();
+      running = true;
+      ticker = new Thread(this::run, "RHIoTTagTimer");
+      ticker.setDaemon(true);
+      ticker.start();
+      log.info(String.format("Started HashedTimingWheel(tickMillis=%d, ticksPerWheel=%d)", tickMillis, wheel.length));
+   }
+
+   /**
+    * Stop the ticker thread. Timeouts that have not fired are dropped.
+    */
+   public synchronized void stop() {
+      running = false;
+      if(ticker != null) {
+         ticker.interrupt();
+         try {
+            ticker.join(1000);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         ticker = null;
+      }
+      newTimeouts.clear();
+      cancelledTimeouts.clear();
+      pending.set(0);
+   }
+
+   /**
+    * Schedule a task to run once the clock time passes the deadline
+    * @param deadline - the clock time in ms the task is due
+    * @param task - the task, run on the ticker thread
+    * @return the handle to cancel the timeout
+    */
+   public Timeout schedule(long deadline, Runnable task) {
+      Timeout timeout = new Timeout(this, deadline, task);
+      pending.incrementAndGet();
+      scheduled.increment();
+      newTimeouts.add(timeout);
+      return timeout;
+   }
+
+   private void run() {
+      long tick = 0;
+      while (running) {
+         long tickDeadline = startTime + tickMillis * (tick + 1);
+         long sleep = tickDeadline - clock.millis();
+         if(sleep > 0) {
+            try {
+               Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+               continue;
+            }
+         }
+         removeCancelled();
+         transferNew(tick);
+         int count = wheel[(int) (tick & mask)].expire(tickDeadline);
+         if(count > 0) {
+            pending.addAndGet(-count);
+            fired.add(count);
+         }
+         tick ++;
+      }
+   }
+
+   private void transferNew(long tick) {
+      for (int n = 0; n < MAX_TRANSFERS_PER_TICK; n++) {
+         Timeout timeout = newTimeouts.poll();
+         if(timeout == null)
+            break;
+         if(timeout.isCancelled())
+            continue;
+         long calculated = (timeout.deadline - startTime) / tickMillis;
+         timeout.remainingRounds = (calculated - tick) / wheel.length;
+         // Timeouts already due go in the current bucket
+         long ticks = Math.max(calculated, tick);
+         wheel[(int) (ticks & mask)].add(timeout);
+      }
+   }
+
+   private void removeCancelled() {
+      Timeout timeout;
+      while ((timeout = cancelledTimeouts.poll()) != null) {
+         if(timeout.bucket != null)
+            timeout.bucket.remove(timeout);
+         pending.decrementAndGet();
+         cancelled.increment();
+      }
+   }
+}
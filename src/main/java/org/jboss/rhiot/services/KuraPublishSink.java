@@ -0,0 +1,26 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.cloud.CloudClient;
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IPublishSink;
+
+/**
+ * Publishes through a Kura CloudClient
+ */
+public class KuraPublishSink implements IPublishSink {
+   private final CloudClient cloudClient;
+
+   public KuraPublishSink(CloudClient cloudClient) {
+      this.cloudClient = cloudClient;
+   }
+
+   @Override
+   public boolean isConnected() {
+      return cloudClient.isConnected();
+   }
+
+   @Override
+   public void publish(String topic, KuraPayload payload, int qos, boolean retain) throws Exception {
+      cloudClient.publish(topic, payload, qos, retain);
+   }
+}
@@ -0,0 +1,62 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IPublishSink;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for a slow broker by holding each publish for a configurable latency before handing it to another sink.
+ * Each publish takes the base latency plus a uniform jitter, and a given fraction of publishes take the tail latency
+ * instead, e.g. 2ms +/- 1ms with 1% at 250ms.
+ */
+public class LatencyPublishSink implements IPublishSink {
+   private final IPublishSink delegate;
+   private final long baseMicros;
+   private final long jitterMicros;
+   private final double tailFraction;
+   private final long tailMicros;
+   private final Random random;
+
+   /**
+    * @param delegate - the sink that receives the publishes after the delay
+    * @param baseMicros - the latency of every publish in us
+    * @param jitterMicros - the uniform jitter added to the base latency in us
+    * @param tailFraction - the fraction of publishes, 0 to 1, that take the tail latency
+    * @param tailMicros - the latency of the slow publishes in us
+    * @param seed - seed for the jitter and tail choices so runs are repeatable
+    */
+   public LatencyPublishSink(IPublishSink delegate, long baseMicros, long jitterMicros, double tailFraction, long tailMicros, long seed) {
+      this.delegate = delegate;
+      this.baseMicros = baseMicros;
+      this.jitterMicros = jitterMicros;
+      this.tailFraction = tailFraction;
+      this.tailMicros = tailMicros;
+      this.random = new Random(seed);
+   }
+
+   @Override
+   public boolean isConnected() {
+      return delegate.isConnected();
+   }
+
+   @Override
+   public void publish(String topic, KuraPayload payload, int qos, boolean retain) throws Exception {
+      long delay = nextDelayMicros();
+      if(delay > 0)
+         TimeUnit.MICROSECONDS.sleep(delay);
+      delegate.publish(topic, payload, qos, retain);
+   }
+
+   /**
+    * @return the latency of the next publish in us
+    */
+   long nextDelayMicros() {
+      synchronized (random) {
+         if(tailFraction > 0 && random.nextDouble() < tailFraction)
+            return tailMicros;
+         return baseMicros + (jitterMicros > 0 ? (long) (random.nextDouble() * jitterMicros) : 0);
+      }
+   }
+}
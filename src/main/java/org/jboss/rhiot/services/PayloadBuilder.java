@@ -0,0 +1,195 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+
+import java.util.Date;
+
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.GW_LAST_GAME_NEW_HIGH_SCORE;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.GW_LAST_GAME_SCORE;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.GW_LAST_GAME_SCORE_HITS;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.GW_LAST_GAME_SCORE_TAG_ADDRESS;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.GW_LAST_GAME_TAG_NAME;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_EVENT;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_GAME_ADDRESS;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_GAME_HITS;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_GAME_NAME;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_GAME_SCORE;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_GAME_TIME_LEFT;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_HIT_RINGS_OFF_CENTER;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_HIT_SCORE;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_KEYS;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_LUX;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_NEW_STATE;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_PREV_STATE;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_SHOOTING_TIME_LEFT;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_SHOTS_LEFT;
+import static org.jboss.rhiot.services.api.IRHIoTTagScanner.TAG_TEMP;
+
+/**
+ * Builds the named metric tag payloads for one dispatch lane, and is only used from that lane's thread.
+ *
+ * The payload and its timestamp are handed off to the publish lanes and spool so a new one is needed per publish,
+ * but the metric values are not allocated per publish: the int values come from a shared cache of boxed values
+ * covering the lux and ms time left ranges, and the temperature from a small per lane cache of the recent readings.
+ * The state and event names are the enum constant names, which are interned.
+ *
+ * The game state, game info and game score payloads only box ints and booleans, so they use the shared cache alone
+ * and may also be built off the lane thread, as the REST resend of a game state is.
+ */
+public class PayloadBuilder {
+   /** The int values that are boxed once, covering the 16 bit lux readings and the game times in ms */
+   static final int MAX_CACHED_INT = 0xffff;
+   /** The shared boxed int values, filled as they are first needed. Racing fills box equal values so are harmless */
+   private static final Integer[] INTS = new Integer[MAX_CACHED_INT + 1];
+   /** The size of the per lane temperature cache, a power of 2 */
+   private static final int TEMP_CACHE_SIZE = 64;
+
+   /** The recently boxed temperatures, indexed by a hash of their bits */
+   private final Double[] temps = new Double[TEMP_CACHE_SIZE];
+
+   /**
+    * Get the boxed value of an int, without allocating for the values in [0, MAX_CACHED_INT]
+    * @param value - the int value
+    * @return the boxed value
+    */
+   static Integer box(int value) {
+      if(value < 0 || value > MAX_CACHED_INT)
+         return value;
+      Integer boxed = INTS[value];
+      if(boxed == null) {
+         boxed = value;
+         INTS[value] = boxed;
+      }
+      return boxed;
+   }
+
+   /**
+    * Get the boxed value of a temperature, reusing the box of a recent equal reading
+    * @param value - the temperature in C
+    * @return the boxed value
+    */
+   Double box(double value) {
+      long bits = Double.doubleToLongBits(value);
+      int slot = (int) (bits ^ (bits >>> 32)) * 0x9E3779B9 >>> 26;
+      Double boxed = temps[slot];
+      if(boxed == null || Double.doubleToLongBits(boxed) != bits) {
+         boxed = value;
+         temps[slot] = boxed;
+      }
+      return boxed;
+   }
+
+   /**
+    * Build the payload with a named metric per value
+    * @param tag - the advert
+    * @param state - the game state before the event
+    * @param newState - the game state after the event
+    * @param event - the game event, NOOP for telemetry only
+    * @param hitScore - the hit score of a HIT_DETECTED event
+    * @param hitRingsOffCenter - the rings off center of a HIT_DETECTED event
+    * @param timestamp - the event time
+    * @param gameTimeLeft - game time left in ms
+    * @param score - game score
+    * @param shootingTimeLeft - shooting window time left in ms
+    * @param shotsLeft - shots left in the clip
+    * @return the payload
+    */
+   public KuraPayload metrics(TagReading tag, GameStateMachine.GameState state, GameStateMachine.GameState newState,
+                              GameStateMachine.GameEvent event, int hitScore, int hitRingsOffCenter, long timestamp,
+                              int gameTimeLeft, int score, int shootingTimeLeft, int shotsLeft) {
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(timestamp));
+
+      payload.addMetric(TAG_TEMP, box(tag.getTempC()));
+      payload.addMetric(TAG_KEYS, box(tag.getKeys()));
+      payload.addMetric(TAG_LUX, box(tag.getLux()));
+      if(event != GameStateMachine.GameEvent.NOOP) {
+         payload.addMetric(TAG_PREV_STATE, state.name());
+         payload.addMetric(TAG_NEW_STATE, newState.name());
+         payload.addMetric(TAG_EVENT, event.name());
+
+         // Add hit information if this was a hit
+         if(event == GameStateMachine.GameEvent.HIT_DETECTED) {
+            payload.addMetric(TAG_HIT_SCORE, box(hitScore));
+            payload.addMetric(TAG_HIT_RINGS_OFF_CENTER, box(hitRingsOffCenter));
+         }
+      }
+      payload.addMetric(TAG_GAME_TIME_LEFT, box(gameTimeLeft));
+      payload.addMetric(TAG_GAME_SCORE, box(score));
+      payload.addMetric(TAG_SHOOTING_TIME_LEFT, box(shootingTimeLeft));
+      payload.addMetric(TAG_SHOTS_LEFT, box(shotsLeft));
+      return payload;
+   }
+
+   /**
+    * Build the payload resending a tag's current game state
+    * @param state - the current game state
+    * @param timestamp - the message time
+    * @param gameTimeLeft - game time left in ms
+    * @param score - game score
+    * @param shootingTimeLeft - shooting window time left in ms
+    * @param shotsLeft - shots left in the clip
+    * @return the payload
+    */
+   public KuraPayload gameState(GameStateMachine.GameState state, long timestamp, int gameTimeLeft, int score,
+                                int shootingTimeLeft, int shotsLeft) {
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(timestamp));
+      payload.addMetric(TAG_PREV_STATE, state.name());
+      payload.addMetric(TAG_NEW_STATE, state.name());
+      payload.addMetric(TAG_EVENT, GameStateMachine.GameEvent.NOOP.name());
+      payload.addMetric(TAG_GAME_TIME_LEFT, box(gameTimeLeft));
+      payload.addMetric(TAG_GAME_SCORE, box(score));
+      payload.addMetric(TAG_SHOOTING_TIME_LEFT, box(shootingTimeLeft));
+      payload.addMetric(TAG_SHOTS_LEFT, box(shotsLeft));
+      return payload;
+   }
+
+   /**
+    * Build the in progress game information payload for the gateway gameInfo topic
+    * @param name - name associated with the tag
+    * @param tagAddress - address of game RHIoTTag
+    * @param timestamp - the message time
+    * @param score - game score
+    * @param hits - number of target hits so far
+    * @param gameTimeLeft - game time left in ms
+    * @param shotsLeft - shots left in the clip
+    * @param shootingTimeLeft - shooting window time left in ms
+    * @return the payload
+    */
+   public KuraPayload gameInfo(String name, String tagAddress, long timestamp, int score, int hits, int gameTimeLeft,
+                               int shotsLeft, int shootingTimeLeft) {
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(timestamp));
+      payload.addMetric(TAG_GAME_NAME, name);
+      payload.addMetric(TAG_GAME_ADDRESS, tagAddress);
+      payload.addMetric(TAG_GAME_TIME_LEFT, box(gameTimeLeft));
+      payload.addMetric(TAG_GAME_SCORE, box(score));
+      payload.addMetric(TAG_GAME_HITS, box(hits));
+      payload.addMetric(TAG_SHOOTING_TIME_LEFT, box(shootingTimeLeft));
+      payload.addMetric(TAG_SHOTS_LEFT, box(shotsLeft));
+      return payload;
+   }
+
+   /**
+    * Build the finished game score payload for the gateway gameScores topic
+    * @param name - name associated with the tag
+    * @param tagAddress - address of game RHIoTTag
+    * @param timestamp - the message time
+    * @param score - game score
+    * @param hits - number of target hits in the game
+    * @param isHighScore - new high score flag
+    * @return the payload
+    */
+   public KuraPayload gameScore(String name, String tagAddress, long timestamp, int score, int hits, boolean isHighScore) {
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(timestamp));
+      payload.addMetric(GW_LAST_GAME_TAG_NAME, name);
+      payload.addMetric(GW_LAST_GAME_SCORE, box(score));
+      payload.addMetric(GW_LAST_GAME_SCORE_HITS, box(hits));
+      payload.addMetric(GW_LAST_GAME_SCORE_TAG_ADDRESS, tagAddress);
+      payload.addMetric(GW_LAST_GAME_NEW_HIGH_SCORE, Boolean.valueOf(isHighScore));
+      return payload;
+   }
+}
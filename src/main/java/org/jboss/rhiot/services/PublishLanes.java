@@ -0,0 +1,231 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded publish queues drained by one publisher thread in strict priority order, so the game processing hands
+ * its publishes off without waiting on the cloud client, and a burst of telemetry cannot hold up the game results.
+ * The lanes in priority order are the game results, the game state changes and game information, then the raw
+ * telemetry.
+ *
+ * The lanes share one capacity. When it is reached the oldest publish of the lowest non-empty lane at or below
+ * the new publish's lane is shed to make room, or the new publish is shed if there is none. Game results are
+ * never shed and may go over the capacity.
+ */
+public class PublishLanes {
+   private static final Logger log = LoggerFactory.getLogger(PublishLanes.class);
+
+   /** The lane indexes, highest priority first */
+   static final int RESULTS = 0;
+   static final int EVENTS = 1;
+   static final int TELEMETRY = 2;
+   private static final String[] LANE_NAMES = {"results", "events", "telemetry"};
+
+   /**
+    * Sends a publish taken off a lane
+    */
+   public interface Sink {
+      void send(PublishSpool.PublishClass publishClass, String topic, KuraPayload payload, int qos, boolean retain);
+   }
+
+   /**
+    * A queued publish
+    */
+   private static final class Publish {
+      private final PublishSpool.PublishClass publishClass;
+      private final String topic;
+      private final KuraPayload payload;
+      private final int qos;
+      private final boolean retain;
+      /** The nanoTime the publish was queued */
+      private final long queued;
+
+      Publish(PublishSpool.PublishClass publishClass, String topic, KuraPayload payload, int qos, boolean retain) {
+         this.publishClass = publishClass;
+         this.topic = topic;
+         this.payload = payload;
+         this.qos = qos;
+         this.retain = retain;
+         this.queued = System.nanoTime();
+      }
+   }
+
+   private final int capacity;
+   private final Sink sink;
+   @SuppressWarnings("unchecked")
+   private final ArrayDeque<Publish>[] lanes = new ArrayDeque[LANE_NAMES.length];
+   /** The number of queued publishes over all lanes */
+   private int queued;
+   private boolean running;
+   private Thread publisher;
+   private final LongAdder[] published = new LongAdder[LANE_NAMES.length];
+   private final LongAdder[] shed = new LongAdder[LANE_NAMES.length];
+   private final LongAdder[] latencyTotal = new LongAdder[LANE_NAMES.length];
+   private final AtomicLong[] latencyMax = new AtomicLong[LANE_NAMES.length];
+
+   /**
+    * Create the lanes
+    * @param capacity - the number of publishes the lanes hold before the lowest lanes are shed
+    * @param sink - sends the publishes, called from the publisher thread
+    * @param metrics - registry for the per lane depth, latency and shed metrics
+    */
+   public PublishLanes(int capacity, Sink sink, ScannerMetrics metrics) {
+      this.capacity = Math.max(1, capacity);
+      this.sink = sink;
+      for (int n = 0; n < lanes.length; n++) {
+         int lane = n;
+         String prefix = "publish." + LANE_NAMES[n] + ".";
+         lanes[n] = new ArrayDeque<>();
+         published[n] = metrics.counter(prefix + "published");
+         shed[n] = metrics.counter(prefix + "shed");
+         latencyTotal[n] = metrics.counter(prefix + "latencyTotalMillis");
+         latencyMax[n] = new AtomicLong();
+         metrics.gauge(prefix + "depth", () -> depth(lane));
+         metrics.gauge(prefix + "latencyMaxMillis", latencyMax[n]::get);
+         metrics.gauge(prefix + "avgLatencyMillis", () -> {
+            long count = published[lane].sum();
+            return count > 0 ? latencyTotal[lane].sum() / count : 0;
+         });
+      }
+   }
+
+   /**
+    * @param publishClass - the kind of publish
+    * @return the index of the lane the publish goes on
+    */
+   static int laneOf(PublishSpool.PublishClass publishClass) {
+      switch (publishClass) {
+         case GAME_SCORE:
+            return RESULTS;
+         case GAME_EVENT:
+         case GAME_INFO:
+            return EVENTS;
+         default:
+            return TELEMETRY;
+      }
+   }
+
+   /**
+    * Start the publisher thread
+    */
+   public synchronized void start() {
+      if(running)
+         return;
+      running = true;
+      publisher = new Thread(this::run, "RHIoTTagPublisher");
+      publisher.setDaemon(true);
+      publisher.start();
+      log.info(String.format("Started PublishLanes(capacity=%d)", capacity));
+   }
+
+   /**
+    * Stop the publisher thread once the queued publishes have been sent
+    * @param timeoutMillis - how long to wait for the queued publishes
+    */
+   public void stop(long timeoutMillis) {
+      Thread thread;
+      synchronized (this) {
+         running = false;
+         notifyAll();
+         thread = publisher;
+         publisher = null;
+      }
+      if(thread == null)
+         return;
+      try {
+         thread.join(timeoutMillis);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      if(thread.isAlive())
+         thread.interrupt();
+   }
+
+   /**
+    * Queue a publish on its lane, shedding a lower priority publish if the lanes are full
+    * @param publishClass - the kind of publish, which selects the lane
+    * @param topic - the publish topic
+    * @param payload - the message
+    * @param qos - the publish qos
+    * @param retain - the publish retain flag
+    * @return true if the publish was queued, false if it was shed
+    */
+   public synchronized boolean offer(PublishSpool.PublishClass publishClass, String topic, KuraPayload payload, int qos, boolean retain) {
+      int lane = laneOf(publishClass);
+      if(queued >= capacity && lane != RESULTS) {
+         int victim = TELEMETRY;
+         while (victim >= lane && lanes[victim].isEmpty()) {
+            victim --;
+         }
+         if(victim < lane) {
+            shed[lane].increment();
+            return false;
+         }
+         lanes[victim].pollFirst();
+         shed[victim].increment();
+         queued --;
+      }
+      lanes[lane].addLast(new Publish(publishClass, topic, payload, qos, retain));
+      queued ++;
+      notifyAll();
+      return true;
+   }
+
+   /**
+    * @param lane - the lane index
+    * @return the number of publishes queued on the lane
+    */
+   public synchronized int depth(int lane) {
+      return lanes[lane].size();
+   }
+
+   /**
+    * Take the next publish from the highest priority non-empty lane, waiting while all are empty
+    * @return the publish, null once stopped and drained
+    */
+   private synchronized Publish take() throws InterruptedException {
+      while (true) {
+         for (ArrayDeque<Publish> lane : lanes) {
+            Publish publish = lane.pollFirst();
+            if(publish != null) {
+               queued --;
+               return publish;
+            }
+         }
+         if(!running)
+            return null;
+         wait();
+      }
+   }
+
+   private void run() {
+      while (true) {
+         Publish publish;
+         try {
+            publish = take();
+         } catch (InterruptedException e) {
+            break;
+         }
+         if(publish == null)
+            break;
+         try {
+            sink.send(publish.publishClass, publish.topic, publish.payload, publish.qos, publish.retain);
+         } catch (Exception e) {
+            log.warn("Failed to publish to: " + publish.topic, e);
+         }
+         // The latency from queuing to the cloud client accepting the publish
+         int lane = laneOf(publish.publishClass);
+         long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - publish.queued);
+         latencyTotal[lane].add(latency);
+         latencyMax[lane].accumulateAndGet(latency, Math::max);
+         published[lane].increment();
+      }
+   }
+}
@@ -0,0 +1,202 @@
+package org.jboss.rhiot.services;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the cloud publishes within the broker quotas with token buckets per publish class and per tag.
+ *
+ * Telemetry samples take a token from both the tag's bucket and the telemetry class bucket. When either is empty
+ * the tag's telemetry is downsampled rather than dropped at random: the tag's sampling stride doubles, so only every
+ * stride'th sample asks for tokens, and halves again each time a sample is admitted with the buckets over half full.
+ * Game events, game info and game scores always pass. They take a token from their class bucket when one is
+ * available and are counted as over quota when not, so the class quotas can be sized from real traffic.
+ *
+ * A rate of 0 disables a bucket.
+ */
+public class PublishRateLimiter {
+   /** The largest sampling stride a tag is downsampled to */
+   static final int MAX_STRIDE = 64;
+
+   /**
+    * A token bucket refilled at a fixed rate up to its burst size
+    */
+   static final class Bucket {
+      private final double ratePerMilli;
+      private final double burst;
+      private double tokens;
+      private long lastRefill;
+
+      Bucket(double ratePerSec, double burstSecs, long now) {
+         this.ratePerMilli = ratePerSec / 1000.0;
+         this.burst = Math.max(1, ratePerSec * burstSecs);
+         this.tokens = burst;
+         this.lastRefill = now;
+      }
+
+      private void refill(long now) {
+         if(now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerMilli);
+            lastRefill = now;
+         }
+      }
+
+      /**
+       * @return true if a token is available at the given time
+       */
+      boolean available(long now) {
+         refill(now);
+         return tokens >= 1;
+      }
+
+      void take() {
+         tokens -= 1;
+      }
+
+      /**
+       * @return true if the bucket holds more than half its burst
+       */
+      boolean overHalfFull() {
+         return tokens > burst / 2;
+      }
+   }
+
+   /**
+    * The telemetry bucket and sampling state of a tag, only touched from the tag's lane
+    */
+   static final class TagState {
+      private PublishRateLimiter limiter;
+      private Bucket bucket;
+      private int stride = 1;
+      private int skipped;
+   }
+
+   private final double tagRate;
+   private final double burstSecs;
+   /** The class buckets, null for an unlimited class. Shared by the lanes, guarded by the bucket */
+   private final Map<PublishSpool.PublishClass, Bucket> classBuckets = new EnumMap<>(PublishSpool.PublishClass.class);
+   private final LongAdder admitted;
+   private final LongAdder sampledOut;
+   private final LongAdder throttled;
+   private final Map<PublishSpool.PublishClass, LongAdder> classAdmitted = new EnumMap<>(PublishSpool.PublishClass.class);
+   private final Map<PublishSpool.PublishClass, LongAdder> overQuota = new EnumMap<>(PublishSpool.PublishClass.class);
+   /** The largest sampling stride any tag has been downsampled to */
+   private final AtomicLong maxStride = new AtomicLong(1);
+
+   /**
+    * Create a limiter
+    * @param classRates - the publishes per second allowed for each publish class, 0 or missing for unlimited
+    * @param tagRate - the telemetry samples per second allowed for each tag, 0 for unlimited
+    * @param burstSecs - the number of seconds of the rate each bucket can save up for a burst
+    * @param now - the current time in ms
+    * @param metrics - registry for the throttle counters
+    */
+   public PublishRateLimiter(Map<PublishSpool.PublishClass, Integer> classRates, int tagRate, double burstSecs, long now, ScannerMetrics metrics) {
+      this.tagRate = tagRate;
+      this.burstSecs = burstSecs;
+      for (PublishSpool.PublishClass publishClass : PublishSpool.PublishClass.values()) {
+         Integer rate = classRates.get(publishClass);
+         if(rate != null && rate > 0)
+            classBuckets.put(publishClass, new Bucket(rate, burstSecs, now));
+         String name = publishClass.name().toLowerCase();
+         classAdmitted.put(publishClass, metrics.counter("throttle." + name + ".admitted"));
+         if(publishClass != PublishSpool.PublishClass.TELEMETRY)
+            overQuota.put(publishClass, metrics.counter("throttle." + name + ".overQuota"));
+      }
+      admitted = classAdmitted.get(PublishSpool.PublishClass.TELEMETRY);
+      sampledOut = metrics.counter("throttle.telemetry.sampledOut");
+      throttled = metrics.counter("throttle.telemetry.throttled");
+      metrics.gauge("throttle.telemetry.maxStride", maxStride::get);
+   }
+
+   /**
+    * Decide whether a telemetry sample of a tag is published. Called from the tag's lane.
+    * @param entry - the tag's registry entry
+    * @param now - the sample time in ms
+    * @return true if the sample should be published
+    */
+   public boolean admitTelemetry(TagEntry entry, long now) {
+      TagState state = entry.getRateState();
+      if(state == null || state.limiter != this) {
+         // New tag, or the limiter was replaced by new settings
+         state = new TagState();
+         state.limiter = this;
+         if(tagRate > 0)
+            state.bucket = new Bucket(tagRate, burstSecs, now);
+         entry.setRateState(state);
+      }
+      // Downsampled, only every stride'th sample asks for tokens
+      if(state.skipped < state.stride - 1) {
+         state.skipped ++;
+         sampledOut.increment();
+         return false;
+      }
+      state.skipped = 0;
+
+      boolean tagAvailable = state.bucket == null || state.bucket.available(now);
+      Bucket classBucket = classBuckets.get(PublishSpool.PublishClass.TELEMETRY);
+      boolean pass;
+      boolean relaxed;
+      if(classBucket == null) {
+         pass = tagAvailable;
+         relaxed = true;
+      } else {
+         synchronized (classBucket) {
+            pass = tagAvailable && classBucket.available(now);
+            if(pass)
+               classBucket.take();
+            relaxed = classBucket.overHalfFull();
+         }
+      }
+      if(!pass) {
+         // Out of tokens, halve the tag's sample rate
+         if(state.stride < MAX_STRIDE) {
+            state.stride *= 2;
+            maxStride.accumulateAndGet(state.stride, Math::max);
+         }
+         throttled.increment();
+         return false;
+      }
+      if(state.bucket != null) {
+         state.bucket.take();
+         relaxed &= state.bucket.overHalfFull();
+      }
+      // Plenty of tokens again, double the tag's sample rate
+      if(relaxed && state.stride > 1)
+         state.stride /= 2;
+      admitted.increment();
+      return true;
+   }
+
+   /**
+    * Account for a game event, game info or game score publish. These always pass.
+    * @param publishClass - the kind of publish
+    * @param now - the current time in ms
+    */
+   public void admitEvent(PublishSpool.PublishClass publishClass, long now) {
+      Bucket bucket = classBuckets.get(publishClass);
+      boolean inQuota = true;
+      if(bucket != null) {
+         synchronized (bucket) {
+            inQuota = bucket.available(now);
+            if(inQuota)
+               bucket.take();
+         }
+      }
+      if(inQuota)
+         classAdmitted.get(publishClass).increment();
+      else
+         overQuota.get(publishClass).increment();
+   }
+
+   /**
+    * @param entry - the tag's registry entry
+    * @return the tag's current sampling stride, 1 if it is not downsampled
+    */
+   public int getStride(TagEntry entry) {
+      TagState state = entry.getRateState();
+      return state != null && state.limiter == this ? state.stride : 1;
+   }
+}
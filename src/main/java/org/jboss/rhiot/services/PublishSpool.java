@@ -0,0 +1,514 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A disk backed store and forward spool for the publishes made while the cloud connection is down or failing. The
+ * payloads are appended to memory mapped segment files in a spool directory and replayed in order once the
+ * connection is back. The segments survive a bundle restart, so a spool left with unsent records is picked up
+ * again on the next activation.
+ *
+ * Each record is written as [int length][byte state][body], with the length written last so a record torn by a
+ * crash is ignored on recovery. Replayed records are marked sent in place, and a segment is deleted once every
+ * record in it has been sent.
+ *
+ * The spool is capped by the bytes of unsent records. Each {@link PublishClass} may only fill the spool up to its
+ * share of the cap, so telemetry is dropped first and game scores are never dropped.
+ */
+public class PublishSpool {
+   private static final Logger log = LoggerFactory.getLogger(PublishSpool.class);
+
+   /** The size of the record length and state header */
+   private static final int HEADER = 5;
+   private static final byte LIVE = 1;
+   private static final byte SENT = 2;
+   private static final String SEGMENT_PREFIX = "spool-";
+   private static final String SEGMENT_SUFFIX = ".seg";
+
+   private static final byte TYPE_STRING = 0;
+   private static final byte TYPE_INT = 1;
+   private static final byte TYPE_LONG = 2;
+   private static final byte TYPE_DOUBLE = 3;
+   private static final byte TYPE_FLOAT = 4;
+   private static final byte TYPE_BOOLEAN = 5;
+   private static final byte TYPE_BYTES = 6;
+
+   /**
+    * The kinds of publishes, in the order they are dropped when the spool fills
+    */
+   public enum PublishClass {
+      /** Tag telemetry that did not change the game */
+      TELEMETRY(0.5),
+      /** In progress game information, superseded by the next update */
+      GAME_INFO(0.75),
+      /** Tag game state transitions */
+      GAME_EVENT(1.0),
+      /** Final game scores, never dropped */
+      GAME_SCORE(Double.POSITIVE_INFINITY);
+
+      /** The share of the spool cap the class may fill */
+      private final double share;
+
+      PublishClass(double share) {
+         this.share = share;
+      }
+   }
+
+   /**
+    * Sends a replayed record
+    */
+   public interface Sender {
+      void send(String topic, KuraPayload payload, int qos, boolean retain) throws Exception;
+   }
+
+   /**
+    * One memory mapped segment file
+    */
+   private static final class Segment {
+      private final File file;
+      private final RandomAccessFile raf;
+      private final MappedByteBuffer buffer;
+      /** The position of the next record to replay */
+      private int readPos;
+      /** The position the next record is appended at */
+      private int writePos;
+
+      Segment(File file, int size) throws IOException {
+         this.file = file;
+         this.raf = new RandomAccessFile(file, "rw");
+         if(raf.length() < size)
+            raf.setLength(size);
+         this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+
+      void close() {
+         try {
+            buffer.force();
+            raf.close();
+         } catch (IOException e) {
+            log.warn("Failed to close spool segment: " + file, e);
+         }
+      }
+   }
+
+   /**
+    * A record read from the head of the spool
+    */
+   private static final class Record {
+      private final Segment segment;
+      private final int pos;
+      private final int length;
+      private String topic;
+      private KuraPayload payload;
+      private int qos;
+      private boolean retain;
+
+      Record(Segment segment, int pos, int length) {
+         this.segment = segment;
+         this.pos = pos;
+         this.length = length;
+      }
+   }
+
+   private final File dir;
+   private final long maxBytes;
+   private final int segmentBytes;
+   /** The segments holding unsent records, oldest first */
+   private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+   private long nextSeq;
+   /** The number of unsent records */
+   private long liveRecords;
+   /** The bytes of unsent records */
+   private long liveBytes;
+   /** Are publishes being spooled, true from a failure until the spool has been drained */
+   private boolean spooling;
+   private final LongAdder appended;
+   private final LongAdder replayed;
+   private final Map<PublishClass, LongAdder> dropped = new EnumMap<>(PublishClass.class);
+
+   /**
+    * Create a spool
+    * @param dir - the directory the segment files are kept in
+    * @param maxBytes - the cap on the bytes of unsent records
+    * @param segmentBytes - the size of each segment file
+    * @param metrics - registry for the spool counters
+    */
+   public PublishSpool(File dir, long maxBytes, int segmentBytes, ScannerMetrics metrics) {
+      this.dir = dir;
+      this.maxBytes = maxBytes;
+      this.segmentBytes = segmentBytes;
+      appended = metrics.counter("spool.appended");
+      replayed = metrics.counter("spool.replayed");
+      for (PublishClass publishClass : PublishClass.values()) {
+         dropped.put(publishClass, metrics.counter("spool.dropped." + publishClass.name().toLowerCase()));
+      }
+      metrics.gauge("spool.liveRecords", this::getLiveRecords);
+      metrics.gauge("spool.liveBytes", this::getLiveBytes);
+   }
+
+   /**
+    * Open the spool, recovering the unsent records of any segments left by a previous run. The spool starts out
+    * spooling if there are unsent records so they are replayed ahead of new publishes.
+    * @throws IOException on failure to read the spool directory or map a segment
+    */
+   public synchronized void open() throws IOException {
+      if(!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create spool directory: " + dir);
+      File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+      if(files == null)
+         files = new File[0];
+      long[] seqs = new long[files.length];
+      for (int n = 0; n < files.length; n++) {
+         String name = files[n].getName();
+         seqs[n] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+      }
+      Arrays.sort(seqs);
+      for (long seq : seqs) {
+         Segment segment = new Segment(segmentFile(seq), segmentBytes);
+         recover(segment);
+         nextSeq = seq + 1;
+         if(segment.readPos == segment.writePos) {
+            delete(segment);
+         } else {
+            segments.add(segment);
+         }
+      }
+      spooling = liveRecords > 0;
+      log.info(String.format("Opened PublishSpool(dir=%s, maxBytes=%d) with %d unsent records", dir, maxBytes, liveRecords));
+   }
+
+   /**
+    * Close the segments, keeping the unsent records for the next open
+    */
+   public synchronized void close() {
+      for (Segment segment : segments) {
+         segment.close();
+      }
+      segments.clear();
+      liveRecords = 0;
+      liveBytes = 0;
+      spooling = false;
+   }
+
+   /**
+    * Start spooling publishes after the connection was lost or a publish failed
+    */
+   public synchronized void startSpooling() {
+      spooling = true;
+   }
+
+   public synchronized boolean isSpooling() {
+      return spooling;
+   }
+
+   /**
+    * Append the publish to the spool if publishes are currently being spooled
+    * @return true if the publish was handled by the spool, which includes being dropped by the cap
+    */
+   public synchronized boolean appendIfSpooling(PublishClass publishClass, String topic, KuraPayload payload, int qos, boolean retain) {
+      if(!spooling)
+         return false;
+      append(publishClass, topic, payload, qos, retain);
+      return true;
+   }
+
+   /**
+    * Append the publish to the end of the spool and start spooling
+    * @param publishClass - the kind of publish, which decides if it is dropped when the spool is full
+    * @param topic - the publish topic
+    * @param payload - the message
+    * @param qos - the publish qos
+    * @param retain - the publish retain flag
+    * @return true if the publish was appended, false if it was dropped
+    */
+   public synchronized boolean append(PublishClass publishClass, String topic, KuraPayload payload, int qos, boolean retain) {
+      spooling = true;
+      byte[] body;
+      try {
+         body = encode(publishClass, topic, payload, qos, retain);
+      } catch (IOException e) {
+         log.warn("Failed to encode spooled payload for: " + topic, e);
+         dropped.get(publishClass).increment();
+         return false;
+      }
+      int size = HEADER + body.length;
+      if(liveBytes + size > maxBytes * publishClass.share || size > segmentBytes) {
+         dropped.get(publishClass).increment();
+         return false;
+      }
+      try {
+         Segment segment = segments.peekLast();
+         if(segment == null || segment.writePos + size > segmentBytes) {
+            segment = new Segment(segmentFile(nextSeq), segmentBytes);
+            nextSeq ++;
+            segments.add(segment);
+         }
+         int pos = segment.writePos;
+         MappedByteBuffer buffer = segment.buffer;
+         buffer.position(pos + HEADER);
+         buffer.put(body);
+         buffer.put(pos + 4, LIVE);
+         // The length commits the record
+         buffer.putInt(pos, body.length);
+         segment.writePos = pos + size;
+      } catch (IOException e) {
+         log.warn("Failed to spool payload for: " + topic, e);
+         dropped.get(publishClass).increment();
+         return false;
+      }
+      liveRecords ++;
+      liveBytes += size;
+      appended.increment();
+      return true;
+   }
+
+   /**
+    * Send up to max unsent records in order, stopping at the first send failure. Only one thread may replay at a
+    * time. The spool is not locked while a record is sent so publishes can keep being appended.
+    * @param sender - sends the records
+    * @param max - the maximum number of records to send
+    * @return the number of records sent
+    */
+   public int replay(Sender sender, int max) {
+      int sent = 0;
+      while (sent < max) {
+         Record record;
+         synchronized (this) {
+            record = peek();
+         }
+         if(record == null)
+            break;
+         try {
+            sender.send(record.topic, record.payload, record.qos, record.retain);
+         } catch (Exception e) {
+            log.warn("Spool replay failed, will retry: " + e);
+            break;
+         }
+         synchronized (this) {
+            commit(record);
+         }
+         replayed.increment();
+         sent ++;
+      }
+      return sent;
+   }
+
+   /**
+    * Stop spooling if every record has been replayed, deleting the drained segments
+    * @return true if the spool is drained and publishes can go straight to the cloud client again
+    */
+   public synchronized boolean finishIfDrained() {
+      if(liveRecords > 0)
+         return false;
+      for (Segment segment : segments) {
+         delete(segment);
+      }
+      segments.clear();
+      liveBytes = 0;
+      spooling = false;
+      return true;
+   }
+
+   public synchronized long getLiveRecords() {
+      return liveRecords;
+   }
+
+   public synchronized long getLiveBytes() {
+      return liveBytes;
+   }
+
+   /**
+    * Find the oldest unsent record, deleting the segments that have been fully replayed. Called with the spool
+    * locked.
+    */
+   private Record peek() {
+      while (!segments.isEmpty()) {
+         Segment segment = segments.peekFirst();
+         while (segment.readPos < segment.writePos) {
+            int pos = segment.readPos;
+            int length = segment.buffer.getInt(pos);
+            if(segment.buffer.get(pos + 4) == LIVE) {
+               Record record = new Record(segment, pos, length);
+               try {
+                  decode(record);
+                  return record;
+               } catch (IOException e) {
+                  log.warn(String.format("Skipping unreadable spool record at %s:%d", segment.file, pos), e);
+                  commit(record);
+                  continue;
+               }
+            }
+            segment.readPos = pos + HEADER + length;
+         }
+         // Keep the segment being appended to
+         if(segment == segments.peekLast())
+            return null;
+         segments.pollFirst();
+         delete(segment);
+      }
+      return null;
+   }
+
+   /**
+    * Mark the record as sent. Called with the spool locked.
+    */
+   private void commit(Record record) {
+      record.segment.buffer.put(record.pos + 4, SENT);
+      record.segment.readPos = record.pos + HEADER + record.length;
+      liveRecords --;
+      liveBytes -= HEADER + record.length;
+   }
+
+   /**
+    * Find the committed records of a segment left by a previous run
+    */
+   private void recover(Segment segment) {
+      MappedByteBuffer buffer = segment.buffer;
+      int pos = 0;
+      boolean foundLive = false;
+      while (pos + HEADER <= segmentBytes) {
+         int length = buffer.getInt(pos);
+         if(length <= 0 || pos + HEADER + length > segmentBytes)
+            break;
+         if(buffer.get(pos + 4) == LIVE) {
+            if(!foundLive) {
+               segment.readPos = pos;
+               foundLive = true;
+            }
+            liveRecords ++;
+            liveBytes += HEADER + length;
+         }
+         pos += HEADER + length;
+      }
+      segment.writePos = pos;
+      if(!foundLive)
+         segment.readPos = pos;
+   }
+
+   private void delete(Segment segment) {
+      segment.close();
+      if(!segment.file.delete())
+         log.warn("Failed to delete spool segment: " + segment.file);
+   }
+
+   private File segmentFile(long seq) {
+      return new File(dir, String.format("%s%016d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+   }
+
+   private static byte[] encode(PublishClass publishClass, String topic, KuraPayload payload, int qos, boolean retain) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(publishClass.ordinal());
+      out.writeByte(qos);
+      out.writeBoolean(retain);
+      out.writeUTF(topic);
+      Date timestamp = payload.getTimestamp();
+      out.writeLong(timestamp != null ? timestamp.getTime() : -1);
+      out.writeShort(payload.metricNames().size());
+      for (String name : payload.metricNames()) {
+         Object value = payload.getMetric(name);
+         out.writeUTF(name);
+         if(value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+         } else if(value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+         } else if(value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+         } else if(value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+         } else if(value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+         } else if(value instanceof byte[]) {
+            out.writeByte(TYPE_BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+         } else {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF(String.valueOf(value));
+         }
+      }
+      byte[] body = payload.getBody();
+      out.writeInt(body != null ? body.length : -1);
+      if(body != null)
+         out.write(body);
+      out.flush();
+      return bytes.toByteArray();
+   }
+
+   private static void decode(Record record) throws IOException {
+      MappedByteBuffer buffer = record.segment.buffer;
+      byte[] bytes = new byte[record.length];
+      for (int n = 0; n < bytes.length; n++) {
+         bytes[n] = buffer.get(record.pos + HEADER + n);
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      in.readByte();
+      record.qos = in.readByte();
+      record.retain = in.readBoolean();
+      record.topic = in.readUTF();
+      KuraPayload payload = new KuraPayload();
+      long timestamp = in.readLong();
+      if(timestamp >= 0)
+         payload.setTimestamp(new Date(timestamp));
+      int count = in.readShort();
+      for (int n = 0; n < count; n++) {
+         String name = in.readUTF();
+         byte type = in.readByte();
+         switch (type) {
+            case TYPE_INT:
+               payload.addMetric(name, in.readInt());
+               break;
+            case TYPE_LONG:
+               payload.addMetric(name, in.readLong());
+               break;
+            case TYPE_DOUBLE:
+               payload.addMetric(name, in.readDouble());
+               break;
+            case TYPE_FLOAT:
+               payload.addMetric(name, in.readFloat());
+               break;
+            case TYPE_BOOLEAN:
+               payload.addMetric(name, in.readBoolean());
+               break;
+            case TYPE_BYTES:
+               byte[] value = new byte[in.readInt()];
+               in.readFully(value);
+               payload.addMetric(name, value);
+               break;
+            default:
+               payload.addMetric(name, in.readUTF());
+               break;
+         }
+      }
+      int bodyLength = in.readInt();
+      if(bodyLength >= 0) {
+         byte[] body = new byte[bodyLength];
+         in.readFully(body);
+         payload.setBody(body);
+      }
+      record.payload = payload;
+   }
+}
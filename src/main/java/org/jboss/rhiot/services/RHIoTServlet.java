@@ -9,6 +9,7 @@ import com.google.gson.JsonParser;
 import org.jboss.rhiot.ble.bluez.RHIoTTag;
 import org.jboss.rhiot.services.api.IRHIoTTagScanner;
 import org.jboss.rhiot.services.fsm.GameStateMachine;
+import org.jboss.rhiot.services.fsm.IGameStateMachine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,6 +18,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
@@ -44,7 +46,7 @@ public class RHIoTServlet extends HttpServlet {
    }
 
    /**
-    * PUT endpoint for injecting tag data
+    * PUT endpoint for injecting tag data, a single reading or a bulk stream of readings
     * @param req - request object
     * @param resp - response object
     * @throws ServletException
@@ -52,6 +54,11 @@ public class RHIoTServlet extends HttpServlet {
     */
    @Override
    protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+      String pathInfo = req.getPathInfo();
+      if(pathInfo != null && pathInfo.startsWith(IRHIoTTagScanner.INJECT_TAG_DATA_BULK_PATH)) {
+         injectBulkTagData(req, resp);
+         return;
+      }
       JsonParser parser = new JsonParser();
       JsonElement json = parser.parse(req.getReader());
       JsonObject jsonObj = json.getAsJsonObject();
@@ -78,6 +85,28 @@ public class RHIoTServlet extends HttpServlet {
       }
    }
 
+   /**
+    * Inject a JSON array or newline delimited JSON stream of tag readings without waiting on each one, and return
+    * a json summary of the final game state of each tag
+    * @param req - request object
+    * @param resp - response object
+    * @throws IOException
+    * @see TagDataInjector
+    */
+   private void injectBulkTagData(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      JsonObject summary;
+      try {
+         summary = new TagDataInjector(scanner).inject(req.getReader());
+      } catch (IllegalArgumentException | IllegalStateException | IOException e) {
+         log.info("Rejected bulk tag data, "+e.getMessage());
+         resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+         return;
+      }
+      resp.setContentType("application/json");
+      Gson gson = new GsonBuilder().create();
+      resp.getWriter().write(gson.toJson(summary));
+   }
+
    /**
     * POST endpoint for adding a tag name to address mapping. This requires a json array of name,address pairs.
     * @param req - request object
@@ -118,6 +147,8 @@ public class RHIoTServlet extends HttpServlet {
          sendGameSMDigraph(req, resp);
       else if (pathInfo.startsWith(IRHIoTTagScanner.GAMESM_INFO_PATH))
          sendGameSMInfo(req, resp);
+      else if (pathInfo.startsWith(IRHIoTTagScanner.METRICS_PATH))
+         sendMetrics(resp);
       else
          status = HttpServletResponse.SC_BAD_REQUEST;
       if (status != HttpServletResponse.SC_OK)
@@ -144,8 +175,14 @@ public class RHIoTServlet extends HttpServlet {
     */
    private void sendGameSMDigraph(HttpServletRequest req, HttpServletResponse resp) throws IOException {
       String address = req.getParameter("address");
+      IGameStateMachine gsm;
+      try {
+         gsm = scanner.getGameSM(address);
+      } catch (IllegalArgumentException | NullPointerException e) {
+         resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid address parameter: "+address);
+         return;
+      }
       resp.setContentType("application/txt");
-      GameStateMachine gsm = scanner.getGameSM(address);
       String digraph = gsm.exportAsString();
       resp.getWriter().write(digraph);
    }
@@ -171,6 +208,21 @@ public class RHIoTServlet extends HttpServlet {
       }
    }
 
+   /**
+    * Return a json object of the scanner pipeline counters and gauges
+    * @param resp - response object
+    * @throws IOException
+    */
+   private void sendMetrics(HttpServletResponse resp) throws IOException {
+      resp.setContentType("application/json");
+      JsonObject json = new JsonObject();
+      for (Map.Entry<String, Long> metric : scanner.getMetrics().snapshot().entrySet()) {
+         json.addProperty(metric.getKey(), metric.getValue());
+      }
+      Gson gson = new GsonBuilder().create();
+      resp.getWriter().write(gson.toJson(json));
+   }
+
    /**
     * Return a json representation of the registered tag address to name mappings
     * @param resp - response object
@@ -178,20 +230,31 @@ public class RHIoTServlet extends HttpServlet {
     */
    private void sendTagInfo(HttpServletResponse resp) throws IOException {
       resp.setContentType("application/json");
-      Map<String, String> infos = scanner.getTags();
+      String jsonOutput = tagInfoJson();
+      resp.getWriter().write(jsonOutput);
+      log.debug(String.format("\tTags: %s\n", jsonOutput));
+   }
+
+   /**
+    * Encode the registered tag address to name mappings
+    * @return the json array of the mappings
+    */
+   String tagInfoJson() {
+      List<TagEntry> infos = scanner.getTagRegistry().entries();
       log.debug(String.format("\tTag count: %d\n", infos.size()));
       JsonArray jsonArray = new JsonArray();
-      for (String addressKey : infos.keySet()) {
+      for (TagEntry info : infos) {
+         String name = info.getName();
+         if(name == null)
+            continue;
          JsonObject je = new JsonObject();
-         String name = infos.get(addressKey);
+         String addressKey = info.getAddress().toString();
          je.addProperty("address", addressKey);
          je.addProperty("name", name);
          log.debug(String.format("\t\tAddress: %s; name: %s\n", addressKey, name));
          jsonArray.add(je);
       }
       Gson gson = new GsonBuilder().create();
-      String jsonOutput = gson.toJson(jsonArray);
-      resp.getWriter().write(jsonOutput);
-      log.debug(String.format("\tTags: %s\n", jsonOutput));
+      return gson.toJson(jsonArray);
    }
 }
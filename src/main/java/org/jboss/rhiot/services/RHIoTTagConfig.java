@@ -2,7 +2,7 @@ package org.jboss.rhiot.services;
 
 import java.util.ArrayList;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeMap;
 
 import org.eclipse.kura.configuration.ConfigurableComponent;
 import org.jboss.rhiot.services.api.IGatewayTagConfig;
@@ -11,16 +11,23 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Simple service for configuration the tag ble address to name
+ * Simple service for configuration the tag ble address to name. Each tag is a gw.tag<n> property, there is no
+ * limit on the number of tags and the metatype only declares the first few.
  */
 public class RHIoTTagConfig implements ConfigurableComponent, IGatewayTagConfig {
     private static final Logger log = LoggerFactory.getLogger(RHIoTTagConfig.class);
-    private static final int MAX_TAGS = 9;
-    /** The mapping from the tag BLE address to a user assigned name */
-    private Map<String, String> addressToNameMap;
+    /** The prefix of the properties holding a tag's address and name, followed by the tag index */
+    private static final String TAG_PROP_PREFIX = "gw.tag";
+    /** The mapping from the packed tag BLE address to a user assigned name */
+    private TagRegistry tagRegistry;
     private ArrayList<String> addresses;
     private ArrayList<String> names;
 
+    @Override
+    public int getTagCount() {
+        return addresses.size();
+    }
+
     @Override
     public String getTagName(int index) {
         return names.get(index);
@@ -33,17 +40,22 @@ public class RHIoTTagConfig implements ConfigurableComponent, IGatewayTagConfig
 
     @Override
     public String getNameByAddress(String address) {
-        return addressToNameMap.get(address);
+        TagEntry entry = tagRegistry.get(address);
+        return entry != null ? entry.getName() : null;
     }
 
     public void updateTagInfo(String address, String name) {
-        addressToNameMap.put(address, name);
-        log.info("Updated name for: "+address+" to: "+name);
+        try {
+            tagRegistry.getOrCreate(TagAddress.parse(address)).setName(name);
+            log.info("Updated name for: "+address+" to: "+name);
+        } catch (IllegalArgumentException e) {
+            log.info("Ignoring name: "+name+" for invalid address: "+address);
+        }
     }
 
     protected void activate(ComponentContext componentContext, Map<String, Object> properties) {
         log.info("activate; Bundle has started with: ", properties.entrySet());
-        addressToNameMap = new ConcurrentHashMap<>();
+        tagRegistry = new TagRegistry();
         addresses = new ArrayList<>();
         names = new ArrayList<>();
         updated(properties);
@@ -52,18 +64,38 @@ public class RHIoTTagConfig implements ConfigurableComponent, IGatewayTagConfig
     protected void updated(Map<String, Object> properties) {
         log.info("Updated, properties="+properties);
 
+        // Order the tags by index
+        TreeMap<Integer, String[]> tags = new TreeMap<>();
+        for(Map.Entry<String, Object> property : properties.entrySet()) {
+            int index = tagIndex(property.getKey());
+            if(index >= 0 && property.getValue() instanceof String[])
+                tags.put(index, (String[]) property.getValue());
+        }
         addresses.clear();
         names.clear();
-        for(int n = 0; n < MAX_TAGS; n ++) {
-            String key = "gw.tag" + n;
-            String[] info = (String[]) properties.get(key);
-            if(info != null) {
-                String address = info[0];
-                String name = info[1];
-                updateTagInfo(address, name);
-                addresses.add(address);
-                names.add(name);
-            }
+        for(String[] info : tags.values()) {
+            if(info.length < 2)
+                continue;
+            String address = info[0];
+            String name = info[1];
+            updateTagInfo(address, name);
+            addresses.add(address);
+            names.add(name);
+        }
+    }
+
+    /**
+     * Get the tag index of a gw.tag<n> property
+     * @param key - the property name
+     * @return the tag index, -1 if this is not a tag property
+     */
+    static int tagIndex(String key) {
+        if(key == null || !key.startsWith(TAG_PROP_PREFIX) || key.length() == TAG_PROP_PREFIX.length())
+            return -1;
+        try {
+            return Integer.parseInt(key.substring(TAG_PROP_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 }
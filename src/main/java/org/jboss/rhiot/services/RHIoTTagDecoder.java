@@ -0,0 +1,85 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.ble.bluez.AdEventInfo;
+import org.jboss.rhiot.ble.bluez.AdStructure;
+
+import java.util.List;
+
+/**
+ * A flyweight decoder for the RHIoTTag advert. The address, keys, lux and temperature are read straight out of the
+ * advertising event data into a reused {@link TagReading}, and adverts from other devices are rejected by looking
+ * at the AD structure type and length only, so decoding allocates nothing.
+ *
+ * The RHIoTTag firmware sends its sensor values in a manufacturer specific data AD structure with the layout:
+ * <pre>
+ *    [0-1] company id 0x000D (Texas Instruments), little endian
+ *    [2-3] ambient temperature in hundredths of a degree C, signed little endian
+ *    [4]   key state bits, left=0x1, right=0x2, reed=0x4
+ *    [5-6] raw light sensor lux value, unsigned little endian
+ * </pre>
+ */
+public class RHIoTTagDecoder {
+   /** The manufacturer specific data AD type */
+   public static final int AD_MANUFACTURER_DATA = 0xFF;
+   /** Texas Instruments company id */
+   public static final int RHIOTTAG_COMPANY_ID = 0x000D;
+   /** Length of the RHIoTTag manufacturer data */
+   public static final int RHIOTTAG_DATA_LENGTH = 7;
+
+   private RHIoTTagDecoder() {
+   }
+
+   /**
+    * Find the RHIoTTag manufacturer data in the advert
+    * @param info - the advertising event information
+    * @return the index of the RHIoTTag AD structure, -1 if this is not an RHIoTTag advert
+    */
+   public static int indexOf(AdEventInfo info) {
+      List<AdStructure> data = info.getData();
+      if(data == null)
+         return -1;
+      // Indexed access avoids an iterator per advert
+      for (int n = 0; n < data.size(); n++) {
+         AdStructure ads = data.get(n);
+         if(ads.getType() == AD_MANUFACTURER_DATA && isRHIoTTagData(ads.getData()))
+            return n;
+      }
+      return -1;
+   }
+
+   /**
+    * Decode the advert into the reading
+    * @param info - the advertising event information
+    * @param index - the index of the RHIoTTag AD structure as returned by {@link #indexOf(AdEventInfo)}
+    * @param reading - the holder to decode into
+    */
+   public static void decode(AdEventInfo info, int index, TagReading reading) {
+      long address = Utils.packAddress(info.getBDaddr());
+      decode(address, info.getData().get(index).getData(), reading);
+   }
+
+   /**
+    * Decode RHIoTTag manufacturer data into the reading
+    * @param address - the packed BLE address of the advert
+    * @param data - the manufacturer specific AD structure data
+    * @param reading - the holder to decode into
+    */
+   public static void decode(long address, byte[] data, TagReading reading) {
+      int centiC = (short) ((data[2] & 0xFF) | (data[3] << 8));
+      byte keys = data[4];
+      int lux = (data[5] & 0xFF) | ((data[6] & 0xFF) << 8);
+      reading.set(address, keys, lux, centiC / 100.0);
+   }
+
+   /**
+    * Does the manufacturer data have the RHIoTTag company id and length
+    * @param data - the manufacturer specific AD structure data
+    * @return true if this is RHIoTTag data
+    */
+   public static boolean isRHIoTTagData(byte[] data) {
+      if(data == null || data.length != RHIOTTAG_DATA_LENGTH)
+         return false;
+      int companyId = (data[0] & 0xFF) | ((data[1] & 0xFF) << 8);
+      return companyId == RHIOTTAG_COMPANY_ID;
+   }
+}
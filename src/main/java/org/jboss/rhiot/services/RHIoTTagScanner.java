@@ -6,9 +6,12 @@ import org.jboss.rhiot.ble.bluez.HCIDump;
 import org.jboss.rhiot.ble.bluez.IAdvertEventCallback;
 import org.jboss.rhiot.ble.bluez.RHIoTTag;
 import org.jboss.rhiot.services.api.IGatewayTagConfig;
+import org.jboss.rhiot.services.api.IPublishSink;
 import org.jboss.rhiot.services.api.IRHIoTTagScanner;
+import org.jboss.rhiot.services.fsm.CoarseGameClock;
 import org.jboss.rhiot.services.fsm.GameModel;
 import org.jboss.rhiot.services.fsm.GameStateMachine;
+import org.jboss.rhiot.services.fsm.IGameStateMachine;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.ComponentException;
 import org.eclipse.kura.cloud.CloudClient;
@@ -20,20 +23,18 @@ import org.osgi.service.http.HttpContext;
 import org.osgi.service.http.HttpService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.squirrelframework.foundation.fsm.StateMachineBuilder;
-import org.squirrelframework.foundation.fsm.StateMachineBuilderFactory;
-import org.squirrelframework.foundation.fsm.StateMachineConfiguration;
 
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteOrder;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The main entry point for the scanner facade on top of the HCIDump general scanner that extracts RHIoTTag specific
@@ -43,39 +44,105 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
    private static final Logger log = LoggerFactory.getLogger(RHIoTTagScanner.class);
 
    private static final String APP_ID = "org.jboss.rhiot.services.RHIoTTagScanner";
-   private static final String PUBLISH_TOPIC_PROP_NAME = "publish.semanticTopic";
-   private static final String PUBLISH_QOS_PROP_NAME = "publish.qos";
-   private static final String PUBLISH_RETAIN_PROP_NAME = "publish.retain";
-   private static final int MAX_TAGS = 9;
-   /** The configuration properties passed in during activation */
-   private Map<String, Object> properties;
-   /** The mapping from the tag BLE address to a user assigned name */
-   private Map<String, String> addressToNameMap;
-   /** The game state machine for each tag associated with the gateway */
-   private Map<String, GameStateMachine> tagStateMachines;
-   /** The ExecutorService for the RHIoTTag event processing */
-   private ExecutorService publisher;
+   /** How far ahead of the gateway clock an advert capture time may be before it is not trusted */
+   private static final long MAX_CAPTURE_SKEW_MILLIS = 1000;
+   /** How old an advert capture time may be before it is not trusted */
+   private static final long MAX_CAPTURE_AGE_MILLIS = 60000;
+   /** The number of buckets in the game timeout wheel */
+   private static final int TIMER_TICKS_PER_WHEEL = 512;
+   /** The size of each publish spool segment file */
+   private static final int SPOOL_SEGMENT_BYTES = 1 << 20;
+   /** How often the publish spool replay runs */
+   private static final long SPOOL_REPLAY_PERIOD_MILLIS = 100;
+   /** How long deactivation waits for the queued publishes to be sent */
+   private static final long PUBLISH_DRAIN_MILLIS = 2000;
+
+   /** The available game state machine implementations */
+   enum GameEngine {
+      /** The squirrel-foundation annotation driven GameStateMachine */
+      SQUIRREL,
+      /** The compiled transition table TableGameStateMachine */
+      TABLE
+   }
+   /** The current configuration snapshot, replaced as a whole on each update */
+   private volatile ScannerConfig config;
+   /** The name, game state machine and mailbox of each tag keyed by the packed BLE address */
+   private final TagRegistry tagRegistry = new TagRegistry();
+   /** The per tag sharded lanes for the RHIoTTag event processing */
+   private TagEventDispatcher dispatcher;
+   /** Records the raw adverts as they arrive, null if they are not recorded */
+   private volatile AdvertCapture.Recorder advertRecorder;
+   /** Traces the game processing of the debug address tags, null if no tag is traced */
+   private volatile TagTraceLog traceLog;
+   /** The payload builder of each dispatch lane */
+   private PayloadBuilder[] payloadBuilders;
+   /** The game and shooting window deadlines */
+   private HashedTimingWheel timerWheel;
+   /** Batches the NOOP telemetry publishes, null if every advert is published on its own */
+   private TelemetryBatcher telemetryBatcher;
+   /** Encodes the tag telemetry payloads in the compact format, null for the named metrics format */
+   private volatile CompactTelemetryCodec telemetryCodec;
+   /** Suppresses NOOP telemetry that has not changed, null if all telemetry is published */
+   private DeadbandFilter deadbandFilter;
+   /** Keeps the publishes within the broker quotas, null if the publish rates are not limited */
+   private volatile PublishRateLimiter rateLimiter;
+   /** The priority queues the publishes are handed off through, null if publishes are sent by the caller */
+   private volatile PublishLanes publishLanes;
+   /** Publishes batched telemetry on the telemetry lane */
+   private final TelemetryBatcher.PayloadPublisher telemetryPublisher =
+      (topic, payload, qos, retain) -> publish(PublishSpool.PublishClass.TELEMETRY, topic, payload, qos, retain);
+   /** Publishes the batched telemetry flushed by a game state change on the state change lane */
+   private final TelemetryBatcher.PayloadPublisher eventPublisher =
+      (topic, payload, qos, retain) -> publish(PublishSpool.PublishClass.GAME_EVENT, topic, payload, qos, retain);
+   /** Publishes the combined frames of the active games, null if each event publishes its own gameInfo */
+   private volatile ScoreboardAggregator scoreboard;
+   /** Holds the publishes made while the cloud connection is down, null if publishes are dropped */
+   private PublishSpool spool;
+   /** Replays the spooled publishes once the cloud connection is back */
+   private ScheduledExecutorService spoolReplayer;
+   /** Is the cloud client connected */
+   private volatile boolean cloudConnected;
+   /** The buffer between the HCIDump callback thread and the advert processing */
+   private AdvertRingBuffer advertRing;
+   /** The reading each dispatch lane drains its mailboxes into */
+   private final ThreadLocal<TagReading> laneReading = ThreadLocal.withInitial(TagReading::new);
+   /** The game time, refreshed once per batch of events on a lane and on every timer tick */
+   private final CoarseGameClock clock = new CoarseGameClock();
+   /** Counters and gauges for the event pipeline */
+   private final ScannerMetrics metrics = new ScannerMetrics();
+   /** The total capture to processing delay of the handled adverts in ms */
+   private final LongAdder queueDelayTotal = metrics.counter("queueDelay.totalMillis");
+   /** The number of handled adverts with a trusted capture time */
+   private final LongAdder queueDelayCount = metrics.counter("queueDelay.count");
+   /** The number of handled adverts whose capture time was missing or not trusted */
+   private final LongAdder untrustedCaptureTime = metrics.counter("queueDelay.untrusted");
+   /** Publishes dropped because there is no cloud service to publish to */
+   private final LongAdder noSinkDropped = metrics.counter("publish.noSink");
    /** Flag indicating if the scanner has been initialized */
    private volatile boolean scannerInitialized;
-   /** The length of the game in seconds */
-   private int gameDurationSecs;
-   /** The length of the shooting window in seconds */
-   private int shootingWindowSecs;
+   /** The reusable game state machines for the configured game engine */
+   private volatile GameMachineFactory gameFactory;
    /** */
-   private HighScore highScore;
-   /** The minimum raw lux value needed for a hit */
-   private int luxHitThreshold = 20000;
-   /** The maximum raw lux value the sensor needs to fall below to reset the last hit */
-   private int luxResetThreshold = 10000;
+   private volatile HighScore highScore;
    /** ESF cloud service */
    private CloudService cloudService;
    /** Client connection to the cloud service */
    private CloudClient cloudClient;
+   /** Where the publishes are sent, the cloud client unless another sink was set */
+   private volatile IPublishSink publishSink;
    private IGatewayTagConfig tagConfig;
    /** Servlet used for REST and debugging */
    private RHIoTServlet servlet;
-   private FileWriter debugWriter;
-   private String debugAddress = "A0:E6:F8:AD:2E:82";
+
+   /**
+    * Send the publishes to another sink than the cloud client, e.g. a RecordingPublishSink or LatencyPublishSink to
+    * benchmark or load test the publish path off a gateway
+    * @param publishSink - the sink, null to go back to the cloud client on the next activation
+    */
+   public void setPublishSink(IPublishSink publishSink) {
+      this.publishSink = publishSink;
+      cloudConnected = publishSink != null && publishSink.isConnected();
+   }
 
    public void setCloudService(CloudService cloudService) {
       this.cloudService = cloudService;
@@ -83,6 +150,8 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
    }
 
    public void unsetCloudService(CloudService cloudService) {
+      if(publishSink instanceof KuraPublishSink)
+         publishSink = null;
       if(cloudClient != null)
          cloudClient.release();
       this.cloudService = null;
@@ -116,9 +185,17 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
    public void updatedGatewayTagConfig(IGatewayTagConfig tagConfig) {
       info("updatedGatewayTagConfig");
       this.tagConfig = tagConfig;
+      populateTagMappings(tagConfig);
+   }
+
+   /**
+    * Name the tags configured in the gateway tag configuration
+    * @param tagConfig - the gateway tag configuration, may be null
+    */
+   private void populateTagMappings(IGatewayTagConfig tagConfig) {
       if(tagConfig != null) {
          info("Populating tag mappings from tagConfig");
-         for(int n = 0; n < 9; n ++) {
+         for(int n = 0; n < tagConfig.getTagCount(); n ++) {
             String address = tagConfig.getTagAddress(n);
             String name = tagConfig.getTagName(n);
             if(address != null && name != null)
@@ -128,16 +205,31 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
    }
 
    public void updateTagInfo(String address, String name) {
-      addressToNameMap.put(address, name);
-      info("Updated name for: %s to: %s", address, name);
+      TagAddress tagAddress;
+      try {
+         tagAddress = TagAddress.parse(address);
+      } catch (IllegalArgumentException e) {
+         info("Ignoring name: %s for invalid address: %s", name, address);
+         return;
+      }
+      TagEntry entry = tagRegistry.getOrCreate(tagAddress);
+      entry.setName(name);
+      ScannerConfig current = config;
+      entry.setDebug(current != null && current.isDebugAddress(tagAddress));
+      info("Updated name for: %s to: %s", tagAddress, name);
    }
 
-   public Map<String, String> getTags() {
-      return addressToNameMap;
+   public TagRegistry getTagRegistry() {
+      return tagRegistry;
    }
 
    public String getTagInfo(String address) {
-      return addressToNameMap.get(address);
+      TagEntry entry = tagRegistry.get(address);
+      return entry != null ? entry.getName() : null;
+   }
+
+   public ScannerMetrics getMetrics() {
+      return metrics;
    }
 
    /**
@@ -146,28 +238,55 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
     * @return name of current game state
     */
    public String getAndPublishGameSMInfo(String tagAddress) {
-      GameStateMachine.GameState state = publishGameState(tagAddress);
+      GameStateMachine.GameState state = publishGameState(TagAddress.parse(tagAddress));
       return state.name();
    }
 
-   public GameStateMachine getGameSM(String tagAddress) {
-      GameStateMachine gsm = tagStateMachines.get(tagAddress);
-      if(gsm == null) {
-         gsm = newStateMachine();
-         tagStateMachines.put(tagAddress, gsm);
+   public IGameStateMachine getGameSM(String tagAddress) {
+      TagEntry entry = tagRegistry.getOrCreate(TagAddress.parse(tagAddress));
+      synchronized (entry) {
+         IGameStateMachine gsm = entry.getGameSM();
+         if(gsm == null) {
+            gsm = gameFactory.create();
+            entry.setGameSM(gsm);
+         }
+         return gsm;
       }
+   }
 
+   /**
+    * Get the tag's game state machine, creating and starting one if the tag has none yet
+    * @param entry - the tag's registry entry
+    * @return the tag's state machine
+    */
+   private IGameStateMachine getStartedGameSM(TagEntry entry) {
+      IGameStateMachine gsm = entry.getGameSM();
+      if(gsm == null) {
+         // A REST request may race with the tag's lane
+         synchronized (entry) {
+            gsm = entry.getGameSM();
+            if(gsm == null) {
+               gsm = gameFactory.create();
+               entry.setGameSM(gsm);
+            }
+         }
+      }
       return gsm;
    }
 
    @Override
    public void onConnectionEstablished() {
       info("onConnectionEstablished\n");
+      cloudConnected = true;
    }
 
    @Override
    public void onConnectionLost() {
       info("onConnectionLost\n");
+      cloudConnected = false;
+      PublishSpool spool = this.spool;
+      if(spool != null)
+         spool.startSpooling();
    }
 
    @Override
@@ -191,40 +310,67 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
    }
 
    /**
-    * Called in response to a BLE advertising event being seen on the stack. Any advertising event that corresponds
-    * to the RHIoTTag event that has a name assigned to it is forwarded to the event queue for analysis of game
-    * events.
+    * Called in response to a BLE advertising event being seen on the stack. This runs on the native HCIDump
+    * callback thread, so the event is only copied into the advert ring and all processing is done by the ring's
+    * consumer.
     *
     * @param info - the advertising event information
     * @return true if the scanning should stop, this always returns false
-    * @see #handleTag(RHIoTTag)
+    * @see #processAdvert(AdEventInfo, TagReading)
     */
    @Override
    public boolean advertEvent(AdEventInfo info) {
+      AdvertCapture.Recorder recorder = advertRecorder;
+      if(recorder != null)
+         recorder.record(info);
+      AdvertRingBuffer ring = advertRing;
+      if(ring != null)
+         ring.publish(info);
+      return false;
+   }
+
+   /**
+    * Called from the advert ring consumer for each advertising event seen on the stack. Any advertising event that
+    * corresponds to the RHIoTTag event that has a name assigned to it is forwarded to the tag's mailbox for analysis
+    * of game events. When the ring decodes on the producer side this path allocates nothing in steady state.
+    *
+    * @param info - the advertising event information, null if the ring already decoded the reading
+    * @param reading - the decoded reading, or the rssi and capture time only if info still needs parsing
+    * @see #offerAdvert(TagEntry, TagReading)
+    */
+   void processAdvert(AdEventInfo info, TagReading reading) {
       boolean debug = log.isDebugEnabled();
-      if (debug)
-         debug("+++ advertEvent(%s), count=%d, rssi=%d, time=%s\n", info.getBDaddrAsString(), info.getCount(), info.getRssi(), new Date(info.getTime()));
-      if (log.isTraceEnabled()) {
-         // Dump out all AD structures
-         for (AdStructure ads : info.getData()) {
-            log.trace(ads.toString());
+      if(info != null) {
+         if (debug)
+            debug("+++ advertEvent(%s), count=%d, rssi=%d, time=%s\n", info.getBDaddrAsString(), info.getCount(), info.getRssi(), new Date(info.getTime()));
+         if (log.isTraceEnabled()) {
+            // Dump out all AD structures
+            for (AdStructure ads : info.getData()) {
+               log.trace(ads.toString());
+            }
          }
+         RHIoTTag tag = RHIoTTag.create(info);
+         if (tag == null)
+            return;
+         int rssi = reading.getRssi();
+         long time = reading.getTime();
+         reading.copyFrom(tag);
+         reading.setRssi(rssi);
+         reading.setTime(time);
       }
-      RHIoTTag tag = RHIoTTag.create(info);
-      if (tag != null) {
-         // Get the user assigned name
-         String key = tag.getAddressString();
-         String name = addressToNameMap != null ? addressToNameMap.get(key) : null;
-         tag.setName(name);
+
+      // Get the user assigned name, this is the only lookup the advert needs
+      TagEntry entry = tagRegistry.get(reading.getAddress());
+      String name = entry != null ? entry.getName() : null;
+      if (name != null) {
+         reading.setAddressString(entry.getAddress().toString());
+         reading.setName(name);
          if(debug)
-            debug("%s", tag.toFullString());
-         if (name != null) {
-            CompletableFuture<GameStateMachine.GameState> future = CompletableFuture.supplyAsync(() -> handleTag(tag), publisher);
-         } else if(debug) {
-            debug("No name for: %s", tag);
-         }
+            debug("%s", reading);
+         offerAdvert(entry, reading);
+      } else if(debug) {
+         debug("No name for: %s", reading);
       }
-      return false;
    }
 
    /**
@@ -235,11 +381,12 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
     */
    protected void activate(ComponentContext componentContext, Map<String, Object> properties) {
       info("RHIoTTagScanner.activate; Bundle has started with: %s\n", properties.entrySet());
-      this.properties = properties;
-      info("hciDev=%s\n", properties.get("hciDev"));
+      // The event pipeline is sized from the activation configuration, updated() applies the rest
+      ScannerConfig initial = ScannerConfig.from(properties);
+      info("hciDev=%s\n", initial.getHciDev());
 
-      addressToNameMap = new ConcurrentHashMap<>();
-      tagStateMachines = new ConcurrentHashMap<>();
+      tagRegistry.clear();
+      metrics.gauge("mailbox.pending", this::pendingAdverts);
 
       try {
          // Acquire a Cloud Application Client for this Application
@@ -248,12 +395,9 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
             cloudClient = cloudService.newCloudClient(APP_ID);
             cloudClient.addCloudClientListener(this);
             cloudClient.subscribe("control/#", 1);
+            if(publishSink == null || publishSink instanceof KuraPublishSink)
+               publishSink = new KuraPublishSink(cloudClient);
             info("Subscribed to control/#");
-            debugWriter = new FileWriter("/tmp/tag.debug");
-            debugWriter.write("address=");
-            debugWriter.write(debugAddress);
-            debugWriter.write('\n');
-            info("Created /tmp/tag.debug");
          } else {
             info("No CloudService found\n");
          }
@@ -262,61 +406,101 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
          throw new ComponentException(e);
       }
 
-      // Create an executor to handle tag events
-      publisher = Executors.newSingleThreadExecutor();
+      // Spool the publishes made while the cloud connection is down and replay them once it is back
+      if(initial.getSpoolMaxBytes() > 0)
+         startSpool(initial);
+      // Hand the publishes off to the priority lanes so the game processing never waits on the cloud client
+      if(initial.getPublishQueueCapacity() > 0) {
+         publishLanes = new PublishLanes(initial.getPublishQueueCapacity(), this::send, metrics);
+         publishLanes.start();
+      }
+      // Combine the per event game information into scoreboard frames published at a fixed rate
+      if(initial.getScoreboardRateHz() > 0) {
+         scoreboard = new ScoreboardAggregator(initial.getScoreboardRateHz(), clock::wallMillis,
+            (topic, payload, qos, retain) -> publish(PublishSpool.PublishClass.GAME_INFO, topic, payload, qos, retain), metrics);
+         scoreboard.start();
+      }
 
-      if(tagConfig != null) {
-         info("Populating tag mappings from tagConfig");
-         for(int n = 0; n < MAX_TAGS; n ++) {
-            String address = tagConfig.getTagAddress(n);
-            String name = tagConfig.getTagName(n);
-            if(address != null && name != null)
-               updateTagInfo(address, name);
-         }
+      // Create the lanes to handle tag events
+      dispatcher = new TagEventDispatcher(initial.getDispatchLanes());
+      metrics.gauge("dispatch.queueDepth", dispatcher::getQueueDepth);
+      payloadBuilders = new PayloadBuilder[dispatcher.getLaneCount()];
+      for (int n = 0; n < payloadBuilders.length; n++) {
+         payloadBuilders[n] = new PayloadBuilder();
       }
 
+      // Create the wheel that fires the game timeouts onto the lanes
+      timerWheel = new HashedTimingWheel(initial.getTimerTickMillis(), TIMER_TICKS_PER_WHEEL, clock::refresh, metrics);
+      timerWheel.start();
+
+      // Create the ring the HCIDump callback hands adverts off through
+      advertRing = new AdvertRingBuffer(initial.getRingCapacity(), initial.getRingOverflowPolicy(), initial.isFlyweightDecode(),
+         this::processAdvert, metrics);
+      advertRing.start();
+
+      populateTagMappings(tagConfig);
+
       // Update the properties
       updated(properties);
    }
 
    protected void deactivate(ComponentContext componentContext) {
-      HCIDump.setAdvertEventCallback(null);
-      HCIDump.freeScanner();
+      ScannerConfig current = config;
+      if(current == null || !current.isSkipJniInitialization()) {
+         HCIDump.setAdvertEventCallback(null);
+         HCIDump.freeScanner();
+      }
       scannerInitialized = false;
-      addressToNameMap = null;
-      tagStateMachines = null;
+      config = null;
+      configureCapture(null);
+      configureTrace(null);
+      if(advertRing != null)
+         advertRing.stop();
+      advertRing = null;
+      if(telemetryBatcher != null)
+         telemetryBatcher.stop();
+      telemetryBatcher = null;
+      deadbandFilter = null;
+      rateLimiter = null;
+      ScoreboardAggregator board = scoreboard;
+      if(board != null) {
+         // The games end with the scanner, so the last frame shows none of them
+         tagRegistry.forEach(entry -> board.remove(entry.getAddress().toString()));
+         board.stop();
+      }
+      scoreboard = null;
+      if(publishLanes != null)
+         publishLanes.stop(PUBLISH_DRAIN_MILLIS);
+      publishLanes = null;
+      stopSpool();
+      if(timerWheel != null)
+         timerWheel.stop();
+      timerWheel = null;
+      if(dispatcher != null)
+         dispatcher.shutdown();
+      dispatcher = null;
+      tagRegistry.forEach(entry -> {
+         IGameStateMachine gsm = entry.getGameSM();
+         if(gsm != null)
+            gsm.terminate();
+      });
+      tagRegistry.clear();
+      gameFactory = null;
       info("RHIoTTagScanner.deactivate; Bundle " + APP_ID + " has stopped!\n");
    }
 
    /**
-    * Called to update the service configurable properties
+    * Called to update the service configurable properties. The properties are parsed into a new snapshot that is
+    * swapped in as a whole, then only the parts whose settings changed are reconfigured. Games in progress and the
+    * BLE scanner are left running unless their own settings changed.
     * @param properties
     */
    protected void updated(Map<String, Object> properties) {
       info("RHIoTTagScanner.updated; Bundle " + APP_ID + " has updated!\n");
-      String hciDev = (String) properties.get("hciDev");
-      if (hciDev == null)
-         hciDev = "hci0";
-      boolean debugMode = false;
-      if (properties.get("hcidumpDebugMode") != null)
-         debugMode = (Boolean) properties.get("hcidumpDebugMode");
-      boolean skipJniInitialization = false;
-      if (properties.get("skipJniInitialization") != null)
-         skipJniInitialization = (Boolean) properties.get("skipJniInitialization");
-      info("hciDev=%s\n", hciDev);
-
-      luxHitThreshold = (int) properties.get("game.hitThreshold");
-      info("Using luxHitThreshold=%d", luxHitThreshold);
-      luxResetThreshold = (int) properties.get("game.resetThreshold");
-      info("Using luxResetThreshold=%d", luxResetThreshold);
-      debugAddress = (String) properties.get("debug.address");
-
-      gameDurationSecs = (int) properties.get("game.duration");
-      shootingWindowSecs = (int) properties.get("game.shootingWindow");
-      // Clear any games
-      tagStateMachines.clear();
-
-      this.properties = properties;
+      ScannerConfig newConfig = ScannerConfig.from(properties);
+      ScannerConfig oldConfig = config;
+      config = newConfig;
+      info("Using %s", newConfig);
       if (properties != null && !properties.isEmpty()) {
          Iterator<Map.Entry<String, Object>> it = properties.entrySet().iterator();
          while (it.hasNext()) {
@@ -327,18 +511,49 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
             info("New property - %s = %s of type: %s\n", key, value, type);
          }
       }
-      // Setup scanner
-      if(!skipJniInitialization) {
-         HCIDump.loadLibrary();
-         HCIDump.enableDebugMode(debugMode);
-         HCIDump.setAdvertEventCallback(this);
-         if (scannerInitialized == false) {
-            HCIDump.initScanner(hciDev, 512, ByteOrder.BIG_ENDIAN);
+
+      if(oldConfig == null || newConfig.debugAddressDiffers(oldConfig))
+         tagRegistry.forEach(entry -> entry.setDebug(newConfig.isDebugAddress(entry.getAddress())));
+
+      // Only rebuild the machine definition if the engine or monitoring changed, which ends the current games
+      GameMachineFactory oldFactory = gameFactory;
+      if(oldFactory == null || oldConfig == null || newConfig.gameDefinitionDiffers(oldConfig)) {
+         gameFactory = new GameMachineFactory(newConfig.getGameEngine(), newConfig.isRemoteMonitor(), clock, metrics);
+         if(oldFactory != null) {
+            info("Game engine changed, replacing the current games");
+            terminateGames();
+         }
+      } else if(newConfig.durationsDiffer(oldConfig)) {
+         applyDurations(newConfig);
+      }
+      gameFactory.setDurations(newConfig.getGameDurationSecs(), newConfig.getShootingWindowSecs());
+
+      if(oldConfig == null || newConfig.telemetryDiffers(oldConfig))
+         configureTelemetry(newConfig);
+      if(oldConfig == null || newConfig.captureDiffers(oldConfig))
+         configureCapture(newConfig);
+      if(oldConfig == null || newConfig.traceDiffers(oldConfig))
+         configureTrace(newConfig);
+      if(oldConfig != null && newConfig.pipelineDiffers(oldConfig))
+         info("Dispatch lane, mailbox, ring, decode and timer settings take effect on the next activation");
+
+      // Setup scanner, only reinitializing it if the device settings changed
+      if(!newConfig.isSkipJniInitialization()) {
+         if (scannerInitialized == false || oldConfig == null) {
+            HCIDump.loadLibrary();
+            HCIDump.enableDebugMode(newConfig.isHcidumpDebugMode());
+            HCIDump.setAdvertEventCallback(this);
+            HCIDump.initScanner(newConfig.getHciDev(), 512, ByteOrder.BIG_ENDIAN);
             info("Initialized scanner\n");
-         } else {
+         } else if(newConfig.scannerDiffers(oldConfig)) {
+            HCIDump.loadLibrary();
+            HCIDump.enableDebugMode(newConfig.isHcidumpDebugMode());
+            HCIDump.setAdvertEventCallback(this);
             HCIDump.freeScanner();
-            HCIDump.initScanner(hciDev, 512, ByteOrder.BIG_ENDIAN);
+            HCIDump.initScanner(newConfig.getHciDev(), 512, ByteOrder.BIG_ENDIAN);
             info("Reinitialized scanner\n");
+         } else if(newConfig.isHcidumpDebugMode() != oldConfig.isHcidumpDebugMode()) {
+            HCIDump.enableDebugMode(newConfig.isHcidumpDebugMode());
          }
       }
       scannerInitialized = true;
@@ -354,35 +569,186 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
    }
 
    /**
-    * Create a new game state machine
-    * @return
+    * Open the publish spool, recovering any publishes left by a previous run, and start the rate limited replay
+    * @param initial - the activation configuration
+    */
+   private void startSpool(ScannerConfig initial) {
+      PublishSpool newSpool = new PublishSpool(new File(initial.getSpoolDir()), initial.getSpoolMaxBytes(), SPOOL_SEGMENT_BYTES, metrics);
+      try {
+         newSpool.open();
+      } catch (IOException e) {
+         info("Failed to open the publish spool in: %s, publishes will not be spooled, %s", initial.getSpoolDir(), e);
+         return;
+      }
+      spool = newSpool;
+      IPublishSink sink = publishSink;
+      cloudConnected = sink != null && sink.isConnected();
+      int batch = (int) Math.max(1, initial.getSpoolReplayRate() * SPOOL_REPLAY_PERIOD_MILLIS / 1000);
+      spoolReplayer = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "RHIoTTagSpoolReplay");
+         t.setDaemon(true);
+         return t;
+      });
+      spoolReplayer.scheduleWithFixedDelay(() -> replaySpool(newSpool, batch), SPOOL_REPLAY_PERIOD_MILLIS,
+         SPOOL_REPLAY_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stop the replay and close the spool, unsent publishes stay on disk for the next activation
     */
-   private GameStateMachine newStateMachine() {
-      GameModel gameModel = new GameModel();
-      gameModel.setGameDuration(gameDurationSecs);
-      gameModel.setShootingWindowDuration(shootingWindowSecs);
+   private void stopSpool() {
+      if(spoolReplayer != null)
+         spoolReplayer.shutdownNow();
+      spoolReplayer = null;
+      if(spool != null)
+         spool.close();
+      spool = null;
+   }
 
-      StateMachineBuilder<GameStateMachine, GameStateMachine.GameState, GameStateMachine.GameEvent, GameModel> builder =
-         StateMachineBuilderFactory.create(GameStateMachine.class, GameStateMachine.GameState.class, GameStateMachine.GameEvent.class, GameModel.class);
-      builder.setStateMachineConfiguration(StateMachineConfiguration.create().enableRemoteMonitor(true).enableDebugMode(false));
+   /**
+    * Send the next batch of spooled publishes while the cloud client is connected, and go back to publishing
+    * directly once the spool is drained
+    * @param spool - the spool to replay
+    * @param batch - the maximum number of publishes sent per run
+    */
+   private void replaySpool(PublishSpool spool, int batch) {
+      try {
+         IPublishSink sink = publishSink;
+         if(!cloudConnected || sink == null || !spool.isSpooling())
+            return;
+         int sent = spool.replay(sink::publish, batch);
+         if(sent < batch && spool.finishIfDrained())
+            info("Publish spool drained");
+      } catch (Exception e) {
+         info("Failed to replay the publish spool, %s", e);
+      }
+   }
 
-      GameStateMachine gsm = builder.newStateMachine(GameStateMachine.GameState.IDLE);
-      gsm.setGameModel(gameModel);
-      return gsm;
+   /**
+    * Detach and terminate every tag's game after the game engine changed, dropping it from the scoreboard. The
+    * machine is terminated on the tag's lane so that it is not touched while an advert for the tag is being handled.
+    * The tag is given a machine of the new engine on its next advert.
+    */
+   private void terminateGames() {
+      tagRegistry.forEach(entry -> dispatcher.laneFor(entry.getAddress().getValue()).execute(() -> {
+         IGameStateMachine gsm;
+         synchronized (entry) {
+            gsm = entry.getGameSM();
+            entry.setGameSM(null);
+         }
+         entry.cancelTimeouts();
+         if(gsm != null)
+            gsm.terminate();
+         ScoreboardAggregator board = scoreboard;
+         if(board != null)
+            board.remove(entry.getAddress().toString());
+      }));
+   }
+
+   /**
+    * Apply new game and shooting window durations to the current games on their lanes. A game in progress keeps
+    * its current deadlines, the new durations apply from its next game or shooting window.
+    * @param newConfig - the configuration with the new durations
+    */
+   private void applyDurations(ScannerConfig newConfig) {
+      info("Using gameDurationSecs=%d, shootingWindowSecs=%d", newConfig.getGameDurationSecs(), newConfig.getShootingWindowSecs());
+      tagRegistry.forEach(entry -> dispatcher.laneFor(entry.getAddress().getValue()).execute(() -> {
+         IGameStateMachine gsm = entry.getGameSM();
+         if(gsm == null)
+            return;
+         GameModel model = gsm.getGameModel();
+         model.setGameDuration(newConfig.getGameDurationSecs());
+         model.setShootingWindowDuration(newConfig.getShootingWindowSecs());
+      }));
+   }
+
+   /**
+    * Replace the telemetry deadband filter and batcher for new settings. Stopping the old batcher publishes its
+    * pending samples.
+    * @param newConfig - the configuration with the telemetry settings
+    */
+   private void configureTelemetry(ScannerConfig newConfig) {
+      TelemetryBatcher oldBatcher = telemetryBatcher;
+      CompactTelemetryCodec codec = newConfig.isCompactFormat() ? new CompactTelemetryCodec(newConfig.isCompress()) : null;
+      telemetryCodec = codec;
+      // Only publish telemetry that moved past its deadband or is due a heartbeat
+      int heartbeat = newConfig.getHeartbeatMillis();
+      deadbandFilter = heartbeat > 0 ? new DeadbandFilter(newConfig.getTempDeadband(), newConfig.getLuxDeadband(), heartbeat, metrics) : null;
+      // Downsample the telemetry of tags over their quota
+      rateLimiter = newConfig.isRateLimited() ? new PublishRateLimiter(newConfig.getClassRates(), newConfig.getTagRate(),
+         newConfig.getRateBurstSecs(), clock.millis(), metrics) : null;
+      // Batch the telemetry of adverts that do not change the game
+      TelemetryBatcher batcher = null;
+      if(newConfig.getBatchIntervalMillis() > 0 && newConfig.getBatchMaxSamples() > 1) {
+         batcher = new TelemetryBatcher(newConfig.getBatchIntervalMillis(), newConfig.getBatchMaxSamples(), tagRegistry, clock,
+            codec, telemetryPublisher, metrics);
+         batcher.start();
+      }
+      telemetryBatcher = batcher;
+      if(oldBatcher != null)
+         oldBatcher.stop();
+   }
+
+   /**
+    * Start or stop recording the raw adverts for new settings. A running capture is closed first, and a new
+    * capture replaces any existing file.
+    * @param newConfig - the configuration with the capture settings, null to stop recording
+    */
+   private void configureCapture(ScannerConfig newConfig) {
+      AdvertCapture.Recorder oldRecorder = advertRecorder;
+      advertRecorder = null;
+      if(oldRecorder != null) {
+         oldRecorder.close();
+         info("Stopped recording adverts to: %s", oldRecorder.getFile());
+      }
+      if(newConfig == null || newConfig.getCaptureFile().isEmpty())
+         return;
+      try {
+         advertRecorder = new AdvertCapture.Recorder(new File(newConfig.getCaptureFile()), newConfig.getCaptureMaxBytes(), metrics);
+      } catch (IOException e) {
+         info("Failed to create the advert capture: %s, %s", newConfig.getCaptureFile(), e);
+      }
+   }
+
+   /**
+    * Start or stop the trace log for new settings. A running trace log is stopped first, and a new one continues
+    * an existing trace file of the same size.
+    * @param newConfig - the configuration with the trace settings, null to stop tracing
+    */
+   private void configureTrace(ScannerConfig newConfig) {
+      TagTraceLog oldLog = traceLog;
+      traceLog = null;
+      if(oldLog != null) {
+         oldLog.stop();
+         info("Stopped tracing tags to: %s", oldLog.getFile());
+      }
+      if(newConfig == null || !newConfig.isTracing())
+         return;
+      try {
+         TagTraceLog newLog = new TagTraceLog(new File(newConfig.getTraceFile()), newConfig.getTraceMaxBytes(), metrics);
+         newLog.start();
+         traceLog = newLog;
+      } catch (IOException e) {
+         info("Failed to create the tag trace: %s, %s", newConfig.getTraceFile(), e);
+      }
    }
 
    /**
     * Determine the game event from the tag and current state. This advances the state machine to the next
-    * state
+    * state. The deadlines are checked against the advert's capture time set on the game model, the timer wheel
+    * fires the timeouts for tags that go quiet.
+    * @param entry - the tag's registry entry
     * @param gsm - the game state machine
     * @param tag - the tag ble event information
     * @return the state machine event
     */
-   private GameStateMachine.GameEvent determineEvent(GameStateMachine gsm, RHIoTTag tag) {
+   GameStateMachine.GameEvent determineEvent(TagEntry entry, IGameStateMachine gsm, TagReading tag) {
       GameStateMachine.GameEvent event = GameStateMachine.GameEvent.NOOP;
+      ScannerConfig config = this.config;
 
       GameStateMachine.GameState state = gsm.getCurrentState();
-      debug("determineEvent([%s]: state=%s, keyState=%s", tag.getAddressString(), state, tag.getKeyState());
+      if(log.isDebugEnabled())
+         debug("determineEvent([%s]: state=%s, keyState=%s", tag.getAddressString(), state, tag.getKeyState());
 
       // Check game expiration first of all
       if(state != GameStateMachine.GameState.GAMEOVER && state != GameStateMachine.GameState.IDLE) {
@@ -392,30 +758,21 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
 
       // In shooting state, check for hits, timeout and empty clip
       if(state == GameStateMachine.GameState.SHOOTING) {
-         if(gsm.isShootingWindowExpired())
+         if(entry.isWindowExpired() || gsm.isShootingWindowExpired())
             return GameStateMachine.GameEvent.WINDOW_TIMEOUT;
          if(gsm.isClipEmpty())
             return GameStateMachine.GameEvent.CLIP_EMPTY;
-         if(tag.isLightSensorAbove(luxHitThreshold)) {
+         if(tag.isLightSensorAbove(config.getLuxHitThreshold())) {
             // Decrement the shots left and update the game score
             gsm.tookShot();
             gsm.recordHit(tag.getLux());
-            if(tag.getAddressString().equals(debugAddress)) {
-               String msg = String.format("%s: lux=%d, hs=%d, s=%d\n", tag.getName(), tag.getLux(), gsm.getHitScore(), gsm.getScore());
-               try {
-                  debugWriter.write(msg);
-                  debugWriter.flush();
-               } catch (Exception e) {
-                  e.printStackTrace();
-               }
-            }
             info("hit, shotsLeft=%s", gsm.getShotsLeft());
             return GameStateMachine.GameEvent.HIT_DETECTED;
          }
       }
       // In reset must wait for light sensor to drop back down
       if(state == GameStateMachine.GameState.RESETTING) {
-         if(!tag.isLightSensorAbove(luxResetThreshold))
+         if(!tag.isLightSensorAbove(config.getLuxResetThreshold()))
             return GameStateMachine.GameEvent.LS_RESET;
          return GameStateMachine.GameEvent.NOOP;
       }
@@ -440,83 +797,247 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
    }
 
    /**
-    * Handle the tag ble event information asynchronously
+    * Queue an advert in the tag's mailbox, scheduling a drain of the mailbox on the tag's dispatch lane if one is
+    * not already pending. Adverts that do not change the game inputs are coalesced in the mailbox.
+    * @param entry - the tag's registry entry
+    * @param reading - ble event information, this is copied into the mailbox
+    * @see TagMailbox
+    */
+   void offerAdvert(TagEntry entry, TagReading reading) {
+      TagMailbox mailbox = entry.getMailbox();
+      if(mailbox == null)
+         mailbox = newMailbox(entry);
+      ScannerConfig config = this.config;
+      if(mailbox.offer(reading, config.getLuxHitThreshold(), config.getLuxResetThreshold())) {
+         dispatcher.laneFor(reading.getAddress()).execute(mailbox.getDrainTask());
+      }
+   }
+
+   /**
+    * Create the tag's mailbox. This is only called from the advert consumer thread.
+    * @param entry - the tag's registry entry
+    * @return the new mailbox
+    */
+   private TagMailbox newMailbox(TagEntry entry) {
+      TagMailbox mailbox = new TagMailbox(config.getMailboxCapacity(), metrics);
+      String prefix = "tag." + entry.getAddress() + ".";
+      metrics.gauge(prefix + "queueDelayAvgMillis", entry::getQueueDelayAverage);
+      metrics.gauge(prefix + "queueDelayMaxMillis", entry::getQueueDelayMax);
+      mailbox.setDrainTask(() -> drainMailbox(entry, mailbox));
+      entry.setMailbox(mailbox);
+      return mailbox;
+   }
+
+   /**
+    * Handle every pending advert in the mailbox. This runs on the tag's dispatch lane.
+    * @param entry - the tag's registry entry
+    * @param mailbox - the tag's mailbox
+    */
+   private void drainMailbox(TagEntry entry, TagMailbox mailbox) {
+      TagReading reading = laneReading.get();
+      // One time sample for the batch of adverts
+      clock.refresh();
+      while(mailbox.poll(reading)) {
+         try {
+            handleTag(entry, reading);
+         } catch (Exception e) {
+            log.error("Failed to handle tag: "+reading, e);
+         }
+      }
+   }
+
+   /**
+    * @return the number of adverts waiting in all tag mailboxes
+    */
+   private long pendingAdverts() {
+      long[] count = {0};
+      tagRegistry.forEach(entry -> {
+         TagMailbox mailbox = entry.getMailbox();
+         if(mailbox != null)
+            count[0] += mailbox.size();
+      });
+      return count[0];
+   }
+
+   /**
+    * Handle the tag ble event information asynchronously on the tag's dispatch lane. Events for the same tag are
+    * handled in the order they are submitted.
     * @param tag - ble event information
     * @return the future for the handleTag result
-    * @see #handleTag(RHIoTTag)
+    * @see #handleTag(TagReading)
     */
    public CompletableFuture<GameStateMachine.GameState> handleTagAsync(RHIoTTag tag) {
-      CompletableFuture<GameStateMachine.GameState> future = CompletableFuture.supplyAsync(() -> handleTag(tag), publisher);
+      return handleTagAsync(TagReading.from(tag));
+   }
+
+   /**
+    * Handle a tag reading asynchronously on the tag's dispatch lane. Readings for the same tag are handled in the
+    * order they are submitted, and the reading's time is used as its capture time.
+    * @param reading - the tag reading, which is owned by the lane once submitted
+    * @return the future for the handleTag result
+    */
+   public CompletableFuture<GameStateMachine.GameState> handleTagAsync(TagReading reading) {
+      TagEntry entry = tagRegistry.getOrCreate(TagAddress.of(reading.getAddress()));
+      reading.setAddressString(entry.getAddress().toString());
+      CompletableFuture<GameStateMachine.GameState> future = dispatcher.submit(reading.getAddress(), () -> {
+         clock.refresh();
+         return handleTag(entry, reading);
+      });
       return future;
    }
 
    /**
     * Handle the tag ble event information. This finds or creates a game state machine for the tag and then
     * determines the game event and advances the game state machine.
+    * @param entry - the tag's registry entry
     * @param tag - the ble event information
     * @return the current state of the tag's game
     */
-   GameStateMachine.GameState handleTag(RHIoTTag tag) {
+   GameStateMachine.GameState handleTag(TagEntry entry, TagReading tag) {
       // Check the tag state machine
-      String tagKey = tag.getAddressString();
-      GameStateMachine gsm = tagStateMachines.get(tagKey);
-      if(gsm == null) {
-         gsm = newStateMachine();
-         gsm.start();
-         tagStateMachines.put(tagKey, gsm);
+      IGameStateMachine gsm = getStartedGameSM(entry);
+
+      // Evaluate the game rules at the time the advert was captured rather than when it was dequeued
+      GameModel model = gsm.getGameModel();
+      model.setEventTime(eventTime(entry, tag));
+      try {
+         // Check for an event based on the tag data and game model
+         GameStateMachine.GameState state = gsm.getCurrentState();
+         GameStateMachine.GameEvent event = determineEvent(entry, gsm, tag);
+         entry.getLastReading().copyFrom(tag);
+         // Advance the state machine if there is a new event
+         if(event != GameStateMachine.GameEvent.NOOP) {
+            gsm.fire(event);
+            scheduleTimeouts(entry, gsm);
+         }
+         GameStateMachine.GameState newState = gsm.getCurrentState();
+         if(entry.isDebug())
+            trace(TagTraceLog.Kind.ADVERT, model.getEventTime(), entry, tag, state, event, newState, gsm);
+
+         // Publish the tag data and game state
+         doPublish(entry, tag, state, newState, event, gsm);
+         return newState;
+      } finally {
+         model.setEventTime(0);
       }
+   }
 
-      // Check for an event based on the tag data and game model
+   /**
+    * Get the time to evaluate the game rules for the advert at and record how long the advert was queued. The
+    * adapter capture time is used unless it is missing or too far from the gateway clock to be trusted.
+    * @param entry - the tag's registry entry
+    * @param tag - the advert
+    * @return the advert capture time on the game clock, or the current clock time
+    */
+   private long eventTime(TagEntry entry, TagReading tag) {
+      long now = clock.millis();
+      long time = tag.getTime() > 0 ? clock.fromWall(tag.getTime()) : 0;
+      if(time <= 0 || time > now + MAX_CAPTURE_SKEW_MILLIS || now - time > MAX_CAPTURE_AGE_MILLIS) {
+         untrustedCaptureTime.increment();
+         return now;
+      }
+      long delay = Math.max(0, now - time);
+      entry.recordQueueDelay(delay);
+      queueDelayTotal.add(delay);
+      queueDelayCount.increment();
+      return time;
+   }
+
+   /**
+    * Bring the tag's pending timeouts in line with its game after a transition. A timeout is only rescheduled when
+    * the game model deadline it was scheduled for has changed, i.e. a new game or shooting window started.
+    * This runs on the tag's dispatch lane.
+    * @param entry - the tag's registry entry
+    * @param gsm - the tag's game state machine
+    */
+   private void scheduleTimeouts(TagEntry entry, IGameStateMachine gsm) {
       GameStateMachine.GameState state = gsm.getCurrentState();
-      GameStateMachine.GameEvent event = determineEvent(gsm, tag);
-      // Advance the state machine if there is a new event
-      if(event != GameStateMachine.GameEvent.NOOP) {
-         gsm.fire(event);
+      if(state == GameStateMachine.GameState.IDLE || state == GameStateMachine.GameState.GAMEOVER) {
+         entry.cancelTimeouts();
+         return;
       }
-      GameStateMachine.GameState newState = gsm.getCurrentState();
-      if(tagKey.equals(debugAddress)) {
-         String msg = String.format("%s,keys=%d,lux=%d,state=%s,event=%s,newState=%s\n", tag.getName(), tag.getKeys(), tag.getLux(), state, event, newState);
-         try {
-            debugWriter.write(msg);
-            debugWriter.flush();
-         } catch (IOException e) {
-            e.printStackTrace();
-         }
+      GameModel model = gsm.getGameModel();
+      long endGame = model.getEndGame();
+      if(entry.getGameDeadline() != endGame) {
+         HashedTimingWheel.Timeout timeout = timerWheel.schedule(endGame, () -> dispatcher.laneFor(entry.getAddress().getValue())
+            .execute(() -> onTimeout(entry, GameStateMachine.GameEvent.GAME_TIMEOUT, endGame)));
+         entry.setGameTimeout(timeout, endGame);
+      }
+      long endShootingWindow = model.getEndShootingWindow();
+      if(entry.getWindowDeadline() != endShootingWindow) {
+         HashedTimingWheel.Timeout timeout = timerWheel.schedule(endShootingWindow, () -> dispatcher.laneFor(entry.getAddress().getValue())
+            .execute(() -> onTimeout(entry, GameStateMachine.GameEvent.WINDOW_TIMEOUT, endShootingWindow)));
+         entry.setWindowTimeout(timeout, endShootingWindow);
       }
+   }
 
-      // Publish the tag data and game state
-      doPublish(tag, state, newState, event, gsm);
-      return newState;
+   /**
+    * Fire a game or shooting window timeout at the tag's game and publish the transition with the tag's last
+    * reading. This runs on the tag's dispatch lane. A shooting window that ends while the game is not in SHOOTING
+    * is remembered and reported when the game returns to SHOOTING.
+    * @param entry - the tag's registry entry
+    * @param event - GAME_TIMEOUT or WINDOW_TIMEOUT
+    * @param deadline - the game model deadline the timeout was scheduled for
+    */
+   private void onTimeout(TagEntry entry, GameStateMachine.GameEvent event, long deadline) {
+      IGameStateMachine gsm = entry.getGameSM();
+      if(gsm == null)
+         return;
+      clock.refresh();
+      GameModel model = gsm.getGameModel();
+      GameStateMachine.GameState state = gsm.getCurrentState();
+      if(event == GameStateMachine.GameEvent.GAME_TIMEOUT) {
+         // Ignore a timeout that lost the race with its cancellation
+         if(deadline != model.getEndGame() || state == GameStateMachine.GameState.IDLE || state == GameStateMachine.GameState.GAMEOVER)
+            return;
+      } else {
+         if(deadline != model.getEndShootingWindow())
+            return;
+         entry.setWindowExpired(true);
+         if(state != GameStateMachine.GameState.SHOOTING)
+            return;
+      }
+      // The transition happens at the deadline, however late the tick was
+      model.setEventTime(deadline);
+      try {
+         gsm.fire(event);
+         scheduleTimeouts(entry, gsm);
+         GameStateMachine.GameState newState = gsm.getCurrentState();
+         TagReading tag = entry.getLastReading();
+         if(entry.isDebug())
+            trace(TagTraceLog.Kind.TIMEOUT, deadline, entry, tag, state, event, newState, gsm);
+         doPublish(entry, tag, state, newState, event, gsm);
+      } finally {
+         model.setEventTime(0);
+      }
    }
 
    /**
     * Publish the RHIoTTag temp, keys state and light sensor reading as well as game state changes. The game state
-    * is not included for event of type NOOP.
-    *  @param tag - the advertisement
+    * is not included for event of type NOOP. NOOP telemetry that stays within the deadbands of the last published
+    * values is dropped until the heartbeat is due. When batching is enabled the NOOP telemetry is added to the tag's
+    * batch, and a state change first publishes the tag's pending batch so the tag's messages stay in order.
+    * @param entry - the tag's registry entry
+    * @param tag - the advertisement
     * @param state - the game state before the event
     * @param newState - the game state after the event
     * @param event - the event associated with the advertisement
     * @param gsm - the game state machine associated with the tag
-    * @param gsm
-    */
-   private void doPublish(RHIoTTag tag, GameStateMachine.GameState state, GameStateMachine.GameState newState,
-                          GameStateMachine.GameEvent event, GameStateMachine gsm) {
-      // fetch the publishing configuration from the publishing properties
-      String topicRoot = (String) properties.get(PUBLISH_TOPIC_PROP_NAME);
-      String topic = topicRoot + "/" + tag.getAddressString();
-      Integer qos = (Integer) properties.get(PUBLISH_QOS_PROP_NAME);
-      Boolean retain = (Boolean) properties.get(PUBLISH_RETAIN_PROP_NAME);
-
-      // Allocate a new payload
-      KuraPayload payload = new KuraPayload();
-
-      // Timestamp the message
-      long timestamp = System.currentTimeMillis();
-      payload.setTimestamp(new Date(timestamp));
-
-      payload.addMetric(TAG_TEMP, tag.getTempC());
-      payload.addMetric(TAG_KEYS, (int) tag.getKeys());
-      payload.addMetric(TAG_LUX, tag.getLux());
+    */
+   private void doPublish(TagEntry entry, TagReading tag, GameStateMachine.GameState state, GameStateMachine.GameState newState,
+                          GameStateMachine.GameEvent event, IGameStateMachine gsm) {
+      // fetch the publishing configuration from the current snapshot
+      ScannerConfig config = this.config;
+      String topic = config.topicFor(entry);
+      int qos = config.getQos();
+      boolean retain = config.isRetain();
+
+      // The deadband and rate limits run on the game clock, the message is timestamped on the wall clock
+      long time = gsm.getGameModel().getEventTime();
+      if(time == 0)
+         time = clock.millis();
+      long timestamp = clock.toWall(time);
+
       int gameTimeLeft = gsm.getGameTimeLeft();
       // General game information
       int shotsLeft = gsm.getShotsLeft();
@@ -524,159 +1045,243 @@ public class RHIoTTagScanner implements ConfigurableComponent, CloudClientListen
       if (gameTimeLeft <= 0)
          shootingTimeLeft = 0;
       int score = gsm.getScore();
+
+      DeadbandFilter filter = deadbandFilter;
+      if(filter != null && event == GameStateMachine.GameEvent.NOOP && !filter.accept(entry, tag, time))
+         return;
+      PublishRateLimiter limiter = rateLimiter;
+      if(limiter != null && event == GameStateMachine.GameEvent.NOOP && !limiter.admitTelemetry(entry, time))
+         return;
+      // Only what is sent becomes the baseline for the next deadband check
+      if(filter != null)
+         filter.published(entry, tag, time);
+
+      TelemetryBatcher batcher = telemetryBatcher;
+      PublishSpool.PublishClass publishClass = event == GameStateMachine.GameEvent.NOOP
+         ? PublishSpool.PublishClass.TELEMETRY : PublishSpool.PublishClass.GAME_EVENT;
+      if(batcher != null) {
+         if(event == GameStateMachine.GameEvent.NOOP) {
+            batcher.add(entry, topic, qos, retain, tag, timestamp, gameTimeLeft, score, shootingTimeLeft, shotsLeft);
+            return;
+         }
+         batcher.flush(entry, eventPublisher);
+      }
+
       if(event != GameStateMachine.GameEvent.NOOP) {
          info("%s; from: %s to: %s on: %s", tag.getAddressString(), state, newState, event);
-         payload.addMetric(TAG_PREV_STATE, state.name());
-         payload.addMetric(TAG_NEW_STATE, newState.name());
-         payload.addMetric(TAG_EVENT, event.name());
          int hits = gsm.getHits();
          String tagAddress = tag.getAddressString();
-
-         // Add hit information if this was a hit
-         if(event == GameStateMachine.GameEvent.HIT_DETECTED) {
-            payload.addMetric(TAG_HIT_SCORE, gsm.getHitScore());
-            payload.addMetric(TAG_HIT_RINGS_OFF_CENTER, gsm.getHitRingsOffCenter());
-         }
+         ScoreboardAggregator board = scoreboard;
 
          // Add game score information if this is the end of the game
          if(event == GameStateMachine.GameEvent.GAME_TIMEOUT) {
-            boolean isNewHighScore = false;
-            if(highScore == null || highScore.isStillHighScore(score) == false) {
-               // Update the high score
-               highScore = new HighScore(tagAddress, score, timestamp, hits);
-               isNewHighScore = true;
-               info("New high score: %s", highScore);
-            }
+            boolean isNewHighScore = updateHighScore(tagAddress, score, timestamp, hits);
             // Publish scores separately to a distinct topic with higher qos
-            publishGameScore(tag.getName(), tagAddress, score, hits, isNewHighScore);
+            publishGameScore(entry, tag.getName(), tagAddress, timestamp, score, hits, isNewHighScore);
+            if(board != null)
+               board.remove(tagAddress);
+         } else if(board != null) {
+            // Update the game on the next scoreboard frame
+            board.update(tag.getName(), tagAddress, score, hits, gameTimeLeft, shotsLeft, shootingTimeLeft);
          } else {
             // Also publish to the gateway active games topic
-            publishGameInfo(tag.getName(), tagAddress, score, hits, gameTimeLeft, shotsLeft, shootingTimeLeft);
+            publishGameInfo(entry, tag.getName(), tagAddress, timestamp, score, hits, gameTimeLeft, shotsLeft, shootingTimeLeft);
+         }
+      }
+
+      CompactTelemetryCodec codec = telemetryCodec;
+      KuraPayload payload;
+      if(codec != null) {
+         CompactTelemetryCodec.Transition transition = null;
+         if(event != GameStateMachine.GameEvent.NOOP) {
+            boolean hit = event == GameStateMachine.GameEvent.HIT_DETECTED;
+            transition = new CompactTelemetryCodec.Transition(state.name(), newState.name(), event.name(), hit,
+               hit ? gsm.getHitScore() : 0, hit ? gsm.getHitRingsOffCenter() : 0);
          }
+         payload = codec.sample(timestamp, tag.getTempC(), tag.getKeys(), tag.getLux(), gameTimeLeft, score, shootingTimeLeft,
+            shotsLeft, transition);
+      } else {
+         boolean hit = event == GameStateMachine.GameEvent.HIT_DETECTED;
+         payload = payloadBuilder(entry).metrics(tag, state, newState, event, hit ? gsm.getHitScore() : 0, hit ? gsm.getHitRingsOffCenter() : 0,
+            timestamp, gameTimeLeft, score, shootingTimeLeft, shotsLeft);
       }
-      payload.addMetric(TAG_GAME_TIME_LEFT, gameTimeLeft);
-      payload.addMetric(TAG_GAME_SCORE, score);
-      payload.addMetric(TAG_SHOOTING_TIME_LEFT, shootingTimeLeft);
-      payload.addMetric(TAG_SHOTS_LEFT, shotsLeft);
 
       // Publish the message
+      publish(publishClass, topic, payload, qos, retain);
+   }
+
+   /**
+    * Queue a payload on its priority publish lane, or send it directly if the lanes are disabled
+    * @param publishClass - the kind of publish, which selects the lane
+    * @param topic - the semantic topic
+    * @param payload - the message
+    * @param qos - the publish qos
+    * @param retain - the publish retain flag
+    * @return true if the payload was queued, published or spooled
+    */
+   private boolean publish(PublishSpool.PublishClass publishClass, String topic, KuraPayload payload, int qos, boolean retain) {
+      // Telemetry was admitted sample by sample, the game publishes always pass but are counted against their quota
+      PublishRateLimiter limiter = rateLimiter;
+      if(limiter != null && publishClass != PublishSpool.PublishClass.TELEMETRY)
+         limiter.admitEvent(publishClass, clock.millis());
+      PublishLanes lanes = publishLanes;
+      if(lanes != null)
+         return lanes.offer(publishClass, topic, payload, qos, retain);
+      return send(publishClass, topic, payload, qos, retain);
+   }
+
+   /**
+    * Publish a payload to the publish sink. While the connection is down or earlier publishes are still waiting in
+    * the spool, the payload is appended to the spool so the publishes are replayed in order. Without a cloud service
+    * there is nothing to replay to, so the payload is dropped.
+    * @param publishClass - the kind of publish, which decides if it is dropped when the spool is full
+    * @param topic - the semantic topic
+    * @param payload - the message
+    * @param qos - the publish qos
+    * @param retain - the publish retain flag
+    * @return true if the payload was published or spooled
+    */
+   private boolean send(PublishSpool.PublishClass publishClass, String topic, KuraPayload payload, int qos, boolean retain) {
+      IPublishSink sink = publishSink;
+      if(sink == null) {
+         noSinkDropped.increment();
+         if(log.isDebugEnabled())
+            debug("No cloud service, dropped publish to: %s", topic);
+         return false;
+      }
+      PublishSpool spool = this.spool;
+      if(spool != null && spool.appendIfSpooling(publishClass, topic, payload, qos, retain))
+         return true;
       try {
-         cloudClient.publish(topic, payload, qos, retain);
+         sink.publish(topic, payload, qos, retain);
          if(log.isDebugEnabled())
             debug("Published to: %s message: %s", topic, payload);
+         return true;
       } catch (Exception e) {
-         info("Cannot publish topic: %s\n", topic, e);
+         if(spool == null) {
+            info("Cannot publish topic: %s\n", topic, e);
+            return false;
+         }
+         info("Cannot publish topic: %s, spooling until the connection is back\n", topic, e);
+         return spool.append(publishClass, topic, payload, qos, retain);
+      }
+   }
+
+   /**
+    * Check the game score against the current high score and replace it if the score is higher. Games on different
+    * dispatch lanes can end concurrently, so this is synchronized.
+    * @param tagAddress - address of game RHIoTTag
+    * @param score - game score
+    * @param timestamp - time of the game end
+    * @param hits - number of target hits in the game
+    * @return true if the score is a new high score
+    */
+   private synchronized boolean updateHighScore(String tagAddress, int score, long timestamp, int hits) {
+      if(highScore == null || highScore.isStillHighScore(score) == false) {
+         highScore = new HighScore(tagAddress, score, timestamp, hits);
+         info("New high score: %s", highScore);
+         return true;
       }
+      return false;
+   }
+
+   /**
+    * Stage a trace record of a traced tag's game processing. This runs on the tag's dispatch lane.
+    * @param kind - what the record is for
+    * @param time - the event time on the game clock
+    * @param entry - the tag's registry entry
+    * @param tag - the advert
+    * @param state - the game state before the event
+    * @param event - the game event
+    * @param newState - the game state after the event
+    * @param gsm - the tag's game state machine
+    */
+   private void trace(TagTraceLog.Kind kind, long time, TagEntry entry, TagReading tag, GameStateMachine.GameState state,
+                      GameStateMachine.GameEvent event, GameStateMachine.GameState newState, IGameStateMachine gsm) {
+      TagTraceLog tracer = traceLog;
+      if(tracer != null)
+         tracer.trace(kind, clock.toWall(time), entry.getAddress().getValue(), tag.getKeys(), tag.getLux(), state, event, newState,
+            gsm.getHitScore(), gsm.getScore(), gsm.getShotsLeft(), gsm.getGameTimeLeft());
    }
 
    /**
     * Publish the game state for the given tag address
-    * @param tagAddress - BLE address string of the RHIoTTag
+    * @param tagAddress - BLE address of the RHIoTTag
     * @return the state of the game
     */
-   private GameStateMachine.GameState publishGameState(String tagAddress) {
-      GameStateMachine gsm = tagStateMachines.get(tagAddress);
-      if(gsm == null) {
-         gsm = newStateMachine();
-         gsm.start();
-         tagStateMachines.put(tagAddress, gsm);
-      }
+   private GameStateMachine.GameState publishGameState(TagAddress tagAddress) {
+      TagEntry entry = tagRegistry.getOrCreate(tagAddress);
+      IGameStateMachine gsm = getStartedGameSM(entry);
       GameStateMachine.GameState state = gsm.getCurrentState();
+      clock.refresh();
 
-      String topicRoot = (String) properties.get(PUBLISH_TOPIC_PROP_NAME);
-      String topic = topicRoot + "/" + tagAddress;
-      Integer qos = 1;
-      Boolean retain = (Boolean) properties.get(PUBLISH_RETAIN_PROP_NAME);
+      ScannerConfig config = this.config;
+      String topic = config.topicFor(entry);
+      int qos = 1;
+      boolean retain = config.isRetain();
 
-      // Allocate a new payload
-      KuraPayload payload = new KuraPayload();
-
-      // Timestamp the message
-      payload.setTimestamp(new Date());
-      payload.addMetric(TAG_PREV_STATE, state.name());
-      payload.addMetric(TAG_NEW_STATE, state.name());
-      payload.addMetric(TAG_EVENT, GameStateMachine.GameEvent.NOOP.name());
       int gameTimeLeft = gsm.getGameTimeLeft();
       int shotsLeft = gsm.getShotsLeft();
       int shootingTimeLeft = gsm.getShootingTimeLeft();
       if(gameTimeLeft <= 0)
          shootingTimeLeft = 0;
       int gameScore = gsm.getScore();
-      payload.addMetric(TAG_GAME_TIME_LEFT, gameTimeLeft);
-      payload.addMetric(TAG_GAME_SCORE, gameScore);
-      payload.addMetric(TAG_SHOOTING_TIME_LEFT, shootingTimeLeft);
-      payload.addMetric(TAG_SHOTS_LEFT, shotsLeft);
+      KuraPayload payload = payloadBuilder(entry).gameState(state, clock.wallMillis(), gameTimeLeft, gameScore,
+         shootingTimeLeft, shotsLeft);
 
       // Publish the message
-      try {
-         cloudClient.publish(topic, payload, qos, retain);
-         if(log.isDebugEnabled())
-            debug("Published to: %s message: %s", topic, payload);
+      if(publish(PublishSpool.PublishClass.GAME_EVENT, topic, payload, qos, retain))
          info("Resent game state for tag: %s", tagAddress);
-      } catch (Exception e) {
-         info("Failed to publish game state for tag: %s on topic: %s\n", tagAddress, topic, e);
-      }
 
       return state;
    }
 
    /**
     * Publish in progress game information to gateway gameInfo topic
-    * @param name
-    * @param tagAddress
-    * @param score
-    * @param hits
-    * @param gameTimeLeft
-    * @param shotsLeft
-    * @param shootingTimeLeft
+    * @param entry - the tag's registry entry, which selects its lane's payload builder
+    * @param name - name associated with the tag
+    * @param tagAddress - address of game RHIoTTag
+    * @param timestamp - the event time
+    * @param score - game score
+    * @param hits - number of target hits so far
+    * @param gameTimeLeft - game time left in ms
+    * @param shotsLeft - shots left in the clip
+    * @param shootingTimeLeft - shooting window time left in ms
     */
-   private void publishGameInfo(String name, String tagAddress, int score, int hits, int gameTimeLeft, int shotsLeft, int shootingTimeLeft) {
+   private void publishGameInfo(TagEntry entry, String name, String tagAddress, long timestamp, int score, int hits,
+                                int gameTimeLeft, int shotsLeft, int shootingTimeLeft) {
       String topic = "gameInfo";
-      Integer qos = 0;
-
-      KuraPayload payload = new KuraPayload();
-      payload.setTimestamp(new Date());
-      payload.addMetric(TAG_GAME_NAME, name);
-      payload.addMetric(TAG_GAME_ADDRESS, tagAddress);
-      payload.addMetric(TAG_GAME_TIME_LEFT, gameTimeLeft);
-      payload.addMetric(TAG_GAME_SCORE, score);
-      payload.addMetric(TAG_GAME_HITS, hits);
-      payload.addMetric(TAG_SHOOTING_TIME_LEFT, shootingTimeLeft);
-      payload.addMetric(TAG_SHOTS_LEFT, shotsLeft);
-      try {
-         cloudClient.publish(topic, payload, qos, Boolean.TRUE);
-         if(log.isDebugEnabled())
-            debug("Published to: %s message: %s", topic, payload);
-      } catch (Exception e) {
-         info("Failed to publish high score: %s on topic: %s\n", highScore, topic, e);
-      }
+      int qos = 0;
+
+      KuraPayload payload = payloadBuilder(entry).gameInfo(name, tagAddress, timestamp, score, hits, gameTimeLeft,
+         shotsLeft, shootingTimeLeft);
+      publish(PublishSpool.PublishClass.GAME_INFO, topic, payload, qos, true);
    }
 
    /**
     * Publish a new game score with qos=1 and retain=true to the gateway gameScores node
+    * @param entry - the tag's registry entry, which selects its lane's payload builder
     * @param name - name associated with the tag
     * @param tagAddress - address of game RHIoTTag
+    * @param timestamp - the event time
     * @param score - game score
     * @param hits - number of target hits in the game
     * @param isHighScore - new high score flag
     */
-   private void publishGameScore(String name, String tagAddress, int score, int hits, boolean isHighScore) {
+   private void publishGameScore(TagEntry entry, String name, String tagAddress, long timestamp, int score, int hits,
+                                 boolean isHighScore) {
       String topic = "gameScores";
-      Integer qos = 1;
-
-      KuraPayload payload = new KuraPayload();
-      payload.setTimestamp(new Date());
-      payload.addMetric(GW_LAST_GAME_TAG_NAME, name);
-      payload.addMetric(GW_LAST_GAME_SCORE, score);
-      payload.addMetric(GW_LAST_GAME_SCORE_HITS, hits);
-      payload.addMetric(GW_LAST_GAME_SCORE_TAG_ADDRESS, tagAddress);
-      payload.addMetric(GW_LAST_GAME_NEW_HIGH_SCORE, isHighScore);
-      try {
-         cloudClient.publish(topic, payload, qos, Boolean.TRUE);
-         if(log.isDebugEnabled())
-            debug("Published to: %s message: %s", topic, payload);
-      } catch (Exception e) {
-         info("Failed to publish high score: %s on topic: %s\n", highScore, topic, e);
-      }
+      int qos = 1;
+
+      KuraPayload payload = payloadBuilder(entry).gameScore(name, tagAddress, timestamp, score, hits, isHighScore);
+      publish(PublishSpool.PublishClass.GAME_SCORE, topic, payload, qos, true);
+   }
+
+   /**
+    * @param entry - a tag's registry entry
+    * @return the payload builder of the tag's dispatch lane
+    */
+   private PayloadBuilder payloadBuilder(TagEntry entry) {
+      return payloadBuilders[dispatcher.laneIndex(entry.getAddress().getValue())];
    }
 }
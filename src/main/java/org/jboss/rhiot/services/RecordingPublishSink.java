@@ -0,0 +1,119 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IPublishSink;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps every publish in memory in the order it was sent, for tests and off gateway runs of the publish path
+ */
+public class RecordingPublishSink implements IPublishSink {
+   /**
+    * A recorded publish
+    */
+   public static final class Record {
+      private final String topic;
+      private final KuraPayload payload;
+      private final int qos;
+      private final boolean retain;
+      /** The nanoTime the publish was received */
+      private final long received;
+
+      Record(String topic, KuraPayload payload, int qos, boolean retain, long received) {
+         this.topic = topic;
+         this.payload = payload;
+         this.qos = qos;
+         this.retain = retain;
+         this.received = received;
+      }
+
+      public String getTopic() {
+         return topic;
+      }
+
+      public KuraPayload getPayload() {
+         return payload;
+      }
+
+      public int getQos() {
+         return qos;
+      }
+
+      public boolean isRetain() {
+         return retain;
+      }
+
+      public long getReceived() {
+         return received;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%s(qos=%d, retain=%s)", topic, qos, retain);
+      }
+   }
+
+   private final List<Record> records = new ArrayList<>();
+   private final boolean keepPayloads;
+   private volatile boolean connected = true;
+
+   public RecordingPublishSink() {
+      this(true);
+   }
+
+   /**
+    * @param keepPayloads - keep the payloads, or only the topic and flags for long runs
+    */
+   public RecordingPublishSink(boolean keepPayloads) {
+      this.keepPayloads = keepPayloads;
+   }
+
+   @Override
+   public boolean isConnected() {
+      return connected;
+   }
+
+   /**
+    * Simulate the connection going down or coming back, publishes fail while disconnected
+    * @param connected - the connection state
+    */
+   public void setConnected(boolean connected) {
+      this.connected = connected;
+   }
+
+   @Override
+   public void publish(String topic, KuraPayload payload, int qos, boolean retain) throws Exception {
+      if(!connected)
+         throw new IllegalStateException("Not connected");
+      Record record = new Record(topic, keepPayloads ? payload : null, qos, retain, System.nanoTime());
+      synchronized (records) {
+         records.add(record);
+      }
+   }
+
+   /**
+    * @return a copy of the publishes received so far
+    */
+   public List<Record> getRecords() {
+      synchronized (records) {
+         return new ArrayList<>(records);
+      }
+   }
+
+   /**
+    * @return the number of publishes received so far
+    */
+   public int size() {
+      synchronized (records) {
+         return records.size();
+      }
+   }
+
+   public void clear() {
+      synchronized (records) {
+         records.clear();
+      }
+   }
+}
@@ -0,0 +1,470 @@
+package org.jboss.rhiot.services;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the scanner configuration, parsed once from the ConfigurableComponent properties. The
+ * scanner swaps in a new snapshot on each update, so the event path reads every setting through one volatile read
+ * with no map lookups, unboxing or topic string building, and can compare snapshots to reconfigure only what
+ * changed.
+ */
+public final class ScannerConfig {
+   static final String HCI_DEV_PROP_NAME = "hciDev";
+   static final String HCIDUMP_DEBUG_PROP_NAME = "hcidumpDebugMode";
+   static final String SKIP_JNI_PROP_NAME = "skipJniInitialization";
+   static final String PUBLISH_TOPIC_PROP_NAME = "publish.semanticTopic";
+   static final String PUBLISH_QOS_PROP_NAME = "publish.qos";
+   static final String PUBLISH_RETAIN_PROP_NAME = "publish.retain";
+   static final String HIT_THRESHOLD_PROP_NAME = "game.hitThreshold";
+   static final String RESET_THRESHOLD_PROP_NAME = "game.resetThreshold";
+   static final String GAME_DURATION_PROP_NAME = "game.duration";
+   static final String SHOOTING_WINDOW_PROP_NAME = "game.shootingWindow";
+   static final String GAME_ENGINE_PROP_NAME = "game.engine";
+   static final String DEBUG_ADDRESS_PROP_NAME = "debug.address";
+   static final String FSM_REMOTE_MONITOR_PROP_NAME = "fsm.remoteMonitor";
+   static final String DISPATCH_LANES_PROP_NAME = "dispatch.lanes";
+   static final String MAILBOX_CAPACITY_PROP_NAME = "mailbox.capacity";
+   static final String RING_CAPACITY_PROP_NAME = "ring.capacity";
+   static final String RING_OVERFLOW_POLICY_PROP_NAME = "ring.overflowPolicy";
+   static final String FLYWEIGHT_DECODE_PROP_NAME = "decode.flyweight";
+   static final String TIMER_TICK_PROP_NAME = "timer.tickMillis";
+   static final String BATCH_INTERVAL_PROP_NAME = "publish.batch.intervalMillis";
+   static final String BATCH_MAX_SAMPLES_PROP_NAME = "publish.batch.maxSamples";
+   static final String DEADBAND_TEMP_PROP_NAME = "publish.deadband.temp";
+   static final String DEADBAND_LUX_PROP_NAME = "publish.deadband.lux";
+   static final String HEARTBEAT_PROP_NAME = "publish.heartbeatMillis";
+   static final String SPOOL_DIR_PROP_NAME = "publish.spool.dir";
+   static final String SPOOL_MAX_BYTES_PROP_NAME = "publish.spool.maxBytes";
+   static final String SPOOL_REPLAY_RATE_PROP_NAME = "publish.spool.replayRate";
+   static final String PUBLISH_QUEUE_CAPACITY_PROP_NAME = "publish.queue.capacity";
+   static final String SCOREBOARD_RATE_PROP_NAME = "publish.scoreboard.rateHz";
+   static final String PUBLISH_FORMAT_PROP_NAME = "publish.format";
+   static final String PUBLISH_COMPRESS_PROP_NAME = "publish.compress";
+   static final String RATE_TELEMETRY_PROP_NAME = "publish.rate.telemetry";
+   static final String RATE_GAME_EVENT_PROP_NAME = "publish.rate.gameEvent";
+   static final String RATE_GAME_INFO_PROP_NAME = "publish.rate.gameInfo";
+   static final String RATE_GAME_SCORE_PROP_NAME = "publish.rate.gameScore";
+   static final String RATE_TAG_PROP_NAME = "publish.rate.tag";
+   static final String RATE_BURST_SECS_PROP_NAME = "publish.rate.burstSecs";
+   static final String CAPTURE_FILE_PROP_NAME = "capture.file";
+   static final String CAPTURE_MAX_BYTES_PROP_NAME = "capture.maxBytes";
+   static final String TRACE_FILE_PROP_NAME = "trace.file";
+   static final String TRACE_MAX_BYTES_PROP_NAME = "trace.maxBytes";
+
+   /**
+    * A tag's publish topic and the snapshot it was built from
+    */
+   static final class TagTopic {
+      final ScannerConfig config;
+      final String topic;
+
+      TagTopic(ScannerConfig config, String topic) {
+         this.config = config;
+         this.topic = topic;
+      }
+   }
+
+   // The BLE scanner
+   private final String hciDev;
+   private final boolean hcidumpDebugMode;
+   private final boolean skipJniInitialization;
+   // Publishing
+   private final String topicRoot;
+   private final int qos;
+   private final boolean retain;
+   // The game
+   private final int luxHitThreshold;
+   private final int luxResetThreshold;
+   private final int gameDurationSecs;
+   private final int shootingWindowSecs;
+   private final RHIoTTagScanner.GameEngine gameEngine;
+   private final boolean remoteMonitor;
+   /** The packed addresses of the tags that are traced */
+   private final Set<Long> debugAddresses;
+   // The event pipeline, only applied on activation
+   private final int dispatchLanes;
+   private final int mailboxCapacity;
+   private final int ringCapacity;
+   private final AdvertRingBuffer.OverflowPolicy ringOverflowPolicy;
+   private final boolean flyweightDecode;
+   private final int timerTickMillis;
+   private final String spoolDir;
+   private final int spoolMaxBytes;
+   private final int spoolReplayRate;
+   private final int publishQueueCapacity;
+   private final int scoreboardRateHz;
+   // Telemetry reduction
+   private final int batchIntervalMillis;
+   private final int batchMaxSamples;
+   private final double tempDeadband;
+   private final int luxDeadband;
+   private final int heartbeatMillis;
+   private final boolean compactFormat;
+   private final boolean compress;
+   private final int telemetryRate;
+   private final int gameEventRate;
+   private final int gameInfoRate;
+   private final int gameScoreRate;
+   private final int tagRate;
+   private final double rateBurstSecs;
+   private final String captureFile;
+   private final int captureMaxBytes;
+   private final String traceFile;
+   private final int traceMaxBytes;
+
+   private ScannerConfig(Map<String, Object> properties) {
+      hciDev = get(properties, HCI_DEV_PROP_NAME, "hci0");
+      hcidumpDebugMode = get(properties, HCIDUMP_DEBUG_PROP_NAME, Boolean.FALSE);
+      skipJniInitialization = get(properties, SKIP_JNI_PROP_NAME, Boolean.FALSE);
+      topicRoot = get(properties, PUBLISH_TOPIC_PROP_NAME, "data");
+      qos = get(properties, PUBLISH_QOS_PROP_NAME, 0);
+      retain = get(properties, PUBLISH_RETAIN_PROP_NAME, Boolean.FALSE);
+      luxHitThreshold = get(properties, HIT_THRESHOLD_PROP_NAME, 20000);
+      luxResetThreshold = get(properties, RESET_THRESHOLD_PROP_NAME, 10000);
+      gameDurationSecs = get(properties, GAME_DURATION_PROP_NAME, 15);
+      shootingWindowSecs = get(properties, SHOOTING_WINDOW_PROP_NAME, 5);
+      gameEngine = RHIoTTagScanner.GameEngine.valueOf(get(properties, GAME_ENGINE_PROP_NAME, "squirrel").toUpperCase());
+      remoteMonitor = get(properties, FSM_REMOTE_MONITOR_PROP_NAME, Boolean.FALSE);
+      debugAddresses = parseAddresses(get(properties, DEBUG_ADDRESS_PROP_NAME, null));
+      dispatchLanes = get(properties, DISPATCH_LANES_PROP_NAME, 0);
+      mailboxCapacity = get(properties, MAILBOX_CAPACITY_PROP_NAME, 16);
+      ringCapacity = get(properties, RING_CAPACITY_PROP_NAME, 4096);
+      ringOverflowPolicy = AdvertRingBuffer.OverflowPolicy.valueOf(get(properties, RING_OVERFLOW_POLICY_PROP_NAME, "DROP_OLDEST"));
+      flyweightDecode = get(properties, FLYWEIGHT_DECODE_PROP_NAME, Boolean.FALSE);
+      timerTickMillis = get(properties, TIMER_TICK_PROP_NAME, 10);
+      spoolDir = get(properties, SPOOL_DIR_PROP_NAME, "/tmp/rhiot-spool");
+      spoolMaxBytes = get(properties, SPOOL_MAX_BYTES_PROP_NAME, 16 * 1024 * 1024);
+      spoolReplayRate = get(properties, SPOOL_REPLAY_RATE_PROP_NAME, 50);
+      publishQueueCapacity = get(properties, PUBLISH_QUEUE_CAPACITY_PROP_NAME, 4096);
+      scoreboardRateHz = get(properties, SCOREBOARD_RATE_PROP_NAME, 0);
+      batchIntervalMillis = get(properties, BATCH_INTERVAL_PROP_NAME, 0);
+      batchMaxSamples = get(properties, BATCH_MAX_SAMPLES_PROP_NAME, 10);
+      Number temp = get(properties, DEADBAND_TEMP_PROP_NAME, 0.25);
+      tempDeadband = temp.doubleValue();
+      luxDeadband = get(properties, DEADBAND_LUX_PROP_NAME, 500);
+      heartbeatMillis = get(properties, HEARTBEAT_PROP_NAME, 5000);
+      compactFormat = "compact".equalsIgnoreCase(get(properties, PUBLISH_FORMAT_PROP_NAME, "metrics"));
+      compress = get(properties, PUBLISH_COMPRESS_PROP_NAME, Boolean.FALSE);
+      telemetryRate = get(properties, RATE_TELEMETRY_PROP_NAME, 0);
+      gameEventRate = get(properties, RATE_GAME_EVENT_PROP_NAME, 0);
+      gameInfoRate = get(properties, RATE_GAME_INFO_PROP_NAME, 0);
+      gameScoreRate = get(properties, RATE_GAME_SCORE_PROP_NAME, 0);
+      tagRate = get(properties, RATE_TAG_PROP_NAME, 0);
+      Number burst = get(properties, RATE_BURST_SECS_PROP_NAME, 2.0);
+      rateBurstSecs = burst.doubleValue();
+      captureFile = get(properties, CAPTURE_FILE_PROP_NAME, "");
+      captureMaxBytes = get(properties, CAPTURE_MAX_BYTES_PROP_NAME, 256 * 1024 * 1024);
+      traceFile = get(properties, TRACE_FILE_PROP_NAME, "/tmp/tag.trace");
+      traceMaxBytes = get(properties, TRACE_MAX_BYTES_PROP_NAME, 4 * 1024 * 1024);
+   }
+
+   /**
+    * Parse a comma separated list of tag addresses, ignoring any that are not valid
+    * @param addresses - the address list, may be null
+    * @return the packed addresses
+    */
+   private static Set<Long> parseAddresses(String addresses) {
+      if(addresses == null || addresses.trim().isEmpty())
+         return Collections.emptySet();
+      Set<Long> packed = new HashSet<>();
+      for (String address : addresses.split(",")) {
+         try {
+            packed.add(Utils.parseAddress(address.trim()));
+         } catch (IllegalArgumentException e) {
+            // Not a tag address
+         }
+      }
+      return Collections.unmodifiableSet(packed);
+   }
+
+   /**
+    * Parse the component properties into a snapshot. Missing properties take their metatype defaults.
+    * @param properties - the ConfigurableComponent properties
+    * @return the configuration snapshot
+    */
+   public static ScannerConfig from(Map<String, Object> properties) {
+      return new ScannerConfig(properties);
+   }
+
+   @SuppressWarnings("unchecked")
+   private static <T> T get(Map<String, Object> properties, String name, T defaultValue) {
+      Object value = properties != null ? properties.get(name) : null;
+      return value != null ? (T) value : defaultValue;
+   }
+
+   /**
+    * Get the tag's publish topic, building it only the first time it is needed with this snapshot
+    * @param entry - the tag's registry entry
+    * @return the topic root/address topic
+    */
+   public String topicFor(TagEntry entry) {
+      TagTopic topic = entry.getTopic();
+      if(topic == null || topic.config != this) {
+         topic = new TagTopic(this, topicRoot + "/" + entry.getAddress());
+         entry.setTopic(topic);
+      }
+      return topic.topic;
+   }
+
+   /**
+    * @return true if the BLE scanner device settings differ, which needs the scanner to be reinitialized
+    */
+   public boolean scannerDiffers(ScannerConfig other) {
+      return !hciDev.equals(other.hciDev) || skipJniInitialization != other.skipJniInitialization;
+   }
+
+   /**
+    * @return true if the game state machine definition differs, which needs new machines
+    */
+   public boolean gameDefinitionDiffers(ScannerConfig other) {
+      return gameEngine != other.gameEngine || remoteMonitor != other.remoteMonitor;
+   }
+
+   /**
+    * @return true if the game or shooting window durations differ
+    */
+   public boolean durationsDiffer(ScannerConfig other) {
+      return gameDurationSecs != other.gameDurationSecs || shootingWindowSecs != other.shootingWindowSecs;
+   }
+
+   /**
+    * @return true if the telemetry batching, deadband or format settings differ
+    */
+   public boolean telemetryDiffers(ScannerConfig other) {
+      return batchIntervalMillis != other.batchIntervalMillis || batchMaxSamples != other.batchMaxSamples
+         || tempDeadband != other.tempDeadband || luxDeadband != other.luxDeadband
+         || heartbeatMillis != other.heartbeatMillis || compactFormat != other.compactFormat || compress != other.compress
+         || !getClassRates().equals(other.getClassRates()) || tagRate != other.tagRate || rateBurstSecs != other.rateBurstSecs;
+   }
+
+   /**
+    * @return true if the event pipeline settings that are only applied on activation differ
+    */
+   public boolean pipelineDiffers(ScannerConfig other) {
+      return dispatchLanes != other.dispatchLanes || mailboxCapacity != other.mailboxCapacity
+         || ringCapacity != other.ringCapacity || ringOverflowPolicy != other.ringOverflowPolicy
+         || flyweightDecode != other.flyweightDecode || timerTickMillis != other.timerTickMillis
+         || !spoolDir.equals(other.spoolDir) || spoolMaxBytes != other.spoolMaxBytes || spoolReplayRate != other.spoolReplayRate
+         || publishQueueCapacity != other.publishQueueCapacity || scoreboardRateHz != other.scoreboardRateHz;
+   }
+
+   /**
+    * @return true if the advert capture settings differ
+    */
+   public boolean captureDiffers(ScannerConfig other) {
+      return !captureFile.equals(other.captureFile) || captureMaxBytes != other.captureMaxBytes;
+   }
+
+   /**
+    * @return true if the traced tag addresses differ
+    */
+   public boolean debugAddressDiffers(ScannerConfig other) {
+      return !debugAddresses.equals(other.debugAddresses);
+   }
+
+   /**
+    * @return true if the trace log settings differ, or tracing was turned on or off
+    */
+   public boolean traceDiffers(ScannerConfig other) {
+      return !traceFile.equals(other.traceFile) || traceMaxBytes != other.traceMaxBytes || isTracing() != other.isTracing();
+   }
+
+   /**
+    * @param address - the tag address
+    * @return true if the tag's game processing should be traced
+    */
+   public boolean isDebugAddress(TagAddress address) {
+      return debugAddresses.contains(address.getValue());
+   }
+
+   /**
+    * @return true if any tag is traced
+    */
+   public boolean isTracing() {
+      return !debugAddresses.isEmpty();
+   }
+
+   public String getHciDev() {
+      return hciDev;
+   }
+
+   public boolean isHcidumpDebugMode() {
+      return hcidumpDebugMode;
+   }
+
+   public boolean isSkipJniInitialization() {
+      return skipJniInitialization;
+   }
+
+   public String getTopicRoot() {
+      return topicRoot;
+   }
+
+   public int getQos() {
+      return qos;
+   }
+
+   public boolean isRetain() {
+      return retain;
+   }
+
+   public int getLuxHitThreshold() {
+      return luxHitThreshold;
+   }
+
+   public int getLuxResetThreshold() {
+      return luxResetThreshold;
+   }
+
+   public int getGameDurationSecs() {
+      return gameDurationSecs;
+   }
+
+   public int getShootingWindowSecs() {
+      return shootingWindowSecs;
+   }
+
+   public RHIoTTagScanner.GameEngine getGameEngine() {
+      return gameEngine;
+   }
+
+   public boolean isRemoteMonitor() {
+      return remoteMonitor;
+   }
+
+   public Set<Long> getDebugAddresses() {
+      return debugAddresses;
+   }
+
+   public int getDispatchLanes() {
+      return dispatchLanes;
+   }
+
+   public int getMailboxCapacity() {
+      return mailboxCapacity;
+   }
+
+   public int getRingCapacity() {
+      return ringCapacity;
+   }
+
+   public AdvertRingBuffer.OverflowPolicy getRingOverflowPolicy() {
+      return ringOverflowPolicy;
+   }
+
+   public boolean isFlyweightDecode() {
+      return flyweightDecode;
+   }
+
+   public int getTimerTickMillis() {
+      return timerTickMillis;
+   }
+
+   public String getSpoolDir() {
+      return spoolDir;
+   }
+
+   public int getSpoolMaxBytes() {
+      return spoolMaxBytes;
+   }
+
+   public int getSpoolReplayRate() {
+      return spoolReplayRate;
+   }
+
+   public int getPublishQueueCapacity() {
+      return publishQueueCapacity;
+   }
+
+   public int getScoreboardRateHz() {
+      return scoreboardRateHz;
+   }
+
+   public int getBatchIntervalMillis() {
+      return batchIntervalMillis;
+   }
+
+   public int getBatchMaxSamples() {
+      return batchMaxSamples;
+   }
+
+   public double getTempDeadband() {
+      return tempDeadband;
+   }
+
+   public int getLuxDeadband() {
+      return luxDeadband;
+   }
+
+   public int getHeartbeatMillis() {
+      return heartbeatMillis;
+   }
+
+   public boolean isCompactFormat() {
+      return compactFormat;
+   }
+
+   public boolean isCompress() {
+      return compress;
+   }
+
+   /**
+    * @return the publishes per second allowed for each publish class, 0 for unlimited
+    */
+   public Map<PublishSpool.PublishClass, Integer> getClassRates() {
+      Map<PublishSpool.PublishClass, Integer> rates = new EnumMap<>(PublishSpool.PublishClass.class);
+      rates.put(PublishSpool.PublishClass.TELEMETRY, telemetryRate);
+      rates.put(PublishSpool.PublishClass.GAME_EVENT, gameEventRate);
+      rates.put(PublishSpool.PublishClass.GAME_INFO, gameInfoRate);
+      rates.put(PublishSpool.PublishClass.GAME_SCORE, gameScoreRate);
+      return rates;
+   }
+
+   public int getTagRate() {
+      return tagRate;
+   }
+
+   public double getRateBurstSecs() {
+      return rateBurstSecs;
+   }
+
+   /**
+    * @return the file the raw adverts are recorded to, empty if they are not recorded
+    */
+   public String getCaptureFile() {
+      return captureFile;
+   }
+
+   public int getCaptureMaxBytes() {
+      return captureMaxBytes;
+   }
+
+   /**
+    * @return the ring file the traced tags are written to
+    */
+   public String getTraceFile() {
+      return traceFile;
+   }
+
+   public int getTraceMaxBytes() {
+      return traceMaxBytes;
+   }
+
+   /**
+    * @return true if any publish rate is limited
+    */
+   public boolean isRateLimited() {
+      return telemetryRate > 0 || gameEventRate > 0 || gameInfoRate > 0 || gameScoreRate > 0 || tagRate > 0;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("ScannerConfig{hciDev=%s, topicRoot=%s, qos=%d, retain=%s, luxHitThreshold=%d, luxResetThreshold=%d, " +
+            "gameDurationSecs=%d, shootingWindowSecs=%d, gameEngine=%s}", hciDev, topicRoot, qos, retain, luxHitThreshold,
+         luxResetThreshold, gameDurationSecs, shootingWindowSecs, gameEngine);
+   }
+}
@@ -0,0 +1,51 @@
+package org.jboss.rhiot.services;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A simple registry of named counters and gauges describing the scanner's event and publish pipeline. The
+ * values are exposed through the {@link org.jboss.rhiot.services.api.IRHIoTTagScanner#METRICS_PATH} REST endpoint.
+ */
+public class ScannerMetrics {
+   /** Monotonic counters updated from the event processing threads */
+   private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+   /** Point in time values sampled when a snapshot is taken */
+   private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+   /**
+    * Get or create the named counter
+    * @param name - metric name
+    * @return the counter, callers should hold on to it rather than look it up per event
+    */
+   public LongAdder counter(String name) {
+      return counters.computeIfAbsent(name, key -> new LongAdder());
+   }
+
+   /**
+    * Register a gauge, replacing any existing gauge of the same name
+    * @param name - metric name
+    * @param supplier - supplies the current value
+    */
+   public void gauge(String name, LongSupplier supplier) {
+      gauges.put(name, supplier);
+   }
+
+   /**
+    * Take a snapshot of all counters and gauges
+    * @return metric values sorted by name
+    */
+   public Map<String, Long> snapshot() {
+      TreeMap<String, Long> values = new TreeMap<>();
+      for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+         values.put(entry.getKey(), entry.getValue().sum());
+      }
+      for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+         values.put(entry.getKey(), entry.getValue().getAsLong());
+      }
+      return values;
+   }
+}
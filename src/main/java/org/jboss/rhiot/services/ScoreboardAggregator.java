@@ -0,0 +1,167 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IRHIoTTagScanner;
+import org.jboss.rhiot.services.fsm.GameClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the live state of every active game and publishes it as one combined scoreboard frame on the gameInfo
+ * topic at a fixed rate, rather than a gameInfo publish per tag event. A frame is only published when a game
+ * changed since the last frame.
+ *
+ * A frame carries {@link IRHIoTTagScanner#TAG_GAME_COUNT} games ordered by tag address, and each game's set 3
+ * values use the usual metric names with a ".n" game index suffix, e.g. rhiotTag.gameScore.0, rhiotTag.gameScore.1
+ */
+public class ScoreboardAggregator {
+   private static final Logger log = LoggerFactory.getLogger(ScoreboardAggregator.class);
+   private static final String TOPIC = "gameInfo";
+
+   /**
+    * The state of one active game as of its last event
+    */
+   private static final class Game {
+      private final String name;
+      private final String address;
+      private final int score;
+      private final int hits;
+      private final int gameTimeLeft;
+      private final int shotsLeft;
+      private final int shootingTimeLeft;
+
+      Game(String name, String address, int score, int hits, int gameTimeLeft, int shotsLeft, int shootingTimeLeft) {
+         this.name = name;
+         this.address = address;
+         this.score = score;
+         this.hits = hits;
+         this.gameTimeLeft = gameTimeLeft;
+         this.shotsLeft = shotsLeft;
+         this.shootingTimeLeft = shootingTimeLeft;
+      }
+   }
+
+   private final long periodMillis;
+   private final GameClock clock;
+   private final TelemetryBatcher.PayloadPublisher publisher;
+   /** The active games keyed by tag address */
+   private final Map<String, Game> games = new ConcurrentHashMap<>();
+   /** Has a game changed since the last frame */
+   private final AtomicBoolean changed = new AtomicBoolean();
+   private ScheduledExecutorService framer;
+   private final LongAdder updates;
+   private final LongAdder frames;
+
+   /**
+    * Create an aggregator
+    * @param frameRateHz - the maximum number of frames published per second
+    * @param clock - time source for the frame timestamps
+    * @param publisher - publishes the frames
+    * @param metrics - registry for the update and frame counters
+    */
+   public ScoreboardAggregator(int frameRateHz, GameClock clock, TelemetryBatcher.PayloadPublisher publisher, ScannerMetrics metrics) {
+      this.periodMillis = Math.max(1, 1000 / Math.max(1, frameRateHz));
+      this.clock = clock;
+      this.publisher = publisher;
+      updates = metrics.counter("scoreboard.updates");
+      frames = metrics.counter("scoreboard.frames");
+      metrics.gauge("scoreboard.activeGames", games::size);
+   }
+
+   /**
+    * Start publishing frames
+    */
+   public void start() {
+      framer = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "RHIoTTagScoreboard");
+         t.setDaemon(true);
+         return t;
+      });
+      framer.scheduleAtFixedRate(this::publishFrame, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+      log.info(String.format("Started ScoreboardAggregator(periodMillis=%d)", periodMillis));
+   }
+
+   /**
+    * Stop publishing frames, publishing a last frame if a game changed
+    */
+   public void stop() {
+      if(framer != null)
+         framer.shutdownNow();
+      framer = null;
+      publishFrame();
+   }
+
+   /**
+    * Record the state of an active game
+    * @param name - name associated with the tag
+    * @param address - address of the game RHIoTTag
+    * @param score - game score
+    * @param hits - number of target hits in the game
+    * @param gameTimeLeft - game time left in ms
+    * @param shotsLeft - shots left in the clip
+    * @param shootingTimeLeft - shooting window time left in ms
+    */
+   public void update(String name, String address, int score, int hits, int gameTimeLeft, int shotsLeft, int shootingTimeLeft) {
+      games.put(address, new Game(name, address, score, hits, gameTimeLeft, shotsLeft, shootingTimeLeft));
+      changed.set(true);
+      updates.increment();
+   }
+
+   /**
+    * Drop a game that has ended from the scoreboard
+    * @param address - address of the game RHIoTTag
+    */
+   public void remove(String address) {
+      if(games.remove(address) != null)
+         changed.set(true);
+   }
+
+   /**
+    * Build the frame of the active games, ordered by tag address
+    * @return the frame payload
+    */
+   KuraPayload frame() {
+      List<Game> active = new ArrayList<>(games.values());
+      active.sort((g1, g2) -> g1.address.compareTo(g2.address));
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(clock.millis()));
+      payload.addMetric(IRHIoTTagScanner.TAG_GAME_COUNT, active.size());
+      for (int n = 0; n < active.size(); n++) {
+         Game game = active.get(n);
+         String suffix = "." + n;
+         payload.addMetric(IRHIoTTagScanner.TAG_GAME_NAME + suffix, String.valueOf(game.name));
+         payload.addMetric(IRHIoTTagScanner.TAG_GAME_ADDRESS + suffix, game.address);
+         payload.addMetric(IRHIoTTagScanner.TAG_GAME_SCORE + suffix, game.score);
+         payload.addMetric(IRHIoTTagScanner.TAG_GAME_HITS + suffix, game.hits);
+         payload.addMetric(IRHIoTTagScanner.TAG_GAME_TIME_LEFT + suffix, game.gameTimeLeft);
+         payload.addMetric(IRHIoTTagScanner.TAG_SHOTS_LEFT + suffix, game.shotsLeft);
+         payload.addMetric(IRHIoTTagScanner.TAG_SHOOTING_TIME_LEFT + suffix, game.shootingTimeLeft);
+      }
+      return payload;
+   }
+
+   /**
+    * Publish a frame if a game changed since the last one
+    */
+   void publishFrame() {
+      try {
+         if(!changed.getAndSet(false))
+            return;
+         publisher.publish(TOPIC, frame(), 0, true);
+         frames.increment();
+      } catch (Exception e) {
+         log.error("Failed to publish scoreboard frame", e);
+      }
+   }
+}
@@ -0,0 +1,61 @@
+package org.jboss.rhiot.services;
+
+/**
+ * An immutable 48 bit BLE address packed into a long. The canonical colon separated string form is computed once
+ * and cached, so the address can be used as a map key and logged without formatting per use.
+ */
+public final class TagAddress {
+   /** The address bytes packed into the low 48 bits, first byte most significant */
+   private final long value;
+   /** The canonical upper case, colon separated form */
+   private final String string;
+
+   private TagAddress(long value) {
+      this.value = value;
+      this.string = Utils.formatAddress(value);
+   }
+
+   /**
+    * @param value - the packed address
+    * @return the address for the packed value
+    */
+   public static TagAddress of(long value) {
+      return new TagAddress(value & 0xFFFFFFFFFFFFL);
+   }
+
+   /**
+    * @param address - BLE address bytes in display order
+    * @return the address for the bytes
+    */
+   public static TagAddress of(short[] address) {
+      return new TagAddress(Utils.packAddress(address));
+   }
+
+   /**
+    * @param address - BLE address string like A0:E6:F8:AD:2E:82, case insensitive
+    * @return the parsed address
+    * @throws IllegalArgumentException if the string is not a valid address
+    */
+   public static TagAddress parse(String address) {
+      return new TagAddress(Utils.parseAddress(address));
+   }
+
+   public long getValue() {
+      return value;
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      return o instanceof TagAddress && ((TagAddress) o).value == value;
+   }
+
+   @Override
+   public int hashCode() {
+      return Long.hashCode(value);
+   }
+
+   @Override
+   public String toString() {
+      return string;
+   }
+}
@@ -0,0 +1,190 @@
+package org.jboss.rhiot.services;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Injects a stream of tag readings into the scanner for the bulk REST endpoint. The readings are a JSON array, or
+ * newline delimited JSON objects, of the form {"address":"A0:E6:F8:AD:2E:82","keys":0,"lux":300} with an optional
+ * "tempC" value and "time" capture timestamp in ms. A capture time is used for the game rules when it is within the
+ * scanner's trusted capture window, otherwise the reading is handled as captured now.
+ *
+ * The readings are parsed one at a time with the streaming JsonReader and handed to the tags' dispatch lanes
+ * without waiting on each one, so each tag's readings are handled in order while different tags are handled in
+ * parallel. Only the number of readings still queued is bounded. Once the stream is read the summary waits for the
+ * last reading of each tag and reports the tag's final game state.
+ */
+public class TagDataInjector {
+   /** The most readings that may be queued on the lanes before parsing waits for them */
+   static final int MAX_IN_FLIGHT = 1024;
+   /** How long the summary waits for the queued readings to be handled */
+   static final long DRAIN_TIMEOUT_MILLIS = 30000;
+
+   /**
+    * The readings injected for one tag
+    */
+   private static final class TagSummary {
+      private final String name;
+      private int readings;
+      private final AtomicInteger failed = new AtomicInteger();
+      private CompletableFuture<GameStateMachine.GameState> last;
+
+      TagSummary(String name) {
+         this.name = name;
+      }
+   }
+
+   private final RHIoTTagScanner scanner;
+
+   public TagDataInjector(RHIoTTagScanner scanner) {
+      this.scanner = scanner;
+   }
+
+   /**
+    * Inject the readings of a request body
+    * @param body - the JSON array or newline delimited JSON readings
+    * @return the summary {"readings":n,"skipped":n,"failed":n,"pending":n,"tags":[{"address","name","readings","failed","state"}]},
+    * where pending is the number of readings still queued when the wait for them timed out
+    * @throws IOException on failure to read the body
+    * @throws IllegalArgumentException if a reading is malformed. The readings before it have been injected.
+    */
+   public JsonObject inject(Reader body) throws IOException {
+      Map<String, TagSummary> tags = new LinkedHashMap<>();
+      Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+      int readings = 0;
+      int skipped = 0;
+      int pending = 0;
+      try(JsonReader reader = new JsonReader(body)) {
+         // Lenient parsing accepts a stream of top level objects
+         reader.setLenient(true);
+         boolean array = reader.peek() == JsonToken.BEGIN_ARRAY;
+         if(array)
+            reader.beginArray();
+         while (array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT) {
+            TagReading reading = readReading(reader, readings);
+            readings ++;
+            String address = Utils.formatAddress(reading.getAddress());
+            TagSummary summary = tags.get(address);
+            if(summary == null) {
+               String name = scanner.getTagInfo(address);
+               if(name == null) {
+                  skipped ++;
+                  continue;
+               }
+               summary = new TagSummary(name);
+               tags.put(address, summary);
+            }
+            reading.setName(summary.name + "Sim");
+            inFlight.acquireUninterruptibly();
+            TagSummary tag = summary;
+            summary.readings ++;
+            try {
+               summary.last = scanner.handleTagAsync(reading);
+            } catch (RuntimeException e) {
+               // The scanner is not active or its lanes are shutting down
+               inFlight.release();
+               summary.failed.incrementAndGet();
+               summary.last = new CompletableFuture<>();
+               summary.last.completeExceptionally(e);
+               continue;
+            }
+            summary.last.whenComplete((state, e) -> {
+               inFlight.release();
+               if(e != null)
+                  tag.failed.incrementAndGet();
+            });
+         }
+         if(array)
+            reader.endArray();
+      } finally {
+         // Let the readings already handed off finish before the summary, unless the lanes stopped handling them
+         try {
+            if(!inFlight.tryAcquire(MAX_IN_FLIGHT, DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+               pending = MAX_IN_FLIGHT - inFlight.availablePermits();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending = MAX_IN_FLIGHT - inFlight.availablePermits();
+         }
+      }
+
+      JsonObject result = new JsonObject();
+      JsonArray summaries = new JsonArray();
+      int failed = 0;
+      for (Map.Entry<String, TagSummary> entry : tags.entrySet()) {
+         TagSummary tag = entry.getValue();
+         JsonObject json = new JsonObject();
+         json.addProperty("address", entry.getKey());
+         json.addProperty("name", tag.name);
+         json.addProperty("readings", tag.readings);
+         json.addProperty("failed", tag.failed.get());
+         boolean handled = tag.last.isDone() && !tag.last.isCompletedExceptionally();
+         GameStateMachine.GameState state = handled ? tag.last.join() : null;
+         json.addProperty("state", state != null ? state.name() : null);
+         summaries.add(json);
+         failed += tag.failed.get();
+      }
+      result.addProperty("readings", readings);
+      result.addProperty("skipped", skipped);
+      result.addProperty("failed", failed);
+      result.addProperty("pending", pending);
+      result.add("tags", summaries);
+      return result;
+   }
+
+   /**
+    * Read one reading object
+    * @param reader - the reader positioned at the object
+    * @param index - the index of the reading in the body
+    * @return the reading, with the capture time or the current time
+    */
+   private static TagReading readReading(JsonReader reader, int index) throws IOException {
+      String address = null;
+      Integer keys = null;
+      Integer lux = null;
+      double tempC = 0;
+      long time = 0;
+      reader.beginObject();
+      while (reader.hasNext()) {
+         String name = reader.nextName();
+         switch (name) {
+            case "address":
+               address = reader.nextString();
+               break;
+            case "keys":
+               keys = reader.nextInt();
+               break;
+            case "lux":
+               lux = reader.nextInt();
+               break;
+            case "tempC":
+               tempC = reader.nextDouble();
+               break;
+            case "time":
+               time = reader.nextLong();
+               break;
+            default:
+               reader.skipValue();
+               break;
+         }
+      }
+      reader.endObject();
+      if(address == null || keys == null || lux == null)
+         throw new IllegalArgumentException(String.format("Reading %d needs an address, keys and lux", index));
+      TagReading reading = new TagReading();
+      reading.set(Utils.parseAddress(address), keys.byteValue(), lux, tempC);
+      reading.setTime(time > 0 ? time : System.currentTimeMillis());
+      return reading;
+   }
+}
@@ -0,0 +1,203 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.services.fsm.IGameStateMachine;
+
+/**
+ * Everything the gateway tracks for one RHIoTTag, held in a single {@link TagRegistry} entry so that an advert only
+ * needs one lookup by its packed address. The game state machine, mailbox, timeouts and last reading are only
+ * touched from the tag's dispatch lane once created.
+ */
+public class TagEntry {
+   private final TagAddress address;
+   /** The user assigned name, null if the tag is not associated with the gateway */
+   private volatile String name;
+   /** The game state machine for the tag */
+   private volatile IGameStateMachine gameSM;
+   /** The pending advert mailbox for the tag */
+   private volatile TagMailbox mailbox;
+   /** Is the tag's game processing written to the trace log */
+   private volatile boolean debug;
+   /** The last advert handled for the tag, used to publish the tag data with a timeout event */
+   private final TagReading lastReading = new TagReading();
+   /** The pending game timeout */
+   private HashedTimingWheel.Timeout gameTimeout;
+   /** The end of game the pending game timeout was scheduled for */
+   private long gameDeadline;
+   /** The pending shooting window timeout */
+   private HashedTimingWheel.Timeout windowTimeout;
+   /** The end of the shooting window the pending window timeout was scheduled for */
+   private long windowDeadline;
+   /** Has the current shooting window ended while the game was not in SHOOTING */
+   private boolean windowExpired;
+   /** The publish topic built from the current configuration snapshot */
+   private volatile ScannerConfig.TagTopic topic;
+   /** The pending batched telemetry samples */
+   private volatile TelemetryBatcher.Buffer telemetry;
+   /** The last published telemetry values */
+   private DeadbandFilter.Snapshot published;
+   /** The telemetry rate limit and sampling state */
+   private PublishRateLimiter.TagState rateState;
+   /** The number of adverts with a capture time handled */
+   private volatile long queueDelayCount;
+   /** The total capture to processing delay in ms */
+   private volatile long queueDelayTotal;
+   /** The largest capture to processing delay in ms */
+   private volatile long queueDelayMax;
+
+   public TagEntry(TagAddress address) {
+      this.address = address;
+   }
+
+   public TagAddress getAddress() {
+      return address;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public void setName(String name) {
+      this.name = name;
+   }
+
+   public IGameStateMachine getGameSM() {
+      return gameSM;
+   }
+
+   public void setGameSM(IGameStateMachine gameSM) {
+      this.gameSM = gameSM;
+   }
+
+   public TagMailbox getMailbox() {
+      return mailbox;
+   }
+
+   public void setMailbox(TagMailbox mailbox) {
+      this.mailbox = mailbox;
+   }
+
+   public boolean isDebug() {
+      return debug;
+   }
+
+   public void setDebug(boolean debug) {
+      this.debug = debug;
+   }
+
+   ScannerConfig.TagTopic getTopic() {
+      return topic;
+   }
+
+   void setTopic(ScannerConfig.TagTopic topic) {
+      this.topic = topic;
+   }
+
+   TelemetryBatcher.Buffer getTelemetry() {
+      return telemetry;
+   }
+
+   void setTelemetry(TelemetryBatcher.Buffer telemetry) {
+      this.telemetry = telemetry;
+   }
+
+   DeadbandFilter.Snapshot getPublished() {
+      return published;
+   }
+
+   void setPublished(DeadbandFilter.Snapshot published) {
+      this.published = published;
+   }
+
+   PublishRateLimiter.TagState getRateState() {
+      return rateState;
+   }
+
+   void setRateState(PublishRateLimiter.TagState rateState) {
+      this.rateState = rateState;
+   }
+
+   public TagReading getLastReading() {
+      return lastReading;
+   }
+
+   public long getGameDeadline() {
+      return gameDeadline;
+   }
+
+   /**
+    * Replace the pending game timeout, cancelling the previous one
+    * @param timeout - the new timeout, null for none
+    * @param deadline - the end of game the timeout is for
+    */
+   public void setGameTimeout(HashedTimingWheel.Timeout timeout, long deadline) {
+      if(gameTimeout != null)
+         gameTimeout.cancel();
+      gameTimeout = timeout;
+      gameDeadline = deadline;
+   }
+
+   public long getWindowDeadline() {
+      return windowDeadline;
+   }
+
+   /**
+    * Replace the pending shooting window timeout, cancelling the previous one
+    * @param timeout - the new timeout, null for none
+    * @param deadline - the end of the shooting window the timeout is for
+    */
+   public void setWindowTimeout(HashedTimingWheel.Timeout timeout, long deadline) {
+      if(windowTimeout != null)
+         windowTimeout.cancel();
+      windowTimeout = timeout;
+      windowDeadline = deadline;
+      windowExpired = false;
+   }
+
+   public boolean isWindowExpired() {
+      return windowExpired;
+   }
+
+   public void setWindowExpired(boolean windowExpired) {
+      this.windowExpired = windowExpired;
+   }
+
+   /**
+    * Cancel the pending game and shooting window timeouts
+    */
+   public void cancelTimeouts() {
+      setGameTimeout(null, 0);
+      setWindowTimeout(null, 0);
+   }
+
+   /**
+    * Record the delay between the adapter capturing an advert and its game processing. Only called from the tag's
+    * dispatch lane.
+    * @param delay - the delay in ms
+    */
+   public void recordQueueDelay(long delay) {
+      queueDelayCount ++;
+      queueDelayTotal += delay;
+      if(delay > queueDelayMax)
+         queueDelayMax = delay;
+   }
+
+   /**
+    * @return the average capture to processing delay in ms
+    */
+   public long getQueueDelayAverage() {
+      long count = queueDelayCount;
+      return count > 0 ? queueDelayTotal / count : 0;
+   }
+
+   /**
+    * @return the largest capture to processing delay in ms
+    */
+   public long getQueueDelayMax() {
+      return queueDelayMax;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("TagEntry{address=%s, name=%s}", address, name);
+   }
+}
@@ -0,0 +1,116 @@
+package org.jboss.rhiot.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Dispatches tag events onto a fixed set of single threaded lanes. Each tag is hashed by its BLE address onto one
+ * lane so that the events for a given tag are processed in order, while different tags are processed in parallel.
+ */
+public class TagEventDispatcher {
+   private static final Logger log = LoggerFactory.getLogger(TagEventDispatcher.class);
+
+   /** The single threaded executors making up the lanes */
+   private final ThreadPoolExecutor[] lanes;
+
+   /**
+    * Create a dispatcher
+    * @param laneCount - the number of lanes, a value <= 0 uses the number of available processors
+    */
+   public TagEventDispatcher(int laneCount) {
+      if(laneCount <= 0)
+         laneCount = Runtime.getRuntime().availableProcessors();
+      lanes = new ThreadPoolExecutor[laneCount];
+      for (int n = 0; n < laneCount; n++) {
+         lanes[n] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new LaneThreadFactory(n));
+      }
+      log.info(String.format("Created TagEventDispatcher with %d lanes", laneCount));
+   }
+
+   public int getLaneCount() {
+      return lanes.length;
+   }
+
+   /**
+    * @return the number of tasks waiting across all lanes
+    */
+   public int getQueueDepth() {
+      int depth = 0;
+      for (ThreadPoolExecutor lane : lanes) {
+         depth += lane.getQueue().size();
+      }
+      return depth;
+   }
+
+   /**
+    * Map a tag address onto its lane index
+    * @param address - the packed BLE address of the RHIoTTag
+    * @return the lane index in [0, getLaneCount())
+    */
+   public int laneIndex(long address) {
+      // Spread the bits since addresses of the same vendor share a prefix
+      int h = TagRegistry.hash(address);
+      return (h & 0x7fffffff) % lanes.length;
+   }
+
+   /**
+    * Get the executor for the tag's lane
+    * @param address - the packed BLE address of the RHIoTTag
+    * @return the single threaded executor the tag's events run on
+    */
+   public Executor laneFor(long address) {
+      return lanes[laneIndex(address)];
+   }
+
+   /**
+    * Run the task on the tag's lane
+    * @param address - the packed BLE address of the RHIoTTag
+    * @param task - the work to run
+    * @return the future for the task result
+    */
+   public <T> CompletableFuture<T> submit(long address, Supplier<T> task) {
+      return CompletableFuture.supplyAsync(task, laneFor(address));
+   }
+
+   /**
+    * Stop accepting new events and wait briefly for the queued events to drain
+    */
+   public void shutdown() {
+      for (ExecutorService lane : lanes) {
+         lane.shutdown();
+      }
+      try {
+         for (ExecutorService lane : lanes) {
+            lane.awaitTermination(1, TimeUnit.SECONDS);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private static class LaneThreadFactory implements ThreadFactory {
+      private final int lane;
+      private final AtomicInteger count = new AtomicInteger();
+
+      LaneThreadFactory(int lane) {
+         this.lane = lane;
+      }
+
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, String.format("RHIoTTagLane-%d-%d", lane, count.incrementAndGet()));
+         t.setDaemon(true);
+         return t;
+      }
+   }
+}
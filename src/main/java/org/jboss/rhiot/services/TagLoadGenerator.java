@@ -0,0 +1,529 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.ble.bluez.AdStructure;
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+import org.jboss.rhiot.services.api.IPublishSink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates thousands of virtual RHIoTTags with realistic players and drives a scanner with them to see how the
+ * gateway scales with the number of tags in range. Each player idles, starts a game with both buttons, then shoots
+ * at the target with laser hits showing up as a lux spike that decays back to the ambient light, reloads and
+ * replaces the target with the buttons, and goes idle again once the game is over.
+ *
+ * The adverts are fed through the advertEvent callback as the HCIDump thread would, or through handleTagAsync as
+ * the REST injection does, without the HCIDump JNI library. The scale report covers the sustained advert rate, the
+ * advert to publish latency, the pipeline queue depths, and the heap retained per tracked tag.
+ *
+ * java -cp rhiot-services.jar:... org.jboss.rhiot.services.TagLoadGenerator [key=value ...]
+ *
+ * The load.* keys set the {@link Options}, e.g. load.tags=2000 load.advertMillis=100 load.durationSecs=30
+ * load.feed=async. The other key=value arguments are scanner configuration properties as for the
+ * {@link AdvertReplayer}, including sink.latencyMicros.
+ */
+public class TagLoadGenerator {
+   /** How often the queue depths are sampled */
+   private static final long SAMPLE_PERIOD_MILLIS = 50;
+   /** The advert to publish latencies above this many ms share the last histogram bucket */
+   private static final int MAX_LATENCY_MILLIS = 60000;
+   /** The ambient light range a tag sees when it is not hit */
+   private static final int AMBIENT_LUX = 400;
+   /** The queue depth metrics sampled during a run */
+   private static final String[] QUEUES = AdvertReplayer.PIPELINE_QUEUES;
+
+   /** How the adverts are fed to the scanner */
+   public enum Feed {
+      /** Through the advertEvent callback, as the HCIDump thread does */
+      ADVERT,
+      /** Through handleTagAsync, as the REST injection does */
+      ASYNC
+   }
+
+   /**
+    * The load settings
+    */
+   public static final class Options {
+      /** The number of virtual tags */
+      int tags = 1000;
+      /** The advertising interval of each tag in ms, 0 to feed the adverts as fast as the scanner takes them */
+      int advertMillis = 100;
+      /** How long the adverts are fed for */
+      int durationSecs = 10;
+      Feed feed = Feed.ADVERT;
+      /** The length of a player's game in ms */
+      int gameMillis = 20000;
+      /** The longest time a player idles between games in ms */
+      int maxIdleMillis = 10000;
+      /** The chance a shooting player's advert starts a laser hit */
+      double hitProbability = 0.05;
+      /** The chance a shooting player's advert has a button pressed to reload or replace the target */
+      double buttonProbability = 0.02;
+      long seed = 1;
+
+      /**
+       * Apply a load.* setting
+       * @param name - the setting name without the load. prefix
+       * @param value - the setting value
+       */
+      public void set(String name, String value) {
+         switch (name) {
+            case "tags":
+               tags = Integer.parseInt(value);
+               break;
+            case "advertMillis":
+               advertMillis = Integer.parseInt(value);
+               break;
+            case "durationSecs":
+               durationSecs = Integer.parseInt(value);
+               break;
+            case "feed":
+               feed = Feed.valueOf(value.toUpperCase());
+               break;
+            case "gameMillis":
+               gameMillis = Integer.parseInt(value);
+               break;
+            case "maxIdleMillis":
+               maxIdleMillis = Integer.parseInt(value);
+               break;
+            case "hitProbability":
+               hitProbability = Double.parseDouble(value);
+               break;
+            case "buttonProbability":
+               buttonProbability = Double.parseDouble(value);
+               break;
+            case "seed":
+               seed = Long.parseLong(value);
+               break;
+            default:
+               throw new IllegalArgumentException("Unknown load setting: " + name);
+         }
+      }
+   }
+
+   /** What a simulated player is doing */
+   private enum Phase {
+      IDLE,
+      STARTING,
+      SHOOTING
+   }
+
+   /**
+    * A virtual RHIoTTag and the player holding it
+    */
+   static final class Player {
+      private final short[] address;
+      private final String addressString;
+      private final String name;
+      private Phase phase = Phase.IDLE;
+      /** The end of the idle period or game */
+      private long phaseEnd;
+      /** The adverts the start buttons are still held for */
+      private int pressAdverts;
+      /** The lux readings still to come of the current laser hit */
+      private final int[] hitProfile = new int[3];
+      private int hitAdverts;
+      private int keys;
+      private int lux = AMBIENT_LUX;
+      private int centiC;
+      private int count;
+
+      /**
+       * Create an idle player
+       * @param index - the player index, which the tag address and name are made from
+       * @param idleUntil - the time in ms the player starts its first game
+       * @param random - the player behaviour source
+       */
+      Player(int index, long idleUntil, Random random) {
+         address = new short[]{0xB0, 0xE6, 0xF8, (short) ((index >> 16) & 0xff), (short) ((index >> 8) & 0xff), (short) (index & 0xff)};
+         addressString = Utils.toString(address);
+         name = "load" + index;
+         phaseEnd = idleUntil;
+         centiC = 2000 + random.nextInt(500);
+      }
+
+      String getAddressString() {
+         return addressString;
+      }
+
+      String getName() {
+         return name;
+      }
+
+      /**
+       * Advance the player to the next advert
+       * @param now - the advert time in ms
+       * @param options - the load settings
+       * @param random - the player behaviour source
+       */
+      void next(long now, Options options, Random random) {
+         keys = 0;
+         count ++;
+         // Ambient light and temperature drift
+         lux = Math.max(0, Math.min(2 * AMBIENT_LUX, lux + random.nextInt(41) - 20));
+         if(random.nextInt(50) == 0)
+            centiC += random.nextInt(3) - 1;
+         switch (phase) {
+            case IDLE:
+               if(now >= phaseEnd) {
+                  phase = Phase.STARTING;
+                  pressAdverts = 2;
+               }
+               break;
+            case STARTING:
+               // Both buttons held for a couple of adverts
+               keys = 3;
+               if(-- pressAdverts == 0) {
+                  phase = Phase.SHOOTING;
+                  phaseEnd = now + options.gameMillis;
+               }
+               break;
+            case SHOOTING:
+               if(hitAdverts > 0) {
+                  lux = hitProfile[hitProfile.length - hitAdverts];
+                  hitAdverts --;
+               } else if(now >= phaseEnd) {
+                  phase = Phase.IDLE;
+                  phaseEnd = now + random.nextInt(Math.max(1, options.maxIdleMillis));
+               } else if(random.nextDouble() < options.hitProbability) {
+                  // A laser hit peaks then decays back below the reset threshold
+                  int peak = 20000 + random.nextInt(45000);
+                  hitProfile[0] = peak;
+                  hitProfile[1] = peak * 3 / 5;
+                  hitProfile[2] = AMBIENT_LUX;
+                  lux = hitProfile[0];
+                  hitAdverts = hitProfile.length - 1;
+               } else if(random.nextDouble() < options.buttonProbability) {
+                  // Reload with the right button or replace the target with the left
+                  keys = random.nextBoolean() ? 2 : 1;
+               }
+               break;
+         }
+      }
+
+      /**
+       * @param time - the advert capture time in ms
+       * @return the advert as the HCIDump scanner would report it
+       */
+      AdvertCapture.CapturedAdvert advert(long time) {
+         int luxBits = Math.min(lux, 0xffff);
+         byte[] data = {0x0D, 0x00, (byte) centiC, (byte) (centiC >> 8), (byte) keys, (byte) luxBits, (byte) (luxBits >> 8)};
+         List<AdStructure> ads = new ArrayList<>(2);
+         ads.add(new AdvertCapture.CapturedAdStructure(0x01, new byte[]{0x06}));
+         ads.add(new AdvertCapture.CapturedAdStructure(RHIoTTagDecoder.AD_MANUFACTURER_DATA, data));
+         return new AdvertCapture.CapturedAdvert(0, address, (byte) 0, (byte) 3, 0x3E, -60, count, time, ads);
+      }
+
+      /**
+       * @return the advert as the REST injection would report it
+       */
+      RHIoTTag tag() {
+         RHIoTTag tag = new RHIoTTag(addressString, (byte) keys, lux);
+         tag.setName(name);
+         return tag;
+      }
+   }
+
+   /**
+    * A sink that records the advert to publish latency of each publish before passing it on. The latency is the
+    * time since the capture time the publish payload is stamped with.
+    */
+   static final class LatencySink implements IPublishSink {
+      private final IPublishSink delegate;
+      /** The latency histogram in 1ms buckets */
+      private final AtomicLongArray histogram = new AtomicLongArray(MAX_LATENCY_MILLIS + 1);
+      private final AtomicLong publishes = new AtomicLong();
+
+      LatencySink(IPublishSink delegate) {
+         this.delegate = delegate;
+      }
+
+      @Override
+      public boolean isConnected() {
+         return delegate.isConnected();
+      }
+
+      @Override
+      public void publish(String topic, KuraPayload payload, int qos, boolean retain) throws Exception {
+         if(payload.getTimestamp() != null) {
+            long latency = System.currentTimeMillis() - payload.getTimestamp().getTime();
+            histogram.incrementAndGet((int) Math.max(0, Math.min(MAX_LATENCY_MILLIS, latency)));
+            publishes.incrementAndGet();
+         }
+         delegate.publish(topic, payload, qos, retain);
+      }
+
+      /**
+       * @return the latency in ms the given fraction of the publishes were within
+       */
+      long percentile(double p) {
+         long target = (long) Math.ceil(publishes.get() * p);
+         long seen = 0;
+         for (int n = 0; n < histogram.length(); n++) {
+            seen += histogram.get(n);
+            if(seen >= target && seen > 0)
+               return n;
+         }
+         return 0;
+      }
+   }
+
+   /**
+    * The scale report of a run
+    */
+   public static final class Result {
+      private int tags;
+      private Feed feed;
+      private long adverts;
+      private double targetRate;
+      private long elapsedNanos;
+      private long drainedNanos;
+      private long publishes;
+      private long p50Millis;
+      private long p99Millis;
+      private long maxMillis;
+      private final long[] maxDepth = new long[QUEUES.length];
+      private final long[] totalDepth = new long[QUEUES.length];
+      private long samples;
+      private int trackedTags;
+      private long retainedBytes;
+      private Map<String, Long> metrics;
+
+      public long getAdverts() {
+         return adverts;
+      }
+
+      public long getPublishes() {
+         return publishes;
+      }
+
+      public Map<String, Long> getMetrics() {
+         return metrics;
+      }
+
+      /**
+       * @return the adverts per second fed to the scanner
+       */
+      public double getInjectRate() {
+         return elapsedNanos > 0 ? adverts * 1e9 / elapsedNanos : 0;
+      }
+
+      /**
+       * @return the adverts per second handled by the game rules from the first advert until the pipeline drained
+       */
+      public double getSustainedRate() {
+         return drainedNanos > 0 ? getHandled() * 1e9 / drainedNanos : 0;
+      }
+
+      /**
+       * @return the number of adverts the game rules handled, less than the adverts fed when some were coalesced
+       */
+      public long getHandled() {
+         return metric("queueDelay.count") + metric("queueDelay.untrusted");
+      }
+
+      /**
+       * @return the advert to publish latency in ms that 99% of the publishes were within
+       */
+      public long getP99LatencyMillis() {
+         return p99Millis;
+      }
+
+      /**
+       * @param queue - the queue depth metric name
+       * @return the deepest the queue was sampled at
+       */
+      public long getMaxDepth(String queue) {
+         int index = Arrays.asList(QUEUES).indexOf(queue);
+         return index >= 0 ? maxDepth[index] : 0;
+      }
+
+      public int getTrackedTags() {
+         return trackedTags;
+      }
+
+      /**
+       * @return the heap retained per tracked tag in bytes, an estimate from the used heap after a GC
+       */
+      public long getRetainedBytesPerTag() {
+         return trackedTags > 0 ? retainedBytes / trackedTags : 0;
+      }
+
+      private long metric(String name) {
+         Long value = metrics.get(name);
+         return value != null ? value : 0;
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder report = new StringBuilder();
+         report.append(String.format("tags=%d, feed=%s, adverts=%d, target=%.0f adverts/s, fed=%.0f adverts/s, run=%.1fs, drained=%.1fs\n",
+            tags, feed, adverts, targetRate, getInjectRate(), elapsedNanos / 1e9, drainedNanos / 1e9));
+         report.append(String.format("  sustained: handled=%d, %.0f adverts/s, coalesced=%d, ringDropped=%d, publishShed=%d\n",
+            getHandled(), getSustainedRate(), metric("mailbox.coalesced"), metric("ring.droppedOldest") + metric("ring.droppedNewest"),
+            metric("publish.results.shed") + metric("publish.events.shed") + metric("publish.telemetry.shed")));
+         report.append(String.format("  advert to publish: publishes=%d, p50=%dms, p99=%dms, max=%dms\n",
+            publishes, p50Millis, p99Millis, maxMillis));
+         for (int n = 0; n < QUEUES.length; n++) {
+            report.append(String.format("  %s: avg=%d, max=%d\n", QUEUES[n], samples > 0 ? totalDepth[n] / samples : 0, maxDepth[n]));
+         }
+         report.append(String.format("  heap: trackedTags=%d, retained=%dKB, %d bytes/tag\n",
+            trackedTags, retainedBytes / 1024, getRetainedBytesPerTag()));
+         return report.toString();
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = new Options();
+      Map<String, Object> properties = new HashMap<>();
+      for (String arg : args) {
+         String[] kv = arg.split("=", 2);
+         if(kv.length != 2)
+            throw new IllegalArgumentException("Expected key=value, not: " + arg);
+         if(kv[0].startsWith("load."))
+            options.set(kv[0].substring("load.".length()), kv[1]);
+         else
+            properties.put(kv[0], AdvertReplayer.parseValue(kv[1]));
+      }
+      IPublishSink sink = new RecordingPublishSink(false);
+      Object latency = properties.remove("sink.latencyMicros");
+      if(latency != null)
+         sink = new LatencyPublishSink(sink, ((Number) latency).longValue(), 0, 0, 0, 1);
+
+      Result result = run(options, properties, sink);
+      System.out.print(result);
+   }
+
+   /**
+    * Drive a new scanner with the virtual tags
+    * @param options - the load settings
+    * @param properties - scanner configuration properties, skipJniInitialization is always set
+    * @param sink - the publish sink
+    * @return the scale report
+    */
+   public static Result run(Options options, Map<String, Object> properties, IPublishSink sink) {
+      Map<String, Object> config = new HashMap<>(properties);
+      config.put(ScannerConfig.SKIP_JNI_PROP_NAME, Boolean.TRUE);
+      LatencySink latencySink = new LatencySink(sink);
+      RHIoTTagScanner scanner = new RHIoTTagScanner();
+      scanner.setPublishSink(latencySink);
+      scanner.activate(null, config);
+      try {
+         return run(scanner, options, latencySink);
+      } finally {
+         scanner.deactivate(null);
+      }
+   }
+
+   /**
+    * Drive an activated scanner with the virtual tags
+    * @param scanner - the scanner, activated with skipJniInitialization and publishing to the latency sink
+    * @param options - the load settings
+    * @param sink - the scanner's publish sink
+    * @return the scale report
+    */
+   static Result run(RHIoTTagScanner scanner, Options options, LatencySink sink) {
+      Random random = new Random(options.seed);
+      Player[] players = new Player[options.tags];
+      long first = System.currentTimeMillis();
+      for (int n = 0; n < players.length; n++) {
+         players[n] = new Player(n, first + random.nextInt(Math.max(1, options.maxIdleMillis)), random);
+      }
+      Result result = new Result();
+      result.tags = options.tags;
+      result.feed = options.feed;
+      result.targetRate = options.advertMillis > 0 ? options.tags * 1000.0 / options.advertMillis : 0;
+      int baselineTags = scanner.getTagRegistry().size();
+      long baseline = usedHeap();
+
+      // Name the virtual tags so their adverts are played through the games
+      for (int n = 0; n < players.length; n++) {
+         scanner.updateTagInfo(players[n].getAddressString(), players[n].getName());
+      }
+
+      ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "RHIoTTagLoadSampler");
+         t.setDaemon(true);
+         return t;
+      });
+      sampler.scheduleAtFixedRate(() -> sample(scanner, result), 0, SAMPLE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+      long start = System.nanoTime();
+      long end = start + TimeUnit.SECONDS.toNanos(options.durationSecs);
+      double nanosPerAdvert = result.targetRate > 0 ? 1e9 / result.targetRate : 0;
+      long advert = 0;
+      long now;
+      while ((now = System.nanoTime()) < end) {
+         if(nanosPerAdvert > 0) {
+            long due = start + (long) (advert * nanosPerAdvert);
+            if(due > now) {
+               LockSupport.parkNanos(due - now);
+               continue;
+            }
+         }
+         // The players advertise round robin, spreading each tag's adverts evenly over its interval
+         Player player = players[(int) (advert % players.length)];
+         long time = System.currentTimeMillis();
+         player.next(time, options, random);
+         if(options.feed == Feed.ADVERT)
+            scanner.advertEvent(player.advert(time));
+         else
+            scanner.handleTagAsync(player.tag());
+         advert ++;
+      }
+      result.adverts = advert;
+      result.elapsedNanos = System.nanoTime() - start;
+      result.drainedNanos = AdvertReplayer.awaitDrained(scanner) - start;
+      sampler.shutdownNow();
+      try {
+         sampler.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+
+      result.metrics = scanner.getMetrics().snapshot();
+      result.publishes = sink.publishes.get();
+      result.p50Millis = sink.percentile(0.5);
+      result.p99Millis = sink.percentile(0.99);
+      result.maxMillis = sink.percentile(1);
+      result.trackedTags = scanner.getTagRegistry().size() - baselineTags;
+      result.retainedBytes = Math.max(0, usedHeap() - baseline);
+      return result;
+   }
+
+   private static void sample(RHIoTTagScanner scanner, Result result) {
+      Map<String, Long> metrics = scanner.getMetrics().snapshot();
+      synchronized (result) {
+         for (int n = 0; n < QUEUES.length; n++) {
+            long depth = AdvertReplayer.value(metrics, QUEUES[n]);
+            result.maxDepth[n] = Math.max(result.maxDepth[n], depth);
+            result.totalDepth[n] += depth;
+         }
+         result.samples ++;
+      }
+   }
+
+   /**
+    * @return the used heap in bytes after asking for a few full GCs
+    */
+   private static long usedHeap() {
+      Runtime runtime = Runtime.getRuntime();
+      for (int n = 0; n < 3; n++) {
+         System.gc();
+         LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+      }
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+}
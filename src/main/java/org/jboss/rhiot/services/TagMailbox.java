@@ -0,0 +1,125 @@
+package org.jboss.rhiot.services;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A per tag mailbox of pending adverts on the path into the game processing. An advert that changes nothing the
+ * game cares about compared to the newest pending advert replaces it rather than queueing behind it, so a tag that
+ * repeats the same reading many times a second only costs one game evaluation. Adverts that change the key state or
+ * move the lux reading across the hit or reset thresholds are always kept, since those are the edges
+ * determineEvent reacts to.
+ *
+ * The pending adverts are held in a preallocated ring of {@link TagReading}s that offered readings are copied into,
+ * so the mailbox does not allocate in steady state.
+ */
+public class TagMailbox {
+   /** Below the reset threshold */
+   private static final int LUX_LOW = 0;
+   /** Between the reset and hit thresholds */
+   private static final int LUX_MID = 1;
+   /** Above the hit threshold */
+   private static final int LUX_HIGH = 2;
+
+   /** Pending adverts ring */
+   private final TagReading[] pending;
+   /** Index of the oldest pending advert */
+   private int head;
+   /** Number of pending adverts */
+   private int size;
+   /** Lux band of the newest pending advert */
+   private int tailBand;
+   /** Is a drain of this mailbox scheduled on the tag's lane */
+   private boolean scheduled;
+   /** The task that drains this mailbox, reused for every drain */
+   private Runnable drainTask;
+   private final LongAdder offered;
+   private final LongAdder coalesced;
+   private final LongAdder overflowed;
+
+   /**
+    * @param capacity - maximum number of distinct pending adverts
+    * @param metrics - registry for the shared mailbox counters
+    */
+   public TagMailbox(int capacity, ScannerMetrics metrics) {
+      pending = new TagReading[Math.max(1, capacity)];
+      for (int n = 0; n < pending.length; n++) {
+         pending[n] = new TagReading();
+      }
+      this.offered = metrics.counter("mailbox.offered");
+      this.coalesced = metrics.counter("mailbox.coalesced");
+      this.overflowed = metrics.counter("mailbox.overflowed");
+   }
+
+   /**
+    * Copy an advert into the mailbox, coalescing it with the newest pending advert if it does not change the game
+    * relevant inputs.
+    * @param reading - the advert, this is copied so the caller may reuse it
+    * @param luxHitThreshold - the lux value above which a hit is detected
+    * @param luxResetThreshold - the lux value the sensor needs to fall below to reset the last hit
+    * @return true if the caller needs to schedule a drain of the mailbox, false if one is already pending
+    */
+   public synchronized boolean offer(TagReading reading, int luxHitThreshold, int luxResetThreshold) {
+      offered.increment();
+      int band = luxBand(reading, luxHitThreshold, luxResetThreshold);
+      if(size > 0) {
+         TagReading tail = pending[index(size - 1)];
+         if(tail.getKeys() == reading.getKeys() && tailBand == band) {
+            // Latest value wins
+            size --;
+            coalesced.increment();
+         } else if(size >= pending.length) {
+            // Bound the queue even under a flood of edges by folding into the newest advert
+            size --;
+            overflowed.increment();
+         }
+      }
+      pending[index(size)].copyFrom(reading);
+      size ++;
+      tailBand = band;
+
+      boolean needsDrain = !scheduled;
+      scheduled = true;
+      return needsDrain;
+   }
+
+   /**
+    * Take the oldest pending advert. When the mailbox is empty the scheduled flag is cleared, so the next offer
+    * will request a new drain.
+    * @param into - the holder to copy the advert into
+    * @return true if an advert was copied, false if the mailbox is empty
+    */
+   public synchronized boolean poll(TagReading into) {
+      if(size == 0) {
+         scheduled = false;
+         return false;
+      }
+      into.copyFrom(pending[head]);
+      head = index(1);
+      size --;
+      return true;
+   }
+
+   public Runnable getDrainTask() {
+      return drainTask;
+   }
+
+   public void setDrainTask(Runnable drainTask) {
+      this.drainTask = drainTask;
+   }
+
+   public synchronized int size() {
+      return size;
+   }
+
+   private int index(int offset) {
+      return (head + offset) % pending.length;
+   }
+
+   private static int luxBand(TagReading reading, int luxHitThreshold, int luxResetThreshold) {
+      if(reading.isLightSensorAbove(luxHitThreshold))
+         return LUX_HIGH;
+      if(reading.isLightSensorAbove(luxResetThreshold))
+         return LUX_MID;
+      return LUX_LOW;
+   }
+}
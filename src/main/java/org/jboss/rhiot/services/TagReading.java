@@ -0,0 +1,162 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+
+/**
+ * A mutable holder for the sensor readings of one RHIoTTag advert. Instances are preallocated and reused along the
+ * advert processing path in place of allocating a {@link RHIoTTag} per advert, so the holder offers the subset of
+ * the RHIoTTag accessors the game logic uses.
+ */
+public class TagReading {
+   /** Key state indexed by the left(0x1), right(0x2) and reed(0x4) key bits */
+   private static final RHIoTTag.KeyState[] KEY_STATES = {
+      RHIoTTag.KeyState.NONE, RHIoTTag.KeyState.LEFT, RHIoTTag.KeyState.RIGHT, RHIoTTag.KeyState.LEFT_AND_RIGHT,
+      RHIoTTag.KeyState.REED, RHIoTTag.KeyState.LEFT, RHIoTTag.KeyState.RIGHT, RHIoTTag.KeyState.LEFT_AND_RIGHT
+   };
+
+   /** The BLE address packed into the low 48 bits */
+   private long address;
+   /** The canonical address string, resolved from the packed address without formatting per advert */
+   private String addressString;
+   /** The user assigned name of the tag */
+   private String name;
+   private byte keys;
+   private int lux;
+   private double tempC;
+   private int rssi;
+   /** The adapter capture time of the advert */
+   private long time;
+   /** Set when the holder contains a decoded reading */
+   private boolean valid;
+
+   /**
+    * Create a reading from an RHIoTTag created by the BLE library or the REST injection endpoint
+    * @param tag - the tag advert information
+    * @return a new reading
+    */
+   public static TagReading from(RHIoTTag tag) {
+      TagReading reading = new TagReading();
+      reading.copyFrom(tag);
+      return reading;
+   }
+
+   /**
+    * Copy the sensor values from an RHIoTTag
+    * @param tag - the tag advert information
+    */
+   public void copyFrom(RHIoTTag tag) {
+      addressString = tag.getAddressString();
+      address = Utils.parseAddress(addressString);
+      name = tag.getName();
+      keys = tag.getKeys();
+      lux = tag.getLux();
+      tempC = tag.getTempC();
+      rssi = 0;
+      time = System.currentTimeMillis();
+      valid = true;
+   }
+
+   /**
+    * Copy all values from another reading
+    * @param other - the reading to copy
+    */
+   public void copyFrom(TagReading other) {
+      address = other.address;
+      addressString = other.addressString;
+      name = other.name;
+      keys = other.keys;
+      lux = other.lux;
+      tempC = other.tempC;
+      rssi = other.rssi;
+      time = other.time;
+      valid = other.valid;
+   }
+
+   /**
+    * Set the values decoded from the advert data
+    */
+   public void set(long address, byte keys, int lux, double tempC) {
+      this.address = address;
+      this.addressString = null;
+      this.name = null;
+      this.keys = keys;
+      this.lux = lux;
+      this.tempC = tempC;
+      this.valid = true;
+   }
+
+   /**
+    * Mark the holder as not containing a decoded reading
+    */
+   public void clear() {
+      addressString = null;
+      name = null;
+      valid = false;
+   }
+
+   public boolean isValid() {
+      return valid;
+   }
+
+   public long getAddress() {
+      return address;
+   }
+
+   public String getAddressString() {
+      return addressString;
+   }
+
+   public void setAddressString(String addressString) {
+      this.addressString = addressString;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public void setName(String name) {
+      this.name = name;
+   }
+
+   public byte getKeys() {
+      return keys;
+   }
+
+   public RHIoTTag.KeyState getKeyState() {
+      return KEY_STATES[keys & 0x7];
+   }
+
+   public int getLux() {
+      return lux;
+   }
+
+   public boolean isLightSensorAbove(int threshold) {
+      return lux > threshold;
+   }
+
+   public double getTempC() {
+      return tempC;
+   }
+
+   public int getRssi() {
+      return rssi;
+   }
+
+   public void setRssi(int rssi) {
+      this.rssi = rssi;
+   }
+
+   public long getTime() {
+      return time;
+   }
+
+   public void setTime(long time) {
+      this.time = time;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("TagReading{address=%s, name=%s, keys=%d, lux=%d, tempC=%.2f, rssi=%d, time=%d}",
+         addressString != null ? addressString : Utils.formatAddress(address), name, keys, lux, tempC, rssi, time);
+   }
+}
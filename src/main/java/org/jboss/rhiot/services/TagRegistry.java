@@ -0,0 +1,156 @@
+package org.jboss.rhiot.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A concurrent registry of {@link TagEntry}s keyed by the packed 48 bit BLE address. Lookups probe an open
+ * addressing table of entries without locking, hashing or boxing the key. Inserts and removals are rare (a tag being
+ * named or first seen through the REST injection), so they are serialized and a removal or resize publishes a new
+ * table.
+ */
+public class TagRegistry {
+   private static final int INITIAL_CAPACITY = 32;
+
+   /** The current table, its length is a power of 2 and it is kept at most half full */
+   private volatile AtomicReferenceArray<TagEntry> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+   private volatile int size;
+
+   /**
+    * Find the entry for the address
+    * @param address - the packed address
+    * @return the entry, null if there is none
+    */
+   public TagEntry get(long address) {
+      AtomicReferenceArray<TagEntry> tab = table;
+      int mask = tab.length() - 1;
+      int index = hash(address) & mask;
+      TagEntry entry;
+      while ((entry = tab.get(index)) != null) {
+         if(entry.getAddress().getValue() == address)
+            return entry;
+         index = (index + 1) & mask;
+      }
+      return null;
+   }
+
+   /**
+    * Find the entry for the address
+    * @param address - the address
+    * @return the entry, null if there is none
+    */
+   public TagEntry get(TagAddress address) {
+      return get(address.getValue());
+   }
+
+   /**
+    * Find the entry for the address string
+    * @param address - BLE address string
+    * @return the entry, null if there is none or the address is not valid
+    */
+   public TagEntry get(String address) {
+      if(address == null)
+         return null;
+      try {
+         return get(Utils.parseAddress(address));
+      } catch (IllegalArgumentException e) {
+         return null;
+      }
+   }
+
+   /**
+    * Find or add the entry for the address
+    * @param address - the address
+    * @return the existing or new entry
+    */
+   public TagEntry getOrCreate(TagAddress address) {
+      TagEntry entry = get(address.getValue());
+      if(entry != null)
+         return entry;
+      synchronized (this) {
+         entry = get(address.getValue());
+         if(entry == null) {
+            if(2 * (size + 1) > table.length())
+               table = copy(table, table.length() * 2, -1);
+            entry = new TagEntry(address);
+            insert(table, entry);
+            size ++;
+         }
+      }
+      return entry;
+   }
+
+   /**
+    * Remove the entry for the address
+    * @param address - the packed address
+    * @return the removed entry, null if there was none
+    */
+   public synchronized TagEntry remove(long address) {
+      TagEntry entry = get(address);
+      if(entry != null) {
+         table = copy(table, table.length(), address);
+         size --;
+      }
+      return entry;
+   }
+
+   /**
+    * Remove all entries
+    */
+   public synchronized void clear() {
+      table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+      size = 0;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Apply the action to every entry in the registry
+    * @param action - the action to apply
+    */
+   public void forEach(Consumer<TagEntry> action) {
+      AtomicReferenceArray<TagEntry> tab = table;
+      for (int n = 0; n < tab.length(); n++) {
+         TagEntry entry = tab.get(n);
+         if(entry != null)
+            action.accept(entry);
+      }
+   }
+
+   /**
+    * @return a snapshot of the entries in the registry
+    */
+   public List<TagEntry> entries() {
+      List<TagEntry> entries = new ArrayList<>(size);
+      forEach(entries::add);
+      return entries;
+   }
+
+   private static AtomicReferenceArray<TagEntry> copy(AtomicReferenceArray<TagEntry> from, int capacity, long skip) {
+      AtomicReferenceArray<TagEntry> to = new AtomicReferenceArray<>(capacity);
+      for (int n = 0; n < from.length(); n++) {
+         TagEntry entry = from.get(n);
+         if(entry != null && (skip < 0 || entry.getAddress().getValue() != skip))
+            insert(to, entry);
+      }
+      return to;
+   }
+
+   private static void insert(AtomicReferenceArray<TagEntry> tab, TagEntry entry) {
+      int mask = tab.length() - 1;
+      int index = hash(entry.getAddress().getValue()) & mask;
+      while (tab.get(index) != null) {
+         index = (index + 1) & mask;
+      }
+      tab.set(index, entry);
+   }
+
+   static int hash(long address) {
+      long h = address * 0x9E3779B97F4A7C15L;
+      return (int) (h >>> 32);
+   }
+}
@@ -0,0 +1,83 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Command line decoder for a {@link TagTraceLog} file, printing the records oldest first as CSV to stdout or the
+ * given output file.
+ *
+ * java -cp rhiot-services.jar org.jboss.rhiot.services.TagTraceDecoder /tmp/tag.trace [trace.csv]
+ */
+public class TagTraceDecoder {
+   static final String CSV_HEADER = "sequence,time,address,kind,keys,lux,state,event,newState,hitScore,score,shotsLeft,gameTimeLeft";
+
+   public static void main(String[] args) throws IOException {
+      if(args.length == 0) {
+         System.err.println("Usage: TagTraceDecoder trace [output.csv]");
+         System.exit(1);
+      }
+      Writer writer = args.length > 1 ? Files.newBufferedWriter(Paths.get(args[1])) : new OutputStreamWriter(System.out);
+      try(PrintWriter out = new PrintWriter(writer)) {
+         int count = toCsv(args[0], out);
+         if(args.length > 1)
+            System.out.printf("%s: %d records\n", args[1], count);
+      }
+   }
+
+   /**
+    * Write the records of a trace as CSV, oldest first
+    * @param trace - the trace file
+    * @param out - the CSV destination
+    * @return the number of records written
+    * @throws IOException on failure to read the trace, or if this is not a trace file
+    */
+   public static int toCsv(String trace, PrintWriter out) throws IOException {
+      MappedByteBuffer map;
+      try(RandomAccessFile raf = new RandomAccessFile(trace, "r")) {
+         map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      }
+      if(map.capacity() < TagTraceLog.HEADER_BYTES || map.getInt(0) != TagTraceLog.MAGIC)
+         throw new IOException("Not a tag trace: " + trace);
+      int version = map.getInt(4);
+      if(version != TagTraceLog.VERSION || map.getInt(8) != TagTraceLog.RECORD_BYTES)
+         throw new IOException("Unsupported tag trace version: " + version);
+      int capacity = map.getInt(TagTraceLog.CAPACITY_OFFSET);
+      long next = map.getLong(TagTraceLog.NEXT_SEQUENCE_OFFSET);
+
+      out.println(CSV_HEADER);
+      int count = 0;
+      // The header sequence may lag the records written just before a crash, so follow the sequence on from there
+      long sequence = Math.max(0, next - capacity);
+      for (; count < capacity; sequence ++) {
+         int offset = TagTraceLog.HEADER_BYTES + (int) (sequence % capacity) * TagTraceLog.RECORD_BYTES;
+         if(map.getLong(offset) != sequence) {
+            if(sequence < next)
+               continue;
+            break;
+         }
+         out.printf("%d,%d,%s,%s,%d,%d,%s,%s,%s,%d,%d,%d,%d\n", sequence, map.getLong(offset + 8),
+            Utils.formatAddress(map.getLong(offset + 16)), name(TagTraceLog.Kind.values(), map.get(offset + 43)),
+            map.get(offset + 42), map.getInt(offset + 24), name(GameStateMachine.GameState.values(), map.get(offset + 44)),
+            name(GameStateMachine.GameEvent.values(), map.get(offset + 45)),
+            name(GameStateMachine.GameState.values(), map.get(offset + 46)), map.getInt(offset + 28),
+            map.getInt(offset + 32), map.getShort(offset + 40), map.getInt(offset + 36));
+         count ++;
+      }
+      out.flush();
+      return count;
+   }
+
+   private static String name(Enum<?>[] values, byte ordinal) {
+      return ordinal >= 0 && ordinal < values.length ? values[ordinal].name() : "";
+   }
+}
@@ -0,0 +1,266 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A binary trace of the game processing of the traced tags. The dispatch lanes only copy the values of a trace
+ * record into a preallocated staging slot, never blocking and dropping the record if the staging ring is full. A
+ * background thread writes the records into a memory mapped ring file, overwriting the oldest records once it
+ * wraps. An existing trace file with the same capacity is continued rather than truncated.
+ *
+ * The file starts with a {@link #HEADER_BYTES} header [int magic "RHTT"][int version][int record size]
+ * [int capacity in records][long next sequence][long start ms], followed by the fixed size records. The record with
+ * sequence s is stored at index s % capacity:
+ * <pre>
+ *    0  long   sequence
+ *    8  long   time ms
+ *    16 long   packed BLE address
+ *    24 int    lux
+ *    28 int    hit score
+ *    32 int    game score
+ *    36 int    game time left ms
+ *    40 short  shots left
+ *    42 byte   keys
+ *    43 byte   record kind
+ *    44 byte   game state before the event
+ *    45 byte   game event
+ *    46 byte   game state after the event
+ * </pre>
+ * The states and event are the GameState and GameEvent ordinals. {@link TagTraceDecoder} converts a trace to CSV.
+ */
+public class TagTraceLog {
+   private static final Logger log = LoggerFactory.getLogger(TagTraceLog.class);
+   /** "RHTT" */
+   static final int MAGIC = 0x52485454;
+   static final int VERSION = 1;
+   static final int HEADER_BYTES = 64;
+   static final int RECORD_BYTES = 48;
+   static final int CAPACITY_OFFSET = 12;
+   static final int NEXT_SEQUENCE_OFFSET = 16;
+   static final int START_OFFSET = 24;
+   /** The number of staging slots between the lanes and the writer thread */
+   private static final int STAGE_CAPACITY = 4096;
+   /** Upper bound on how long the writer parks waiting for a record */
+   private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+   /** What a trace record was written for */
+   public enum Kind {
+      /** An advert handled by the game rules */
+      ADVERT,
+      /** A game or shooting window timeout fired by the timer wheel */
+      TIMEOUT
+   }
+
+   /** A preallocated staging entry holding the values of one record */
+   private static final class Slot {
+      /** The staging sequence of the record in the slot, set last to release the values to the writer */
+      volatile long sequence = -1;
+      long time;
+      long address;
+      int lux;
+      int hitScore;
+      int score;
+      int gameTimeLeft;
+      int shotsLeft;
+      int keys;
+      Kind kind;
+      GameStateMachine.GameState state;
+      GameStateMachine.GameEvent event;
+      GameStateMachine.GameState newState;
+   }
+
+   private final File file;
+   private final MappedByteBuffer map;
+   /** The number of records the file holds */
+   private final int capacity;
+   private final Slot[] slots;
+   private final int mask;
+   /** Staging sequence of the next slot to write to the file */
+   private final AtomicLong head = new AtomicLong();
+   /** Staging sequence of the next slot to claim */
+   private final AtomicLong tail = new AtomicLong();
+   /** File sequence of the next record, only used by the writer thread */
+   private long nextSequence;
+   private final LongAdder recorded;
+   private final LongAdder dropped;
+   private final LongAdder written;
+   private volatile boolean running;
+   private volatile boolean writerWaiting;
+   private Thread writer;
+
+   /**
+    * Map the trace file, continuing an existing trace with the same capacity
+    * @param file - the trace file
+    * @param maxBytes - the size of the trace file, which sets the number of records kept
+    * @param metrics - registry for the recorded, dropped and written counters
+    * @throws IOException on failure to create or map the file
+    */
+   public TagTraceLog(File file, long maxBytes, ScannerMetrics metrics) throws IOException {
+      this.file = file;
+      this.capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE / RECORD_BYTES - 1, (maxBytes - HEADER_BYTES) / RECORD_BYTES));
+      long length = HEADER_BYTES + (long) capacity * RECORD_BYTES;
+      try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+         boolean resume = raf.length() == length;
+         raf.setLength(length);
+         map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+         resume &= map.getInt(0) == MAGIC && map.getInt(4) == VERSION && map.getInt(8) == RECORD_BYTES
+            && map.getInt(CAPACITY_OFFSET) == capacity;
+         if(resume) {
+            nextSequence = map.getLong(NEXT_SEQUENCE_OFFSET);
+         } else {
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(8, RECORD_BYTES);
+            map.putInt(CAPACITY_OFFSET, capacity);
+            map.putLong(NEXT_SEQUENCE_OFFSET, 0);
+            map.putLong(START_OFFSET, System.currentTimeMillis());
+         }
+      }
+      slots = new Slot[STAGE_CAPACITY];
+      for (int n = 0; n < slots.length; n++) {
+         slots[n] = new Slot();
+      }
+      mask = slots.length - 1;
+      recorded = metrics.counter("trace.recorded");
+      dropped = metrics.counter("trace.dropped");
+      written = metrics.counter("trace.written");
+   }
+
+   public File getFile() {
+      return file;
+   }
+
+   /**
+    * Start the writer thread
+    */
+   public synchronized void start() {
+      if(running)
+         return;
+      running = true;
+      writer = new Thread(this::write, "RHIoTTagTrace");
+      writer.setDaemon(true);
+      writer.start();
+      log.info(String.format("Tracing tags to: %s, capacity=%d records, nextSequence=%d", file, capacity, nextSequence));
+   }
+
+   /**
+    * Stop the writer thread once the staged records are written, and flush the file
+    */
+   public synchronized void stop() {
+      running = false;
+      if(writer != null) {
+         LockSupport.unpark(writer);
+         try {
+            writer.join(TimeUnit.SECONDS.toMillis(1));
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         writer = null;
+      }
+      map.force();
+   }
+
+   /**
+    * Stage a trace record. This never blocks, the record is dropped if the writer has fallen behind.
+    * @param kind - what the record is for
+    * @param time - the event time in ms
+    * @param address - the packed BLE address of the tag
+    * @param keys - the key state of the tag
+    * @param lux - the light sensor reading
+    * @param state - the game state before the event
+    * @param event - the game event
+    * @param newState - the game state after the event
+    * @param hitScore - the score of the last hit
+    * @param score - the game score
+    * @param shotsLeft - shots left in the clip
+    * @param gameTimeLeft - game time left in ms
+    * @return true if the record was staged
+    */
+   public boolean trace(Kind kind, long time, long address, int keys, int lux, GameStateMachine.GameState state,
+                        GameStateMachine.GameEvent event, GameStateMachine.GameState newState, int hitScore, int score,
+                        int shotsLeft, int gameTimeLeft) {
+      long t;
+      do {
+         t = tail.get();
+         if(t - head.get() >= slots.length) {
+            dropped.increment();
+            return false;
+         }
+      } while (!tail.compareAndSet(t, t + 1));
+      Slot slot = slots[(int) (t & mask)];
+      slot.kind = kind;
+      slot.time = time;
+      slot.address = address;
+      slot.keys = keys;
+      slot.lux = lux;
+      slot.state = state;
+      slot.event = event;
+      slot.newState = newState;
+      slot.hitScore = hitScore;
+      slot.score = score;
+      slot.shotsLeft = shotsLeft;
+      slot.gameTimeLeft = gameTimeLeft;
+      slot.sequence = t;
+      recorded.increment();
+      if(writerWaiting)
+         LockSupport.unpark(writer);
+      return true;
+   }
+
+   private void write() {
+      while (true) {
+         long h = head.get();
+         Slot slot = slots[(int) (h & mask)];
+         if(slot.sequence != h) {
+            // Nothing staged, or the lane that claimed the slot has not finished filling it
+            map.putLong(NEXT_SEQUENCE_OFFSET, nextSequence);
+            if(!running)
+               return;
+            idle(slot, h);
+            continue;
+         }
+         int offset = HEADER_BYTES + (int) (nextSequence % capacity) * RECORD_BYTES;
+         map.putLong(offset, nextSequence);
+         map.putLong(offset + 8, slot.time);
+         map.putLong(offset + 16, slot.address);
+         map.putInt(offset + 24, slot.lux);
+         map.putInt(offset + 28, slot.hitScore);
+         map.putInt(offset + 32, slot.score);
+         map.putInt(offset + 36, slot.gameTimeLeft);
+         map.putShort(offset + 40, (short) slot.shotsLeft);
+         map.put(offset + 42, (byte) slot.keys);
+         map.put(offset + 43, (byte) slot.kind.ordinal());
+         map.put(offset + 44, ordinal(slot.state));
+         map.put(offset + 45, ordinal(slot.event));
+         map.put(offset + 46, ordinal(slot.newState));
+         nextSequence ++;
+         written.increment();
+         // Release the slot to the lanes
+         head.lazySet(h + 1);
+      }
+   }
+
+   private void idle(Slot slot, long h) {
+      writerWaiting = true;
+      // Recheck after publishing the waiting flag so a concurrent trace is not missed
+      if(slot.sequence != h && running)
+         LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      writerWaiting = false;
+   }
+
+   private static byte ordinal(Enum<?> value) {
+      return value != null ? (byte) value.ordinal() : -1;
+   }
+}
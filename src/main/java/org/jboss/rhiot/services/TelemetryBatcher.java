@@ -0,0 +1,320 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IRHIoTTagScanner;
+import org.jboss.rhiot.services.fsm.GameClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gathers the per advert tag telemetry of adverts that do not change the game (NOOP events) into one payload per
+ * tag, published when the batch reaches its sample count, when its oldest sample reaches the flush interval, or
+ * just before a game state transition is published for the tag so the tag's messages stay in order.
+ *
+ * A batch payload carries {@link IRHIoTTagScanner#TAG_BATCH_COUNT} samples, and each sample's values use the usual
+ * metric names with a ".n" index suffix, e.g. rhiotTag.lux.0, rhiotTag.lux.1 with rhiotTag.sampleTime.n holding the
+ * sample time.
+ */
+public class TelemetryBatcher {
+   private static final Logger log = LoggerFactory.getLogger(TelemetryBatcher.class);
+
+   /**
+    * Publishes a payload
+    */
+   public interface PayloadPublisher {
+      void publish(String topic, KuraPayload payload, int qos, boolean retain);
+   }
+
+   /** Index of the sample time in the metric names table */
+   private static final int SAMPLE_TIME = 0;
+   private static final int TEMP = 1;
+   private static final int KEYS = 2;
+   private static final int LUX = 3;
+   private static final int GAME_TIME_LEFT = 4;
+   private static final int GAME_SCORE = 5;
+   private static final int SHOOTING_TIME_LEFT = 6;
+   private static final int SHOTS_LEFT = 7;
+   private static final String[] METRICS = {
+      IRHIoTTagScanner.TAG_SAMPLE_TIME, IRHIoTTagScanner.TAG_TEMP, IRHIoTTagScanner.TAG_KEYS, IRHIoTTagScanner.TAG_LUX,
+      IRHIoTTagScanner.TAG_GAME_TIME_LEFT, IRHIoTTagScanner.TAG_GAME_SCORE, IRHIoTTagScanner.TAG_SHOOTING_TIME_LEFT,
+      IRHIoTTagScanner.TAG_SHOTS_LEFT
+   };
+
+   /**
+    * The pending samples of one tag, held in preallocated columns
+    */
+   static final class Buffer {
+      private final long[] time;
+      private final double[] tempC;
+      private final byte[] keys;
+      private final int[] lux;
+      private final int[] gameTimeLeft;
+      private final int[] score;
+      private final int[] shootingTimeLeft;
+      private final int[] shotsLeft;
+      private int count;
+      /** The clock time the oldest pending sample was added */
+      private long firstAdded;
+      private String topic;
+      private int qos;
+      private boolean retain;
+
+      Buffer(int capacity) {
+         time = new long[capacity];
+         tempC = new double[capacity];
+         keys = new byte[capacity];
+         lux = new int[capacity];
+         gameTimeLeft = new int[capacity];
+         score = new int[capacity];
+         shootingTimeLeft = new int[capacity];
+         shotsLeft = new int[capacity];
+      }
+   }
+
+   private final int maxSamples;
+   private final long intervalMillis;
+   private final TagRegistry registry;
+   private final GameClock clock;
+   private final PayloadPublisher publisher;
+   /** Encodes the batches in the compact format, null for the indexed metrics */
+   private final CompactTelemetryCodec codec;
+   /** The indexed metric names by [metric][sample index], built once */
+   private final String[][] names;
+   private ScheduledExecutorService flusher;
+   private final LongAdder samples;
+   private final LongAdder batches;
+   private final LongAdder flushedBySize;
+   private final LongAdder flushedByTime;
+   private final LongAdder flushedByEvent;
+   private final LongAdder flushLatencyTotal;
+   private final AtomicLong flushLatencyMax = new AtomicLong();
+
+   /**
+    * Create a batcher
+    * @param intervalMillis - the maximum time in ms a sample waits before its batch is published
+    * @param maxSamples - the number of samples that triggers publishing a batch
+    * @param registry - the tags whose batches are checked for the flush interval
+    * @param clock - time source for the flush interval
+    * @param codec - encodes the batches in the compact format, null to publish them as indexed metrics
+    * @param publisher - publishes the batch payloads
+    * @param metrics - registry for the batch size and latency metrics
+    */
+   public TelemetryBatcher(long intervalMillis, int maxSamples, TagRegistry registry, GameClock clock,
+                           CompactTelemetryCodec codec, PayloadPublisher publisher, ScannerMetrics metrics) {
+      this.intervalMillis = intervalMillis;
+      this.maxSamples = Math.max(1, maxSamples);
+      this.registry = registry;
+      this.clock = clock;
+      this.codec = codec;
+      this.publisher = publisher;
+      names = new String[METRICS.length][this.maxSamples];
+      for (int m = 0; m < METRICS.length; m++) {
+         for (int n = 0; n < this.maxSamples; n++) {
+            names[m][n] = METRICS[m] + "." + n;
+         }
+      }
+      samples = metrics.counter("telemetry.samples");
+      batches = metrics.counter("telemetry.batches");
+      flushedBySize = metrics.counter("telemetry.flushedBySize");
+      flushedByTime = metrics.counter("telemetry.flushedByTime");
+      flushedByEvent = metrics.counter("telemetry.flushedByEvent");
+      flushLatencyTotal = metrics.counter("telemetry.flushLatencyTotalMillis");
+      metrics.gauge("telemetry.flushLatencyMaxMillis", flushLatencyMax::get);
+      metrics.gauge("telemetry.avgBatchSize", () -> {
+         long count = batches.sum();
+         return count > 0 ? samples.sum() / count : 0;
+      });
+      metrics.gauge("telemetry.avgFlushLatencyMillis", () -> {
+         long count = batches.sum();
+         return count > 0 ? flushLatencyTotal.sum() / count : 0;
+      });
+   }
+
+   /**
+    * Start checking the pending batches against the flush interval
+    */
+   public void start() {
+      flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "RHIoTTagTelemetryFlush");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1, intervalMillis / 4);
+      flusher.scheduleAtFixedRate(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+      log.info(String.format("Started TelemetryBatcher(intervalMillis=%d, maxSamples=%d)", intervalMillis, maxSamples));
+   }
+
+   /**
+    * Stop the interval checks and publish every pending batch
+    */
+   public void stop() {
+      if(flusher != null)
+         flusher.shutdownNow();
+      flusher = null;
+      registry.forEach(entry -> flush(entry, flushedByTime));
+   }
+
+   /**
+    * Add a telemetry sample to the tag's batch, publishing the batch if it is full. Called from the tag's lane.
+    * @param entry - the tag's registry entry
+    * @param topic - the tag's publish topic
+    * @param qos - the publish qos
+    * @param retain - the publish retain flag
+    * @param tag - the advert
+    * @param timestamp - the sample time
+    * @param gameTimeLeft - the game time left in ms
+    * @param score - the game score
+    * @param shootingTimeLeft - the shooting window time left in ms
+    * @param shotsLeft - the shots left
+    */
+   public void add(TagEntry entry, String topic, int qos, boolean retain, TagReading tag, long timestamp,
+                   int gameTimeLeft, int score, int shootingTimeLeft, int shotsLeft) {
+      Buffer buffer = entry.getTelemetry();
+      if(buffer == null || buffer.time.length != maxSamples) {
+         // New tag, or a buffer sized by a batcher with a different maxSamples, whose samples go out first
+         if(buffer != null)
+            flush(entry, flushedByTime);
+         buffer = new Buffer(maxSamples);
+         entry.setTelemetry(buffer);
+      }
+      KuraPayload payload = null;
+      long latency = 0;
+      synchronized (buffer) {
+         if(buffer.count == 0) {
+            buffer.firstAdded = clock.millis();
+            buffer.topic = topic;
+            buffer.qos = qos;
+            buffer.retain = retain;
+         }
+         int n = buffer.count;
+         buffer.time[n] = timestamp;
+         buffer.tempC[n] = tag.getTempC();
+         buffer.keys[n] = tag.getKeys();
+         buffer.lux[n] = tag.getLux();
+         buffer.gameTimeLeft[n] = gameTimeLeft;
+         buffer.score[n] = score;
+         buffer.shootingTimeLeft[n] = shootingTimeLeft;
+         buffer.shotsLeft[n] = shotsLeft;
+         buffer.count = n + 1;
+         if(buffer.count >= maxSamples) {
+            latency = clock.millis() - buffer.firstAdded;
+            payload = drain(buffer);
+         }
+      }
+      samples.increment();
+      if(payload != null) {
+         flushedBySize.increment();
+         publish(publisher, topic, payload, qos, retain, latency);
+      }
+   }
+
+   /**
+    * Publish the tag's pending samples ahead of a game state transition
+    * @param entry - the tag's registry entry
+    */
+   public void flush(TagEntry entry) {
+      flush(entry, flushedByEvent, publisher);
+   }
+
+   /**
+    * Publish the tag's pending samples ahead of a game state transition through the publisher of the transition, so
+    * the samples are not reordered behind it
+    * @param entry - the tag's registry entry
+    * @param eventPublisher - publishes the batch payload
+    */
+   public void flush(TagEntry entry, PayloadPublisher eventPublisher) {
+      flush(entry, flushedByEvent, eventPublisher);
+   }
+
+   private void flush(TagEntry entry, LongAdder reason) {
+      flush(entry, reason, publisher);
+   }
+
+   private void flush(TagEntry entry, LongAdder reason, PayloadPublisher target) {
+      Buffer buffer = entry.getTelemetry();
+      if(buffer == null)
+         return;
+      KuraPayload payload;
+      long latency;
+      String topic;
+      int qos;
+      boolean retain;
+      synchronized (buffer) {
+         if(buffer.count == 0)
+            return;
+         latency = clock.millis() - buffer.firstAdded;
+         topic = buffer.topic;
+         qos = buffer.qos;
+         retain = buffer.retain;
+         payload = drain(buffer);
+      }
+      reason.increment();
+      publish(target, topic, payload, qos, retain, latency);
+   }
+
+   /**
+    * Publish every batch whose oldest sample has waited for the flush interval
+    */
+   private void flushExpired() {
+      try {
+         long now = clock.millis();
+         registry.forEach(entry -> {
+            Buffer buffer = entry.getTelemetry();
+            if(buffer != null && buffer.count > 0 && now - buffer.firstAdded >= intervalMillis)
+               flush(entry, flushedByTime);
+         });
+      } catch (Exception e) {
+         log.error("Failed to flush telemetry", e);
+      }
+   }
+
+   /**
+    * Build the batch payload from the pending samples and empty the buffer. Called with the buffer locked.
+    */
+   private KuraPayload drain(Buffer buffer) {
+      int count = buffer.count;
+      if(codec != null) {
+         buffer.count = 0;
+         batches.increment();
+         return codec.batch(count, buffer.time, buffer.tempC, buffer.keys, buffer.lux, buffer.gameTimeLeft, buffer.score,
+            buffer.shootingTimeLeft, buffer.shotsLeft);
+      }
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(buffer.time[count - 1]));
+      payload.addMetric(IRHIoTTagScanner.TAG_BATCH_COUNT, count);
+      for (int n = 0; n < count; n++) {
+         payload.addMetric(name(SAMPLE_TIME, n), buffer.time[n]);
+         payload.addMetric(name(TEMP, n), buffer.tempC[n]);
+         payload.addMetric(name(KEYS, n), PayloadBuilder.box((int) buffer.keys[n]));
+         payload.addMetric(name(LUX, n), PayloadBuilder.box(buffer.lux[n]));
+         payload.addMetric(name(GAME_TIME_LEFT, n), PayloadBuilder.box(buffer.gameTimeLeft[n]));
+         payload.addMetric(name(GAME_SCORE, n), PayloadBuilder.box(buffer.score[n]));
+         payload.addMetric(name(SHOOTING_TIME_LEFT, n), PayloadBuilder.box(buffer.shootingTimeLeft[n]));
+         payload.addMetric(name(SHOTS_LEFT, n), PayloadBuilder.box(buffer.shotsLeft[n]));
+      }
+      buffer.count = 0;
+      batches.increment();
+      return payload;
+   }
+
+   /**
+    * Get the indexed metric name, which is only built here for the samples of a buffer sized by an earlier batcher
+    * with a larger maxSamples
+    */
+   private String name(int metric, int n) {
+      return n < maxSamples ? names[metric][n] : METRICS[metric] + "." + n;
+   }
+
+   private void publish(PayloadPublisher target, String topic, KuraPayload payload, int qos, boolean retain, long latency) {
+      flushLatencyTotal.add(latency);
+      flushLatencyMax.accumulateAndGet(latency, Math::max);
+      target.publish(topic, payload, qos, retain);
+   }
+}
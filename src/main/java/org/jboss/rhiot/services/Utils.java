@@ -4,17 +4,76 @@ package org.jboss.rhiot.services;
  * Created by sstark on 5/31/16.
  */
 public class Utils {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     public static String toString(short[] address) {
-        StringBuilder tmp = new StringBuilder("");
-        if(address != null) {
-            for (int n = 0; n < address.length; n ++) {
-                tmp.append(String.format("%02X", address[n]));
-                tmp.append(':');
-            }
-            tmp.setLength(tmp.length()-1);
-        } else {
-            tmp.append(":::::");
+        if(address == null)
+            return ":::::";
+        if(address.length == 6)
+            return formatAddress(packAddress(address));
+        StringBuilder tmp = new StringBuilder(3*address.length);
+        for (int n = 0; n < address.length; n ++) {
+            tmp.append(HEX_DIGITS[(address[n] >>> 4) & 0xF]);
+            tmp.append(HEX_DIGITS[address[n] & 0xF]);
+            tmp.append(':');
         }
+        if(tmp.length() > 0)
+            tmp.setLength(tmp.length()-1);
         return tmp.toString();
     }
+
+    /**
+     * Pack a 6 byte BLE address into the low 48 bits of a long, the first address byte being the most significant.
+     * @param address - BLE address bytes in display order
+     * @return the packed address
+     */
+    public static long packAddress(short[] address) {
+        long packed = 0;
+        for (int n = 0; n < address.length; n ++) {
+            packed = (packed << 8) | (address[n] & 0xFF);
+        }
+        return packed;
+    }
+
+    /**
+     * Parse a colon separated BLE address string like A0:E6:F8:AD:2E:82 into its packed form
+     * @param address - BLE address string
+     * @return the packed address
+     * @throws IllegalArgumentException if the string is not a valid address
+     */
+    public static long parseAddress(String address) {
+        long packed = 0;
+        int digits = 0;
+        for (int n = 0; n < address.length(); n ++) {
+            char c = address.charAt(n);
+            if(c == ':')
+                continue;
+            int value = Character.digit(c, 16);
+            if(value < 0 || digits == 12)
+                throw new IllegalArgumentException("Invalid BLE address: "+address);
+            packed = (packed << 4) | value;
+            digits ++;
+        }
+        if(digits != 12)
+            throw new IllegalArgumentException("Invalid BLE address: "+address);
+        return packed;
+    }
+
+    /**
+     * Format a packed BLE address as a colon separated string of upper case hex bytes
+     * @param packed - the address packed by {@link #packAddress(short[])} or {@link #parseAddress(String)}
+     * @return the address string
+     */
+    public static String formatAddress(long packed) {
+        char[] chars = new char[17];
+        for (int n = 0; n < 6; n ++) {
+            int b = (int) (packed >>> (40 - 8*n)) & 0xFF;
+            int i = 3*n;
+            chars[i] = HEX_DIGITS[b >>> 4];
+            chars[i+1] = HEX_DIGITS[b & 0xF];
+            if(n < 5)
+                chars[i+2] = ':';
+        }
+        return new String(chars);
+    }
 }
@@ -6,6 +6,10 @@ package org.jboss.rhiot.services.api;
  */
 public interface IGatewayTagConfig {
 
+    /**
+     * @return the number of configured tags, the valid indexes for getTagName and getTagAddress
+     */
+    public int getTagCount();
     public String getTagName(int index);
     public String getTagAddress(int index);
     public String getNameByAddress(String address);
@@ -0,0 +1,25 @@
+package org.jboss.rhiot.services.api;
+
+import org.eclipse.kura.message.KuraPayload;
+
+/**
+ * The destination of the scanner's publishes. On a gateway this is the Kura CloudClient, off a gateway a recording
+ * or fake latency sink can stand in for it to benchmark or load test the publish path.
+ */
+public interface IPublishSink {
+
+    /**
+     * @return true if publishes can currently be sent
+     */
+    public boolean isConnected();
+
+    /**
+     * Publish a message
+     * @param topic - the semantic topic
+     * @param payload - the message
+     * @param qos - the publish qos
+     * @param retain - the publish retain flag
+     * @throws Exception on failure to publish
+     */
+    public void publish(String topic, KuraPayload payload, int qos, boolean retain) throws Exception;
+}
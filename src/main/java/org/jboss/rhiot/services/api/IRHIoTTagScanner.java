@@ -30,6 +30,13 @@ public interface IRHIoTTagScanner {
    static final String GW_LAST_GAME_SCORE_HITS = "rhiotTagGW.hits";
    static final String GW_LAST_GAME_SCORE_TAG_ADDRESS = "rhiotTagGW.scoreTagAddress";
    static final String GW_LAST_GAME_NEW_HIGH_SCORE = "rhiotTagGW.isNewHighScore";
+   // Set 6, batched tag data. The set 1 and 3 values of each sample carry a ".n" sample index suffix
+   static final String TAG_BATCH_COUNT = "rhiotTag.batchCount";
+   static final String TAG_SAMPLE_TIME = "rhiotTag.sampleTime";
+   // Set 7, compact tag data. The set 1, 2, 3 and 4 values are carried in the payload body, see CompactTelemetryCodec
+   static final String TAG_FORMAT = "rhiotTag.format";
+   // Set 8, the scoreboard frame of all active games. The set 3 values of each game carry a ".n" game index suffix
+   static final String TAG_GAME_COUNT = "rhiotTag.gameCount";
 
 
    // REST endpoints
@@ -43,4 +50,8 @@ public interface IRHIoTTagScanner {
    String GAMESM_INFO_PATH = "/gamesm";
    /** */
    String INJECT_TAG_DATA_PATH = "/inject-tag-data";
+   /** PUT a JSON array or newline delimited JSON stream of tag readings, returns the final game state of each tag */
+   String INJECT_TAG_DATA_BULK_PATH = INJECT_TAG_DATA_PATH + "/bulk";
+   /** */
+   String METRICS_PATH = "/metrics";
 }
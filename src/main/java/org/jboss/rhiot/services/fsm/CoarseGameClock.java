@@ -0,0 +1,96 @@
+package org.jboss.rhiot.services.fsm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A monotonic clock that is read once per batch of events. {@link #refresh()} samples System.nanoTime() relative to
+ * the wall time the clock was created at, and {@link #millis()} returns the last sample, so every game check and
+ * publish for a batch of adverts sees the same time for the cost of a volatile read. The game time never goes
+ * backwards, even if the wall clock is stepped, so game deadlines and the timer wheel are not disturbed by NTP.
+ *
+ * Message timestamps and adapter capture times are on the wall clock, which the game time drifts from after a step
+ * or a long slew. Each refresh compares the two and re-anchors the wall offset once they are more than
+ * {@link #MAX_DRIFT_MILLIS} apart. {@link #toWall(long)} and {@link #fromWall(long)} convert between the scales.
+ */
+public class CoarseGameClock implements GameClock {
+   /** How far the wall clock may drift from the game time before the wall offset is re-anchored */
+   public static final long MAX_DRIFT_MILLIS = 1000;
+
+   /** The wall time source */
+   private final LongSupplier wallClock;
+   /** The monotonic ns time source */
+   private final LongSupplier nanoClock;
+   /** The wall time the clock was created at */
+   private final long baseMillis;
+   /** The nanoTime the clock was created at */
+   private final long baseNanos;
+   /** The last sampled time */
+   private final AtomicLong now = new AtomicLong();
+   /** The wall time less the game time as of the last re-anchor */
+   private volatile long wallOffset;
+
+   public CoarseGameClock() {
+      this(System::currentTimeMillis, System::nanoTime);
+   }
+
+   /**
+    * Create a clock on the given time sources
+    * @param wallClock - the wall time in ms
+    * @param nanoClock - the monotonic time in ns
+    */
+   public CoarseGameClock(LongSupplier wallClock, LongSupplier nanoClock) {
+      this.wallClock = wallClock;
+      this.nanoClock = nanoClock;
+      baseMillis = wallClock.getAsLong();
+      baseNanos = nanoClock.getAsLong();
+      now.set(baseMillis);
+   }
+
+   /**
+    * @return the time of the last refresh
+    */
+   @Override
+   public long millis() {
+      return now.get();
+   }
+
+   /**
+    * Sample the time for the next batch of events, and re-anchor the wall offset if the wall clock has drifted
+    * @return the current time
+    */
+   public long refresh() {
+      long sample = baseMillis + TimeUnit.NANOSECONDS.toMillis(nanoClock.getAsLong() - baseNanos);
+      long wall = wallClock.getAsLong();
+      if(Math.abs(wall - sample - wallOffset) > MAX_DRIFT_MILLIS)
+         wallOffset = wall - sample;
+      // Concurrent refreshes from different lanes must not move the time backwards
+      return now.accumulateAndGet(sample, Math::max);
+   }
+
+   /**
+    * @return the wall time of the last refresh
+    */
+   public long wallMillis() {
+      return toWall(now.get());
+   }
+
+   /**
+    * Convert a game time to the wall clock, for message timestamps
+    * @param millis - a time on this clock's scale
+    * @return the wall time in ms
+    */
+   public long toWall(long millis) {
+      return millis + wallOffset;
+   }
+
+   /**
+    * Convert a wall clock time to the game time, for adapter capture times
+    * @param wallMillis - the wall time in ms
+    * @return the time on this clock's scale
+    */
+   public long fromWall(long wallMillis) {
+      return wallMillis - wallOffset;
+   }
+}
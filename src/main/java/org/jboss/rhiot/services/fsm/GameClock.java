@@ -0,0 +1,16 @@
+package org.jboss.rhiot.services.fsm;
+
+/**
+ * The time source for the game deadlines. {@link GameModel} and the scanner read the time through a clock so the
+ * gateway can use a cheap cached time and the tests can run games on virtual time.
+ */
+@FunctionalInterface
+public interface GameClock {
+   /** The system wall clock */
+   GameClock SYSTEM = System::currentTimeMillis;
+
+   /**
+    * @return the current time in ms, on the same scale as System.currentTimeMillis()
+    */
+   long millis();
+}
@@ -43,12 +43,62 @@ public class GameModel {
    private int hits;
    /** The cumulative game score */
    private int score;
+   /** The time source for the game and shooting window deadlines */
+   private GameClock clock;
+   /** The time of the event being handled, 0 if the clock is read */
+   private long eventTime;
+
+   /**
+    * Create a game model using the system clock
+    */
+   public GameModel() {
+      this(GameClock.SYSTEM);
+   }
+
+   /**
+    * Create a game model
+    * @param clock - the time source for the game and shooting window deadlines
+    */
+   public GameModel(GameClock clock) {
+      this.clock = clock;
+   }
+
+   public GameClock getClock() {
+      return clock;
+   }
+
+   public void setClock(GameClock clock) {
+      this.clock = clock;
+   }
+
+   /**
+    * @return the time of the event being handled, 0 if the clock is read
+    */
+   public long getEventTime() {
+      return eventTime;
+   }
+
+   /**
+    * Set the time the game rules are evaluated at, e.g. the capture time of the advert being handled, so that the
+    * deadlines and time left do not depend on how long the event was queued.
+    * @param eventTime - the event time in ms on the clock's scale, 0 to read the clock again
+    */
+   public void setEventTime(long eventTime) {
+      this.eventTime = eventTime;
+   }
+
+   /**
+    * @return the event time if one is set, the clock time otherwise
+    */
+   private long now() {
+      return eventTime != 0 ? eventTime : clock.millis();
+   }
 
    /**
     * Start a game. This sets the game starting and ending time.
     */
    public void startGame() {
-      beginGame = System.currentTimeMillis();
+      beginGame = now();
       endGame = beginGame + gameDuration;
       score = 0;
       hits = 0;
@@ -84,7 +134,7 @@ public class GameModel {
     * Start a new shooting window and reload the clip
     */
    public void startShootingWindow() {
-      beginShootingWindow = System.currentTimeMillis();
+      beginShootingWindow = now();
       endShootingWindow = beginShootingWindow + shootingWindowDuration;
       reload();
    }
@@ -104,7 +154,7 @@ public class GameModel {
    }
 
    public int getShootingTimeLeft() {
-      int timeLeft = (int) (endShootingWindow - System.currentTimeMillis());
+      int timeLeft = (int) (endShootingWindow - now());
       if(timeLeft < 0)
          timeLeft = 0;
       return timeLeft;
@@ -138,7 +188,7 @@ public class GameModel {
    }
 
    public int getGameTimeLeft() {
-      int timeLeft = (int) (endGame - System.currentTimeMillis());
+      int timeLeft = (int) (endGame - now());
       if(timeLeft < 0)
          timeLeft = 0;
       return timeLeft;
@@ -159,20 +209,20 @@ public class GameModel {
    /**
     * Is the current time past the end of the current shooting window.
     * @see #getEndShootingWindow()
-    * @return true if current system time is past end of current shooting window, false otherwise.
+    * @return true if the event or clock time is past end of current shooting window, false otherwise.
     */
    public boolean isShootingWindowExpired() {
-      long now = System.currentTimeMillis();
+      long now = now();
       return now > endShootingWindow;
    }
 
    /**
     * Is the current time past the end of the current game.
     * @see #getEndGame()
-    * @return true if current system time is past end of current game, false otherwise.
+    * @return true if the event or clock time is past end of current game, false otherwise.
     */
    public boolean isGameExpired() {
-      long now = System.currentTimeMillis();
+      long now = now();
       return now > endGame;
    }
 
@@ -34,7 +34,8 @@ import org.squirrelframework.foundation.fsm.impl.AbstractStateMachine;
    @Transit(from = "REPLACE_TARGET", to = "SHOOTING", on = "LEFT_PRESSED", callMethod = "enterShooting"),
    @Transit(from = "REPLACE_TARGET", to = "GAMEOVER", on = "GAME_TIMEOUT", callMethod = "onEnd"),
 })
-public class GameStateMachine extends AbstractStateMachine<GameStateMachine, GameStateMachine.GameState, GameStateMachine.GameEvent, GameModel> {
+public class GameStateMachine extends AbstractStateMachine<GameStateMachine, GameStateMachine.GameState, GameStateMachine.GameEvent, GameModel>
+   implements IGameStateMachine {
    public enum GameState {
       IDLE, SHOOTING, RESETTING, GUN_EMPTY, REPLACE_TARGET, GAMEOVER
    }
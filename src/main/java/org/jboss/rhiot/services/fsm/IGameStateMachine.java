@@ -0,0 +1,79 @@
+package org.jboss.rhiot.services.fsm;
+
+/**
+ * The game state machine operations used by the scanner. This is implemented by the squirrel-foundation based
+ * {@link GameStateMachine} and the table driven {@link TableGameStateMachine}, which share the
+ * {@link GameStateMachine.GameState}, {@link GameStateMachine.GameEvent} and {@link GameModel} types.
+ */
+public interface IGameStateMachine {
+   /**
+    * @return the current game state
+    */
+   GameStateMachine.GameState getCurrentState();
+
+   /**
+    * Fire the event at the state machine, running the transition action against the game model. Events with no
+    * transition from the current state are ignored.
+    * @param event - the game event
+    */
+   void fire(GameStateMachine.GameEvent event);
+
+   /**
+    * Start the state machine in its initial state
+    */
+   void start();
+
+   /**
+    * Release any resources held by the state machine, it is not used again afterwards
+    */
+   default void terminate() {
+   }
+
+   GameModel getGameModel();
+
+   void setGameModel(GameModel gameModel);
+
+   /**
+    * Generates and returns a graphviz dot digraph structure of the state machines as text
+    * @return digraph structure of the state machines as text
+    */
+   String exportAsString();
+
+   // Convenience methods brought up from GameModel
+   default boolean isShootingWindowExpired() {
+      return getGameModel().isShootingWindowExpired();
+   }
+   default boolean isGameExpired() {
+      return getGameModel().isGameExpired();
+   }
+   default int tookShot() {
+      return getGameModel().tookShot();
+   }
+   default boolean isClipEmpty() {
+      return getGameModel().getShotsLeft() <= 0;
+   }
+   default int getGameTimeLeft() {
+      return getGameModel().getGameTimeLeft();
+   }
+   default int getShotsLeft() {
+      return getGameModel().getShotsLeft();
+   }
+   default int getShootingTimeLeft() {
+      return getGameModel().getShootingTimeLeft();
+   }
+   default int recordHit(int luxReading) {
+      return getGameModel().recordHit(luxReading);
+   }
+   default int getHitScore() {
+      return getGameModel().getHitScore();
+   }
+   default int getHitRingsOffCenter() {
+      return getGameModel().getHitRingsOffCenter();
+   }
+   default int getScore() {
+      return getGameModel().getScore();
+   }
+   default int getHits() {
+      return getGameModel().getHits();
+   }
+}
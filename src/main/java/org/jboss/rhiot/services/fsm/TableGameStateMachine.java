@@ -0,0 +1,143 @@
+package org.jboss.rhiot.services.fsm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.squirrelframework.foundation.fsm.annotation.State;
+import org.squirrelframework.foundation.fsm.annotation.States;
+import org.squirrelframework.foundation.fsm.annotation.Transit;
+import org.squirrelframework.foundation.fsm.annotation.Transitions;
+
+import java.util.Arrays;
+
+/**
+ * A table driven implementation of the laser shoot a RHIoTTag game. The {@link Transitions} declared on
+ * {@link GameStateMachine} are compiled once into an int[state][event] next state table and a matching table of
+ * direct action handlers, so a fire is two array loads and an optional call with no reflection, event objects or
+ * console output. The states, events and {@link GameModel} semantics are the same as the squirrel-foundation engine.
+ */
+public class TableGameStateMachine implements IGameStateMachine {
+   private static final Logger log = LoggerFactory.getLogger(TableGameStateMachine.class);
+
+   /**
+    * A transition action against the game model
+    */
+   interface Action {
+      void execute(GameModel model);
+   }
+
+   private static final GameStateMachine.GameState[] STATES = GameStateMachine.GameState.values();
+   private static final GameStateMachine.GameEvent[] EVENTS = GameStateMachine.GameEvent.values();
+   private static final Action NO_ACTION = model -> {};
+   /** The next state ordinal indexed by [state][event], -1 if there is no transition */
+   private static final int[][] NEXT_STATE;
+   /** The transition action indexed by [state][event] */
+   private static final Action[][] ACTIONS;
+   /** The initial state ordinal */
+   private static final int INITIAL_STATE;
+
+   static {
+      NEXT_STATE = new int[STATES.length][EVENTS.length];
+      ACTIONS = new Action[STATES.length][EVENTS.length];
+      for (int[] row : NEXT_STATE) {
+         Arrays.fill(row, -1);
+      }
+      Transitions transitions = GameStateMachine.class.getAnnotation(Transitions.class);
+      for (Transit transit : transitions.value()) {
+         int from = GameStateMachine.GameState.valueOf(transit.from()).ordinal();
+         int to = GameStateMachine.GameState.valueOf(transit.to()).ordinal();
+         int on = GameStateMachine.GameEvent.valueOf(transit.on()).ordinal();
+         NEXT_STATE[from][on] = to;
+         ACTIONS[from][on] = action(transit.callMethod());
+      }
+      int initial = 0;
+      States states = GameStateMachine.class.getAnnotation(States.class);
+      for (State state : states.value()) {
+         if(state.initialState())
+            initial = GameStateMachine.GameState.valueOf(state.name()).ordinal();
+      }
+      INITIAL_STATE = initial;
+   }
+
+   private int state = INITIAL_STATE;
+   private GameModel gameModel;
+
+   /**
+    * Map a GameStateMachine callMethod onto its direct action
+    * @param callMethod - the callMethod of the transition
+    * @return the action that has the same effect on the game model
+    */
+   private static Action action(String callMethod) {
+      switch (callMethod) {
+         case "onStart":
+            return GameModel::startGame;
+         case "enterShooting":
+            return GameModel::startShootingWindow;
+         case "onRefill":
+            return GameModel::reload;
+         case "":
+         case "onCheckShot":
+         case "onHitDetected":
+         case "onLSReset":
+         case "onEndShootingWindow":
+         case "onEmpty":
+         case "onEnd":
+            return NO_ACTION;
+         default:
+            // A new GameStateMachine action needs a handler here
+            throw new IllegalStateException("No table action for GameStateMachine."+callMethod);
+      }
+   }
+
+   @Override
+   public GameStateMachine.GameState getCurrentState() {
+      return STATES[state];
+   }
+
+   @Override
+   public void fire(GameStateMachine.GameEvent event) {
+      int from = state;
+      int on = event.ordinal();
+      int to = NEXT_STATE[from][on];
+      if(to < 0)
+         return;
+      ACTIONS[from][on].execute(gameModel);
+      state = to;
+      if(log.isDebugEnabled())
+         log.debug(String.format("TableGameStateMachine(%s,%s,%s)", STATES[from], STATES[to], event));
+   }
+
+   @Override
+   public void start() {
+      state = INITIAL_STATE;
+   }
+
+   @Override
+   public GameModel getGameModel() {
+      return gameModel;
+   }
+
+   @Override
+   public void setGameModel(GameModel gameModel) {
+      this.gameModel = gameModel;
+   }
+
+   @Override
+   public String exportAsString() {
+      StringBuilder buffer = new StringBuilder();
+      buffer.append("digraph {\ncompound=true;\n");
+      buffer.append("subgraph cluster_StateMachine {\nlabel=\"").append(getClass().getName()).append("\";\n");
+      for (GameStateMachine.GameState s : STATES) {
+         buffer.append(s).append(" [label=\"").append(s).append("\"];\n");
+      }
+      for (int from = 0; from < STATES.length; from++) {
+         for (int on = 0; on < EVENTS.length; on++) {
+            int to = NEXT_STATE[from][on];
+            if(to >= 0)
+               buffer.append('\n').append(STATES[from]).append(" -> ").append(STATES[to])
+                  .append(" [ label=\"").append(EVENTS[on]).append("\"];");
+         }
+      }
+      buffer.append("}}\n");
+      return buffer.toString();
+   }
+}
@@ -0,0 +1,38 @@
+package org.jboss.rhiot.services.fsm;
+
+/**
+ * A clock that only moves when it is told to, for running games on simulated time in tests and replays
+ */
+public class VirtualGameClock implements GameClock {
+   private volatile long now;
+
+   /**
+    * @param start - the initial time in ms
+    */
+   public VirtualGameClock(long start) {
+      this.now = start;
+   }
+
+   @Override
+   public long millis() {
+      return now;
+   }
+
+   /**
+    * Move the clock forward
+    * @param millis - the number of ms to advance by
+    * @return the new time
+    */
+   public synchronized long advance(long millis) {
+      now += millis;
+      return now;
+   }
+
+   /**
+    * Set the time
+    * @param millis - the new time in ms
+    */
+   public void set(long millis) {
+      now = millis;
+   }
+}
@@ -0,0 +1,52 @@
+package fsm;
+
+import org.jboss.rhiot.services.fsm.CoarseGameClock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Check that the game time stays monotonic across wall clock steps while the wall time conversions follow a step
+ * once it is past the drift bound.
+ */
+public class TestCoarseGameClock {
+   private static final long START = 1460000000000L;
+
+   public static void main(String[] args) {
+      AtomicLong wall = new AtomicLong(START);
+      AtomicLong nanos = new AtomicLong(TimeUnit.SECONDS.toNanos(100));
+      CoarseGameClock clock = new CoarseGameClock(wall::get, nanos::get);
+
+      advance(wall, nanos, 500);
+      assert clock.refresh() == START + 500;
+      assert clock.wallMillis() == START + 500;
+
+      // A slew within the drift bound is not followed
+      wall.addAndGet(800);
+      assert clock.refresh() == START + 500;
+      assert clock.wallMillis() == START + 500;
+
+      // Step the wall clock back an hour, the game time keeps going and the wall offset is re-anchored
+      wall.addAndGet(-TimeUnit.HOURS.toMillis(1));
+      advance(wall, nanos, 100);
+      long game = clock.refresh();
+      assert game == START + 600 : game;
+      assert clock.wallMillis() == wall.get() : clock.wallMillis() + " != " + wall.get();
+      assert clock.fromWall(wall.get()) == game;
+      assert clock.toWall(game + 250) == wall.get() + 250;
+
+      // And forward a day
+      wall.addAndGet(TimeUnit.DAYS.toMillis(1));
+      advance(wall, nanos, 100);
+      game = clock.refresh();
+      assert game == START + 700 : game;
+      assert clock.wallMillis() == wall.get();
+      assert clock.fromWall(wall.get() - 40) == game - 40;
+      System.out.printf("game=%d, wall=%d\n", game, clock.wallMillis());
+   }
+
+   private static void advance(AtomicLong wall, AtomicLong nanos, long millis) {
+      wall.addAndGet(millis);
+      nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+   }
+}
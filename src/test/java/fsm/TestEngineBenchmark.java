@@ -0,0 +1,83 @@
+package fsm;
+
+import org.jboss.rhiot.services.fsm.GameModel;
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+import org.jboss.rhiot.services.fsm.IGameStateMachine;
+import org.jboss.rhiot.services.fsm.TableGameStateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineBuilder;
+import org.squirrelframework.foundation.fsm.StateMachineBuilderFactory;
+import org.squirrelframework.foundation.fsm.StateMachineConfiguration;
+
+import java.util.function.Supplier;
+
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.CLIP_EMPTY;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.GAME_TIMEOUT;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.HIT_DETECTED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.LEFT_PRESSED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.LEFT_RIGHT_PRESSED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.LS_RESET;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.RIGHT_PRESSED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.WINDOW_TIMEOUT;
+
+/**
+ * Compare the throughput per fire and the heap retained per machine of the squirrel-foundation and table driven
+ * game engines. Run with -Dengine=table to only measure the table engine.
+ */
+public class TestEngineBenchmark {
+   /** A cycle of events that starts and ends in SHOOTING and takes every transition out of it */
+   private static final GameStateMachine.GameEvent[] CYCLE = {
+      HIT_DETECTED, LS_RESET, WINDOW_TIMEOUT, LEFT_PRESSED, CLIP_EMPTY, RIGHT_PRESSED, GAME_TIMEOUT, LEFT_RIGHT_PRESSED
+   };
+   private static final int FIRES = 2000000;
+   private static final int MACHINES = 2000;
+
+   public static void main(String[] args) {
+      String engine = System.getProperty("engine", "all");
+      if(!engine.equals("table")) {
+         StateMachineBuilder<GameStateMachine, GameStateMachine.GameState, GameStateMachine.GameEvent, GameModel> builder =
+            StateMachineBuilderFactory.create(GameStateMachine.class, GameStateMachine.GameState.class, GameStateMachine.GameEvent.class, GameModel.class);
+         builder.setStateMachineConfiguration(StateMachineConfiguration.create().enableRemoteMonitor(false).enableDebugMode(false));
+         run("squirrel", () -> builder.newStateMachine(GameStateMachine.GameState.IDLE), FIRES / 20);
+      }
+      run("table", TableGameStateMachine::new, FIRES);
+   }
+
+   private static void run(String name, Supplier<IGameStateMachine> factory, int fires) {
+      IGameStateMachine gsm = factory.get();
+      gsm.setGameModel(new GameModel());
+      gsm.start();
+      gsm.fire(LEFT_RIGHT_PRESSED);
+      // Warm up then measure
+      fireCycles(gsm, fires / 4);
+      long start = System.nanoTime();
+      fireCycles(gsm, fires);
+      long elapsed = System.nanoTime() - start;
+      System.out.printf("%s: %.1f ns/fire, %.0f fires/s\n", name, (double) elapsed / fires, fires * 1e9 / elapsed);
+
+      IGameStateMachine[] machines = new IGameStateMachine[MACHINES];
+      long before = usedHeap();
+      for (int n = 0; n < MACHINES; n++) {
+         machines[n] = factory.get();
+         machines[n].setGameModel(new GameModel());
+         machines[n].start();
+      }
+      long after = usedHeap();
+      System.out.printf("%s: %d bytes/machine (including GameModel)\n", name, (after - before) / MACHINES);
+      if(machines[MACHINES - 1].getCurrentState() != GameStateMachine.GameState.IDLE)
+         throw new AssertionError("Machine did not start in IDLE");
+   }
+
+   private static void fireCycles(IGameStateMachine gsm, int fires) {
+      for (int n = 0; n < fires; n++) {
+         gsm.fire(CYCLE[n % CYCLE.length]);
+      }
+   }
+
+   private static long usedHeap() {
+      Runtime runtime = Runtime.getRuntime();
+      for (int n = 0; n < 3; n++) {
+         System.gc();
+      }
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+}
@@ -0,0 +1,74 @@
+package fsm;
+
+import org.jboss.rhiot.services.fsm.GameModel;
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+import org.jboss.rhiot.services.fsm.IGameStateMachine;
+import org.jboss.rhiot.services.fsm.TableGameStateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineBuilder;
+import org.squirrelframework.foundation.fsm.StateMachineBuilderFactory;
+import org.squirrelframework.foundation.fsm.StateMachineConfiguration;
+
+import java.util.Random;
+
+/**
+ * Run the squirrel-foundation and table driven game engines on identical random event sequences and check that they
+ * agree on the state and game model after every event.
+ */
+public class TestEngineConformance {
+   private static final int SEQUENCES = 1000;
+   private static final int EVENTS_PER_SEQUENCE = 200;
+
+   public static void main(String[] args) {
+      StateMachineBuilder<GameStateMachine, GameStateMachine.GameState, GameStateMachine.GameEvent, GameModel> builder =
+         StateMachineBuilderFactory.create(GameStateMachine.class, GameStateMachine.GameState.class, GameStateMachine.GameEvent.class, GameModel.class);
+      builder.setStateMachineConfiguration(StateMachineConfiguration.create().enableRemoteMonitor(false).enableDebugMode(false));
+
+      GameStateMachine.GameEvent[] events = GameStateMachine.GameEvent.values();
+      Random random = new Random(0x52484954L);
+      long fired = 0;
+      for (int s = 0; s < SEQUENCES; s++) {
+         GameStateMachine squirrel = builder.newStateMachine(GameStateMachine.GameState.IDLE);
+         squirrel.setGameModel(new GameModel());
+         squirrel.start();
+         IGameStateMachine table = new TableGameStateMachine();
+         table.setGameModel(new GameModel());
+         table.start();
+         check(s, -1, null, squirrel, table);
+
+         for (int n = 0; n < EVENTS_PER_SEQUENCE; n++) {
+            GameStateMachine.GameEvent event = events[random.nextInt(events.length)];
+            if(event == GameStateMachine.GameEvent.HIT_DETECTED) {
+               // The scanner scores the hit before firing the event
+               int lux = 20000 + random.nextInt(30000);
+               squirrel.tookShot();
+               squirrel.recordHit(lux);
+               table.tookShot();
+               table.recordHit(lux);
+            }
+            squirrel.fire(event);
+            table.fire(event);
+            fired ++;
+            check(s, n, event, squirrel, table);
+         }
+         squirrel.terminate();
+      }
+      System.out.printf("Engines agree on %d events in %d sequences\n", fired, SEQUENCES);
+   }
+
+   private static void check(int sequence, int n, GameStateMachine.GameEvent event, IGameStateMachine expected, IGameStateMachine actual) {
+      String where = String.format("sequence=%d, event#%d=%s", sequence, n, event);
+      if(expected.getCurrentState() != actual.getCurrentState())
+         throw new AssertionError(where+": state "+expected.getCurrentState()+" != "+actual.getCurrentState());
+      if(expected.getShotsLeft() != actual.getShotsLeft())
+         throw new AssertionError(where+": shotsLeft "+expected.getShotsLeft()+" != "+actual.getShotsLeft());
+      if(expected.getScore() != actual.getScore())
+         throw new AssertionError(where+": score "+expected.getScore()+" != "+actual.getScore());
+      if(expected.getHits() != actual.getHits())
+         throw new AssertionError(where+": hits "+expected.getHits()+" != "+actual.getHits());
+      GameModel em = expected.getGameModel();
+      GameModel am = actual.getGameModel();
+      // Both engines start the game and shooting window at the same point, allow for the clock ticking between them
+      if(Math.abs(em.getEndGame() - am.getEndGame()) > 50 || Math.abs(em.getEndShootingWindow() - am.getEndShootingWindow()) > 50)
+         throw new AssertionError(where+": game model timing differs");
+   }
+}
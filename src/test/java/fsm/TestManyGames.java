@@ -0,0 +1,93 @@
+package fsm;
+
+import org.jboss.rhiot.services.fsm.GameModel;
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+import org.jboss.rhiot.services.fsm.IGameStateMachine;
+import org.jboss.rhiot.services.fsm.TableGameStateMachine;
+import org.jboss.rhiot.services.fsm.VirtualGameClock;
+
+import java.util.Random;
+
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.CLIP_EMPTY;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.GAME_TIMEOUT;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.HIT_DETECTED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.LEFT_PRESSED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.LEFT_RIGHT_PRESSED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.LS_RESET;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.RIGHT_PRESSED;
+import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.WINDOW_TIMEOUT;
+
+/**
+ * Play thousands of complete 15 second games on a virtual clock, driving the machine the way the scanner does from
+ * a player that randomly hits, misses and reloads every 100ms of game time. Each game has to end within a step of
+ * its game duration and never score more than a bullseye per hit.
+ */
+public class TestManyGames {
+   private static final int GAMES = 10000;
+   private static final long STEP_MILLIS = 100;
+
+   public static void main(String[] args) {
+      VirtualGameClock clock = new VirtualGameClock(0);
+      GameModel gameModel = new GameModel(clock);
+      IGameStateMachine gsm = new TableGameStateMachine();
+      gsm.setGameModel(gameModel);
+      gsm.start();
+      Random random = new Random(1234);
+
+      long start = System.nanoTime();
+      long steps = 0;
+      long totalScore = 0;
+      for (int game = 0; game < GAMES; game++) {
+         gsm.fire(LEFT_RIGHT_PRESSED);
+         long begin = gameModel.getBeginGame();
+         assert gsm.getCurrentState() == GameStateMachine.GameState.SHOOTING : gsm.getCurrentState();
+         while (gsm.getCurrentState() != GameStateMachine.GameState.GAMEOVER) {
+            clock.advance(STEP_MILLIS);
+            step(gsm, random);
+            steps ++;
+         }
+         long length = clock.millis() - begin;
+         assert length > gameModel.getGameDuration() && length <= gameModel.getGameDuration() + STEP_MILLIS : "Game lasted "+length+"ms";
+         assert gsm.getScore() <= 1000 * gsm.getHits() : "Score "+gsm.getScore()+" for "+gsm.getHits()+" hits";
+         totalScore += gsm.getScore();
+      }
+      long elapsed = System.nanoTime() - start;
+      System.out.printf("Played %d games (%d simulated seconds, %d steps) in %d ms, average score=%d\n", GAMES,
+         clock.millis() / 1000, steps, elapsed / 1000000, totalScore / GAMES);
+   }
+
+   /**
+    * Apply the scanner's event determination for one step of game time
+    */
+   private static void step(IGameStateMachine gsm, Random random) {
+      GameStateMachine.GameState state = gsm.getCurrentState();
+      if(gsm.isGameExpired()) {
+         gsm.fire(GAME_TIMEOUT);
+         return;
+      }
+      switch (state) {
+         case SHOOTING:
+            if(gsm.isShootingWindowExpired()) {
+               gsm.fire(WINDOW_TIMEOUT);
+            } else if(gsm.isClipEmpty()) {
+               gsm.fire(CLIP_EMPTY);
+            } else if(random.nextInt(4) == 0) {
+               gsm.tookShot();
+               gsm.recordHit(20000 + random.nextInt(29151));
+               gsm.fire(HIT_DETECTED);
+            }
+            break;
+         case RESETTING:
+            gsm.fire(LS_RESET);
+            break;
+         case GUN_EMPTY:
+            gsm.fire(RIGHT_PRESSED);
+            break;
+         case REPLACE_TARGET:
+            gsm.fire(LEFT_PRESSED);
+            break;
+         default:
+            break;
+      }
+   }
+}
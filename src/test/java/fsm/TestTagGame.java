@@ -2,6 +2,7 @@ package fsm;
 
 import org.jboss.rhiot.services.fsm.GameModel;
 import org.jboss.rhiot.services.fsm.GameStateMachine;
+import org.jboss.rhiot.services.fsm.VirtualGameClock;
 import org.squirrelframework.foundation.fsm.StateMachineBuilder;
 import org.squirrelframework.foundation.fsm.StateMachineBuilderFactory;
 import org.squirrelframework.foundation.fsm.StateMachineConfiguration;
@@ -16,11 +17,12 @@ import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.LEFT_RIGHT
 import static org.jboss.rhiot.services.fsm.GameStateMachine.GameEvent.WINDOW_TIMEOUT;
 
 /**
- * Test the shoot a RHIoTTag game state machine
+ * Test the shoot a RHIoTTag game state machine. The game runs on a virtual clock that is advanced a second at a time.
  */
 public class TestTagGame {
-   public static void main(String[] args) throws InterruptedException {
-      GameModel gameModel = new GameModel();
+   public static void main(String[] args) {
+      VirtualGameClock clock = new VirtualGameClock(System.currentTimeMillis());
+      GameModel gameModel = new GameModel(clock);
 
       StateMachineBuilder<GameStateMachine, GameStateMachine.GameState, GameStateMachine.GameEvent, GameModel> builder =
          StateMachineBuilderFactory.create(GameStateMachine.class, GameStateMachine.GameState.class, GameStateMachine.GameEvent.class, GameModel.class);
@@ -52,7 +54,7 @@ public class TestTagGame {
                   // Wait for a second to allow window to expire before bullets run out
                   if(gameModel.getShotsLeft() % 2 != 0)
                      controller.fire(HIT_DETECTED);
-                  Thread.sleep(1000);
+                  clock.advance(1000);
                }
                break;
             case GUN_EMPTY:
@@ -65,7 +67,7 @@ public class TestTagGame {
 
                break;
          }
-         Thread.sleep(1000);
+         clock.advance(1000);
          lastState = controller.getCurrentState();
       }
       System.out.printf("GAMEOVER\n");
@@ -0,0 +1,108 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.ble.bluez.AdStructure;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Check that recorded adverts read back with their fields intact, and that a capture replays through a scanner
+ * without the JNI library at its captured pace and at max speed.
+ */
+public class TestAdvertCapture {
+   public static void main(String[] args) throws Exception {
+      File file = File.createTempFile("adverts", ".bin");
+      file.deleteOnExit();
+      ScannerMetrics metrics = new ScannerMetrics();
+
+      // Two tags, a game start then telemetry and hits, 5ms apart
+      List<AdvertCapture.CapturedAdvert> adverts = new ArrayList<>();
+      try(AdvertCapture.Recorder recorder = new AdvertCapture.Recorder(file, 1 << 20, metrics)) {
+         for (int n = 0; n < 40; n++) {
+            short last = (short) (0x82 + n % 2);
+            int keys = n < 2 ? 3 : 0;
+            int lux = n % 7 == 6 ? 25000 : 300 + n;
+            AdvertCapture.CapturedAdvert advert = advert(last, keys, lux, 2150 + n, -60 - n % 10, n, 1460000000000L + n * 5);
+            adverts.add(advert);
+            assert recorder.record(advert);
+            Thread.sleep(5);
+         }
+      }
+      System.out.printf("40 adverts, %d bytes\n", file.length());
+      assert metrics.snapshot().get("capture.recorded") == 40;
+
+      try(AdvertCapture.Reader reader = new AdvertCapture.Reader(file)) {
+         long lastArrival = -1;
+         for (AdvertCapture.CapturedAdvert expected : adverts) {
+            AdvertCapture.CapturedAdvert advert = reader.next();
+            assert advert != null;
+            assert advert.getBDaddrAsString().equals(expected.getBDaddrAsString());
+            assert advert.getRssi() == expected.getRssi() : advert.getRssi();
+            assert advert.getCount() == expected.getCount();
+            assert advert.getTime() == expected.getTime();
+            assert advert.getEvtType() == expected.getEvtType();
+            assert advert.getData().size() == 2;
+            assert advert.getData().get(1).getType() == RHIoTTagDecoder.AD_MANUFACTURER_DATA;
+            assert java.util.Arrays.equals(advert.getData().get(1).getData(), expected.getData().get(1).getData());
+            assert advert.getArrivalMicros() > lastArrival;
+            lastArrival = advert.getArrivalMicros();
+         }
+         assert reader.next() == null;
+         assert lastArrival >= 39 * 5000 : "Arrival times kept";
+      }
+
+      // Replay at the captured pace, then at max speed
+      Map<String, Object> properties = new HashMap<>();
+      properties.put("game.engine", "table");
+      properties.put("publish.heartbeatMillis", 0);
+      properties.put("publish.batch.intervalMillis", 0);
+      properties.put("publish.spool.maxBytes", 0);
+      RecordingPublishSink sink = new RecordingPublishSink(false);
+      AdvertReplayer.Result paced = AdvertReplayer.replay(file, 1, properties, sink);
+      System.out.printf("1x: %s", paced);
+      assert paced.getAdverts() == 40;
+      assert paced.getMetrics().get("ring.published") == 40;
+      assert paced.getPublishes() > 0 : "Adverts played through the games";
+      AdvertReplayer.Result max = AdvertReplayer.replay(file, 0, properties, new RecordingPublishSink(false));
+      System.out.printf("max: %s", max);
+      assert max.getAdverts() == 40;
+
+      // A burst larger than the staging ring never blocks the callback, what the writer cannot keep up with is dropped
+      File burstFile = File.createTempFile("burst", ".bin");
+      burstFile.deleteOnExit();
+      ScannerMetrics burstMetrics = new ScannerMetrics();
+      AdvertCapture.CapturedAdvert advert = adverts.get(10);
+      int staged = 0;
+      try(AdvertCapture.Recorder recorder = new AdvertCapture.Recorder(burstFile, 1 << 20, burstMetrics)) {
+         for (int n = 0; n < 10000; n++) {
+            if(recorder.record(advert))
+               staged++;
+         }
+         recorder.close();
+         assert !recorder.record(advert) : "Dropped after close";
+      }
+      Map<String, Long> counts = burstMetrics.snapshot();
+      System.out.printf("burst: staged=%d, recorded=%d, dropped=%d\n", staged, counts.get("capture.recorded"), counts.get("capture.dropped"));
+      assert counts.get("capture.recorded") == staged : "Staged adverts written on close";
+      assert counts.get("capture.dropped") == 10001 - staged;
+      int read = 0;
+      try(AdvertCapture.Reader reader = new AdvertCapture.Reader(burstFile)) {
+         while (reader.next() != null)
+            read++;
+      }
+      assert read == staged : read;
+   }
+
+   private static AdvertCapture.CapturedAdvert advert(short last, int keys, int lux, int centiC, int rssi, int count, long time) {
+      byte[] data = {0x0D, 0x00, (byte) centiC, (byte) (centiC >> 8), (byte) keys, (byte) lux, (byte) (lux >> 8)};
+      List<AdStructure> ads = new ArrayList<>();
+      ads.add(new AdvertCapture.CapturedAdStructure(0x01, new byte[]{0x06}));
+      ads.add(new AdvertCapture.CapturedAdStructure(RHIoTTagDecoder.AD_MANUFACTURER_DATA, data));
+      short[] address = {0xA0, 0xE6, 0xF8, 0xAD, 0x2E, last};
+      return new AdvertCapture.CapturedAdvert(0, address, (byte) 0, (byte) 3, 0x3E, rssi, count, time, Collections.unmodifiableList(ads));
+   }
+}
@@ -0,0 +1,103 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.ble.bluez.AdEventInfo;
+import org.jboss.rhiot.ble.bluez.AdStructure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check that without flyweight decoding the consumer parses its own copy of each advert, so the native callback may
+ * reuse its AdEventInfo and data arrays as soon as publish returns.
+ */
+public class TestAdvertRingBuffer {
+   private static final int ADVERTS = 200;
+
+   public static void main(String[] args) throws Exception {
+      List<TagReading> readings = new ArrayList<>();
+      List<AdEventInfo> infos = new ArrayList<>();
+      CountDownLatch consumed = new CountDownLatch(ADVERTS);
+      AdvertRingBuffer ring = new AdvertRingBuffer(ADVERTS, AdvertRingBuffer.OverflowPolicy.BLOCK, false, (info, reading) -> {
+         TagReading decoded = new TagReading();
+         RHIoTTagDecoder.decode(info, RHIoTTagDecoder.indexOf(info), decoded);
+         decoded.setRssi(reading.getRssi());
+         decoded.setTime(reading.getTime());
+         readings.add(decoded);
+         infos.add(info);
+         consumed.countDown();
+      }, new ScannerMetrics());
+
+      // One advert whose address and data arrays the producer overwrites for the next advert
+      byte[] data = new byte[7];
+      short[] address = {0xA0, 0xE6, 0xF8, 0xAD, 0x2E, 0x00};
+      List<AdStructure> ads = new ArrayList<>();
+      ads.add(new AdvertCapture.CapturedAdStructure(0x01, new byte[]{0x06}));
+      ads.add(new AdvertCapture.CapturedAdStructure(RHIoTTagDecoder.AD_MANUFACTURER_DATA, data));
+      MutableAdvert advert = new MutableAdvert(address, ads);
+      // Fill the ring before the consumer runs so every slot is still queued when its source is overwritten
+      for (int n = 0; n < ADVERTS; n++) {
+         fill(advert, data, n);
+         assert ring.publish(advert);
+      }
+      fill(advert, data, -1);
+      ring.start();
+      assert consumed.await(5, TimeUnit.SECONDS) : "Consumed "+(ADVERTS - consumed.getCount());
+      ring.stop();
+
+      for (int n = 0; n < ADVERTS; n++) {
+         TagReading reading = readings.get(n);
+         assert reading.getAddress() == (0xA0E6F8AD2E00L | (n & 0xFF)) : Utils.formatAddress(reading.getAddress());
+         assert reading.getLux() == 300 + n : reading.getLux();
+         assert reading.getKeys() == (n & 3);
+         assert reading.getRssi() == -40 - n % 50 : reading.getRssi();
+         assert reading.getTime() == 1460000000000L + n;
+         assert infos.get(n) != advert : "Consumer was given the producer's advert";
+         assert infos.get(n).getData().size() == 2;
+      }
+      System.out.printf("%d adverts parsed from the slot copies\n", ADVERTS);
+   }
+
+   private static void fill(MutableAdvert advert, byte[] data, int n) {
+      int lux = 300 + n;
+      byte[] values = {0x0D, 0x00, 0x66, 0x08, (byte) (n & 3), (byte) lux, (byte) (lux >> 8)};
+      System.arraycopy(values, 0, data, 0, data.length);
+      advert.address[5] = (short) (n & 0xFF);
+      advert.rssi = -40 - n % 50;
+      advert.time = 1460000000000L + n;
+   }
+
+   /** An advert the test reuses the way the native callback reuses its buffers */
+   private static final class MutableAdvert extends AdEventInfo {
+      final short[] address;
+      final List<AdStructure> data;
+      int rssi;
+      long time;
+
+      MutableAdvert(short[] address, List<AdStructure> data) {
+         this.address = address;
+         this.data = data;
+      }
+
+      @Override
+      public short[] getBDaddr() {
+         return address;
+      }
+
+      @Override
+      public int getRssi() {
+         return rssi;
+      }
+
+      @Override
+      public long getTime() {
+         return time;
+      }
+
+      @Override
+      public List<AdStructure> getData() {
+         return data;
+      }
+   }
+}
@@ -0,0 +1,146 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IRHIoTTagScanner;
+import org.jboss.rhiot.services.fsm.GameClock;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Check that compact telemetry payloads decode back to the published values, and compare the payload sizes of the
+ * named metrics, compact and compact deflated formats for single adverts and batches.
+ */
+public class TestCompactTelemetry {
+   public static void main(String[] args) throws Exception {
+      roundTrip(false);
+      roundTrip(true);
+      corrupt();
+      sizes();
+   }
+
+   /**
+    * A corrupt body fails with an IOException before anything is sized from it
+    */
+   private static void corrupt() {
+      byte version = (byte) CompactTelemetryCodec.VERSION;
+      // A sample count of 2^31 - 1, then one of -1 as a 10 byte varint
+      byte[][] bodies = {
+         {version, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07},
+         {version, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01},
+         // One sample with a time column longer than the body
+         {version, 0, 0x01, CompactTelemetryCodec.FIELD_TIME, 0x7F, 0x00},
+      };
+      for (byte[] body : bodies) {
+         try {
+            CompactTelemetryCodec.decode(body);
+            assert false : "Corrupt body decoded";
+         } catch (IOException expected) {
+         }
+      }
+   }
+
+   private static void roundTrip(boolean deflate) throws Exception {
+      CompactTelemetryCodec codec = new CompactTelemetryCodec(deflate);
+      CompactTelemetryCodec.Transition hit = new CompactTelemetryCodec.Transition("SHOOTING", "SHOOTING", "HIT_DETECTED", true, 75, 2);
+      KuraPayload payload = codec.sample(1460000000123L, 21.37, (byte) 0, 25400, 12000, 175, 3500, 4, hit);
+      assert payload.getMetric(IRHIoTTagScanner.TAG_FORMAT).equals(CompactTelemetryCodec.VERSION);
+      List<Map<String, Object>> samples = CompactTelemetryCodec.decode(payload.getBody());
+      assert samples.size() == 1;
+      Map<String, Object> sample = samples.get(0);
+      System.out.printf("deflate=%s, %s\n", deflate, sample);
+      assert sample.get(IRHIoTTagScanner.TAG_SAMPLE_TIME).equals(1460000000123L);
+      assert sample.get(IRHIoTTagScanner.TAG_TEMP).equals(21.37);
+      assert sample.get(IRHIoTTagScanner.TAG_LUX).equals(25400);
+      assert sample.get(IRHIoTTagScanner.TAG_EVENT).equals("HIT_DETECTED");
+      assert sample.get(IRHIoTTagScanner.TAG_HIT_SCORE).equals(75);
+      assert sample.get(IRHIoTTagScanner.TAG_SHOTS_LEFT).equals(4);
+
+      // A batch through the batcher
+      List<KuraPayload> published = new ArrayList<>();
+      TagRegistry registry = new TagRegistry();
+      TagEntry entry = registry.getOrCreate(TagAddress.parse("A0:E6:F8:AD:2E:82"));
+      TelemetryBatcher batcher = new TelemetryBatcher(60000, 20, registry, GameClock.SYSTEM, codec,
+         (topic, p, qos, retain) -> published.add(p), new ScannerMetrics());
+      TagReading reading = new TagReading();
+      for (int n = 0; n < 20; n++) {
+         reading.set(entry.getAddress().getValue(), (byte) (n % 3), 400 + n * 7 - (n % 2) * 20, 20.5 + n * 0.01);
+         batcher.add(entry, "data/tag", 0, false, reading, 1460000000000L + n * 100, 15000 - n * 100, n, 5000 - n * 100, 10);
+      }
+      assert published.size() == 1;
+      samples = CompactTelemetryCodec.decode(published.get(0).getBody());
+      assert samples.size() == 20;
+      for (int n = 0; n < 20; n++) {
+         sample = samples.get(n);
+         assert sample.get(IRHIoTTagScanner.TAG_SAMPLE_TIME).equals(1460000000000L + n * 100);
+         assert sample.get(IRHIoTTagScanner.TAG_KEYS).equals(n % 3);
+         assert sample.get(IRHIoTTagScanner.TAG_LUX).equals(400 + n * 7 - (n % 2) * 20) : sample;
+         assert Math.abs((Double) sample.get(IRHIoTTagScanner.TAG_TEMP) - (20.5 + n * 0.01)) < 0.005 : sample;
+         assert sample.get(IRHIoTTagScanner.TAG_GAME_TIME_LEFT).equals(15000 - n * 100);
+         assert sample.get(IRHIoTTagScanner.TAG_GAME_SCORE).equals(n);
+      }
+   }
+
+   private static void sizes() {
+      System.out.printf("%8s %10s %10s %10s\n", "samples", "metrics", "compact", "deflated");
+      for (int count : new int[]{1, 5, 10, 50}) {
+         int[] sizes = new int[3];
+         CompactTelemetryCodec[] codecs = {null, new CompactTelemetryCodec(false), new CompactTelemetryCodec(true)};
+         for (int c = 0; c < codecs.length; c++) {
+            List<KuraPayload> published = new ArrayList<>();
+            TagRegistry registry = new TagRegistry();
+            TagEntry entry = registry.getOrCreate(TagAddress.parse("A0:E6:F8:AD:2E:82"));
+            TelemetryBatcher batcher = new TelemetryBatcher(60000, Math.max(2, count), registry, GameClock.SYSTEM, codecs[c],
+               (topic, p, qos, retain) -> published.add(p), new ScannerMetrics());
+            TagReading reading = new TagReading();
+            for (int n = 0; n < count; n++) {
+               reading.set(entry.getAddress().getValue(), (byte) 0, 350 + (n * 37) % 60, 21.25 + (n % 4) * 0.06);
+               batcher.add(entry, "data/tag", 0, false, reading, 1460000000000L + n * 105, 15000 - n * 105, 100, 5000 - n * 105, 10);
+            }
+            batcher.flush(entry);
+            sizes[c] = protobufSize(published.get(0));
+         }
+         System.out.printf("%8d %10d %10d %10d\n", count, sizes[0], sizes[1], sizes[2]);
+         assert sizes[1] * 3 < sizes[0] : "Compact is at least 3x smaller";
+      }
+   }
+
+   /**
+    * Estimate the size of the payload in the Kura protobuf encoding
+    */
+   private static int protobufSize(KuraPayload payload) {
+      int size = payload.getTimestamp() != null ? 1 + varintSize(payload.getTimestamp().getTime()) : 0;
+      for (String name : payload.metricNames()) {
+         Object value = payload.getMetric(name);
+         int metric = 1 + varintSize(name.length()) + name.length() + 2;
+         if(value instanceof Double)
+            metric += 1 + 8;
+         else if(value instanceof Integer)
+            metric += 1 + varintSize((Integer) value);
+         else if(value instanceof Long)
+            metric += 1 + varintSize((Long) value);
+         else if(value instanceof Boolean)
+            metric += 2;
+         else {
+            int length = String.valueOf(value).getBytes(StandardCharsets.UTF_8).length;
+            metric += 1 + varintSize(length) + length;
+         }
+         size += 1 + varintSize(metric) + metric;
+      }
+      if(payload.getBody() != null)
+         size += 1 + varintSize(payload.getBody().length) + payload.getBody().length;
+      return size;
+   }
+
+   private static int varintSize(long value) {
+      int size = 1;
+      while ((value & ~0x7FL) != 0) {
+         value >>>= 7;
+         size ++;
+      }
+      return size;
+   }
+}
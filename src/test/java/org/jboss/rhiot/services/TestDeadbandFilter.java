@@ -0,0 +1,49 @@
+package org.jboss.rhiot.services;
+
+/**
+ * Check that repeated tag telemetry is suppressed until a value moves past its deadband or the heartbeat is due, and
+ * that only published telemetry moves the baseline.
+ */
+public class TestDeadbandFilter {
+   public static void main(String[] args) {
+      ScannerMetrics metrics = new ScannerMetrics();
+      DeadbandFilter filter = new DeadbandFilter(0.5, 500, 5000, metrics);
+      TagEntry entry = new TagEntry(TagAddress.parse("A0:E6:F8:AD:2E:82"));
+      long address = entry.getAddress().getValue();
+      TagReading reading = new TagReading();
+
+      reading.set(address, (byte) 0, 1000, 21.0);
+      assert send(filter, entry, reading, 0) : "First sample is always sent";
+      reading.set(address, (byte) 0, 1400, 21.4);
+      assert !send(filter, entry, reading, 100) : "Within both deadbands";
+      reading.set(address, (byte) 0, 1500, 21.4);
+      assert send(filter, entry, reading, 200) : "Lux moved past its deadband";
+      reading.set(address, (byte) 0, 1500, 21.8);
+      assert !send(filter, entry, reading, 300) : "Temperature within its deadband of the last sent value";
+      reading.set(address, (byte) 0, 1500, 22.0);
+      assert send(filter, entry, reading, 400) : "Temperature moved past its deadband";
+      reading.set(address, (byte) 1, 1500, 22.0);
+      assert send(filter, entry, reading, 500) : "Key state changed";
+      assert !send(filter, entry, reading, 5499) : "Heartbeat not due";
+      assert send(filter, entry, reading, 5500) : "Heartbeat due";
+      filter.published(entry, reading, 6000);
+      assert !send(filter, entry, reading, 6100) : "Game event publish resets the heartbeat";
+
+      // Accepted telemetry that a later rate limit held back does not move the baseline
+      reading.set(address, (byte) 1, 2100, 22.0);
+      assert filter.accept(entry, reading, 6200) : "Lux moved past its deadband";
+      reading.set(address, (byte) 1, 2200, 22.0);
+      assert filter.accept(entry, reading, 6300) : "Still past the deadband of the last published value";
+
+      System.out.printf("%s\n", metrics.snapshot());
+      assert metrics.snapshot().get("deadband.suppressed") == 4;
+      assert metrics.snapshot().get("deadband.sent") == 6;
+   }
+
+   private static boolean send(DeadbandFilter filter, TagEntry entry, TagReading reading, long now) {
+      if(!filter.accept(entry, reading, now))
+         return false;
+      filter.published(entry, reading, now);
+      return true;
+   }
+}
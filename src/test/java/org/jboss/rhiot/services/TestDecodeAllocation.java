@@ -0,0 +1,101 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.ble.bluez.AdStructure;
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the bytes allocated per advert on the flyweight decode path, from the manufacturer data through the
+ * tag registry lookup and the tag mailbox, against the RHIoTTag.create parsing and address string name lookup of
+ * the decode.flyweight=false path. Run with the HotSpot ThreadMXBean available.
+ */
+public class TestDecodeAllocation {
+   private static final int WARMUP = 200000;
+   private static final int ITERATIONS = 1000000;
+   private static final long[] ADDRESSES = {
+      0xA0E6F8AD2E82L, 0xA0E6F8AD2E83L, 0xA0E6F8AD2E84L, 0xA0E6F8AD2E85L
+   };
+
+   public static void main(String[] args) {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long tid = Thread.currentThread().getId();
+
+      // Producer slot, consumer copy and lane reading as used by the ring, consumer and lanes
+      TagReading slot = new TagReading();
+      TagReading consumer = new TagReading();
+      TagReading lane = new TagReading();
+      TagRegistry registry = new TagRegistry();
+      for (long address : ADDRESSES) {
+         registry.getOrCreate(TagAddress.of(address)).setName("Tag"+address);
+      }
+      TagMailbox mailbox = new TagMailbox(16, new ScannerMetrics());
+      byte[] data = {0x0D, 0x00, (byte) 0xC4, 0x09, 0x00, 0x10, 0x27};
+      AdvertCapture.CapturedAdvert[] adverts = new AdvertCapture.CapturedAdvert[ADDRESSES.length];
+      Map<String, String> names = new HashMap<>();
+      for (int n = 0; n < ADDRESSES.length; n++) {
+         List<AdStructure> ads = new ArrayList<>();
+         ads.add(new AdvertCapture.CapturedAdStructure(RHIoTTagDecoder.AD_MANUFACTURER_DATA, data));
+         short[] address = new short[6];
+         for (int i = 0; i < 6; i++) {
+            address[i] = (short) ((ADDRESSES[n] >>> (40 - 8*i)) & 0xFF);
+         }
+         adverts[n] = new AdvertCapture.CapturedAdvert(0, address, (byte) 0, (byte) 0, 0, -60, 0, 0, ads);
+         names.put(Utils.formatAddress(ADDRESSES[n]), "Tag"+ADDRESSES[n]);
+      }
+
+      long sink = 0;
+      for (int n = 0; n < WARMUP; n++) {
+         sink += flyweight(n, data, slot, consumer, lane, registry, mailbox);
+         sink += legacy(n, data, adverts, names);
+      }
+
+      long start = threads.getThreadAllocatedBytes(tid);
+      for (int n = 0; n < ITERATIONS; n++) {
+         sink += flyweight(n, data, slot, consumer, lane, registry, mailbox);
+      }
+      long flyweightBytes = threads.getThreadAllocatedBytes(tid) - start;
+
+      start = threads.getThreadAllocatedBytes(tid);
+      for (int n = 0; n < ITERATIONS; n++) {
+         sink += legacy(n, data, adverts, names);
+      }
+      long legacyBytes = threads.getThreadAllocatedBytes(tid) - start;
+
+      System.out.printf("flyweight: %.2f bytes/advert\n", (double) flyweightBytes / ITERATIONS);
+      System.out.printf("legacy: %.2f bytes/advert\n", (double) legacyBytes / ITERATIONS);
+      System.out.printf("(sink=%d)\n", sink);
+      assert flyweightBytes / ITERATIONS < 1 : "Flyweight decode path allocated "+flyweightBytes+" bytes";
+   }
+
+   private static int flyweight(int n, byte[] data, TagReading slot, TagReading consumer, TagReading lane,
+                                TagRegistry registry, TagMailbox mailbox) {
+      data[5] = (byte) n;
+      RHIoTTagDecoder.decode(ADDRESSES[n & 3], data, slot);
+      slot.setTime(n);
+      consumer.copyFrom(slot);
+      TagEntry entry = registry.get(consumer.getAddress());
+      consumer.setAddressString(entry.getAddress().toString());
+      consumer.setName(entry.getName());
+      mailbox.offer(consumer, 25000, 10000);
+      int lux = 0;
+      while (mailbox.poll(lane)) {
+         lux += lane.getLux();
+      }
+      return lux;
+   }
+
+   private static int legacy(int n, byte[] data, AdvertCapture.CapturedAdvert[] adverts, Map<String, String> names) {
+      data[5] = (byte) n;
+      RHIoTTag tag = RHIoTTag.create(adverts[n & 3]);
+      if(tag == null)
+         return 0;
+      String name = names.get(tag.getAddressString());
+      tag.setName(name);
+      return tag.getLux() + name.length();
+   }
+}
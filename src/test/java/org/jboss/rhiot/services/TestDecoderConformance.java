@@ -0,0 +1,77 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.ble.bluez.AdStructure;
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Check that the flyweight decoder reads the same values as RHIoTTag.create. The adverts come from an advert
+ * capture of real tags given as the first argument, otherwise from adverts covering the edges of the data layout.
+ */
+public class TestDecoderConformance {
+   private static final int[] THRESHOLDS = {0, 255, 256, 10000, 25000, 65534};
+
+   public static void main(String[] args) throws Exception {
+      List<AdvertCapture.CapturedAdvert> adverts = args.length > 0 ? read(new File(args[0])) : synthetic();
+      int tags = 0;
+      for (AdvertCapture.CapturedAdvert info : adverts) {
+         RHIoTTag tag = RHIoTTag.create(info);
+         int index = RHIoTTagDecoder.indexOf(info);
+         assert (tag != null) == (index >= 0) : "Advert filtering differs for: "+info.getBDaddrAsString();
+         if(tag == null)
+            continue;
+         TagReading reading = new TagReading();
+         RHIoTTagDecoder.decode(info, index, reading);
+         String address = tag.getAddressString();
+         assert Utils.formatAddress(reading.getAddress()).equals(address) : address;
+         assert reading.getKeys() == tag.getKeys() : address+" keys: "+reading.getKeys()+" != "+tag.getKeys();
+         assert reading.getKeyState() == tag.getKeyState() : address+" key state: "+reading.getKeyState();
+         assert reading.getLux() == tag.getLux() : address+" lux: "+reading.getLux()+" != "+tag.getLux();
+         assert Math.abs(reading.getTempC() - tag.getTempC()) < 0.01 : address+" tempC: "+reading.getTempC()+" != "+tag.getTempC();
+         for (int threshold : THRESHOLDS) {
+            assert reading.isLightSensorAbove(threshold) == tag.isLightSensorAbove(threshold) : address+" lux > "+threshold;
+         }
+         tags ++;
+      }
+      System.out.printf("%d adverts, %d RHIoTTag adverts decoded the same\n", adverts.size(), tags);
+      assert tags > 0 : "No RHIoTTag adverts";
+   }
+
+   private static List<AdvertCapture.CapturedAdvert> read(File file) throws Exception {
+      List<AdvertCapture.CapturedAdvert> adverts = new ArrayList<>();
+      try(AdvertCapture.Reader reader = new AdvertCapture.Reader(file)) {
+         for (AdvertCapture.CapturedAdvert advert = reader.next(); advert != null; advert = reader.next()) {
+            adverts.add(advert);
+         }
+      }
+      return adverts;
+   }
+
+   private static List<AdvertCapture.CapturedAdvert> synthetic() {
+      List<AdvertCapture.CapturedAdvert> adverts = new ArrayList<>();
+      int[] centiCs = {2150, 0, -1, -2075, 32767, -32768};
+      int[] luxes = {0, 255, 256, 300, 25000, 65535};
+      for (int keys = 0; keys < 8; keys++) {
+         for (int n = 0; n < centiCs.length; n++) {
+            byte[] data = {0x0D, 0x00, (byte) centiCs[n], (byte) (centiCs[n] >> 8), (byte) keys, (byte) luxes[n], (byte) (luxes[n] >> 8)};
+            adverts.add(advert(0x82 + keys, RHIoTTagDecoder.AD_MANUFACTURER_DATA, data));
+         }
+      }
+      // Other devices, another company id and a short manufacturer data
+      adverts.add(advert(0x90, RHIoTTagDecoder.AD_MANUFACTURER_DATA, new byte[]{0x4C, 0x00, 0x02, 0x15, 0x00, 0x00, 0x00}));
+      adverts.add(advert(0x91, RHIoTTagDecoder.AD_MANUFACTURER_DATA, new byte[]{0x0D, 0x00, 0x00}));
+      adverts.add(advert(0x92, 0x09, "SensorTag".getBytes()));
+      return adverts;
+   }
+
+   private static AdvertCapture.CapturedAdvert advert(int last, int type, byte[] data) {
+      List<AdStructure> ads = new ArrayList<>();
+      ads.add(new AdvertCapture.CapturedAdStructure(0x01, new byte[]{0x06}));
+      ads.add(new AdvertCapture.CapturedAdStructure(type, data));
+      short[] address = {0xA0, 0xE6, 0xF8, 0xAD, 0x2E, (short) last};
+      return new AdvertCapture.CapturedAdvert(0, address, (byte) 0, (byte) 0, 0, -60, 0, 0, ads);
+   }
+}
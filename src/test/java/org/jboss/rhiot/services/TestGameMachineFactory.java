@@ -0,0 +1,52 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.services.fsm.GameClock;
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+import org.jboss.rhiot.services.fsm.IGameStateMachine;
+
+/**
+ * Check that machines come from the factory started with their own game model and the current durations, and report
+ * the cost of creating a machine from the cached definition. Run with -Dengine=squirrel for the squirrel-foundation
+ * engine.
+ */
+public class TestGameMachineFactory {
+   private static final int MACHINES = 1000;
+
+   public static void main(String[] args) {
+      RHIoTTagScanner.GameEngine engine = RHIoTTagScanner.GameEngine.valueOf(System.getProperty("engine", "table").toUpperCase());
+      ScannerMetrics metrics = new ScannerMetrics();
+      GameMachineFactory factory = new GameMachineFactory(engine, false, GameClock.SYSTEM, metrics);
+      factory.setDurations(15, 5);
+
+      IGameStateMachine gsm = factory.create();
+      assert gsm.getGameModel().getGameDuration() == 15000 : gsm.getGameModel().getGameDuration();
+      gsm.fire(GameStateMachine.GameEvent.LEFT_RIGHT_PRESSED);
+      gsm.tookShot();
+      gsm.recordHit(40000);
+      gsm.fire(GameStateMachine.GameEvent.HIT_DETECTED);
+      assert gsm.getCurrentState() == GameStateMachine.GameState.RESETTING : gsm.getCurrentState();
+      assert gsm.getScore() > 0;
+
+      factory.setDurations(30, 10);
+      IGameStateMachine other = factory.create();
+      assert other != gsm && other.getGameModel() != gsm.getGameModel();
+      assert other.getCurrentState() == GameStateMachine.GameState.IDLE : other.getCurrentState();
+      assert other.getScore() == 0 && other.getHits() == 0 && other.getShotsLeft() == 6;
+      assert other.getGameModel().getGameDuration() == 30000 : other.getGameModel().getGameDuration();
+      assert other.getGameModel().getShootingWindowDuration() == 10000;
+      assert gsm.getGameModel().getGameDuration() == 15000 : "Created machines keep their durations";
+
+      IGameStateMachine[] machines = new IGameStateMachine[MACHINES];
+      long start = System.nanoTime();
+      for (int n = 0; n < MACHINES; n++) {
+         machines[n] = factory.create();
+      }
+      long created = System.nanoTime() - start;
+      System.out.printf("%s: create %.1f us/machine\n", engine, created / 1000.0 / MACHINES);
+      System.out.printf("%s\n", metrics.snapshot());
+      assert metrics.snapshot().get("fsm.created") == MACHINES + 2;
+      for (IGameStateMachine m : machines) {
+         m.terminate();
+      }
+   }
+}
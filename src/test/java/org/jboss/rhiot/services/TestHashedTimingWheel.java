@@ -0,0 +1,58 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.services.fsm.GameClock;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedule timeouts across several wheel revolutions, cancel half of them and check that the rest fire no earlier
+ * than their deadline and within a tick of it.
+ */
+public class TestHashedTimingWheel {
+   private static final long TICK_MILLIS = 10;
+   private static final int TIMEOUTS = 2000;
+
+   public static void main(String[] args) throws Exception {
+      ScannerMetrics metrics = new ScannerMetrics();
+      // A small wheel so that the deadlines wrap around it several times
+      HashedTimingWheel wheel = new HashedTimingWheel(TICK_MILLIS, 16, GameClock.SYSTEM, metrics);
+      wheel.start();
+
+      Random random = new Random(42);
+      CountDownLatch done = new CountDownLatch(TIMEOUTS / 2);
+      AtomicInteger early = new AtomicInteger();
+      AtomicInteger cancelledFired = new AtomicInteger();
+      AtomicLong maxLate = new AtomicLong();
+      for (int n = 0; n < TIMEOUTS; n++) {
+         long deadline = System.currentTimeMillis() + 20 + random.nextInt(800);
+         boolean cancel = (n & 1) == 1;
+         HashedTimingWheel.Timeout timeout = wheel.schedule(deadline, () -> {
+            long late = System.currentTimeMillis() - deadline;
+            if(cancel)
+               cancelledFired.incrementAndGet();
+            else if(late < 0)
+               early.incrementAndGet();
+            else
+               maxLate.accumulateAndGet(late, Math::max);
+            if(!cancel)
+               done.countDown();
+         });
+         if(cancel)
+            timeout.cancel();
+      }
+
+      boolean completed = done.await(5, TimeUnit.SECONDS);
+      Thread.sleep(2 * TICK_MILLIS);
+      wheel.stop();
+      System.out.printf("maxLate=%dms, early=%d, cancelledFired=%d, %s\n", maxLate.get(), early.get(), cancelledFired.get(), metrics.snapshot());
+      assert completed : "Not every timeout fired, remaining="+done.getCount();
+      assert early.get() == 0 : early.get()+" timeouts fired early";
+      assert cancelledFired.get() == 0 : cancelledFired.get()+" cancelled timeouts fired";
+      // Allow for scheduling jitter of the ticker thread on top of one tick
+      assert maxLate.get() <= 5 * TICK_MILLIS : "Timeout fired "+maxLate.get()+"ms late";
+   }
+}
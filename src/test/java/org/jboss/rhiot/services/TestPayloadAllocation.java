@@ -0,0 +1,166 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IRHIoTTagScanner;
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+
+/**
+ * Measure the bytes allocated per published tag payload, building it as before with a fresh box per metric value
+ * and with the per lane PayloadBuilder, and check the builder's payloads carry the same metrics. The game state,
+ * game info and game score payloads are reported the same way.
+ */
+public class TestPayloadAllocation {
+   private static final int COUNT = 200000;
+   /** Keeps the payloads reachable the way the publish lanes do */
+   private static final KuraPayload[] sink = new KuraPayload[1024];
+
+   public static void main(String[] args) {
+      TagReading tag = new TagReading();
+      PayloadBuilder builder = new PayloadBuilder();
+
+      // Same metrics as before
+      tag.set(0xA0E6F8AD2E82L, (byte) 1, 21000, 21.37);
+      KuraPayload before = legacy(tag, GameStateMachine.GameState.SHOOTING, GameStateMachine.GameState.SHOOTING,
+         GameStateMachine.GameEvent.HIT_DETECTED, 75, 2, 1460000000000L, 12000, 175, 3500, 4);
+      KuraPayload after = builder.metrics(tag, GameStateMachine.GameState.SHOOTING, GameStateMachine.GameState.SHOOTING,
+         GameStateMachine.GameEvent.HIT_DETECTED, 75, 2, 1460000000000L, 12000, 175, 3500, 4);
+      assert before.metrics().equals(after.metrics()) : after.metrics();
+      assert before.getTimestamp().equals(after.getTimestamp());
+      assert after.getMetric(IRHIoTTagScanner.TAG_LUX) == PayloadBuilder.box(21000) : "Shared box";
+
+      for (int pass = 0; pass < 3; pass++) {
+         long legacyBytes = measure(() -> {
+            for (int n = 0; n < COUNT; n++) {
+               tag.set(0xA0E6F8AD2E82L, (byte) 0, 400 + n % 200, 21.25 + (n % 4) * 0.25);
+               sink[n & 1023] = legacy(tag, GameStateMachine.GameState.SHOOTING, GameStateMachine.GameState.SHOOTING,
+                  GameStateMachine.GameEvent.NOOP, 0, 0, 1460000000000L + n, 15000 - n % 15000, n % 500, 5000 - n % 5000, 10);
+            }
+         });
+         long builderBytes = measure(() -> {
+            for (int n = 0; n < COUNT; n++) {
+               tag.set(0xA0E6F8AD2E82L, (byte) 0, 400 + n % 200, 21.25 + (n % 4) * 0.25);
+               sink[n & 1023] = builder.metrics(tag, GameStateMachine.GameState.SHOOTING, GameStateMachine.GameState.SHOOTING,
+                  GameStateMachine.GameEvent.NOOP, 0, 0, 1460000000000L + n, 15000 - n % 15000, n % 500, 5000 - n % 5000, 10);
+            }
+         });
+         System.out.printf("pass %d, bytes per payload: before=%d, after=%d\n", pass, legacyBytes / COUNT, builderBytes / COUNT);
+         if(pass == 2)
+            assert builderBytes < legacyBytes : "The builder allocates less";
+      }
+
+      // The game payloads carry the same metrics as before
+      assert legacyGameState(GameStateMachine.GameState.SHOOTING, 1460000000000L, 12000, 175, 3500, 4).metrics()
+         .equals(builder.gameState(GameStateMachine.GameState.SHOOTING, 1460000000000L, 12000, 175, 3500, 4).metrics());
+      assert legacyGameInfo("Tag", "A0:E6:F8:AD:2E:82", 1460000000000L, 175, 3, 12000, 4, 3500).metrics()
+         .equals(builder.gameInfo("Tag", "A0:E6:F8:AD:2E:82", 1460000000000L, 175, 3, 12000, 4, 3500).metrics());
+      assert legacyGameScore("Tag", "A0:E6:F8:AD:2E:82", 1460000000000L, 475, 8, true).metrics()
+         .equals(builder.gameScore("Tag", "A0:E6:F8:AD:2E:82", 1460000000000L, 475, 8, true).metrics());
+
+      for (int pass = 0; pass < 3; pass++) {
+         long legacyBytes = measure(() -> {
+            for (int n = 0; n < COUNT; n++) {
+               sink[n & 1023] = legacyGameState(GameStateMachine.GameState.SHOOTING, 1460000000000L + n, 15000 - n % 15000, n % 500, 5000 - n % 5000, 10);
+               sink[n + 1 & 1023] = legacyGameInfo("Tag", "A0:E6:F8:AD:2E:82", 1460000000000L + n, n % 500, n % 10, 15000 - n % 15000, 10, 5000 - n % 5000);
+               sink[n + 2 & 1023] = legacyGameScore("Tag", "A0:E6:F8:AD:2E:82", 1460000000000L + n, n % 500, n % 10, n % 2 == 0);
+            }
+         });
+         long builderBytes = measure(() -> {
+            for (int n = 0; n < COUNT; n++) {
+               sink[n & 1023] = builder.gameState(GameStateMachine.GameState.SHOOTING, 1460000000000L + n, 15000 - n % 15000, n % 500, 5000 - n % 5000, 10);
+               sink[n + 1 & 1023] = builder.gameInfo("Tag", "A0:E6:F8:AD:2E:82", 1460000000000L + n, n % 500, n % 10, 15000 - n % 15000, 10, 5000 - n % 5000);
+               sink[n + 2 & 1023] = builder.gameScore("Tag", "A0:E6:F8:AD:2E:82", 1460000000000L + n, n % 500, n % 10, n % 2 == 0);
+            }
+         });
+         System.out.printf("pass %d, bytes per game state+info+score: before=%d, after=%d\n", pass, legacyBytes / COUNT, builderBytes / COUNT);
+         if(pass == 2)
+            assert builderBytes < legacyBytes : "The builder allocates less";
+      }
+   }
+
+   private static long measure(Runnable run) {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long id = Thread.currentThread().getId();
+      long start = threads.getThreadAllocatedBytes(id);
+      run.run();
+      return threads.getThreadAllocatedBytes(id) - start;
+   }
+
+   /**
+    * The payload as it was built before the PayloadBuilder
+    */
+   private static KuraPayload legacy(TagReading tag, GameStateMachine.GameState state, GameStateMachine.GameState newState,
+                                     GameStateMachine.GameEvent event, int hitScore, int hitRingsOffCenter, long timestamp,
+                                     int gameTimeLeft, int score, int shootingTimeLeft, int shotsLeft) {
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(timestamp));
+      payload.addMetric(IRHIoTTagScanner.TAG_TEMP, tag.getTempC());
+      payload.addMetric(IRHIoTTagScanner.TAG_KEYS, (int) tag.getKeys());
+      payload.addMetric(IRHIoTTagScanner.TAG_LUX, tag.getLux());
+      if(event != GameStateMachine.GameEvent.NOOP) {
+         payload.addMetric(IRHIoTTagScanner.TAG_PREV_STATE, state.name());
+         payload.addMetric(IRHIoTTagScanner.TAG_NEW_STATE, newState.name());
+         payload.addMetric(IRHIoTTagScanner.TAG_EVENT, event.name());
+         if(event == GameStateMachine.GameEvent.HIT_DETECTED) {
+            payload.addMetric(IRHIoTTagScanner.TAG_HIT_SCORE, hitScore);
+            payload.addMetric(IRHIoTTagScanner.TAG_HIT_RINGS_OFF_CENTER, hitRingsOffCenter);
+         }
+      }
+      payload.addMetric(IRHIoTTagScanner.TAG_GAME_TIME_LEFT, gameTimeLeft);
+      payload.addMetric(IRHIoTTagScanner.TAG_GAME_SCORE, score);
+      payload.addMetric(IRHIoTTagScanner.TAG_SHOOTING_TIME_LEFT, shootingTimeLeft);
+      payload.addMetric(IRHIoTTagScanner.TAG_SHOTS_LEFT, shotsLeft);
+      return payload;
+   }
+
+   /**
+    * The game state resend payload as it was built before the PayloadBuilder
+    */
+   private static KuraPayload legacyGameState(GameStateMachine.GameState state, long timestamp, int gameTimeLeft, int score,
+                                              int shootingTimeLeft, int shotsLeft) {
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(timestamp));
+      payload.addMetric(IRHIoTTagScanner.TAG_PREV_STATE, state.name());
+      payload.addMetric(IRHIoTTagScanner.TAG_NEW_STATE, state.name());
+      payload.addMetric(IRHIoTTagScanner.TAG_EVENT, GameStateMachine.GameEvent.NOOP.name());
+      payload.addMetric(IRHIoTTagScanner.TAG_GAME_TIME_LEFT, gameTimeLeft);
+      payload.addMetric(IRHIoTTagScanner.TAG_GAME_SCORE, score);
+      payload.addMetric(IRHIoTTagScanner.TAG_SHOOTING_TIME_LEFT, shootingTimeLeft);
+      payload.addMetric(IRHIoTTagScanner.TAG_SHOTS_LEFT, shotsLeft);
+      return payload;
+   }
+
+   /**
+    * The gameInfo payload as it was built before the PayloadBuilder
+    */
+   private static KuraPayload legacyGameInfo(String name, String tagAddress, long timestamp, int score, int hits,
+                                             int gameTimeLeft, int shotsLeft, int shootingTimeLeft) {
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(timestamp));
+      payload.addMetric(IRHIoTTagScanner.TAG_GAME_NAME, name);
+      payload.addMetric(IRHIoTTagScanner.TAG_GAME_ADDRESS, tagAddress);
+      payload.addMetric(IRHIoTTagScanner.TAG_GAME_TIME_LEFT, gameTimeLeft);
+      payload.addMetric(IRHIoTTagScanner.TAG_GAME_SCORE, score);
+      payload.addMetric(IRHIoTTagScanner.TAG_GAME_HITS, hits);
+      payload.addMetric(IRHIoTTagScanner.TAG_SHOOTING_TIME_LEFT, shootingTimeLeft);
+      payload.addMetric(IRHIoTTagScanner.TAG_SHOTS_LEFT, shotsLeft);
+      return payload;
+   }
+
+   /**
+    * The gameScores payload as it was built before the PayloadBuilder
+    */
+   private static KuraPayload legacyGameScore(String name, String tagAddress, long timestamp, int score, int hits,
+                                              boolean isHighScore) {
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(timestamp));
+      payload.addMetric(IRHIoTTagScanner.GW_LAST_GAME_TAG_NAME, name);
+      payload.addMetric(IRHIoTTagScanner.GW_LAST_GAME_SCORE, score);
+      payload.addMetric(IRHIoTTagScanner.GW_LAST_GAME_SCORE_HITS, hits);
+      payload.addMetric(IRHIoTTagScanner.GW_LAST_GAME_SCORE_TAG_ADDRESS, tagAddress);
+      payload.addMetric(IRHIoTTagScanner.GW_LAST_GAME_NEW_HIGH_SCORE, isHighScore);
+      return payload;
+   }
+}
@@ -0,0 +1,69 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check that queued game results are published ahead of state changes and telemetry, and that a full set of lanes
+ * sheds telemetry first and never sheds results.
+ */
+public class TestPublishLanes {
+   public static void main(String[] args) throws Exception {
+      ScannerMetrics metrics = new ScannerMetrics();
+      CountDownLatch blocked = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      List<String> sent = new ArrayList<>();
+      PublishLanes lanes = new PublishLanes(8, (publishClass, topic, payload, qos, retain) -> {
+         if(topic.equals("block")) {
+            blocked.countDown();
+            try {
+               release.await();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            return;
+         }
+         synchronized (sent) {
+            sent.add(topic);
+         }
+      }, metrics);
+      lanes.start();
+
+      // Hold the publisher in a slow publish while the lanes fill
+      lanes.offer(PublishSpool.PublishClass.TELEMETRY, "block", new KuraPayload(), 0, false);
+      assert blocked.await(5, TimeUnit.SECONDS);
+      for (int n = 0; n < 8; n++) {
+         assert lanes.offer(PublishSpool.PublishClass.TELEMETRY, "telemetry" + n, new KuraPayload(), 0, false);
+      }
+      // Full, each state change sheds the oldest telemetry
+      for (int n = 0; n < 6; n++) {
+         assert lanes.offer(PublishSpool.PublishClass.GAME_EVENT, "event" + n, new KuraPayload(), 0, false);
+      }
+      // New telemetry replaces the oldest telemetry
+      assert lanes.offer(PublishSpool.PublishClass.TELEMETRY, "telemetry8", new KuraPayload(), 0, false);
+      assert lanes.depth(PublishLanes.TELEMETRY) == 2;
+      // Results go over the capacity rather than being shed
+      for (int n = 0; n < 4; n++) {
+         assert lanes.offer(PublishSpool.PublishClass.GAME_SCORE, "score" + n, new KuraPayload(), 1, true);
+      }
+      assert lanes.depth(PublishLanes.RESULTS) == 4;
+      assert lanes.depth(PublishLanes.EVENTS) == 6;
+
+      release.countDown();
+      lanes.stop(5000);
+      System.out.printf("sent=%s\n%s\n", sent, metrics.snapshot());
+      assert sent.subList(0, 4).equals(java.util.Arrays.asList("score0", "score1", "score2", "score3")) : "Results first";
+      assert sent.get(4).equals("event0") && sent.get(9).equals("event5") : "State changes next, in order";
+      for (int n = 10; n < sent.size(); n++) {
+         assert sent.get(n).startsWith("telemetry") : "Telemetry last";
+      }
+      assert metrics.snapshot().get("publish.results.shed") == 0;
+      assert metrics.snapshot().get("publish.events.shed") == 0;
+      assert metrics.snapshot().get("publish.telemetry.shed") == 7;
+      assert metrics.snapshot().get("publish.results.published") == 4;
+   }
+}
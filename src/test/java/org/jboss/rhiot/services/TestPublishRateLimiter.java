@@ -0,0 +1,62 @@
+package org.jboss.rhiot.services;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Check that a noisy tag is downsampled to its quota with an even stride rather than random drops, that its sample
+ * rate recovers once it quietens down, and that game publishes always pass and count their excess over quota.
+ */
+public class TestPublishRateLimiter {
+   public static void main(String[] args) {
+      ScannerMetrics metrics = new ScannerMetrics();
+      Map<PublishSpool.PublishClass, Integer> rates = new EnumMap<>(PublishSpool.PublishClass.class);
+      rates.put(PublishSpool.PublishClass.GAME_EVENT, 10);
+      PublishRateLimiter limiter = new PublishRateLimiter(rates, 5, 1.0, 0, metrics);
+      TagRegistry registry = new TagRegistry();
+      TagEntry noisy = registry.getOrCreate(TagAddress.parse("A0:E6:F8:AD:2E:82"));
+      TagEntry quiet = registry.getOrCreate(TagAddress.parse("A0:E6:F8:AD:2E:83"));
+
+      // The noisy tag sends 100 samples a second for 10 seconds against a quota of 5 a second
+      int noisyAdmitted = 0;
+      int lastAdmitted = -1;
+      int maxGap = 0;
+      for (int n = 0; n < 1000; n++) {
+         long now = n * 10;
+         if(limiter.admitTelemetry(noisy, now)) {
+            noisyAdmitted ++;
+            if(lastAdmitted >= 0)
+               maxGap = Math.max(maxGap, n - lastAdmitted);
+            lastAdmitted = n;
+         }
+         // The quiet tag sends 2 a second and is not throttled
+         if(n % 50 == 0)
+            assert limiter.admitTelemetry(quiet, now) : "Quiet tag within quota";
+      }
+      System.out.printf("noisy admitted=%d, maxGap=%d, stride=%d\n", noisyAdmitted, maxGap, limiter.getStride(noisy));
+      assert noisyAdmitted <= 5 * 10 + 5 : "Held to the quota plus the burst";
+      assert noisyAdmitted >= 5 * 10 / 2 : "Downsampled, not starved";
+      assert maxGap <= 2 * PublishRateLimiter.MAX_STRIDE : "Samples keep coming at an even stride";
+      assert limiter.getStride(noisy) > 1;
+      assert limiter.getStride(quiet) == 1;
+
+      // The noisy tag quietens down and its sample rate recovers
+      for (int n = 0; n < 40; n++) {
+         limiter.admitTelemetry(noisy, 10000 + n * 1000);
+      }
+      assert limiter.getStride(noisy) == 1 : limiter.getStride(noisy);
+
+      // Game events always pass, the excess over 10 a second is counted
+      for (int n = 0; n < 50; n++) {
+         limiter.admitEvent(PublishSpool.PublishClass.GAME_EVENT, 60000);
+         limiter.admitEvent(PublishSpool.PublishClass.GAME_SCORE, 60000);
+      }
+      Map<String, Long> snapshot = metrics.snapshot();
+      System.out.printf("%s\n", snapshot);
+      assert snapshot.get("throttle.game_event.admitted") == 10;
+      assert snapshot.get("throttle.game_event.overQuota") == 40;
+      assert snapshot.get("throttle.game_score.admitted") == 50 : "Unlimited class";
+      assert snapshot.get("throttle.telemetry.sampledOut") + snapshot.get("throttle.telemetry.throttled")
+         + snapshot.get("throttle.telemetry.admitted") == 1000 + 20 + 40;
+   }
+}
@@ -0,0 +1,64 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IPublishSink;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Drive the publish lanes into a fake slow broker and report the throughput and the offer to publish latency
+ * percentiles, checking that every publish arrives in order at the recording sink.
+ */
+public class TestPublishSinks {
+   public static void main(String[] args) throws Exception {
+      int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+      ScannerMetrics metrics = new ScannerMetrics();
+      RecordingPublishSink recorder = new RecordingPublishSink(false);
+      // 200us +/- 100us per publish with 1% taking 20ms
+      IPublishSink sink = new LatencyPublishSink(recorder, 200, 100, 0.01, 20000, 42);
+      PublishLanes lanes = new PublishLanes(count, (publishClass, topic, payload, qos, retain) -> {
+         try {
+            sink.publish(topic, payload, qos, retain);
+         } catch (Exception e) {
+            throw new IllegalStateException(e);
+         }
+      }, metrics);
+      lanes.start();
+
+      long[] offered = new long[count];
+      long start = System.nanoTime();
+      for (int n = 0; n < count; n++) {
+         offered[n] = System.nanoTime();
+         assert lanes.offer(PublishSpool.PublishClass.GAME_EVENT, "t/" + n, new KuraPayload(), 0, false);
+      }
+      lanes.stop(60000);
+      long elapsed = System.nanoTime() - start;
+
+      List<RecordingPublishSink.Record> records = recorder.getRecords();
+      assert records.size() == count : records.size();
+      long[] latency = new long[count];
+      for (int n = 0; n < count; n++) {
+         RecordingPublishSink.Record record = records.get(n);
+         assert record.getTopic().equals("t/" + n) : "In order";
+         latency[n] = record.getReceived() - offered[n];
+      }
+      Arrays.sort(latency);
+      System.out.printf("publishes=%d, throughput=%.0f/s, latency ms p50=%.1f p99=%.1f max=%.1f\n", count,
+         count * 1e9 / elapsed, percentile(latency, 0.5), percentile(latency, 0.99), latency[count - 1] / 1e6);
+      System.out.printf("%s\n", metrics.snapshot());
+
+      // A disconnected sink fails the publish
+      recorder.setConnected(false);
+      try {
+         recorder.publish("t", new KuraPayload(), 0, false);
+         assert false : "Disconnected sink published";
+      } catch (IllegalStateException e) {
+         // expected
+      }
+   }
+
+   private static double percentile(long[] sorted, double p) {
+      return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+   }
+}
@@ -0,0 +1,117 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Check that spooled publishes are replayed in order, that the cap drops telemetry before game events and never
+ * drops scores, that unsent publishes survive closing and reopening the spool, and that a scanner without a cloud
+ * service drops its publishes rather than spooling them.
+ */
+public class TestPublishSpool {
+   public static void main(String[] args) throws Exception {
+      File dir = Files.createTempDirectory("spool").toFile();
+      ScannerMetrics metrics = new ScannerMetrics();
+      PublishSpool spool = new PublishSpool(dir, 2000, 1024, metrics);
+      spool.open();
+      assert !spool.isSpooling();
+      assert !spool.appendIfSpooling(PublishSpool.PublishClass.TELEMETRY, "data/tag", payload(0), 0, false) : "Not spooling while connected";
+
+      // The connection is lost, fill the spool past the telemetry share of the cap
+      spool.startSpooling();
+      int n = 0;
+      while (spool.append(PublishSpool.PublishClass.TELEMETRY, "data/tag", payload(n), 0, false)) {
+         n ++;
+      }
+      int telemetry = n;
+      System.out.printf("Spooled %d telemetry, %d bytes\n", telemetry, spool.getLiveBytes());
+      assert spool.getLiveBytes() <= 1000 : "Telemetry may only fill half the cap";
+      assert spool.append(PublishSpool.PublishClass.GAME_EVENT, "data/tag", payload(n++), 1, false) : "Game events use the rest of the cap";
+      while (spool.append(PublishSpool.PublishClass.GAME_EVENT, "data/tag", payload(n), 1, false)) {
+         n ++;
+      }
+      for (int s = 0; s < 20; s++) {
+         assert spool.append(PublishSpool.PublishClass.GAME_SCORE, "gameScores", payload(n++), 1, true) : "Scores are never dropped";
+      }
+      long live = spool.getLiveRecords();
+      assert live == n : live + " != " + n;
+      System.out.printf("%s\n", metrics.snapshot());
+      assert metrics.snapshot().get("spool.dropped.telemetry") == 1;
+      assert metrics.snapshot().get("spool.dropped.game_event") == 1;
+      assert metrics.snapshot().get("spool.dropped.game_score") == 0;
+      assert dir.listFiles().length > 1 : "Spool spans several segments";
+
+      // Replay part of it, with the sender failing part way through
+      List<Integer> sent = new ArrayList<>();
+      int[] failAt = {5};
+      PublishSpool.Sender sender = (topic, payload, qos, retain) -> {
+         if(sent.size() == failAt[0])
+            throw new IllegalStateException("connection lost");
+         sent.add((Integer) payload.getMetric("seq"));
+      };
+      assert spool.replay(sender, 100) == 5 : "Replay stops at the first failure";
+      assert !spool.finishIfDrained();
+
+      // Restart, the unsent publishes are recovered
+      spool.close();
+      spool = new PublishSpool(dir, 2000, 1024, new ScannerMetrics());
+      spool.open();
+      assert spool.isSpooling() : "Unsent publishes are replayed before new ones";
+      assert spool.getLiveRecords() == n - 5 : spool.getLiveRecords();
+      assert spool.appendIfSpooling(PublishSpool.PublishClass.GAME_SCORE, "gameScores", payload(n++), 1, true);
+      failAt[0] = -1;
+      while (spool.replay(sender, 7) > 0) {
+      }
+      assert spool.finishIfDrained();
+      assert !spool.isSpooling();
+      for (int s = 0; s < sent.size(); s++) {
+         assert sent.get(s) == s : "Replayed in order: " + sent;
+      }
+      assert sent.size() == n : sent.size() + " != " + n;
+      assert dir.listFiles().length == 0 : "Drained segments are deleted";
+      spool.close();
+      dir.delete();
+
+      // No cloud service, nothing would ever replay the spool
+      File scannerDir = Files.createTempDirectory("spool").toFile();
+      Map<String, Object> properties = new HashMap<>();
+      properties.put(ScannerConfig.SKIP_JNI_PROP_NAME, Boolean.TRUE);
+      properties.put("game.engine", "table");
+      properties.put(ScannerConfig.SPOOL_DIR_PROP_NAME, scannerDir.getPath());
+      RHIoTTagScanner scanner = new RHIoTTagScanner();
+      scanner.activate(null, properties);
+      scanner.updateTagInfo("A0:E6:F8:AD:2E:82", "Tag82");
+      for (int r = 0; r < 10; r++) {
+         TagReading reading = new TagReading();
+         reading.set(Utils.parseAddress("A0:E6:F8:AD:2E:82"), (byte) (r == 0 ? 3 : 0), 300 + 1000 * r, 21.5);
+         reading.setTime(System.currentTimeMillis());
+         scanner.handleTagAsync(reading).join();
+      }
+      Thread.sleep(200);
+      Map<String, Long> snapshot = scanner.getMetrics().snapshot();
+      scanner.deactivate(null);
+      System.out.printf("%s\n", snapshot);
+      assert snapshot.get("publish.noSink") > 0 : "Publishes dropped";
+      assert snapshot.get("spool.appended") == 0 : "Nothing spooled";
+      for (File file : scannerDir.listFiles()) {
+         file.delete();
+      }
+      scannerDir.delete();
+   }
+
+   private static KuraPayload payload(int seq) {
+      KuraPayload payload = new KuraPayload();
+      payload.setTimestamp(new Date(1000L + seq));
+      payload.addMetric("seq", seq);
+      payload.addMetric("rhiotTag.temperature", 21.5);
+      payload.addMetric("rhiotTag.state", "SHOOTING");
+      return payload;
+   }
+}
@@ -0,0 +1,61 @@
+package org.jboss.rhiot.services;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Check the configuration snapshot parsing, the per tag topic caching and the change detection that drives the
+ * partial reconfiguration.
+ */
+public class TestScannerConfig {
+   public static void main(String[] args) {
+      Map<String, Object> properties = new HashMap<>();
+      properties.put("publish.semanticTopic", "data");
+      properties.put("publish.qos", 1);
+      properties.put("game.hitThreshold", 25000);
+      properties.put("game.resetThreshold", 10000);
+      properties.put("game.duration", 30);
+      properties.put("game.shootingWindow", 10);
+      properties.put("game.engine", "table");
+      ScannerConfig config = ScannerConfig.from(properties);
+      System.out.printf("%s\n", config);
+      assert config.getHciDev().equals("hci0") : "Missing properties take their defaults";
+      assert config.getQos() == 1;
+      assert !config.isRetain();
+      assert config.getLuxHitThreshold() == 25000;
+      assert config.getGameEngine() == RHIoTTagScanner.GameEngine.TABLE;
+
+      TagEntry entry = new TagEntry(TagAddress.parse("A0:E6:F8:AD:2E:82"));
+      String topic = config.topicFor(entry);
+      assert topic.equals("data/A0:E6:F8:AD:2E:82") : topic;
+      assert config.topicFor(entry) == topic : "Topic is built once per snapshot";
+
+      // Only the thresholds and topic change, the scanner, games and telemetry are left alone
+      properties.put("game.hitThreshold", 30000);
+      properties.put("publish.semanticTopic", "games");
+      ScannerConfig updated = ScannerConfig.from(properties);
+      assert updated.getLuxHitThreshold() == 30000;
+      assert config.getLuxHitThreshold() == 25000 : "The old snapshot is unchanged";
+      assert !updated.scannerDiffers(config);
+      assert !updated.gameDefinitionDiffers(config);
+      assert !updated.durationsDiffer(config);
+      assert !updated.telemetryDiffers(config);
+      assert !updated.pipelineDiffers(config);
+      assert updated.topicFor(entry).equals("games/A0:E6:F8:AD:2E:82") : "New snapshot rebuilds the topic";
+
+      properties.put("game.duration", 45);
+      assert ScannerConfig.from(properties).durationsDiffer(updated);
+      properties.put("hciDev", "hci1");
+      assert ScannerConfig.from(properties).scannerDiffers(updated);
+      properties.put("game.engine", "squirrel");
+      assert ScannerConfig.from(properties).gameDefinitionDiffers(updated);
+      properties.put("publish.heartbeatMillis", 0);
+      assert ScannerConfig.from(properties).telemetryDiffers(updated);
+      properties.put("dispatch.lanes", 4);
+      assert ScannerConfig.from(properties).pipelineDiffers(updated);
+      properties.put("debug.address", "A0:E6:F8:AD:2E:82");
+      ScannerConfig debug = ScannerConfig.from(properties);
+      assert debug.debugAddressDiffers(updated);
+      assert debug.isDebugAddress(entry.getAddress());
+   }
+}
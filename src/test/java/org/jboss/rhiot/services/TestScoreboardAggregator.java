@@ -0,0 +1,113 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IRHIoTTagScanner;
+import org.jboss.rhiot.services.fsm.GameClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Check that a burst of game events from many tags is combined into one scoreboard frame listing every active game,
+ * that frames are only published when a game changed, and that the scanner drops games that end without a game
+ * timeout from the scoreboard.
+ */
+public class TestScoreboardAggregator {
+   public static void main(String[] args) throws Exception {
+      ScannerMetrics metrics = new ScannerMetrics();
+      List<KuraPayload> frames = new ArrayList<>();
+      ScoreboardAggregator board = new ScoreboardAggregator(10, GameClock.SYSTEM, (topic, payload, qos, retain) -> {
+         assert topic.equals("gameInfo") && retain;
+         frames.add(payload);
+      }, metrics);
+
+      // Nine players each send a burst of events
+      for (int event = 0; event < 5; event++) {
+         for (int n = 8; n >= 0; n--) {
+            board.update("player" + n, String.format("A0:E6:F8:AD:2E:%02X", n), 100 * event + n, event, 15000 - event * 1000, 10 - event, 5000);
+         }
+      }
+      board.publishFrame();
+      assert frames.size() == 1 : "One frame for the burst";
+      KuraPayload frame = frames.get(0);
+      System.out.printf("frame=%s\n", frame.metrics());
+      assert frame.getMetric(IRHIoTTagScanner.TAG_GAME_COUNT).equals(9);
+      for (int n = 0; n < 9; n++) {
+         assert frame.getMetric(IRHIoTTagScanner.TAG_GAME_NAME + "." + n).equals("player" + n) : "Ordered by address";
+         assert frame.getMetric(IRHIoTTagScanner.TAG_GAME_SCORE + "." + n).equals(400 + n) : "Latest state";
+         assert frame.getMetric(IRHIoTTagScanner.TAG_GAME_HITS + "." + n).equals(4);
+         assert frame.getMetric(IRHIoTTagScanner.TAG_GAME_TIME_LEFT + "." + n).equals(11000);
+         assert frame.getMetric(IRHIoTTagScanner.TAG_SHOTS_LEFT + "." + n).equals(6);
+      }
+
+      // Nothing changed, no frame
+      board.publishFrame();
+      assert frames.size() == 1;
+
+      // A game ends and drops off the scoreboard
+      board.remove("A0:E6:F8:AD:2E:00");
+      board.publishFrame();
+      assert frames.size() == 2;
+      assert frames.get(1).getMetric(IRHIoTTagScanner.TAG_GAME_COUNT).equals(8);
+      assert frames.get(1).getMetric(IRHIoTTagScanner.TAG_GAME_NAME + ".0").equals("player1");
+      // Removing an unknown game is not a change
+      board.remove("A0:E6:F8:AD:2E:00");
+      board.publishFrame();
+      assert frames.size() == 2;
+
+      // The rate limited thread publishes the changes
+      board.start();
+      board.update("player1", "A0:E6:F8:AD:2E:01", 500, 5, 10000, 5, 5000);
+      Thread.sleep(500);
+      board.stop();
+      assert frames.size() == 3 : frames.size();
+      System.out.printf("%s\n", metrics.snapshot());
+      assert metrics.snapshot().get("scoreboard.updates") == 46;
+      assert metrics.snapshot().get("scoreboard.frames") == 3;
+
+      // Games ended by a game definition change or deactivation
+      Map<String, Object> properties = new HashMap<>();
+      properties.put(ScannerConfig.SKIP_JNI_PROP_NAME, Boolean.TRUE);
+      properties.put("game.engine", "table");
+      properties.put("publish.spool.maxBytes", 0);
+      properties.put(ScannerConfig.SCOREBOARD_RATE_PROP_NAME, 5);
+      RecordingPublishSink sink = new RecordingPublishSink(true);
+      RHIoTTagScanner scanner = new RHIoTTagScanner();
+      scanner.setPublishSink(sink);
+      scanner.activate(null, properties);
+      scanner.updateTagInfo("A0:E6:F8:AD:2E:82", "Tag82");
+      scanner.handleTagAsync(reading(3)).join();
+      assert lastGameCount(sink) == 1 : "Game started";
+      properties.put(ScannerConfig.FSM_REMOTE_MONITOR_PROP_NAME, Boolean.TRUE);
+      scanner.updated(properties);
+      // Wait for the tag's lane to have replaced the game
+      scanner.handleTagAsync(reading(0)).join();
+      assert lastGameCount(sink) == 0 : "Replaced game dropped";
+      scanner.handleTagAsync(reading(3)).join();
+      assert lastGameCount(sink) == 1 : "New game started";
+      scanner.deactivate(null);
+      assert lastGameCount(sink) == 0 : "Game dropped on deactivation";
+   }
+
+   private static TagReading reading(int keys) {
+      TagReading reading = new TagReading();
+      reading.set(Utils.parseAddress("A0:E6:F8:AD:2E:82"), (byte) keys, 300, 21.5);
+      reading.setTime(System.currentTimeMillis());
+      return reading;
+   }
+
+   /**
+    * Wait for the next scoreboard frames then get the game count of the last one
+    */
+   private static int lastGameCount(RecordingPublishSink sink) throws InterruptedException {
+      Thread.sleep(500);
+      Object count = null;
+      for (RecordingPublishSink.Record record : sink.getRecords()) {
+         if(record.getTopic().endsWith("gameInfo"))
+            count = record.getPayload().getMetric(IRHIoTTagScanner.TAG_GAME_COUNT);
+      }
+      return count != null ? (Integer) count : -1;
+   }
+}
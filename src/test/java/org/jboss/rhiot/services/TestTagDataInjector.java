@@ -0,0 +1,90 @@
+package org.jboss.rhiot.services;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check that a JSON array and a newline delimited stream of readings are injected in order per tag, that unnamed
+ * tags are skipped, that the summary reports each tag's final game state, and that readings for a deactivated scanner
+ * fail rather than hang the request.
+ */
+public class TestTagDataInjector {
+   public static void main(String[] args) throws Exception {
+      Map<String, Object> properties = new HashMap<>();
+      properties.put(ScannerConfig.SKIP_JNI_PROP_NAME, Boolean.TRUE);
+      properties.put("game.engine", "table");
+      properties.put("publish.spool.maxBytes", 0);
+      properties.put("dispatch.lanes", 4);
+      RHIoTTagScanner scanner = new RHIoTTagScanner();
+      scanner.setPublishSink(new RecordingPublishSink(false));
+      scanner.activate(null, properties);
+      scanner.updateTagInfo("A0:E6:F8:AD:2E:82", "Tag82");
+      scanner.updateTagInfo("A0:E6:F8:AD:2E:83", "Tag83");
+      TagDataInjector injector = new TagDataInjector(scanner);
+
+      // Start a game on 82 and hit the target, start a game on 83, interleaved
+      long now = System.currentTimeMillis();
+      String array = "[" +
+         "{\"address\":\"A0:E6:F8:AD:2E:82\",\"keys\":3,\"lux\":300,\"time\":" + now + "}," +
+         "{\"address\":\"A0:E6:F8:AD:2E:83\",\"keys\":3,\"lux\":300}," +
+         "{\"address\":\"A0:E6:F8:AD:2E:84\",\"keys\":3,\"lux\":300}," +
+         "{\"address\":\"A0:E6:F8:AD:2E:82\",\"keys\":0,\"lux\":25000,\"tempC\":21.5,\"rssi\":-60,\"time\":" + (now + 10) + "}]";
+      JsonObject summary = injector.inject(new StringReader(array));
+      System.out.println(summary);
+      assert summary.get("readings").getAsInt() == 4;
+      assert summary.get("skipped").getAsInt() == 1 : "84 has no name";
+      assert summary.get("failed").getAsInt() == 0;
+      JsonArray tags = summary.get("tags").getAsJsonArray();
+      assert tags.size() == 2;
+      assert state(tags, "A0:E6:F8:AD:2E:82").equals("RESETTING");
+      assert state(tags, "A0:E6:F8:AD:2E:83").equals("SHOOTING");
+
+      // A newline delimited stream, 82 drops the light to reset the target
+      StringBuilder stream = new StringBuilder();
+      for (int n = 0; n < 500; n++) {
+         stream.append("{\"address\":\"A0:E6:F8:AD:2E:8").append(2 + n % 2).append("\",\"keys\":0,\"lux\":").append(300 + n).append("}\n");
+      }
+      summary = injector.inject(new StringReader(stream.toString()));
+      System.out.println(summary);
+      assert summary.get("readings").getAsInt() == 500;
+      tags = summary.get("tags").getAsJsonArray();
+      assert tags.get(0).getAsJsonObject().get("readings").getAsInt() == 250;
+      assert state(tags, "A0:E6:F8:AD:2E:82").equals("SHOOTING");
+
+      // A malformed reading is rejected
+      try {
+         injector.inject(new StringReader("{\"address\":\"A0:E6:F8:AD:2E:82\",\"lux\":300}"));
+         assert false : "Missing keys";
+      } catch (IllegalArgumentException e) {
+         System.out.println(e.getMessage());
+      }
+      scanner.deactivate(null);
+
+      // The lanes are gone once the scanner is deactivated
+      scanner.updateTagInfo("A0:E6:F8:AD:2E:82", "Tag82");
+      long start = System.nanoTime();
+      summary = injector.inject(new StringReader(stream.toString()));
+      System.out.println(summary);
+      assert summary.get("readings").getAsInt() == 500;
+      assert summary.get("failed").getAsInt() == 250 : "Every reading of 82 failed";
+      assert summary.get("skipped").getAsInt() == 250 : "83 has no name since deactivation";
+      assert summary.get("pending").getAsInt() == 0;
+      tags = summary.get("tags").getAsJsonArray();
+      assert tags.get(0).getAsJsonObject().get("state").isJsonNull();
+      assert System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5) : "Request returned";
+   }
+
+   private static String state(JsonArray tags, String address) {
+      for (int n = 0; n < tags.size(); n++) {
+         JsonObject tag = tags.get(n).getAsJsonObject();
+         if(tag.get("address").getAsString().equals(address))
+            return tag.get("state").getAsString();
+      }
+      return null;
+   }
+}
@@ -0,0 +1,56 @@
+package org.jboss.rhiot.services;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Check that the gateway tag configuration is not limited to 9 tags, and that the load generator drives hundreds
+ * of virtual tags through a scanner and reports on the run.
+ */
+public class TestTagLoadGenerator {
+   public static void main(String[] args) throws Exception {
+      // More than the 9 tags the metatype declares, in index order
+      RHIoTTagConfig tagConfig = new RHIoTTagConfig();
+      Map<String, Object> tags = new HashMap<>();
+      for (int n = 0; n < 20; n++) {
+         tags.put("gw.tag" + n, new String[]{String.format("A0:E6:F8:AD:2E:%02X", n), "Tag#" + n});
+      }
+      tags.put("gw.tagX", new String[]{"A0:E6:F8:AD:2F:00", "Ignored"});
+      tagConfig.activate(null, tags);
+      assert tagConfig.getTagCount() == 20 : tagConfig.getTagCount();
+      assert tagConfig.getTagName(12).equals("Tag#12");
+      assert tagConfig.getNameByAddress("A0:E6:F8:AD:2E:13").equals("Tag#19");
+      assert RHIoTTagConfig.tagIndex("gw.tag") == -1;
+
+      Map<String, Object> properties = new HashMap<>();
+      properties.put("game.engine", "table");
+      properties.put("publish.heartbeatMillis", 0);
+      properties.put("publish.spool.maxBytes", 0);
+
+      for (TagLoadGenerator.Feed feed : TagLoadGenerator.Feed.values()) {
+         TagLoadGenerator.Options options = new TagLoadGenerator.Options();
+         options.set("tags", "500");
+         options.set("advertMillis", "100");
+         options.set("durationSecs", "2");
+         options.set("maxIdleMillis", "500");
+         options.set("feed", feed.name());
+         TagLoadGenerator.Result result = TagLoadGenerator.run(options, properties, new RecordingPublishSink(false));
+         System.out.print(result);
+         assert result.getTrackedTags() == 500 : result.getTrackedTags();
+         assert result.getAdverts() > 5000 : "Paced close to 5000 adverts/s";
+         assert result.getHandled() > 0 && result.getSustainedRate() > 0;
+         assert result.getPublishes() > 0 : "Games played";
+         assert result.getP99LatencyMillis() >= 0;
+      }
+
+      // As fast as the scanner takes them
+      TagLoadGenerator.Options options = new TagLoadGenerator.Options();
+      options.set("tags", "2000");
+      options.set("advertMillis", "0");
+      options.set("durationSecs", "2");
+      TagLoadGenerator.Result max = TagLoadGenerator.run(options, properties, new RecordingPublishSink(false));
+      System.out.print(max);
+      assert max.getTrackedTags() == 2000;
+      assert max.getRetainedBytesPerTag() > 0;
+   }
+}
@@ -0,0 +1,88 @@
+package org.jboss.rhiot.services;
+
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+import org.jboss.rhiot.services.fsm.GameStateMachine;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Check that trace records are written to the ring file in order, that the ring keeps the newest records once it
+ * wraps and is continued on reopening, and that the scanner traces each of its debug address tags.
+ */
+public class TestTagTraceLog {
+   public static void main(String[] args) throws Exception {
+      File file = File.createTempFile("tag", ".trace");
+      file.deleteOnExit();
+      ScannerMetrics metrics = new ScannerMetrics();
+      long address = Utils.parseAddress("A0:E6:F8:AD:2E:82");
+
+      // Room for 10 records, write 25
+      int maxBytes = TagTraceLog.HEADER_BYTES + 10 * TagTraceLog.RECORD_BYTES;
+      TagTraceLog trace = new TagTraceLog(file, maxBytes, metrics);
+      trace.start();
+      for (int n = 0; n < 25; n++) {
+         assert trace.trace(TagTraceLog.Kind.ADVERT, 1000 + n, address, 3, 20000 + n, GameStateMachine.GameState.SHOOTING,
+            GameStateMachine.GameEvent.HIT_DETECTED, GameStateMachine.GameState.RESETTING, 90, n * 10, 9, 15000 - n);
+      }
+      trace.stop();
+      assert metrics.snapshot().get("trace.written") == 25;
+      String[] rows = decode(file);
+      assert rows.length == 11 : rows.length;
+      assert rows[0].equals(TagTraceDecoder.CSV_HEADER);
+      assert rows[1].equals("15,1015,A0:E6:F8:AD:2E:82,ADVERT,3,20015,SHOOTING,HIT_DETECTED,RESETTING,90,150,9,14985") : rows[1];
+      assert rows[10].startsWith("24,1024,");
+
+      // Reopening continues the sequence
+      trace = new TagTraceLog(file, maxBytes, metrics);
+      trace.start();
+      trace.trace(TagTraceLog.Kind.TIMEOUT, 2000, address, 0, 300, GameStateMachine.GameState.SHOOTING,
+         GameStateMachine.GameEvent.GAME_TIMEOUT, GameStateMachine.GameState.GAMEOVER, 0, 240, 0, 0);
+      trace.stop();
+      rows = decode(file);
+      assert rows.length == 11;
+      assert rows[10].equals("25,2000,A0:E6:F8:AD:2E:82,TIMEOUT,0,300,SHOOTING,GAME_TIMEOUT,GAMEOVER,0,240,0,0") : rows[10];
+
+      // Trace two tags through a scanner
+      File scannerTrace = File.createTempFile("scanner", ".trace");
+      scannerTrace.deleteOnExit();
+      Map<String, Object> properties = new HashMap<>();
+      properties.put(ScannerConfig.SKIP_JNI_PROP_NAME, Boolean.TRUE);
+      properties.put("game.engine", "table");
+      properties.put("publish.spool.maxBytes", 0);
+      properties.put("debug.address", "A0:E6:F8:AD:2E:82, A0:E6:F8:AD:2E:83");
+      properties.put("trace.file", scannerTrace.getPath());
+      RHIoTTagScanner scanner = new RHIoTTagScanner();
+      scanner.setPublishSink(new RecordingPublishSink(false));
+      scanner.activate(null, properties);
+      for (String tagAddress : new String[]{"A0:E6:F8:AD:2E:82", "A0:E6:F8:AD:2E:83", "A0:E6:F8:AD:2E:84"}) {
+         scanner.updateTagInfo(tagAddress, "Tag" + tagAddress.substring(15));
+         scanner.handleTagAsync(tag(tagAddress, 3, 300)).get();
+         scanner.handleTagAsync(tag(tagAddress, 0, 25000)).get();
+      }
+      scanner.deactivate(null);
+      rows = decode(scannerTrace);
+      for (String row : rows) {
+         System.out.println(row);
+      }
+      assert rows.length == 5 : "2 adverts for each of the 2 traced tags";
+      assert rows[1].contains(",A0:E6:F8:AD:2E:82,ADVERT,3,300,IDLE,LEFT_RIGHT_PRESSED,SHOOTING,");
+      assert rows[2].contains(",A0:E6:F8:AD:2E:82,ADVERT,0,25000,SHOOTING,HIT_DETECTED,RESETTING,");
+      assert rows[3].contains(",A0:E6:F8:AD:2E:83,");
+   }
+
+   private static RHIoTTag tag(String address, int keys, int lux) {
+      RHIoTTag tag = new RHIoTTag(address, (byte) keys, lux);
+      tag.setName("Sim");
+      return tag;
+   }
+
+   private static String[] decode(File file) throws Exception {
+      StringWriter csv = new StringWriter();
+      TagTraceDecoder.toCsv(file.getPath(), new PrintWriter(csv));
+      return csv.toString().split("\n");
+   }
+}
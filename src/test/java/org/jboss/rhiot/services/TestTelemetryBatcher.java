@@ -0,0 +1,77 @@
+package org.jboss.rhiot.services;
+
+import org.eclipse.kura.message.KuraPayload;
+import org.jboss.rhiot.services.api.IRHIoTTagScanner;
+import org.jboss.rhiot.services.fsm.GameClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Check that NOOP telemetry is published in batches by sample count, ahead of a game event and by the flush interval.
+ */
+public class TestTelemetryBatcher {
+   public static void main(String[] args) throws Exception {
+      ScannerMetrics metrics = new ScannerMetrics();
+      TagRegistry registry = new TagRegistry();
+      TagEntry entry = registry.getOrCreate(TagAddress.parse("A0:E6:F8:AD:2E:82"));
+      List<KuraPayload> published = new ArrayList<>();
+      TelemetryBatcher batcher = new TelemetryBatcher(200, 10, registry, GameClock.SYSTEM, null,
+         (topic, payload, qos, retain) -> {
+            synchronized (published) {
+               published.add(payload);
+            }
+         }, metrics);
+
+      TagReading reading = new TagReading();
+      for (int n = 0; n < 25; n++) {
+         reading.set(entry.getAddress().getValue(), (byte) 0, 1000 + n, 21.5);
+         batcher.add(entry, "rhiot/A0:E6:F8:AD:2E:82", 0, false, reading, n, 15000 - n, 0, 5000 - n, 6);
+      }
+      assert published.size() == 2 : "Expected 2 full batches, saw "+published.size();
+      KuraPayload second = published.get(1);
+      assert second.getMetric(IRHIoTTagScanner.TAG_BATCH_COUNT).equals(10);
+      assert second.getMetric(IRHIoTTagScanner.TAG_LUX + ".0").equals(1010) : second.getMetric(IRHIoTTagScanner.TAG_LUX + ".0");
+      assert second.getMetric(IRHIoTTagScanner.TAG_SAMPLE_TIME + ".9").equals(19L);
+
+      // A game event flushes the partial batch first
+      batcher.flush(entry);
+      assert published.size() == 3;
+      assert published.get(2).getMetric(IRHIoTTagScanner.TAG_BATCH_COUNT).equals(5);
+
+      // A partial batch goes out once it is older than the interval
+      batcher.start();
+      batcher.add(entry, "rhiot/A0:E6:F8:AD:2E:82", 0, false, reading, 100, 0, 0, 0, 6);
+      Thread.sleep(400);
+      batcher.stop();
+      synchronized (published) {
+         assert published.size() == 4 : "Expected the interval flush, saw "+published.size();
+      }
+
+      // Raising maxSamples at runtime with a populated buffer sized by the old batcher
+      for (int n = 0; n < 7; n++) {
+         batcher.add(entry, "rhiot/A0:E6:F8:AD:2E:82", 0, false, reading, 200 + n, 0, 0, 0, 6);
+      }
+      published.clear();
+      TelemetryBatcher larger = new TelemetryBatcher(200, 20, registry, GameClock.SYSTEM, null,
+         (topic, payload, qos, retain) -> published.add(payload), metrics);
+      for (int n = 0; n < 20; n++) {
+         larger.add(entry, "rhiot/A0:E6:F8:AD:2E:82", 0, false, reading, 300 + n, 0, 0, 0, 6);
+      }
+      assert published.size() == 2 : "The old samples then a full batch of 20, saw "+published.size();
+      assert published.get(0).getMetric(IRHIoTTagScanner.TAG_BATCH_COUNT).equals(7);
+      assert published.get(1).getMetric(IRHIoTTagScanner.TAG_BATCH_COUNT).equals(20);
+      assert published.get(1).getMetric(IRHIoTTagScanner.TAG_SAMPLE_TIME + ".19").equals(319L);
+
+      // And lowering it again
+      published.clear();
+      larger.add(entry, "rhiot/A0:E6:F8:AD:2E:82", 0, false, reading, 400, 0, 0, 0, 6);
+      TelemetryBatcher smaller = new TelemetryBatcher(200, 5, registry, GameClock.SYSTEM, null,
+         (topic, payload, qos, retain) -> published.add(payload), metrics);
+      for (int n = 0; n < 5; n++) {
+         smaller.add(entry, "rhiot/A0:E6:F8:AD:2E:82", 0, false, reading, 500 + n, 0, 0, 0, 6);
+      }
+      assert published.size() == 2 : published.size();
+      System.out.printf("%s\n", metrics.snapshot());
+   }
+}